@@ -0,0 +1,135 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc.benchmark;
+
+import com.gurucue.recommendations.data.jdbc.BulkInsertWriter;
+import com.gurucue.recommendations.data.jdbc.JdbcDataLink;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizer;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizerAtOffset;
+import com.gurucue.recommendations.data.jdbc.SimplePreparedStatementWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inserting consumption records one row at a time, with JDBC batches, and with multi-row inserts,
+ * reported per row.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BatchInsertBenchmark {
+    static final int ROWS = 1000;
+
+    public static final class Consumption {
+        final long userId;
+        final long itemId;
+        final int duration;
+
+        Consumption(final long userId, final long itemId, final int duration) {
+            this.userId = userId;
+            this.itemId = itemId;
+            this.duration = duration;
+        }
+    }
+
+    static final String INSERT_SQL = "insert into consumption (user_id, item_id, duration) values (?, ?, ?)";
+    /** Binds a row from index 1 on, or at an offset in a multi-row statement. */
+    static final class ConsumptionParameterizer implements PreparedStatementParameterizer<Consumption>, PreparedStatementParameterizerAtOffset<Consumption> {
+        @Override
+        public void execute(final PreparedStatement statement, final Consumption parameter) throws SQLException {
+            execute(statement, 0, parameter);
+        }
+
+        @Override
+        public void execute(final PreparedStatement statement, final int offset, final Consumption parameter) throws SQLException {
+            statement.setLong(offset + 1, parameter.userId);
+            statement.setLong(offset + 2, parameter.itemId);
+            statement.setInt(offset + 3, parameter.duration);
+        }
+    }
+
+    static final PreparedStatementParameterizer<Consumption> PARAMETERIZER = new ConsumptionParameterizer();
+
+    final SimplePreparedStatementWrapper<Void, Consumption> insert = new SimplePreparedStatementWrapper<>(INSERT_SQL, PARAMETERIZER);
+    final BulkInsertWriter<Consumption> bulkInsert = new BulkInsertWriter<>(INSERT_SQL, PARAMETERIZER);
+    final List<Consumption> rows = new ArrayList<>(ROWS);
+    BenchmarkDatabase database;
+    JdbcDataLink link;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = new BenchmarkDatabase(true);
+        link = database.newLink();
+        for (int i = 0; i < ROWS; i++) rows.add(new Consumption(i % 100, i, i % 3600));
+    }
+
+    @Setup(Level.Iteration)
+    public void truncate() throws Exception {
+        database.truncate("consumption");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        link.close();
+        database.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void rowByRow() {
+        for (final Consumption row : rows) insert.execute(link, row);
+        link.commit();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public int[] batched() {
+        final int[] counts = insert.executeBatch(link, rows);
+        link.commit();
+        return counts;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long multiRow() {
+        final long count = bulkInsert.insert(link, rows);
+        link.commit();
+        return count;
+    }
+}
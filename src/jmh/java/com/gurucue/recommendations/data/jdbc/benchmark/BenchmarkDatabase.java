@@ -0,0 +1,211 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc.benchmark;
+
+import com.gurucue.recommendations.DatabaseException;
+import com.gurucue.recommendations.data.jdbc.JdbcDataLink;
+import com.gurucue.recommendations.data.jdbc.JdbcDataProvider;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementCache;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory H2 database with the benchmark tables, and a minimal {@link JdbcDataProvider}
+ * over it. The provider and its links are dynamic proxies implementing only the JDBC-specific
+ * methods and the transaction methods the library uses, so the benchmarks do not depend on a
+ * full data provider implementation.
+ */
+public final class BenchmarkDatabase implements AutoCloseable {
+    public static final int PRODUCT_COUNT = 10000;
+    public static final int EVENT_COUNT = 200000;
+    private static final AtomicInteger databaseCounter = new AtomicInteger(0);
+
+    private final String url;
+    private final Connection keepAlive;
+    private final ExecutorService asyncExecutor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    public final JdbcDataProvider provider;
+
+    /**
+     * Creates and fills a new in-memory database.
+     *
+     * @param cacheStatements whether the links of the provider cache prepared statements
+     */
+    public BenchmarkDatabase(final boolean cacheStatements) throws SQLException {
+        url = "jdbc:h2:mem:benchmark" + databaseCounter.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+        keepAlive = DriverManager.getConnection(url);
+        try (final Statement stmt = keepAlive.createStatement()) {
+            stmt.execute("create table product (id bigint primary key, title varchar(200) not null, score double)");
+            stmt.execute("create table item_event (user_id bigint not null, item_id bigint not null, score double not null)");
+            stmt.execute("create table consumption (user_id bigint not null, item_id bigint not null, duration int not null)");
+        }
+        try (final PreparedStatement insert = keepAlive.prepareStatement("insert into product (id, title, score) values (?, ?, ?)")) {
+            for (int i = 1; i <= PRODUCT_COUNT; i++) {
+                insert.setLong(1, i);
+                insert.setString(2, "Product " + i);
+                insert.setDouble(3, (i % 97) / 97.0);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+        try (final PreparedStatement insert = keepAlive.prepareStatement("insert into item_event (user_id, item_id, score) values (?, ?, ?)")) {
+            for (int i = 0; i < EVENT_COUNT; i++) {
+                insert.setLong(1, i % 1000);
+                insert.setLong(2, (i * 7L) % PRODUCT_COUNT + 1);
+                insert.setDouble(3, (i % 13) / 13.0);
+                insert.addBatch();
+                if ((i % 10000) == 9999) insert.executeBatch();
+            }
+            insert.executeBatch();
+        }
+        provider = (JdbcDataProvider) Proxy.newProxyInstance(BenchmarkDatabase.class.getClassLoader(), new Class<?>[]{JdbcDataProvider.class}, new ProviderHandler(cacheStatements));
+    }
+
+    /**
+     * Opens a new link to the database.
+     *
+     * @return the new link
+     */
+    public JdbcDataLink newLink() {
+        return provider.newJdbcDataLink();
+    }
+
+    public void truncate(final String table) throws SQLException {
+        try (final Statement stmt = keepAlive.createStatement()) {
+            stmt.execute("truncate table " + table);
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        asyncExecutor.shutdown();
+        try {
+            asyncExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try (final Statement stmt = keepAlive.createStatement()) {
+            stmt.execute("shutdown");
+        }
+        keepAlive.close();
+    }
+
+    final class ProviderHandler implements InvocationHandler {
+        final boolean cacheStatements;
+
+        ProviderHandler(final boolean cacheStatements) {
+            this.cacheStatements = cacheStatements;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "newJdbcDataLink":
+                    final Connection connection = DriverManager.getConnection(url);
+                    connection.setAutoCommit(false);
+                    return Proxy.newProxyInstance(BenchmarkDatabase.class.getClassLoader(), new Class<?>[]{JdbcDataLink.class}, new LinkHandler(connection, cacheStatements ? new PreparedStatementCache() : null));
+                case "runAsync":
+                    asyncExecutor.execute((Runnable) args[0]);
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "BenchmarkDatabase provider " + url;
+                default:
+                    throw new UnsupportedOperationException("Not supported by the benchmark provider: " + method);
+            }
+        }
+    }
+
+    static final class LinkHandler implements InvocationHandler {
+        final Connection connection;
+        final PreparedStatementCache cache;
+
+        LinkHandler(final Connection connection, final PreparedStatementCache cache) {
+            this.connection = connection;
+            this.cache = cache;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            try {
+                switch (method.getName()) {
+                    case "isValid":
+                        return connection.isValid(1);
+                    case "setReadOnly":
+                        connection.setReadOnly((Boolean) args[0]);
+                        return null;
+                    case "prepareStatement":
+                    case "createStatement":
+                    case "prepareCall":
+                        return Connection.class.getMethod(method.getName(), method.getParameterTypes()).invoke(connection, args);
+                    case "execute":
+                        try (final Statement stmt = connection.createStatement()) {
+                            stmt.execute((String) args[0]);
+                        }
+                        return null;
+                    case "getConnection":
+                        return connection;
+                    case "getPreparedStatementCache":
+                        return cache;
+                    case "commit":
+                        connection.commit();
+                        return null;
+                    case "rollback":
+                        connection.rollback();
+                        return null;
+                    case "close":
+                        if (null != cache) cache.close();
+                        connection.close();
+                        return null;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return "BenchmarkDatabase link " + connection;
+                    default:
+                        throw new UnsupportedOperationException("Not supported by the benchmark link: " + method);
+                }
+            }
+            catch (InvocationTargetException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof SQLException) throw new DatabaseException(cause.toString(), cause);
+                throw cause;
+            }
+            catch (SQLException e) {
+                throw new DatabaseException(e.toString(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc.benchmark;
+
+import com.gurucue.recommendations.data.jdbc.CompiledQuery;
+import com.gurucue.recommendations.data.jdbc.JdbcDataLink;
+import com.gurucue.recommendations.data.jdbc.ParameterLongLong;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizer;
+import com.gurucue.recommendations.data.jdbc.QueryDefinition;
+import com.gurucue.recommendations.data.jdbc.ResultProcessor;
+import com.gurucue.recommendations.data.jdbc.SimplePreparedStatementWrapper;
+import org.h2.tools.SimpleResultSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Range lookups of products bound and mapped by a {@link CompiledQuery} versus a handwritten
+ * parameterizer and result processor, on a single link with a prepared statement cache.
+ * The <code>*Binding</code> and <code>*Mapping</code> benchmarks leave out the database: they only bind
+ * a range to a prepared statement, or only map the rows of an in-memory result set.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CompiledQueryBenchmark {
+    private static final String RANGE_SQL = "select id, title, score from product where id between ? and ?";
+
+    @Param({"1", "100"})
+    public int rows;
+
+    BenchmarkDatabase database;
+    JdbcDataLink link;
+    long nextId = 1L;
+
+    public static class Product {
+        private long id;
+        private String title;
+        private double score;
+
+        public Product() {
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public void setId(final long id) {
+            this.id = id;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public void setTitle(final String title) {
+            this.title = title;
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+        public void setScore(final double score) {
+            this.score = score;
+        }
+    }
+
+    final PreparedStatementParameterizer<ParameterLongLong> handwrittenParameterizer = new PreparedStatementParameterizer<ParameterLongLong>() {
+        @Override
+        public void execute(final PreparedStatement statement, final ParameterLongLong parameter) throws SQLException {
+            statement.setLong(1, parameter.firstParameter);
+            statement.setLong(2, parameter.secondParameter);
+        }
+    };
+    final ResultProcessor<List<Product>, ParameterLongLong> handwrittenProcessor = new ResultProcessor<List<Product>, ParameterLongLong>() {
+        @Override
+        public List<Product> process(final ResultSet resultSet, final ParameterLongLong parameters) throws SQLException {
+            final List<Product> products = new ArrayList<>();
+            while (resultSet.next()) {
+                final Product product = new Product();
+                product.setId(resultSet.getLong(1));
+                product.setTitle(resultSet.getString(2));
+                product.setScore(resultSet.getDouble(3));
+                products.add(product);
+            }
+            return products;
+        }
+    };
+    final SimplePreparedStatementWrapper<List<Product>, ParameterLongLong> handwrittenWrapper = new SimplePreparedStatementWrapper<>(RANGE_SQL, handwrittenParameterizer, handwrittenProcessor);
+    final CompiledQuery<Product, ParameterLongLong> compiledQuery = new QueryDefinition<>(RANGE_SQL, ParameterLongLong.class, Product.class)
+            .setParameters("firstParameter", "secondParameter")
+            .setColumns("id", "title", "score")
+            .compile();
+    final ResultProcessor<List<Product>, ParameterLongLong> compiledProcessor = compiledQuery.listProcessor();
+    final SimplePreparedStatementWrapper<List<Product>, ParameterLongLong> compiledWrapper = compiledQuery.newWrapper();
+
+    PreparedStatement statement;
+    SimpleResultSet resultSet;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = new BenchmarkDatabase(true);
+        link = database.newLink();
+        link.setReadOnly(true);
+        statement = link.prepareStatement(RANGE_SQL);
+        resultSet = new SimpleResultSet();
+        resultSet.setAutoClose(false);
+        resultSet.addColumn("id", Types.BIGINT, 19, 0);
+        resultSet.addColumn("title", Types.VARCHAR, 255, 0);
+        resultSet.addColumn("score", Types.DOUBLE, 17, 0);
+        for (int i = 1; i <= rows; i++) resultSet.addRow((long) i, "Product " + i, i / 10.0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        statement.close();
+        link.close();
+        database.close();
+    }
+
+    private ParameterLongLong nextRange() {
+        final long first = nextId;
+        nextId = first + rows > BenchmarkDatabase.PRODUCT_COUNT ? 1L : first + rows;
+        return new ParameterLongLong(first, first + rows - 1);
+    }
+
+    @Benchmark
+    public List<Product> handwritten() {
+        return handwrittenWrapper.execute(link, nextRange());
+    }
+
+    @Benchmark
+    public List<Product> compiled() {
+        return compiledWrapper.execute(link, nextRange());
+    }
+
+    @Benchmark
+    public PreparedStatement handwrittenBinding() throws SQLException {
+        handwrittenParameterizer.execute(statement, nextRange());
+        return statement;
+    }
+
+    @Benchmark
+    public PreparedStatement compiledBinding() throws SQLException {
+        compiledQuery.execute(statement, nextRange());
+        return statement;
+    }
+
+    @Benchmark
+    public List<Product> handwrittenMapping() throws SQLException {
+        resultSet.beforeFirst();
+        return handwrittenProcessor.process(resultSet, null);
+    }
+
+    @Benchmark
+    public List<Product> compiledMapping() throws SQLException {
+        resultSet.beforeFirst();
+        return compiledProcessor.process(resultSet, null);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc.benchmark;
+
+import com.gurucue.recommendations.data.jdbc.JdbcResultSet;
+import com.gurucue.recommendations.data.jdbc.JdbcStatement;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPool;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPoolSettings;
+import com.gurucue.recommendations.data.jdbc.SharedConnectionPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool borrow/return throughput with a single-row lookup, under the statement return policies:
+ * re-prepare on every return (the original behaviour) or never, returned asynchronously or inline,
+ * with a connection per statement or with connections shared through a {@link SharedConnectionPool}
+ * (which never re-prepares).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PoolBenchmark {
+    static final String SQL = "select title, score from product where id = ?";
+
+    @State(Scope.Benchmark)
+    public static class PoolState {
+        @Param({"1", "0"})
+        public int reprepareAfterUses;
+
+        @Param({"false", "true"})
+        public boolean returnInline;
+
+        @Param({"false", "true"})
+        public boolean sharedConnections;
+
+        BenchmarkDatabase database;
+        SharedConnectionPool connections;
+        PreparedStatementPool pool;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            database = new BenchmarkDatabase(false);
+            final PreparedStatementPoolSettings settings = new PreparedStatementPoolSettings()
+                    .setMaxSize(256)
+                    .setReprepareAfterUses(reprepareAfterUses)
+                    .setReturnInline(returnInline);
+            if (sharedConnections) {
+                connections = new SharedConnectionPool(database.provider, settings);
+                pool = new PreparedStatementPool(connections, SQL);
+            }
+            else {
+                pool = new PreparedStatementPool(database.provider, SQL, settings);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            pool.close();
+            if (null != connections) connections.close();
+            database.close();
+        }
+    }
+
+    private static double lookup(final PreparedStatementPool pool) {
+        final long id = ThreadLocalRandom.current().nextLong(BenchmarkDatabase.PRODUCT_COUNT) + 1L;
+        try (final JdbcStatement statement = pool.getStatement()) {
+            try (final JdbcResultSet rs = statement.executeQuery(id)) {
+                return rs.next() ? rs.getDouble(2) : 0.0;
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public double lookup1Thread(final PoolState state) {
+        return lookup(state.pool);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public double lookup8Threads(final PoolState state) {
+        return lookup(state.pool);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public double lookup64Threads(final PoolState state) {
+        return lookup(state.pool);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc.benchmark;
+
+import com.gurucue.recommendations.data.jdbc.ColumnBatch;
+import com.gurucue.recommendations.data.jdbc.JdbcResultSet;
+import com.gurucue.recommendations.data.jdbc.JdbcStatement;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading all (user, item, score) rows of the event table with per-cell getters versus columnar batches.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ResultIterationBenchmark {
+    BenchmarkDatabase database;
+    PreparedStatementPool pool;
+    final ColumnBatch batch = new ColumnBatch(4096).addLongColumn(1, false).addLongColumn(2, false).addDoubleColumn(3, false);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = new BenchmarkDatabase(false);
+        pool = new PreparedStatementPool(database.provider, "select user_id, item_id, score from item_event");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        pool.close();
+        database.close();
+    }
+
+    @Benchmark
+    public double perCellGetters() {
+        double sum = 0.0;
+        try (final JdbcStatement statement = pool.getStatement()) {
+            try (final JdbcResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    sum += rs.getLong(1) + rs.getLong(2) + rs.getDouble(3);
+                }
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double columnBatches() {
+        double sum = 0.0;
+        try (final JdbcStatement statement = pool.getStatement()) {
+            try (final JdbcResultSet rs = statement.executeQuery()) {
+                int n;
+                while ((n = rs.fetch(batch)) > 0) {
+                    final long[] users = batch.getLongs(0);
+                    final long[] items = batch.getLongs(1);
+                    final double[] scores = batch.getDoubles(2);
+                    for (int i = 0; i < n; i++) sum += users[i] + items[i] + scores[i];
+                }
+            }
+        }
+        return sum;
+    }
+}
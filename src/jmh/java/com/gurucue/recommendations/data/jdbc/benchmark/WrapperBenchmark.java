@@ -0,0 +1,136 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc.benchmark;
+
+import com.gurucue.recommendations.data.jdbc.JdbcDataLink;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementCache;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizerLong;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementProcessor;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementWrapper;
+import com.gurucue.recommendations.data.jdbc.ResultProcessor;
+import com.gurucue.recommendations.data.jdbc.SimplePreparedStatementWrapper;
+import com.gurucue.recommendations.data.jdbc.StatementWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-row lookups through each statement wrapper on a single link, with and without the per-link
+ * prepared statement cache, and a cache hit on its own. Run with the GC profiler to see the allocations
+ * per operation, e.g. <code>gradle jmh -PjmhArgs='WrapperBenchmark -prof gc'</code>: gc.alloc.rate.norm
+ * of cachedStatement is what the JDBC driver allocates to reset a statement, the cache adds nothing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class WrapperBenchmark {
+    private static final String LOOKUP_SQL = "select title, score from product where id = ?";
+
+    @Param({"false", "true"})
+    public boolean cacheStatements;
+
+    BenchmarkDatabase database;
+    JdbcDataLink link;
+    final PreparedStatementCache statementCache = new PreparedStatementCache();
+    long nextId = 1L;
+
+    final ResultProcessor<Double, Long> scoreProcessor = new ResultProcessor<Double, Long>() {
+        @Override
+        public Double process(final ResultSet resultSet, final Long parameters) throws SQLException {
+            return resultSet.next() ? resultSet.getDouble(2) : null;
+        }
+    };
+    final SimplePreparedStatementWrapper<Double, Long> simpleWrapper = new SimplePreparedStatementWrapper<>(LOOKUP_SQL, new PreparedStatementParameterizerLong(), scoreProcessor);
+    final PreparedStatementWrapper<Double, Long> preparedWrapper = new PreparedStatementWrapper<>("[benchmark]", new PreparedStatementProcessor<Double, Long>() {
+        @Override
+        public Double process(final PreparedStatement statement, final Long parameters) throws SQLException {
+            statement.setLong(1, parameters);
+            try (final ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? rs.getDouble(2) : null;
+            }
+        }
+    });
+    final StatementWrapper<Double, Long> statementWrapper = new StatementWrapper<>("[benchmark]", scoreProcessor);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = new BenchmarkDatabase(cacheStatements);
+        link = database.newLink();
+        link.setReadOnly(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        statementCache.close();
+        link.close();
+        database.close();
+    }
+
+    private long nextId() {
+        final long id = nextId;
+        nextId = id >= BenchmarkDatabase.PRODUCT_COUNT ? 1L : id + 1L;
+        return id;
+    }
+
+    @Benchmark
+    public Double simpleWrapperBoxed() {
+        return simpleWrapper.execute(link, Long.valueOf(nextId()));
+    }
+
+    @Benchmark
+    public Double simpleWrapperPrimitive() {
+        return simpleWrapper.executeLong(link, nextId());
+    }
+
+    @Benchmark
+    public Double preparedStatementWrapper() {
+        return preparedWrapper.execute(link, LOOKUP_SQL, nextId());
+    }
+
+    @Benchmark
+    public PreparedStatement cachedStatement() {
+        final PreparedStatement statement = statementCache.acquire(link, LOOKUP_SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        statementCache.release(LOOKUP_SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, statement);
+        return statement;
+    }
+
+    @Benchmark
+    public Double statementWrapper() {
+        final long id = nextId();
+        return statementWrapper.execute(link, "select title, score from product where id = " + id, id);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+import com.gurucue.recommendations.DatabaseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for the asynchronous <code>executeAsync()</code> variants of the statement wrappers.
+ * Unless configured otherwise, statements are executed on a virtual thread per task when running
+ * on a JDK that supports virtual threads, and on a cached pool of daemon threads otherwise.
+ */
+public final class AsyncExecution {
+    private static final Logger log = LogManager.getLogger(AsyncExecution.class);
+    private static volatile Executor defaultExecutor = null;
+
+    private AsyncExecution() {}
+
+    /**
+     * Returns the executor used by <code>executeAsync()</code> variants without an explicit executor.
+     *
+     * @return the default executor
+     */
+    public static Executor getDefaultExecutor() {
+        Executor executor = defaultExecutor;
+        if (null == executor) {
+            synchronized (AsyncExecution.class) {
+                executor = defaultExecutor;
+                if (null == executor) {
+                    executor = newVirtualThreadPerTaskExecutor();
+                    if (null == executor) executor = newDaemonThreadPool();
+                    defaultExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Sets the executor used by <code>executeAsync()</code> variants without an explicit executor.
+     *
+     * @param executor the new default executor, or null to revert to the built-in one
+     */
+    public static void setDefaultExecutor(final Executor executor) {
+        defaultExecutor = executor;
+    }
+
+    /**
+     * Returns an executor running tasks with {@link JdbcDataProvider#runAsync(Runnable)} of the given provider.
+     *
+     * @param provider the provider to run the tasks
+     * @return the executor delegating to the provider
+     */
+    public static Executor providerExecutor(final JdbcDataProvider provider) {
+        return new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                provider.runAsync(command);
+            }
+        };
+    }
+
+    /**
+     * Creates an executor starting a new virtual thread for each task, if the running JDK supports virtual threads.
+     *
+     * @return the new executor, or null if virtual threads are not supported
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Failed to create a virtual thread executor: " + e.toString(), e);
+            return null;
+        }
+    }
+
+    private static ExecutorService newDaemonThreadPool() {
+        final AtomicInteger counter = new AtomicInteger(0);
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "JDBC async execution " + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Waits for all the given futures to complete, so independent statements can be executed
+     * concurrently and their results collected together. If any of them failed, then the failure
+     * of the first one in the argument order is thrown.
+     *
+     * @param futures the futures to wait for
+     */
+    public static void awaitAll(final CompletableFuture<?>... futures) {
+        try {
+            CompletableFuture.allOf(futures).join();
+        }
+        catch (CompletionException e) {
+            for (final CompletableFuture<?> future : futures) {
+                if (future.isCompletedExceptionally()) {
+                    try {
+                        future.join();
+                    }
+                    catch (CompletionException failure) {
+                        final Throwable cause = failure.getCause();
+                        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                        throw new DatabaseException("Asynchronous statement execution failed: " + cause.toString(), cause);
+                    }
+                }
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+import com.gurucue.recommendations.DatabaseException;
+import com.gurucue.recommendations.data.DataLink;
+import com.gurucue.recommendations.data.DataManager;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Inserts rows in bulk by rewriting a single-row <code>INSERT ... VALUES (...)</code> statement into
+ * multi-row <code>VALUES (...), (...), ...</code> statements, so each round trip inserts many rows
+ * even with drivers that send every statement of a JDBC batch separately.
+ * <p>
+ * The number of rows per statement is the largest that keeps the number of placeholders within the
+ * parameter limit of the database, up to the configured maximum. A remainder smaller than that is
+ * inserted with statements of power-of-two row counts, so only a handful of distinct statements is
+ * ever prepared and all of them are reused through the link's {@link PreparedStatementCache}.
+ * <p>
+ * The rows are iterated on a separate thread and handed over in chunks, so producing the rows, such
+ * as reading them from a file or a cursor, overlaps with executing the inserts; the rows are bound
+ * and the inserts are executed on the calling thread, which owns the link.
+ * <p>
+ * The parameterizer binds one row starting at parameter index 1, as for the single-row statement.
+ * If it also implements {@link PreparedStatementParameterizerAtOffset}, each row is bound directly
+ * at its offset in the multi-row statement; otherwise the parameterizer is given a wrapper of the
+ * statement that shifts the parameter indexes.
+ *
+ * @param <P> the row type
+ */
+public class BulkInsertWriter<P> {
+    private static final Logger log = LogManager.getLogger(BulkInsertWriter.class);
+    /** The default maximum number of placeholders in a statement; PostgreSQL allows 65535, SQL Server 2100. */
+    public static final int DEFAULT_MAX_PARAMETERS = 32767;
+    public static final int DEFAULT_MAX_ROWS_PER_STATEMENT = 1000;
+    static final int QUEUE_CAPACITY = 4;
+    private static final Chunk END = new Chunk(null, 0, null);
+
+    private final String name;
+    private final String sql;
+    private final String prefix;
+    private final String rowValues;
+    private final String suffix;
+    private final int parametersPerRow;
+    private final int rowsPerStatement;
+    private final PreparedStatementParameterizer<P> parameterizer;
+    // the parameterizer if it binds at an offset, otherwise null
+    private final PreparedStatementParameterizerAtOffset<P> offsetParameterizer;
+    private final Executor executor;
+    private final Map<Integer, String> multiRowSql = new ConcurrentHashMap<>();
+    private StatementMetrics metrics = null; // resolved on first use
+
+    /**
+     * Creates a bulk writer for the given single-row insert statement.
+     *
+     * @param name the logical name of the statement, logged by the {@link SlowQueryLog}
+     * @param sql the single-row insert statement, such as <code>insert into item_event (consumer_id, product_id, ts) values (?, ?, ?)</code>
+     * @param parameterizer binds the parameters of one row
+     * @param maxParameters the maximum number of placeholders the database allows in a statement
+     * @param maxRowsPerStatement the maximum number of rows in one statement
+     * @param executor the executor iterating the rows, or null for {@link AsyncExecution#getDefaultExecutor()}
+     */
+    @SuppressWarnings("unchecked")
+    public BulkInsertWriter(final String name, final String sql, final PreparedStatementParameterizer<P> parameterizer, final int maxParameters, final int maxRowsPerStatement, final Executor executor) {
+        if (maxRowsPerStatement < 1) throw new IllegalArgumentException("The maximum number of rows per statement must be positive: " + maxRowsPerStatement);
+        final int valuesStart = findValues(sql);
+        if (valuesStart < 0) throw new IllegalArgumentException("Not a single-row INSERT ... VALUES (...) statement: " + sql);
+        final int valuesEnd = findClosingParenthesis(sql, valuesStart);
+        if (valuesEnd < 0) throw new IllegalArgumentException("Unbalanced parentheses in the VALUES clause: " + sql);
+        this.name = name;
+        this.sql = sql;
+        this.prefix = sql.substring(0, valuesStart);
+        this.rowValues = sql.substring(valuesStart, valuesEnd + 1);
+        this.suffix = sql.substring(valuesEnd + 1);
+        this.parametersPerRow = StatementPipeline.countPlaceholders(rowValues);
+        if (parametersPerRow > maxParameters) throw new IllegalArgumentException("A row has " + parametersPerRow + " parameters, more than the limit of " + maxParameters);
+        this.rowsPerStatement = parametersPerRow == 0 ? maxRowsPerStatement : Math.min(maxRowsPerStatement, maxParameters / parametersPerRow);
+        this.parameterizer = parameterizer;
+        this.offsetParameterizer = parameterizer instanceof PreparedStatementParameterizerAtOffset ? (PreparedStatementParameterizerAtOffset<P>) parameterizer : null;
+        this.executor = null == executor ? AsyncExecution.getDefaultExecutor() : executor;
+    }
+
+    public BulkInsertWriter(final String sql, final PreparedStatementParameterizer<P> parameterizer, final int maxParameters, final int maxRowsPerStatement, final Executor executor) {
+        this(sql, sql, parameterizer, maxParameters, maxRowsPerStatement, executor);
+    }
+
+    public BulkInsertWriter(final String sql, final PreparedStatementParameterizer<P> parameterizer) {
+        this(sql, parameterizer, DEFAULT_MAX_PARAMETERS, DEFAULT_MAX_ROWS_PER_STATEMENT, null);
+    }
+
+    public int getRowsPerStatement() {
+        return rowsPerStatement;
+    }
+
+    /**
+     * Inserts the given rows on the given link. Committing is left to the caller.
+     *
+     * @param link the link to insert the rows with
+     * @param rows the rows to insert
+     * @return the number of inserted rows, as reported by the database
+     */
+    public long insert(final JdbcDataLink link, final Iterable<P> rows) {
+        return insert(link, rows, 0L);
+    }
+
+    // waitNanos is the time waited for the link, reported by the slow query log
+    private long insert(final JdbcDataLink link, final Iterable<P> rows, final long waitNanos) {
+        final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final AtomicBoolean aborted = new AtomicBoolean(false);
+        final Producer producer = new Producer(rows.iterator(), queue, aborted);
+        executor.execute(producer);
+
+        final StatementMetrics metrics = metrics();
+        final PreparedStatementCache cache = PreparedStatementCache.forLink(link);
+        final Map<Integer, PreparedStatement> statements = new HashMap<>();
+        final Map<Integer, ParameterOffset> shiftedStatements = null == offsetParameterizer ? new HashMap<Integer, ParameterOffset>() : null;
+        final long startTime = System.nanoTime();
+        boolean reusable = false;
+        long inserted = 0L;
+        try {
+            try {
+                for (;;) {
+                    final Chunk chunk = take(queue, producer);
+                    if (END == chunk) break;
+                    if (chunk.failure instanceof Error) throw (Error) chunk.failure;
+                    if (null != chunk.failure) throw (RuntimeException) chunk.failure;
+                    int offset = 0;
+                    while (offset < chunk.size) {
+                        final int remaining = chunk.size - offset;
+                        final int n = remaining >= rowsPerStatement ? rowsPerStatement : Integer.highestOneBit(remaining);
+                        inserted += insertRows(link, cache, statements, shiftedStatements, chunk.rows, offset, n);
+                        offset += n;
+                    }
+                }
+                reusable = true;
+                metrics.rows(inserted);
+                return inserted;
+            }
+            finally {
+                aborted.set(true);
+                final long elapsed = System.nanoTime() - startTime;
+                metrics.execution(elapsed);
+                if (!reusable) metrics.error();
+                if (SlowQueryLog.isLogged(waitNanos + elapsed)) SlowQueryLog.log(name, sql, "bulk insert", reusable ? inserted : -1L, waitNanos, elapsed);
+                for (final Map.Entry<Integer, PreparedStatement> entry : statements.entrySet()) {
+                    PreparedStatementCache.releaseForwardOnly(cache, multiRowSql(entry.getKey()), entry.getValue(), reusable);
+                }
+            }
+        } catch (SQLException se) {
+            final String reason = "Database bulk insert error: " + se.toString() + "; SQL: " + sql;
+            log.error(reason, se);
+            throw new DatabaseException(reason, se);
+        }
+    }
+
+    /**
+     * Inserts the given rows on a new link, and commits, or on the link of the current {@link UnitOfWork}.
+     *
+     * @param rows the rows to insert
+     * @return the number of inserted rows, as reported by the database
+     */
+    public long insert(final Iterable<P> rows) {
+        final UnitOfWork unit = UnitOfWork.current();
+        if (null != unit) {
+            try {
+                return insert(unit.getLink(), rows);
+            }
+            catch (RuntimeException e) {
+                unit.setRollbackOnly();
+                throw e;
+            }
+        }
+        final long waitStart = System.nanoTime();
+        final DataLink link = DataManager.getNewLink();
+        final long waitNanos = System.nanoTime() - waitStart;
+        if (!(link instanceof JdbcDataLink)) throw new DatabaseException("Cannot execute SQL statement: the data link does not implement JDBC interface");
+        try {
+            final long result;
+            try {
+                result = insert((JdbcDataLink)link, rows, waitNanos);
+            }
+            catch (RuntimeException e) {
+                link.rollback();
+                throw e;
+            }
+            link.commit();
+            return result;
+        }
+        finally {
+            link.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private int insertRows(final JdbcDataLink link, final PreparedStatementCache cache, final Map<Integer, PreparedStatement> statements, final Map<Integer, ParameterOffset> shiftedStatements, final Object[] rows, final int offset, final int n) throws SQLException {
+        PreparedStatement stmt = statements.get(n);
+        if (null == stmt) {
+            stmt = PreparedStatementCache.prepareForwardOnly(link, cache, multiRowSql(n), metrics());
+            statements.put(n, stmt);
+        }
+        if (null != offsetParameterizer) {
+            for (int i = 0; i < n; i++) offsetParameterizer.execute(stmt, i * parametersPerRow, (P) rows[offset + i]);
+        }
+        else if (n == 1) {
+            parameterizer.execute(stmt, (P) rows[offset]);
+        }
+        else {
+            // one shifting wrapper for each of the few distinct statements, the offset is moved for each row
+            ParameterOffset shifted = shiftedStatements.get(n);
+            if (null == shifted) {
+                shifted = new ParameterOffset(stmt, 0);
+                shiftedStatements.put(n, shifted);
+            }
+            for (int i = 0; i < n; i++) {
+                shifted.setOffset(i * parametersPerRow);
+                parameterizer.execute(shifted, (P) rows[offset + i]);
+            }
+        }
+        return stmt.executeUpdate();
+    }
+
+    private String multiRowSql(final int rows) {
+        if (rows == 1) return sql;
+        String s = multiRowSql.get(rows);
+        if (null == s) {
+            final StringBuilder sb = new StringBuilder(prefix.length() + suffix.length() + rows * (rowValues.length() + 2));
+            sb.append(prefix).append(rowValues);
+            for (int i = 1; i < rows; i++) sb.append(", ").append(rowValues);
+            sb.append(suffix);
+            s = sb.toString();
+            multiRowSql.put(rows, s);
+        }
+        return s;
+    }
+
+    private StatementMetrics metrics() {
+        StatementMetrics m = metrics;
+        if (null == m) metrics = m = JdbcMetrics.getDefault().forStatement(sql);
+        return m;
+    }
+
+    // waits for the next chunk for as long as the producer is running
+    private Chunk take(final BlockingQueue<Chunk> queue, final Producer producer) {
+        try {
+            for (;;) {
+                final boolean finished = producer.finished;
+                final Chunk chunk = queue.poll(100L, TimeUnit.MILLISECONDS);
+                if (null != chunk) return chunk;
+                if (finished) throw new DatabaseException("The rows to insert ended without completing");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted while waiting for rows to insert: " + e.toString(), e);
+        }
+    }
+
+    /**
+     * Returns the position of the opening parenthesis of the row following the <code>VALUES</code>
+     * keyword, skipping string literals and quoted identifiers, or -1 if there is none.
+     */
+    static int findValues(final String sql) {
+        final int n = sql.length();
+        int i = 0;
+        while (i < n) {
+            final char c = sql.charAt(i);
+            if ((c == '\'') || (c == '"')) {
+                final int end = sql.indexOf(c, i + 1);
+                if (end < 0) return -1;
+                i = end + 1;
+                continue;
+            }
+            if (((c == 'v') || (c == 'V')) && sql.regionMatches(true, i, "values", 0, 6)
+                    && ((i == 0) || !Character.isJavaIdentifierPart(sql.charAt(i - 1)))) {
+                int j = i + 6;
+                while ((j < n) && Character.isWhitespace(sql.charAt(j))) j++;
+                if ((j < n) && (sql.charAt(j) == '(')) return j;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    static int findClosingParenthesis(final String sql, final int start) {
+        final int n = sql.length();
+        int depth = 0;
+        int i = start;
+        while (i < n) {
+            final char c = sql.charAt(i++);
+            if ((c == '\'') || (c == '"')) {
+                final int end = sql.indexOf(c, i);
+                if (end < 0) return -1;
+                i = end + 1;
+            }
+            else if (c == '(') depth++;
+            else if ((c == ')') && (--depth == 0)) return i - 1;
+        }
+        return -1;
+    }
+
+    private static final class Chunk {
+        final Object[] rows;
+        final int size;
+        final Throwable failure; // a RuntimeException or an Error
+
+        Chunk(final Object[] rows, final int size, final Throwable failure) {
+            this.rows = rows;
+            this.size = size;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * Iterates the rows into chunks of whole statements, stopping when the consumer gives up.
+     * A failure of the rows, an Error included, is passed on to the consumer as the last chunk.
+     */
+    private final class Producer implements Runnable {
+        private final Iterator<P> rows;
+        private final BlockingQueue<Chunk> queue;
+        private final AtomicBoolean aborted;
+        // set when the producer stopped, after its last chunk is queued
+        volatile boolean finished = false;
+
+        Producer(final Iterator<P> rows, final BlockingQueue<Chunk> queue, final AtomicBoolean aborted) {
+            this.rows = rows;
+            this.queue = queue;
+            this.aborted = aborted;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Object[] chunk = new Object[rowsPerStatement];
+                int size = 0;
+                while (rows.hasNext()) {
+                    chunk[size++] = rows.next();
+                    if (size == chunk.length) {
+                        if (!put(new Chunk(chunk, size, null))) return;
+                        chunk = new Object[rowsPerStatement];
+                        size = 0;
+                    }
+                }
+                if ((size > 0) && !put(new Chunk(chunk, size, null))) return;
+                put(END);
+            }
+            catch (RuntimeException | Error e) {
+                put(new Chunk(null, 0, e));
+            }
+            finally {
+                finished = true;
+            }
+        }
+
+        private boolean put(final Chunk chunk) {
+            try {
+                while (!queue.offer(chunk, 100L, TimeUnit.MILLISECONDS)) {
+                    if (aborted.get()) return false;
+                }
+                return true;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                queue.clear();
+                queue.offer(new Chunk(null, 0, new DatabaseException("Interrupted while producing rows to insert: " + e.toString(), e)));
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+import com.gurucue.recommendations.DatabaseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * Caches results of a {@link SimplePreparedStatementWrapper}, keyed by the statement parameter.
+ * Intended for read-mostly queries. Entries expire a fixed time after they were loaded, and may
+ * be refreshed in the background earlier than that, while the old value is still being served.
+ * Concurrent misses and refreshes of the same parameter are loaded with a single query. When the total weight
+ * of the entries exceeds the maximum, the entries written the longest time ago are evicted first.
+ * A load of a parameter that is invalidated while the load is running does not store its result.
+ * <p>
+ * The parameter type must implement <code>equals()</code> and <code>hashCode()</code>.
+ */
+public class CachingStatementWrapper<R, P> {
+    private static final Logger log = LogManager.getLogger(CachingStatementWrapper.class);
+    private final JdbcLinkFactory linkFactory;
+    private final SimplePreparedStatementWrapper<R, P> wrapper;
+    private final long maxWeight;
+    private final ToIntBiFunction<P, R> weigher;
+    private final long expireAfterWriteNanos;
+    private final long refreshAfterWriteNanos;
+    private final Executor refreshExecutor;
+
+    private final ConcurrentHashMap<P, Entry<R>> entries = new ConcurrentHashMap<>();
+    // the running load or refresh of each parameter
+    private final ConcurrentHashMap<P, Load<R>> loads = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<WriteRecord<P, R>> writeOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger writeOrderLength = new AtomicInteger(0);
+    private final AtomicLong totalWeight = new AtomicLong(0L);
+
+    private final AtomicLong hitCount = new AtomicLong(0L);
+    private final AtomicLong missCount = new AtomicLong(0L);
+    private final AtomicLong loadCount = new AtomicLong(0L);
+    private final AtomicLong loadFailureCount = new AtomicLong(0L);
+    private final AtomicLong totalLoadNanos = new AtomicLong(0L);
+    private final AtomicLong refreshCount = new AtomicLong(0L);
+    private final AtomicLong evictionCount = new AtomicLong(0L);
+    private final AtomicLong expirationCount = new AtomicLong(0L);
+
+    /**
+     * Creates a caching wrapper.
+     *
+     * @param linkFactory the factory opening the links to load results with, or null to load them with {@link SimplePreparedStatementWrapper#execute(Object)}
+     * @param wrapper the wrapper executing the statement on a cache miss
+     * @param maxWeight the maximum total weight of cached entries
+     * @param weigher computes the weight of an entry; if null, each entry weighs 1, so <code>maxWeight</code> is the maximum number of entries
+     * @param expireAfterWriteMillis how long after being loaded an entry expires, zero for never
+     * @param refreshAfterWriteMillis how long after being loaded an entry is reloaded in the background on access, zero for never
+     * @param refreshExecutor the executor to run background reloads on; if null, the accessing thread reloads the entry itself
+     */
+    public CachingStatementWrapper(final JdbcLinkFactory linkFactory, final SimplePreparedStatementWrapper<R, P> wrapper, final long maxWeight, final ToIntBiFunction<P, R> weigher, final long expireAfterWriteMillis, final long refreshAfterWriteMillis, final Executor refreshExecutor) {
+        if (maxWeight < 1L) throw new IllegalArgumentException("The maximum weight must be positive: " + maxWeight);
+        if (expireAfterWriteMillis < 0L) throw new IllegalArgumentException("The expiration time must not be negative: " + expireAfterWriteMillis);
+        if (refreshAfterWriteMillis < 0L) throw new IllegalArgumentException("The refresh time must not be negative: " + refreshAfterWriteMillis);
+        this.linkFactory = linkFactory;
+        this.wrapper = wrapper;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.expireAfterWriteNanos = TimeUnit.MILLISECONDS.toNanos(expireAfterWriteMillis);
+        this.refreshAfterWriteNanos = TimeUnit.MILLISECONDS.toNanos(refreshAfterWriteMillis);
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    public CachingStatementWrapper(final SimplePreparedStatementWrapper<R, P> wrapper, final long maxWeight, final ToIntBiFunction<P, R> weigher, final long expireAfterWriteMillis, final long refreshAfterWriteMillis, final Executor refreshExecutor) {
+        this(null, wrapper, maxWeight, weigher, expireAfterWriteMillis, refreshAfterWriteMillis, refreshExecutor);
+    }
+
+    public CachingStatementWrapper(final SimplePreparedStatementWrapper<R, P> wrapper, final int maxEntries, final long expireAfterWriteMillis) {
+        this(wrapper, maxEntries, null, expireAfterWriteMillis, 0L, null);
+    }
+
+    /**
+     * Returns the cached result for the given parameter, executing the statement if there is none.
+     *
+     * @param parameter the statement parameter
+     * @return the result of the statement
+     */
+    public R execute(final P parameter) {
+        final Entry<R> entry = entries.get(parameter);
+        if (null != entry) {
+            final long age = System.nanoTime() - entry.writtenAt;
+            if ((expireAfterWriteNanos == 0L) || (age < expireAfterWriteNanos)) {
+                hitCount.incrementAndGet();
+                if ((refreshAfterWriteNanos > 0L) && (age >= refreshAfterWriteNanos) && entry.refreshing.compareAndSet(false, true)) {
+                    refresh(parameter, entry);
+                }
+                return entry.value;
+            }
+            if (entries.remove(parameter, entry)) {
+                totalWeight.addAndGet(-entry.weight);
+                expirationCount.incrementAndGet();
+            }
+        }
+        missCount.incrementAndGet();
+
+        final Load<R> load = new Load<>();
+        final Load<R> pending = loads.putIfAbsent(parameter, load);
+        if (null != pending) return await(pending.future);
+        try {
+            final R value = load(parameter, load);
+            load.future.complete(value);
+            return value;
+        }
+        catch (RuntimeException e) {
+            load.future.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            loads.remove(parameter, load);
+        }
+    }
+
+    /**
+     * Removes the cached result for the given parameter.
+     *
+     * @param parameter the statement parameter
+     */
+    public void invalidate(final P parameter) {
+        final Load<R> load = loads.get(parameter);
+        if (null != load) load.invalidate();
+        final Entry<R> entry = entries.remove(parameter);
+        if (null != entry) totalWeight.addAndGet(-entry.weight);
+    }
+
+    /**
+     * Removes all cached results of the statement.
+     */
+    public void invalidateAll() {
+        for (final Load<R> load : loads.values()) load.invalidate();
+        final Iterator<Entry<R>> it = entries.values().iterator();
+        while (it.hasNext()) {
+            final Entry<R> entry = it.next();
+            it.remove();
+            totalWeight.addAndGet(-entry.weight);
+        }
+        writeOrder.clear();
+        writeOrderLength.set(0);
+    }
+
+    // executes the statement and stores the result, unless the parameter was invalidated in the meantime
+    private R load(final P parameter, final Load<R> load) {
+        final long startTime = System.nanoTime();
+        final R value;
+        try {
+            value = query(parameter);
+        }
+        catch (RuntimeException e) {
+            loadFailureCount.incrementAndGet();
+            throw e;
+        }
+        finally {
+            totalLoadNanos.addAndGet(System.nanoTime() - startTime);
+            loadCount.incrementAndGet();
+        }
+        synchronized (load) {
+            if (!load.invalidated) store(parameter, value);
+        }
+        return value;
+    }
+
+    private R query(final P parameter) {
+        if (null == linkFactory) return wrapper.execute(parameter);
+        final JdbcDataLink link = linkFactory.newJdbcDataLink();
+        try {
+            final R result;
+            try {
+                result = wrapper.execute(link, parameter);
+            }
+            catch (RuntimeException e) {
+                link.rollback();
+                throw e;
+            }
+            link.commit();
+            return result;
+        }
+        finally {
+            link.close();
+        }
+    }
+
+    // reloads the entry, unless a load or refresh of the parameter is already running
+    private void refresh(final P parameter, final Entry<R> entry) {
+        final Load<R> load = new Load<>();
+        if (null != loads.putIfAbsent(parameter, load)) {
+            entry.refreshing.set(false);
+            return;
+        }
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    load.future.complete(load(parameter, load));
+                    refreshCount.incrementAndGet();
+                }
+                catch (RuntimeException e) {
+                    load.future.completeExceptionally(e);
+                    log.error("Failed to refresh a cached result of " + wrapper.getSql() + ": " + e.toString(), e);
+                    entry.refreshing.set(false); // retry on the next access
+                }
+                finally {
+                    loads.remove(parameter, load);
+                }
+            }
+        };
+        if (null == refreshExecutor) task.run();
+        else {
+            try {
+                refreshExecutor.execute(task);
+            }
+            catch (RuntimeException e) {
+                loads.remove(parameter, load);
+                load.future.completeExceptionally(e);
+                entry.refreshing.set(false);
+                log.error("Failed to schedule a refresh of a cached result of " + wrapper.getSql() + ": " + e.toString(), e);
+            }
+        }
+    }
+
+    private void store(final P parameter, final R value) {
+        final Entry<R> entry = new Entry<>(value, null == weigher ? 1 : weigher.applyAsInt(parameter, value), System.nanoTime());
+        final Entry<R> previous = entries.put(parameter, entry);
+        totalWeight.addAndGet(entry.weight - (null == previous ? 0 : previous.weight));
+        writeOrder.add(new WriteRecord<>(parameter, entry));
+        if (writeOrderLength.incrementAndGet() > (2 * entries.size()) + 16) purgeWriteOrder();
+        while (totalWeight.get() > maxWeight) {
+            final WriteRecord<P, R> oldest = writeOrder.poll();
+            if (null == oldest) break;
+            writeOrderLength.decrementAndGet();
+            if (entries.remove(oldest.parameter, oldest.entry)) {
+                totalWeight.addAndGet(-oldest.entry.weight);
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    // drops write records of entries that were since replaced or removed
+    private void purgeWriteOrder() {
+        final Iterator<WriteRecord<P, R>> it = writeOrder.iterator();
+        while (it.hasNext()) {
+            final WriteRecord<P, R> record = it.next();
+            if (entries.get(record.parameter) != record.entry) {
+                it.remove();
+                writeOrderLength.decrementAndGet();
+            }
+        }
+    }
+
+    private static <R> R await(final CompletableFuture<R> future) {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted while waiting for a cached result to load: " + e.toString(), e);
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new DatabaseException("Failed to load a cached result: " + cause.toString(), cause);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getTotalWeight() {
+        return totalWeight.get();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the ratio of hits to all requests, or 1 if there were no requests yet.
+     *
+     * @return the hit rate
+     */
+    public double getHitRate() {
+        final long hits = hitCount.get();
+        final long total = hits + missCount.get();
+        return total == 0L ? 1.0 : (double) hits / (double) total;
+    }
+
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    public long getLoadFailureCount() {
+        return loadFailureCount.get();
+    }
+
+    /**
+     * Returns the total time spent executing the statement for loads and refreshes, in nanoseconds.
+     *
+     * @return the cumulative load time
+     */
+    public long getTotalLoadNanos() {
+        return totalLoadNanos.get();
+    }
+
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public long getExpirationCount() {
+        return expirationCount.get();
+    }
+
+    static final class Entry<R> {
+        final R value;
+        final int weight;
+        final long writtenAt;
+        final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        Entry(final R value, final int weight, final long writtenAt) {
+            this.value = value;
+            this.weight = weight;
+            this.writtenAt = writtenAt;
+        }
+    }
+
+    /**
+     * A running load or refresh of a parameter, shared by concurrent misses of the parameter.
+     */
+    static final class Load<R> {
+        final CompletableFuture<R> future = new CompletableFuture<>();
+        boolean invalidated = false; // guarded by this
+
+        // the result of the load must not be stored; storing under the same lock makes this atomic
+        synchronized void invalidate() {
+            invalidated = true;
+        }
+    }
+
+    static final class WriteRecord<P, R> {
+        final P parameter;
+        final Entry<R> entry;
+
+        WriteRecord(final P parameter, final Entry<R> entry) {
+            this.parameter = parameter;
+            this.entry = entry;
+        }
+    }
+}
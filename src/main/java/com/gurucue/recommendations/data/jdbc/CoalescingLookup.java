@@ -0,0 +1,338 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+import com.gurucue.recommendations.DatabaseException;
+
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent single-key lookups into batch queries. The first thread requesting
+ * a key opens a batch and waits at most the configured window for other threads to add their
+ * keys, or until the batch is full, then executes the batch query for all collected keys and
+ * hands each waiting thread the value for its key. Threads requesting a key that is already
+ * being looked up share the pending result.
+ * <p>
+ * The batch query is given by a {@link BatchQuery}, see {@link #anyArray(String, String)}
+ * and {@link #inList(String)}. Its result set is converted into a key-to-value map by the
+ * given {@link ResultProcessor}; keys missing from the map are looked up as <code>null</code>.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class CoalescingLookup<K, V> {
+    /** The placeholder in the SQL of {@link #inList(String)} that is replaced by the bind markers of the keys. */
+    public static final String KEYS_PLACEHOLDER = "#KEYS#";
+
+    private final JdbcLinkFactory provider;
+    private final BatchQuery<K> query;
+    private final ResultProcessor<Map<K, V>, List<K>> resultProcessor;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final Object lock = new Object();
+    private Batch<K, V> current = new Batch<>(); // guarded by lock
+    private final AtomicLong requestCount = new AtomicLong(0L);
+    private final AtomicLong sharedCount = new AtomicLong(0L);
+    private final AtomicLong batchCount = new AtomicLong(0L);
+
+    public CoalescingLookup(final JdbcLinkFactory provider, final BatchQuery<K> query, final ResultProcessor<Map<K, V>, List<K>> resultProcessor, final long windowMicros, final int maxBatchSize) {
+        if (windowMicros < 0L) throw new IllegalArgumentException("The coalescing window must not be negative: " + windowMicros);
+        if (maxBatchSize < 1) throw new IllegalArgumentException("The maximum batch size must be positive: " + maxBatchSize);
+        this.provider = provider;
+        this.query = query;
+        this.resultProcessor = resultProcessor;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Looks up the value of the given key, waiting for the batch the key was put into to execute.
+     *
+     * @param key the key to look up
+     * @return the value of the key, or null if the batch query returned no value for it
+     */
+    public V get(final K key) {
+        try {
+            return lookup(key).get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted while waiting for a coalesced lookup: " + e.toString(), e);
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new DatabaseException("Coalesced lookup failed: " + cause.toString(), cause);
+        }
+    }
+
+    private CompletableFuture<V> lookup(final K key) {
+        requestCount.incrementAndGet();
+        CompletableFuture<V> future = inFlight.get(key);
+        if (null != future) {
+            sharedCount.incrementAndGet();
+            return future;
+        }
+        final Batch<K, V> batch;
+        final boolean leader;
+        synchronized (lock) {
+            future = inFlight.get(key);
+            if (null != future) {
+                sharedCount.incrementAndGet();
+                return future;
+            }
+            future = new CompletableFuture<>();
+            inFlight.put(key, future);
+            batch = current;
+            batch.keys.add(key);
+            batch.futures.add(future);
+            leader = batch.keys.size() == 1;
+            if (batch.keys.size() >= maxBatchSize) {
+                batch.closed = true;
+                current = new Batch<>();
+                lock.notifyAll();
+            }
+        }
+        if (leader) {
+            awaitBatch(batch);
+            execute(batch);
+        }
+        return future;
+    }
+
+    private void awaitBatch(final Batch<K, V> batch) {
+        final long deadline = System.nanoTime() + windowNanos;
+        boolean interrupted = false;
+        synchronized (lock) {
+            long remaining;
+            while (!batch.closed && ((remaining = deadline - System.nanoTime()) > 0L)) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                }
+                catch (InterruptedException e) {
+                    interrupted = true; // the batch must still be executed for the other waiting threads
+                    break;
+                }
+            }
+            if (!batch.closed) {
+                batch.closed = true;
+                current = new Batch<>();
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private void execute(final Batch<K, V> batch) {
+        batchCount.incrementAndGet();
+        final List<K> keys = Collections.unmodifiableList(batch.keys);
+        Map<K, V> values = null;
+        Throwable failure = null;
+        try {
+            values = query(keys);
+        }
+        catch (RuntimeException | Error e) {
+            failure = e; // also an Error, so the waiting threads are not left waiting forever
+        }
+        final int n = batch.keys.size();
+        for (int i = 0; i < n; i++) {
+            final K key = batch.keys.get(i);
+            final CompletableFuture<V> future = batch.futures.get(i);
+            inFlight.remove(key, future);
+            if (null == failure) future.complete(null == values ? null : values.get(key));
+            else future.completeExceptionally(failure);
+        }
+        if (failure instanceof Error) throw (Error) failure;
+    }
+
+    private Map<K, V> query(final List<K> keys) {
+        final JdbcDataLink link = provider.newJdbcDataLink();
+        try {
+            link.setReadOnly(true);
+            final String sql = query.sql(keys.size());
+            final Map<K, V> result;
+            try {
+                final PreparedStatement stmt = link.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                try {
+                    query.bind(stmt, keys);
+                    final ResultSet rs = stmt.executeQuery();
+                    try {
+                        result = resultProcessor.process(rs, keys);
+                    }
+                    finally {
+                        rs.close();
+                    }
+                }
+                finally {
+                    stmt.close();
+                }
+            }
+            catch (SQLException e) {
+                throw new DatabaseException("Failed to execute a coalesced lookup of " + keys.size() + " keys: " + e.toString() + "; SQL: " + sql, e);
+            }
+            link.commit();
+            return result;
+        }
+        finally {
+            link.close();
+        }
+    }
+
+    /**
+     * Returns the number of keys requested.
+     *
+     * @return the number of requests
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Returns the number of requests that shared the result of an identical key already being looked up.
+     *
+     * @return the number of shared requests
+     */
+    public long getSharedCount() {
+        return sharedCount.get();
+    }
+
+    /**
+     * Returns the number of batch queries executed.
+     *
+     * @return the number of batches
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * Creates a batch query binding all the keys as a single array parameter, as in
+     * <code>select id, title from product where id = any(?)</code>.
+     *
+     * @param sql the SQL with exactly one parameter, the array of keys
+     * @param elementTypeName the SQL type name of array elements, as in {@link java.sql.Connection#createArrayOf(String, Object[])}
+     * @param <K> the key type
+     * @return the batch query
+     */
+    public static <K> BatchQuery<K> anyArray(final String sql, final String elementTypeName) {
+        return new AnyArrayBatchQuery<>(sql, elementTypeName);
+    }
+
+    /**
+     * Creates a batch query binding each key as its own parameter of an <code>IN</code> list, as in
+     * <code>select id, title from product where id in (#KEYS#)</code>. The number of parameters is
+     * rounded up to a power of two, repeating the last key, to limit the number of distinct SQL texts.
+     *
+     * @param sql the SQL containing {@link #KEYS_PLACEHOLDER} in place of the list of keys
+     * @param <K> the key type
+     * @return the batch query
+     */
+    public static <K> BatchQuery<K> inList(final String sql) {
+        return new InListBatchQuery<>(sql);
+    }
+
+    /**
+     * Produces the SQL for a batch of keys and binds the keys into the prepared statement.
+     *
+     * @param <K> the key type
+     */
+    public interface BatchQuery<K> {
+        String sql(int keyCount);
+        void bind(PreparedStatement statement, List<K> keys) throws SQLException;
+    }
+
+    static final class AnyArrayBatchQuery<K> implements BatchQuery<K> {
+        private final String sql;
+        private final String elementTypeName;
+
+        AnyArrayBatchQuery(final String sql, final String elementTypeName) {
+            this.sql = sql;
+            this.elementTypeName = elementTypeName;
+        }
+
+        @Override
+        public String sql(final int keyCount) {
+            return sql;
+        }
+
+        @Override
+        public void bind(final PreparedStatement statement, final List<K> keys) throws SQLException {
+            final Array array = statement.getConnection().createArrayOf(elementTypeName, keys.toArray());
+            statement.setArray(1, array);
+        }
+    }
+
+    static final class InListBatchQuery<K> implements BatchQuery<K> {
+        private final String prefix;
+        private final String suffix;
+        private final ConcurrentHashMap<Integer, String> sqls = new ConcurrentHashMap<>();
+
+        InListBatchQuery(final String sql) {
+            final int i = sql.indexOf(KEYS_PLACEHOLDER);
+            if (i < 0) throw new IllegalArgumentException("The SQL does not contain the " + KEYS_PLACEHOLDER + " placeholder: " + sql);
+            this.prefix = sql.substring(0, i);
+            this.suffix = sql.substring(i + KEYS_PLACEHOLDER.length());
+        }
+
+        static int paddedSize(final int keyCount) {
+            return keyCount <= 1 ? 1 : Integer.highestOneBit(keyCount - 1) << 1;
+        }
+
+        @Override
+        public String sql(final int keyCount) {
+            final int size = paddedSize(keyCount);
+            String sql = sqls.get(size);
+            if (null == sql) {
+                final StringBuilder sb = new StringBuilder(prefix.length() + suffix.length() + size * 2);
+                sb.append(prefix).append('?');
+                for (int i = 1; i < size; i++) sb.append(",?");
+                sql = sb.append(suffix).toString();
+                sqls.put(size, sql);
+            }
+            return sql;
+        }
+
+        @Override
+        public void bind(final PreparedStatement statement, final List<K> keys) throws SQLException {
+            final int n = keys.size();
+            final int size = paddedSize(n);
+            for (int i = 0; i < n; i++) statement.setObject(i + 1, keys.get(i));
+            final K last = keys.get(n - 1);
+            for (int i = n; i < size; i++) statement.setObject(i + 1, last);
+        }
+    }
+
+    static final class Batch<K, V> {
+        final List<K> keys = new ArrayList<>();
+        final List<CompletableFuture<V>> futures = new ArrayList<>();
+        boolean closed = false; // guarded by the lookup's lock
+    }
+}
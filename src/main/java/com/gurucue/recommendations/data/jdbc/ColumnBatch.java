@@ -0,0 +1,171 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+import java.util.Arrays;
+
+/**
+ * Reusable column buffers that {@link JdbcResultSet#fetch(ColumnBatch)} fills with up to
+ * <code>capacity</code> rows at a time. Each column is read into a primitive array of its
+ * type, and nullable columns additionally get a null bitmap, so reading rows does not
+ * create any per-row objects. Columns are numbered in the order they were added, starting with 0.
+ */
+public class ColumnBatch {
+    static final byte TYPE_LONG = 1;
+    static final byte TYPE_INT = 2;
+    static final byte TYPE_DOUBLE = 3;
+
+    private final int capacity;
+    byte[] types = new byte[0];
+    int[] resultSetIndexes = new int[0];
+    boolean[] nullable = new boolean[0];
+    long[][] longColumns = new long[0][];
+    int[][] intColumns = new int[0][];
+    double[][] doubleColumns = new double[0][];
+    long[][] nullBitmaps = new long[0][];
+    int size = 0;
+
+    public ColumnBatch(final int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("The batch capacity must be positive: " + capacity);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds a column read with <code>getLong()</code>.
+     *
+     * @param columnIndex the result set column index, starting with 1
+     * @param isNullable whether to track null values of the column
+     * @return this instance
+     */
+    public ColumnBatch addLongColumn(final int columnIndex, final boolean isNullable) {
+        final int column = addColumn(TYPE_LONG, columnIndex, isNullable);
+        longColumns[column] = new long[capacity];
+        return this;
+    }
+
+    /**
+     * Adds a column read with <code>getInt()</code>.
+     *
+     * @param columnIndex the result set column index, starting with 1
+     * @param isNullable whether to track null values of the column
+     * @return this instance
+     */
+    public ColumnBatch addIntColumn(final int columnIndex, final boolean isNullable) {
+        final int column = addColumn(TYPE_INT, columnIndex, isNullable);
+        intColumns[column] = new int[capacity];
+        return this;
+    }
+
+    /**
+     * Adds a column read with <code>getDouble()</code>.
+     *
+     * @param columnIndex the result set column index, starting with 1
+     * @param isNullable whether to track null values of the column
+     * @return this instance
+     */
+    public ColumnBatch addDoubleColumn(final int columnIndex, final boolean isNullable) {
+        final int column = addColumn(TYPE_DOUBLE, columnIndex, isNullable);
+        doubleColumns[column] = new double[capacity];
+        return this;
+    }
+
+    private int addColumn(final byte type, final int columnIndex, final boolean isNullable) {
+        if (columnIndex < 1) throw new IllegalArgumentException("Result set column indexes start with 1: " + columnIndex);
+        final int column = types.length;
+        final int n = column + 1;
+        types = Arrays.copyOf(types, n);
+        resultSetIndexes = Arrays.copyOf(resultSetIndexes, n);
+        nullable = Arrays.copyOf(nullable, n);
+        longColumns = Arrays.copyOf(longColumns, n);
+        intColumns = Arrays.copyOf(intColumns, n);
+        doubleColumns = Arrays.copyOf(doubleColumns, n);
+        nullBitmaps = Arrays.copyOf(nullBitmaps, n);
+        types[column] = type;
+        resultSetIndexes[column] = columnIndex;
+        nullable[column] = isNullable;
+        if (isNullable) nullBitmaps[column] = new long[(capacity + 63) >>> 6];
+        return column;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getColumnCount() {
+        return types.length;
+    }
+
+    /**
+     * Returns the number of rows read by the last fetch.
+     *
+     * @return the number of valid rows in the column buffers
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the buffer of a long column; only the first {@link #size()} values are valid.
+     *
+     * @param column the column number, in the order of adding columns
+     * @return the column buffer
+     */
+    public long[] getLongs(final int column) {
+        if (types[column] != TYPE_LONG) throw new IllegalArgumentException("Column " + column + " is not a long column");
+        return longColumns[column];
+    }
+
+    /**
+     * Returns the buffer of an int column; only the first {@link #size()} values are valid.
+     *
+     * @param column the column number, in the order of adding columns
+     * @return the column buffer
+     */
+    public int[] getInts(final int column) {
+        if (types[column] != TYPE_INT) throw new IllegalArgumentException("Column " + column + " is not an int column");
+        return intColumns[column];
+    }
+
+    /**
+     * Returns the buffer of a double column; only the first {@link #size()} values are valid.
+     *
+     * @param column the column number, in the order of adding columns
+     * @return the column buffer
+     */
+    public double[] getDoubles(final int column) {
+        if (types[column] != TYPE_DOUBLE) throw new IllegalArgumentException("Column " + column + " is not a double column");
+        return doubleColumns[column];
+    }
+
+    /**
+     * Returns the null bitmap of a nullable column: the bit <code>row % 64</code> of the
+     * element <code>row / 64</code> is set if the value in the row is null.
+     *
+     * @param column the column number, in the order of adding columns
+     * @return the null bitmap, or null if the column was not added as nullable
+     */
+    public long[] getNullBitmap(final int column) {
+        return nullBitmaps[column];
+    }
+
+    public boolean isNull(final int column, final int row) {
+        final long[] bitmap = nullBitmaps[column];
+        return (null != bitmap) && ((bitmap[row >>> 6] & (1L << row)) != 0L);
+    }
+}
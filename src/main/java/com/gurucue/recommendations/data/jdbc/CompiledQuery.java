@@ -0,0 +1,453 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+import com.gurucue.recommendations.DatabaseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A {@link QueryDefinition} compiled into a parameter binder and a row mapper. Both are single
+ * method handles composed from the getters, setters, constructor and the typed
+ * <code>PreparedStatement.setX()</code> and <code>ResultSet.getX()</code> methods, so binding
+ * and mapping involve no reflection lookups and no boxing of primitive properties.
+ * <p>
+ * The handles are invoked from the static final fields of a class defined for each compiled query,
+ * see {@link CompiledQueryHandles}, so the JIT compiler treats them as constants and inlines the
+ * getters, setters and JDBC accessors as in a handwritten parameterizer and result processor;
+ * <code>CompiledQueryBenchmark</code> compares the two. Where that class cannot be defined,
+ * the handles are invoked from instance fields, which is slower.
+ * <p>
+ * The compiled query is a {@link PreparedStatementParameterizer} and a {@link RowMapper}, and provides
+ * result processors, so it plugs into {@link SimplePreparedStatementWrapper},
+ * {@link StreamingStatementWrapper} and {@link PreparedStatementPool}.
+ *
+ * @param <T> the row type
+ * @param <P> the parameter type
+ */
+public final class CompiledQuery<T, P> implements PreparedStatementParameterizer<P>, RowMapper<T> {
+    private static final Logger log = LogManager.getLogger(CompiledQuery.class);
+    private static final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+    private static final MethodType BINDER_TYPE = MethodType.methodType(void.class, PreparedStatement.class, Object.class);
+    private static final MethodType MAPPER_TYPE = MethodType.methodType(Object.class, ResultSet.class);
+    // the JDBC accessor suffix of each type with a typed accessor, as in setLong() and getLong()
+    private static final Map<Class<?>, String> accessors = new HashMap<>();
+    // the SQL type of each boxed primitive, for binding null
+    private static final Map<Class<?>, Integer> nullTypes = new HashMap<>();
+    static {
+        accessors.put(long.class, "Long");
+        accessors.put(int.class, "Int");
+        accessors.put(short.class, "Short");
+        accessors.put(byte.class, "Byte");
+        accessors.put(double.class, "Double");
+        accessors.put(float.class, "Float");
+        accessors.put(boolean.class, "Boolean");
+        accessors.put(String.class, "String");
+        accessors.put(BigDecimal.class, "BigDecimal");
+        accessors.put(byte[].class, "Bytes");
+        accessors.put(java.sql.Timestamp.class, "Timestamp");
+        accessors.put(java.sql.Date.class, "Date");
+        accessors.put(java.sql.Time.class, "Time");
+        nullTypes.put(Long.class, Types.BIGINT);
+        nullTypes.put(Integer.class, Types.INTEGER);
+        nullTypes.put(Short.class, Types.SMALLINT);
+        nullTypes.put(Byte.class, Types.TINYINT);
+        nullTypes.put(Double.class, Types.DOUBLE);
+        nullTypes.put(Float.class, Types.REAL);
+        nullTypes.put(Boolean.class, Types.BOOLEAN);
+    }
+
+    private final String sql;
+    private final Class<T> rowType;
+    private final PreparedStatementParameterizer<Object> binder;
+    private final ResultProcessor<Object, Object> mapper; // maps the current row
+
+    @SuppressWarnings("unchecked")
+    CompiledQuery(final QueryDefinition<T, P> definition) {
+        this.sql = definition.getSql();
+        this.rowType = definition.getRowType();
+        final MethodHandle[] handles;
+        try {
+            handles = new MethodHandle[]{compileBinder(definition.getParameterType(), definition.getParameters()), compileMapper(rowType, definition.getColumns())};
+        }
+        catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalArgumentException("Cannot compile the query definition: " + e.toString() + "; SQL: " + sql, e);
+        }
+        final Object invoker = HandlesLoader.define(handles);
+        this.binder = (PreparedStatementParameterizer<Object>) invoker;
+        this.mapper = (ResultProcessor<Object, Object>) invoker;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public Class<T> getRowType() {
+        return rowType;
+    }
+
+    @Override
+    public void execute(final PreparedStatement statement, final P parameter) throws SQLException {
+        binder.execute(statement, parameter);
+    }
+
+    /**
+     * Maps the current row of the result set.
+     *
+     * @param resultSet the result set positioned on a row
+     * @return the mapped row
+     * @throws SQLException if reading a column fails
+     */
+    @SuppressWarnings("unchecked")
+    public T mapRow(final ResultSet resultSet) throws SQLException {
+        return (T) mapper.process(resultSet, null);
+    }
+
+    @Override
+    public T map(final JdbcResultSet row) {
+        try {
+            return mapRow(row.resultSet);
+        }
+        catch (SQLException e) {
+            throw new DatabaseException("Failed to map a row: " + e.toString() + "; SQL: " + sql, e);
+        }
+    }
+
+    /**
+     * Returns a result processor mapping all the rows into a list.
+     *
+     * @return the list result processor
+     */
+    public ResultProcessor<List<T>, P> listProcessor() {
+        return new ResultProcessor<List<T>, P>() {
+            @Override
+            public List<T> process(final ResultSet resultSet, final P parameters) throws SQLException {
+                final List<T> rows = new ArrayList<>();
+                while (resultSet.next()) rows.add(mapRow(resultSet));
+                return rows;
+            }
+        };
+    }
+
+    /**
+     * Returns a result processor mapping the first row, or returning null if there is none.
+     *
+     * @return the single row result processor
+     */
+    public ResultProcessor<T, P> singleRowProcessor() {
+        return new ResultProcessor<T, P>() {
+            @Override
+            public T process(final ResultSet resultSet, final P parameters) throws SQLException {
+                return resultSet.next() ? mapRow(resultSet) : null;
+            }
+        };
+    }
+
+    public SimplePreparedStatementWrapper<List<T>, P> newWrapper() {
+        return new SimplePreparedStatementWrapper<>(sql, this, listProcessor());
+    }
+
+    public SimplePreparedStatementWrapper<T, P> newSingleRowWrapper() {
+        return new SimplePreparedStatementWrapper<>(sql, this, singleRowProcessor());
+    }
+
+    public PreparedStatementPool newPool(final JdbcDataProvider provider, final PreparedStatementPoolSettings settings) {
+        return new PreparedStatementPool(provider, sql, settings);
+    }
+
+    /**
+     * Executes the query with a statement borrowed from the given pool of this query's SQL.
+     *
+     * @param pool the pool, such as one created with {@link #newPool(JdbcDataProvider, PreparedStatementPoolSettings)}
+     * @param parameter the query parameter
+     * @return the mapped rows
+     */
+    public List<T> query(final PreparedStatementPool pool, final P parameter) {
+        try (final JdbcStatement statement = pool.getStatement()) {
+            execute(statement.preparedStatement, parameter);
+            try (final JdbcResultSet rs = statement.executeQuery()) {
+                final List<T> rows = new ArrayList<>();
+                while (rs.resultSet.next()) rows.add(mapRow(rs.resultSet));
+                return rows;
+            }
+        }
+        catch (SQLException e) {
+            throw new DatabaseException("Failed to execute a compiled query: " + e.toString() + "; SQL: " + sql, e);
+        }
+    }
+
+    // (PreparedStatement, Object)void binding all the parameters
+    private static MethodHandle compileBinder(final Class<?> parameterType, final String[] parameters) throws NoSuchMethodException, IllegalAccessException {
+        if (parameters.length == 0) {
+            if (isValueType(parameterType)) return setter(1, parameterType).asType(BINDER_TYPE);
+            return MethodHandles.dropArguments(MethodHandles.constant(Object.class, null).asType(MethodType.methodType(void.class)), 0, PreparedStatement.class, Object.class);
+        }
+        MethodHandle chain = null;
+        for (int i = parameters.length - 1; i >= 0; i--) {
+            final MethodHandle getter = getter(parameterType, parameters[i]); // (P)A
+            final MethodHandle set = setter(i + 1, getter.type().returnType()); // (PreparedStatement, A)void
+            final MethodHandle bind = MethodHandles.filterArguments(set, 1, getter).asType(BINDER_TYPE);
+            chain = null == chain ? bind : MethodHandles.foldArguments(chain, bind);
+        }
+        return chain;
+    }
+
+    // (ResultSet)Object creating the row object from the current row
+    private static MethodHandle compileMapper(final Class<?> rowType, final String[] columns) throws NoSuchMethodException, IllegalAccessException {
+        if (isValueType(rowType)) return reader(1, rowType).asType(MAPPER_TYPE);
+        if (null == columns) {
+            final Constructor<?> constructor = rowConstructor(rowType);
+            final Class<?>[] types = constructor.getParameterTypes();
+            final MethodHandle[] readers = new MethodHandle[types.length];
+            for (int i = 0; i < types.length; i++) readers[i] = reader(i + 1, types[i]);
+            final MethodHandle filtered = MethodHandles.filterArguments(lookup.unreflectConstructor(constructor), 0, readers);
+            return MethodHandles.permuteArguments(filtered, MethodType.methodType(rowType, ResultSet.class), new int[types.length]).asType(MAPPER_TYPE);
+        }
+        final MethodHandle create = lookup.findConstructor(rowType, MethodType.methodType(void.class)); // ()T
+        MethodHandle fill = null; // (T, ResultSet)void
+        for (int i = columns.length - 1; i >= 0; i--) {
+            final MethodHandle set = propertySetter(rowType, columns[i]); // (T, A)void
+            final MethodHandle store = MethodHandles.filterArguments(set, 1, reader(i + 1, set.type().parameterType(1)));
+            fill = null == fill ? store : MethodHandles.foldArguments(fill, store);
+        }
+        if (null == fill) return MethodHandles.dropArguments(create, 0, ResultSet.class).asType(MAPPER_TYPE);
+        // (T, ResultSet)T: fill the row, then return it
+        final MethodHandle fillAndReturn = MethodHandles.foldArguments(
+                MethodHandles.dropArguments(MethodHandles.identity(rowType), 1, ResultSet.class), fill);
+        // (ResultSet)T: create the row and give it to fillAndReturn
+        return MethodHandles.foldArguments(fillAndReturn, MethodHandles.dropArguments(create, 0, ResultSet.class)).asType(MAPPER_TYPE);
+    }
+
+    static boolean isValueType(final Class<?> type) {
+        return type.isPrimitive() || accessors.containsKey(type) || nullTypes.containsKey(type);
+    }
+
+    // (PreparedStatement, A)void binding a value of the given type at the given index
+    private static MethodHandle setter(final int index, final Class<?> type) throws NoSuchMethodException, IllegalAccessException {
+        final String accessor = accessors.get(type);
+        final MethodHandle set;
+        if (null != accessor) {
+            set = lookup.findVirtual(PreparedStatement.class, "set" + accessor, MethodType.methodType(void.class, int.class, type));
+            return MethodHandles.insertArguments(set, 1, index);
+        }
+        final Integer nullType = nullTypes.get(type);
+        set = MethodHandles.lookup().findStatic(CompiledQuery.class, "setNullable", MethodType.methodType(void.class, PreparedStatement.class, int.class, Object.class, int.class));
+        final MethodHandle bound = MethodHandles.insertArguments(set, 3, null == nullType ? Types.OTHER : nullType);
+        return MethodHandles.insertArguments(bound, 1, index).asType(MethodType.methodType(void.class, PreparedStatement.class, type));
+    }
+
+    // (ResultSet)A reading the column at the given index as the given type
+    private static MethodHandle reader(final int index, final Class<?> type) throws NoSuchMethodException, IllegalAccessException {
+        final String accessor = accessors.get(type);
+        if (null != accessor) {
+            final MethodHandle get = lookup.findVirtual(ResultSet.class, "get" + accessor, MethodType.methodType(type, int.class));
+            return MethodHandles.insertArguments(get, 1, index);
+        }
+        // boxed primitives and other types, null for SQL NULL
+        final MethodHandle get = lookup.findVirtual(ResultSet.class, "getObject", MethodType.methodType(Object.class, int.class, Class.class));
+        return MethodHandles.insertArguments(get, 1, index, type).asType(MethodType.methodType(type, ResultSet.class));
+    }
+
+    static void setNullable(final PreparedStatement statement, final int index, final Object value, final int sqlType) throws SQLException {
+        if (null == value) statement.setNull(index, sqlType);
+        else if (Types.OTHER == sqlType) statement.setObject(index, value);
+        else statement.setObject(index, value, sqlType);
+    }
+
+    // (P)A reading the named property
+    private static MethodHandle getter(final Class<?> type, final String property) throws NoSuchMethodException, IllegalAccessException {
+        final String suffix = Character.toUpperCase(property.charAt(0)) + property.substring(1);
+        for (final String name : new String[]{"get" + suffix, "is" + suffix, property}) {
+            try {
+                final Method m = type.getMethod(name);
+                if ((m.getReturnType() != void.class) && !Modifier.isStatic(m.getModifiers())) return lookup.unreflect(m);
+            }
+            catch (NoSuchMethodException e) {
+                // try the next naming convention
+            }
+        }
+        try {
+            final Field f = type.getField(property);
+            if (!Modifier.isStatic(f.getModifiers())) return lookup.unreflectGetter(f);
+        }
+        catch (NoSuchFieldException e) {
+            // reported below
+        }
+        throw new NoSuchMethodException("No public getter or field for the property " + property + " of " + type.getName());
+    }
+
+    // (T, A)void storing the named property; an overloaded setter is rejected, as the column type does not tell which to use
+    private static MethodHandle propertySetter(final Class<?> type, final String property) throws NoSuchMethodException, IllegalAccessException {
+        final String name = "set" + Character.toUpperCase(property.charAt(0)) + property.substring(1);
+        Method setter = null;
+        for (final Method m : type.getMethods()) {
+            if (!m.getName().equals(name) || (m.getParameterCount() != 1) || Modifier.isStatic(m.getModifiers()) || m.isBridge()) continue;
+            if (null != setter) throw new NoSuchMethodException("Ambiguous overloaded setters " + setter + " and " + m + " for the property " + property + " of " + type.getName());
+            setter = m;
+        }
+        if (null != setter) return lookup.unreflect(setter).asType(MethodType.methodType(void.class, type, setter.getParameterTypes()[0]));
+        try {
+            final Field f = type.getField(property);
+            if (!Modifier.isStatic(f.getModifiers()) && !Modifier.isFinal(f.getModifiers())) return lookup.unreflectSetter(f);
+        }
+        catch (NoSuchFieldException e) {
+            // reported below
+        }
+        throw new NoSuchMethodException("No public setter or non-final field for the property " + property + " of " + type.getName());
+    }
+
+    private static Constructor<?> rowConstructor(final Class<?> type) throws NoSuchMethodException {
+        Constructor<?> found = null;
+        for (final Constructor<?> c : type.getConstructors()) {
+            if (c.getParameterCount() == 0) continue;
+            if (null != found) throw new NoSuchMethodException("More than one public constructor with parameters in " + type.getName() + ", the columns must be named");
+            found = c;
+        }
+        if (null == found) throw new NoSuchMethodException("No public constructor with parameters in " + type.getName() + ", the columns must be named");
+        return found;
+    }
+
+    /**
+     * Defines a copy of {@link CompiledQueryHandles} holding the given handles. Each copy has a loader
+     * of its own, which is collected together with the compiled query.
+     */
+    static final class HandlesLoader extends ClassLoader implements Supplier<MethodHandle[]> {
+        private static final String NAME = CompiledQueryHandles.class.getName();
+        private static final byte[] bytecode = readBytecode(); // null if the class file is not available
+
+        private final MethodHandle[] handles;
+
+        private HandlesLoader(final MethodHandle[] handles) {
+            super(CompiledQuery.class.getClassLoader());
+            this.handles = handles;
+        }
+
+        /**
+         * Returns an instance of a new copy of {@link CompiledQueryHandles} with the given binder and mapper,
+         * or a slower invoker of the handles if the copy cannot be defined.
+         */
+        static Object define(final MethodHandle[] handles) {
+            if (null != bytecode) {
+                try {
+                    final Constructor<?> constructor = Class.forName(NAME, true, new HandlesLoader(handles)).getDeclaredConstructor();
+                    constructor.setAccessible(true);
+                    return constructor.newInstance();
+                }
+                catch (ReflectiveOperationException | LinkageError | SecurityException e) {
+                    log.warn("Failed to define the handles of a compiled query, invoking them without inlining: " + e.toString(), e);
+                }
+            }
+            return new HandleInvoker(handles[0], handles[1]);
+        }
+
+        @Override
+        public MethodHandle[] get() {
+            return handles;
+        }
+
+        @Override
+        protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+            if (!NAME.equals(name)) return super.loadClass(name, resolve);
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (null == c) c = defineClass(name, bytecode, 0, bytecode.length);
+                if (resolve) resolveClass(c);
+                return c;
+            }
+        }
+
+        private static byte[] readBytecode() {
+            try (final InputStream in = CompiledQuery.class.getResourceAsStream(NAME.substring(NAME.lastIndexOf('.') + 1) + ".class")) {
+                if (null == in) {
+                    log.warn("The class file of " + NAME + " is not available, compiled queries will invoke their handles without inlining");
+                    return null;
+                }
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+                final byte[] buffer = new byte[4096];
+                int n;
+                while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+                return out.toByteArray();
+            }
+            catch (IOException e) {
+                log.warn("Failed to read the class file of " + NAME + ", compiled queries will invoke their handles without inlining: " + e.toString(), e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Invokes the handles from instance fields, where a copy of {@link CompiledQueryHandles} cannot be defined.
+     */
+    static final class HandleInvoker implements PreparedStatementParameterizer<Object>, ResultProcessor<Object, Object> {
+        private final MethodHandle binder; // (PreparedStatement, Object)void
+        private final MethodHandle mapper; // (ResultSet)Object
+
+        HandleInvoker(final MethodHandle binder, final MethodHandle mapper) {
+            this.binder = binder;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public void execute(final PreparedStatement statement, final Object parameter) throws SQLException {
+            try {
+                binder.invokeExact(statement, parameter);
+            }
+            catch (SQLException | RuntimeException | Error e) {
+                throw e;
+            }
+            catch (Throwable e) {
+                throw new DatabaseException("Failed to bind query parameters: " + e.toString(), e);
+            }
+        }
+
+        @Override
+        public Object process(final ResultSet resultSet, final Object parameters) throws SQLException {
+            try {
+                return (Object) mapper.invokeExact(resultSet);
+            }
+            catch (SQLException | RuntimeException | Error e) {
+                throw e;
+            }
+            catch (Throwable e) {
+                throw new DatabaseException("Failed to map a row: " + e.toString(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+import com.gurucue.recommendations.DatabaseException;
+
+import java.lang.invoke.MethodHandle;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.function.Supplier;
+
+/**
+ * Invokes the binder and the row mapper of a {@link CompiledQuery} held in static final fields,
+ * which the JIT compiler treats as constants and inlines like handwritten code.
+ * <p>
+ * This class is never used as it is: {@link CompiledQuery} defines a copy of it for each compiled
+ * query with a class loader that supplies the query's handles when the copy is initialized.
+ * A copy lives in a package of its own loader, so it refers only to public types.
+ * As a {@link ResultProcessor}, it maps the row the result set is positioned on.
+ */
+final class CompiledQueryHandles implements PreparedStatementParameterizer<Object>, ResultProcessor<Object, Object> {
+    private static final MethodHandle binder; // (PreparedStatement, Object)void
+    private static final MethodHandle mapper; // (ResultSet)Object
+
+    static {
+        final MethodHandle[] handles = (MethodHandle[]) ((Supplier<?>) CompiledQueryHandles.class.getClassLoader()).get();
+        binder = handles[0];
+        mapper = handles[1];
+    }
+
+    @Override
+    public void execute(final PreparedStatement statement, final Object parameter) throws SQLException {
+        try {
+            binder.invokeExact(statement, parameter);
+        }
+        catch (SQLException | RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new DatabaseException("Failed to bind query parameters: " + e.toString(), e);
+        }
+    }
+
+    @Override
+    public Object process(final ResultSet resultSet, final Object parameters) throws SQLException {
+        try {
+            return (Object) mapper.invokeExact(resultSet);
+        }
+        catch (SQLException | RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new DatabaseException("Failed to map a row: " + e.toString(), e);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The built-in metrics implementation, keeping counters and latency histograms for each statement.
+ */
+public class CountingJdbcMetrics extends JdbcMetrics {
+    private final ConcurrentHashMap<String, Statistics> statistics = new ConcurrentHashMap<>();
+
+    @Override
+    public Statistics forStatement(final String name) {
+        final Statistics existing = statistics.get(name);
+        if (null != existing) return existing;
+        final Statistics created = new Statistics(name);
+        final Statistics raced = statistics.putIfAbsent(name, created);
+        return null == raced ? created : raced;
+    }
+
+    /**
+     * Returns the statistics of all statements, by the statement SQL or logical name.
+     *
+     * @return the statistics of all statements
+     */
+    public Map<String, Statistics> getStatistics() {
+        return Collections.unmodifiableMap(statistics);
+    }
+
+    public static class Statistics implements StatementMetrics {
+        private final String name;
+        private final LatencyHistogram borrowWait = new LatencyHistogram();
+        private final LatencyHistogram execution = new LatencyHistogram();
+        private final LongAdder totalBorrowWaitNanos = new LongAdder();
+        private final LongAdder totalExecutionNanos = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder prepares = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder discardedConnections = new LongAdder();
+
+        Statistics(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void borrowWait(final long nanos) {
+            borrowWait.record(nanos);
+            totalBorrowWaitNanos.add(nanos);
+        }
+
+        @Override
+        public void execution(final long nanos) {
+            execution.record(nanos);
+            totalExecutionNanos.add(nanos);
+        }
+
+        @Override
+        public void rows(final long count) {
+            rows.add(count);
+        }
+
+        @Override
+        public void prepare() {
+            prepares.increment();
+        }
+
+        @Override
+        public void error() {
+            errors.increment();
+        }
+
+        @Override
+        public void connectionDiscarded() {
+            discardedConnections.increment();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public LatencyHistogram getBorrowWaitHistogram() {
+            return borrowWait;
+        }
+
+        public LatencyHistogram getExecutionHistogram() {
+            return execution;
+        }
+
+        public long getTotalBorrowWaitNanos() {
+            return totalBorrowWaitNanos.sum();
+        }
+
+        public long getExecutionCount() {
+            return execution.getCount();
+        }
+
+        public long getTotalExecutionNanos() {
+            return totalExecutionNanos.sum();
+        }
+
+        public long getRowCount() {
+            return rows.sum();
+        }
+
+        public long getPrepareCount() {
+            return prepares.sum();
+        }
+
+        public long getErrorCount() {
+            return errors.sum();
+        }
+
+        public long getDiscardedConnectionCount() {
+            return discardedConnections.sum();
+        }
+    }
+}
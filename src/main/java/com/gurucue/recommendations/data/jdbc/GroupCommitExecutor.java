@@ -0,0 +1,297 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+import com.gurucue.recommendations.DatabaseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Groups concurrent small writes into one transaction with a single commit, instead of each
+ * write getting its own link and commit. The first thread submitting a write opens a group and
+ * waits at most the configured window for other threads to add their writes, or until the group
+ * is full, then executes all the writes of the group on one link in submission order and commits
+ * once. Each thread gets the result of its own write.
+ * <p>
+ * If a write fails, the transaction is rolled back: the thread that submitted the failed write
+ * gets its failure, and the other writes of the group are retried one by one, each in its own
+ * transaction, so every thread gets its own result or failure. If the commit itself fails, the
+ * outcome of the writes is unknown, so they are not retried; every thread of the group gets a
+ * {@link DatabaseException} saying so.
+ */
+public class GroupCommitExecutor {
+    private static final Logger log = LogManager.getLogger(GroupCommitExecutor.class);
+
+    private final JdbcLinkFactory provider;
+    private final long windowNanos;
+    private final int maxGroupSize;
+    private final Object lock = new Object();
+    private Group current = new Group(); // guarded by lock
+    private final AtomicLong writeCount = new AtomicLong(0L);
+    private final AtomicLong groupCount = new AtomicLong(0L);
+    private final AtomicLong retriedGroupCount = new AtomicLong(0L);
+
+    public GroupCommitExecutor(final JdbcLinkFactory provider, final long windowMicros, final int maxGroupSize) {
+        if (windowMicros < 0L) throw new IllegalArgumentException("The grouping window must not be negative: " + windowMicros);
+        if (maxGroupSize < 1) throw new IllegalArgumentException("The maximum group size must be positive: " + maxGroupSize);
+        this.provider = provider;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxGroupSize = maxGroupSize;
+    }
+
+    /**
+     * Executes the write as part of a group, waiting for the group to be committed.
+     *
+     * @param write the write to execute
+     * @param <R> the result type
+     * @return the result of the write
+     */
+    public <R> R execute(final Write<R> write) {
+        try {
+            return submit(write).get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted while waiting for a group commit: " + e.toString(), e);
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new DatabaseException("Grouped write failed: " + cause.toString(), cause);
+        }
+    }
+
+    /**
+     * Executes the wrapped statement as part of a group.
+     *
+     * @param wrapper the wrapped statement
+     * @param parameter the statement parameter
+     * @param <R> the result type
+     * @param <P> the parameter type
+     * @return the result of the statement
+     */
+    public <R, P> R execute(final SimplePreparedStatementWrapper<R, P> wrapper, final P parameter) {
+        return execute(new Write<R>() {
+            @Override
+            public R execute(final JdbcDataLink link) {
+                return wrapper.execute(link, parameter);
+            }
+        });
+    }
+
+    /**
+     * Executes the wrapped statement as part of a group.
+     *
+     * @param wrapper the statement wrapper
+     * @param sql the SQL statement to execute
+     * @param parameters the parameters passed to the processor
+     * @param <R> the result type
+     * @param <P> the parameter type
+     * @return the result of the statement
+     */
+    public <R, P> R execute(final PreparedStatementWrapper<R, P> wrapper, final String sql, final P parameters) {
+        return execute(new Write<R>() {
+            @Override
+            public R execute(final JdbcDataLink link) {
+                return wrapper.execute(link, sql, parameters);
+            }
+        });
+    }
+
+    /**
+     * Executes the wrapped statement as part of a group.
+     *
+     * @param wrapper the statement wrapper
+     * @param sql the SQL statement to execute
+     * @param parameters the parameters passed to the processor
+     * @param <R> the result type
+     * @param <P> the parameter type
+     * @return the result of the statement
+     */
+    public <R, P> R execute(final StatementWrapper<R, P> wrapper, final String sql, final P parameters) {
+        return execute(new Write<R>() {
+            @Override
+            public R execute(final JdbcDataLink link) {
+                return wrapper.execute(link, sql, parameters);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> CompletableFuture<R> submit(final Write<R> write) {
+        writeCount.incrementAndGet();
+        final CompletableFuture<R> future = new CompletableFuture<>();
+        final Group group;
+        final boolean leader;
+        synchronized (lock) {
+            group = current;
+            group.writes.add(write);
+            group.futures.add((CompletableFuture<Object>) (CompletableFuture<?>) future);
+            leader = group.writes.size() == 1;
+            if (group.writes.size() >= maxGroupSize) {
+                group.closed = true;
+                current = new Group();
+                lock.notifyAll();
+            }
+        }
+        if (leader) {
+            awaitGroup(group);
+            execute(group);
+        }
+        return future;
+    }
+
+    private void awaitGroup(final Group group) {
+        final long deadline = System.nanoTime() + windowNanos;
+        boolean interrupted = false;
+        synchronized (lock) {
+            long remaining;
+            while (!group.closed && ((remaining = deadline - System.nanoTime()) > 0L)) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                }
+                catch (InterruptedException e) {
+                    interrupted = true; // the group must still be executed for the other waiting threads
+                    break;
+                }
+            }
+            if (!group.closed) {
+                group.closed = true;
+                current = new Group();
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private void execute(final Group group) {
+        groupCount.incrementAndGet();
+        final int n = group.writes.size();
+        final Object[] results = new Object[n];
+        JdbcDataLink link = provider.newJdbcDataLink();
+        try {
+            int i = 0;
+            try {
+                for (; i < n; i++) results[i] = group.writes.get(i).execute(link);
+            }
+            catch (RuntimeException e) {
+                retriedGroupCount.incrementAndGet();
+                group.futures.get(i).completeExceptionally(e);
+                try {
+                    link.rollback();
+                }
+                catch (RuntimeException re) {
+                    log.warn("Failed to roll back a failed group of writes: " + re.toString(), re);
+                }
+                if (!link.isValid()) {
+                    link.close();
+                    link = null;
+                    link = provider.newJdbcDataLink();
+                }
+                for (int j = 0; j < n; j++) {
+                    if (j != i) executeAlone(link, group.writes.get(j), group.futures.get(j));
+                }
+                return;
+            }
+            try {
+                link.commit();
+            }
+            catch (RuntimeException e) {
+                final DatabaseException failure = new DatabaseException("Group commit of " + n + " writes failed, their outcome is unknown: " + e.toString(), e);
+                for (final CompletableFuture<Object> future : group.futures) future.completeExceptionally(failure);
+                return;
+            }
+            for (i = 0; i < n; i++) group.futures.get(i).complete(results[i]);
+        }
+        catch (RuntimeException e) {
+            // failed to obtain a link, or to recover after a failed write
+            for (final CompletableFuture<Object> future : group.futures) future.completeExceptionally(e);
+        }
+        finally {
+            if (null != link) link.close();
+        }
+    }
+
+    private static void executeAlone(final JdbcDataLink link, final Write<?> write, final CompletableFuture<Object> future) {
+        final Object result;
+        try {
+            result = write.execute(link);
+            link.commit();
+        }
+        catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            try {
+                link.rollback();
+            }
+            catch (RuntimeException re) {
+                log.warn("Failed to roll back a retried write: " + re.toString(), re);
+            }
+            return;
+        }
+        future.complete(result);
+    }
+
+    /**
+     * Returns the number of writes submitted.
+     *
+     * @return the number of writes
+     */
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    /**
+     * Returns the number of groups executed, each with a single commit unless it was retried.
+     *
+     * @return the number of groups
+     */
+    public long getGroupCount() {
+        return groupCount.get();
+    }
+
+    /**
+     * Returns the number of groups in which a write failed, so the rest of the writes were retried one by one.
+     *
+     * @return the number of retried groups
+     */
+    public long getRetriedGroupCount() {
+        return retriedGroupCount.get();
+    }
+
+    /**
+     * A write executed on the shared link of a group, without committing.
+     *
+     * @param <R> the result type
+     */
+    public interface Write<R> {
+        R execute(JdbcDataLink link);
+    }
+
+    static final class Group {
+        final List<Write<?>> writes = new ArrayList<>();
+        final List<CompletableFuture<Object>> futures = new ArrayList<>();
+        boolean closed = false; // guarded by the executor's lock
+    }
+}
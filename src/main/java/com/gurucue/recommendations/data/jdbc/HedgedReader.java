@@ -0,0 +1,403 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+import com.gurucue.recommendations.DatabaseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes idempotent read queries with hedging: the query runs on the calling thread, and if it
+ * has not finished within the hedge delay, a second attempt is started on another connection,
+ * from another pool or from the link factory, such as a {@link ReplicaRouter}. The result of the
+ * attempt finishing first is returned, and the other attempt, if it is still executing, is cancelled
+ * with {@link Statement#cancel()}.
+ * <p>
+ * A database may apply a cancel request after the query it was meant for has finished, to whatever
+ * runs on the connection next. A pooled statement whose execution was cancelled is therefore closed
+ * together with its connection instead of being returned to its pool. A link opened by the link
+ * factory is closed after every attempt anyway; if the factory hands out pooled connections, its pool
+ * must likewise not reuse a connection whose statement was cancelled.
+ * <p>
+ * The hedge delay is the configured percentile of the latencies of recent first attempts, but not
+ * less than the minimum delay; until enough latencies are recorded the initial delay is used.
+ * A first attempt cancelled because the second one won is recorded with the time it ran until it
+ * was cancelled, a lower bound of its latency, so the percentile does not drift down when hedges win.
+ * The percentile is accurate to a factor of two, see {@link LatencyHistogram}. The number of second
+ * attempts is capped at the configured percentage of all executions.
+ *
+ * @param <R> the result type
+ * @param <P> the parameter type
+ */
+public class HedgedReader<R, P> {
+    private static final Logger log = LogManager.getLogger(HedgedReader.class);
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "HedgedReader timer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    static final long MIN_SAMPLES = 100L;
+    static final long SAMPLE_WINDOW = 10000L;
+
+    private final PreparedStatementPool[] pools;
+    private final JdbcLinkFactory linkFactory;
+    private final String sql;
+    private final PreparedStatementParameterizer<P> parameterizer;
+    private final ResultProcessor<R, P> resultProcessor;
+    private final double percentile;
+    private final long minDelayNanos;
+    private final long initialDelayNanos;
+    private final double budgetPercent;
+    private final Executor executor;
+
+    // latencies of first attempts, the current window and the previous one
+    private volatile LatencyHistogram latencies = new LatencyHistogram();
+    private volatile LatencyHistogram previousLatencies = null;
+    private final AtomicLong windowSamples = new AtomicLong(0L);
+    private volatile long hedgeDelayNanos;
+
+    private final AtomicLong executions = new AtomicLong(0L);
+    private final AtomicLong hedges = new AtomicLong(0L);
+    private final AtomicLong hedgeWins = new AtomicLong(0L);
+
+    /**
+     * Creates a hedged reader over pools of the same query. The first attempt uses the first pool,
+     * the second attempt the second pool if there is one, so each pool can use another replica.
+     *
+     * @param pools the pools of the query, at least one
+     * @param parameterizer binds the parameters to a pooled statement
+     * @param resultProcessor processes the query result
+     * @param percentile the latency percentile to use as the hedge delay, such as 95
+     * @param minDelayMillis the minimum hedge delay in milliseconds
+     * @param initialDelayMillis the hedge delay in milliseconds until enough latencies are recorded
+     * @param budgetPercent the maximum share of executions that may start a second attempt, in percent
+     * @param executor the executor running second attempts, or null for {@link AsyncExecution#getDefaultExecutor()}
+     */
+    public HedgedReader(final PreparedStatementPool[] pools, final PreparedStatementParameterizer<P> parameterizer, final ResultProcessor<R, P> resultProcessor, final double percentile, final long minDelayMillis, final long initialDelayMillis, final double budgetPercent, final Executor executor) {
+        this(pools, null, pools[0].sql, parameterizer, resultProcessor, percentile, minDelayMillis, initialDelayMillis, budgetPercent, executor);
+    }
+
+    /**
+     * Creates a hedged reader of a wrapped statement, opening a new link from the link factory for each attempt.
+     *
+     * @param wrapper the wrapped query
+     * @param linkFactory opens the links of attempts, normally spreading them over replicas
+     * @param percentile the latency percentile to use as the hedge delay, such as 95
+     * @param minDelayMillis the minimum hedge delay in milliseconds
+     * @param initialDelayMillis the hedge delay in milliseconds until enough latencies are recorded
+     * @param budgetPercent the maximum share of executions that may start a second attempt, in percent
+     * @param executor the executor running second attempts, or null for {@link AsyncExecution#getDefaultExecutor()}
+     */
+    public HedgedReader(final SimplePreparedStatementWrapper<R, P> wrapper, final JdbcLinkFactory linkFactory, final double percentile, final long minDelayMillis, final long initialDelayMillis, final double budgetPercent, final Executor executor) {
+        this(null, linkFactory, wrapper.getSql(), wrapper.getParameterizer(), wrapper.getResultProcessor(), percentile, minDelayMillis, initialDelayMillis, budgetPercent, executor);
+    }
+
+    private HedgedReader(final PreparedStatementPool[] pools, final JdbcLinkFactory linkFactory, final String sql, final PreparedStatementParameterizer<P> parameterizer, final ResultProcessor<R, P> resultProcessor, final double percentile, final long minDelayMillis, final long initialDelayMillis, final double budgetPercent, final Executor executor) {
+        if ((percentile <= 0.0) || (percentile > 100.0)) throw new IllegalArgumentException("The percentile must be in (0, 100]: " + percentile);
+        if ((budgetPercent < 0.0) || (budgetPercent > 100.0)) throw new IllegalArgumentException("The hedging budget must be in [0, 100]: " + budgetPercent);
+        if (null == resultProcessor) throw new IllegalArgumentException("A hedged reader requires a result processor");
+        this.pools = pools;
+        this.linkFactory = linkFactory;
+        this.sql = sql;
+        this.parameterizer = parameterizer;
+        this.resultProcessor = resultProcessor;
+        this.percentile = percentile;
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+        this.initialDelayNanos = TimeUnit.MILLISECONDS.toNanos(initialDelayMillis);
+        this.hedgeDelayNanos = this.initialDelayNanos;
+        this.budgetPercent = budgetPercent;
+        this.executor = null == executor ? AsyncExecution.getDefaultExecutor() : executor;
+    }
+
+    /**
+     * Executes the query, hedging it if it takes longer than the hedge delay.
+     *
+     * @param parameter the query parameter
+     * @return the result of the attempt finishing first
+     */
+    public R execute(final P parameter) {
+        final long count = executions.incrementAndGet();
+        final CompletableFuture<R> winner = new CompletableFuture<>();
+        final Attempt primary = new Attempt();
+        final Attempt hedge = new Attempt();
+        final ScheduledFuture<?> hedgeTimer = hedges.get() * 100.0 < count * budgetPercent
+                ? timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        startHedge(parameter, winner, primary, hedge);
+                    }
+                }, hedgeDelayNanos, TimeUnit.NANOSECONDS)
+                : null;
+
+        final long startTime = System.nanoTime();
+        final R result;
+        try {
+            result = run(0, parameter, primary);
+        }
+        catch (RuntimeException e) {
+            if (null != hedgeTimer) hedgeTimer.cancel(false);
+            if (!hedge.started) throw e;
+            // the second attempt either cancelled this one, or may still succeed
+            if (primary.cancelled) recordLatency(System.nanoTime() - startTime);
+            return await(winner, e);
+        }
+        if (null != hedgeTimer) hedgeTimer.cancel(false);
+        recordLatency(System.nanoTime() - startTime);
+        if (winner.complete(result)) {
+            hedge.cancel();
+            return result;
+        }
+        return await(winner, null); // the second attempt won the race in the meantime
+    }
+
+    private void startHedge(final P parameter, final CompletableFuture<R> winner, final Attempt primary, final Attempt hedge) {
+        if (winner.isDone()) return;
+        final long count = executions.get();
+        final long hedged = hedges.incrementAndGet();
+        if (hedged * 100.0 > count * budgetPercent) {
+            hedges.decrementAndGet();
+            return;
+        }
+        hedge.started = true;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final R result = HedgedReader.this.run(1, parameter, hedge);
+                        if (winner.complete(result)) {
+                            hedgeWins.incrementAndGet();
+                            primary.cancel();
+                        }
+                    }
+                    catch (RuntimeException e) {
+                        if (!hedge.cancelled) winner.completeExceptionally(e);
+                    }
+                }
+            });
+        }
+        catch (RuntimeException e) {
+            log.error("Failed to start a hedged attempt: " + e.toString(), e);
+            winner.completeExceptionally(e);
+        }
+    }
+
+    private R await(final CompletableFuture<R> winner, final RuntimeException primaryFailure) {
+        try {
+            return winner.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted while waiting for a hedged query: " + e.toString(), e);
+        }
+        catch (ExecutionException e) {
+            if (null != primaryFailure) throw primaryFailure;
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new DatabaseException("Hedged query failed: " + cause.toString(), cause);
+        }
+    }
+
+    private R run(final int attemptIndex, final P parameter, final Attempt attempt) {
+        if (null != pools) return runPooled(pools[attemptIndex % pools.length], parameter, attempt);
+        return runOnNewLink(parameter, attempt);
+    }
+
+    private R runPooled(final PreparedStatementPool pool, final P parameter, final Attempt attempt) {
+        final JdbcStatement statement = pool.getStatement();
+        boolean cancelIssued = false;
+        try {
+            attempt.begin(statement.preparedStatement);
+            try {
+                parameterizer.execute(statement.preparedStatement, parameter);
+                final JdbcResultSet rs = statement.executeQuery();
+                try {
+                    return resultProcessor.process(rs.resultSet, parameter);
+                }
+                finally {
+                    rs.close();
+                }
+            }
+            finally {
+                cancelIssued = attempt.end();
+            }
+        }
+        catch (SQLException e) {
+            throw new DatabaseException("Hedged query attempt failed: " + e.toString() + "; SQL: " + sql, e);
+        }
+        finally {
+            if (cancelIssued) pool.discardBorrowed(statement);
+            else statement.close();
+        }
+    }
+
+    private R runOnNewLink(final P parameter, final Attempt attempt) {
+        final JdbcDataLink link = linkFactory.newJdbcDataLink();
+        try {
+            final R result;
+            try {
+                final PreparedStatement statement = link.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                try {
+                    attempt.begin(statement);
+                    try {
+                        parameterizer.execute(statement, parameter);
+                        final ResultSet rs = statement.executeQuery();
+                        try {
+                            result = resultProcessor.process(rs, parameter);
+                        }
+                        finally {
+                            rs.close();
+                        }
+                    }
+                    finally {
+                        attempt.end();
+                    }
+                }
+                finally {
+                    statement.close();
+                }
+            }
+            catch (SQLException e) {
+                link.rollback();
+                throw new DatabaseException("Hedged query attempt failed: " + e.toString() + "; SQL: " + sql, e);
+            }
+            catch (RuntimeException e) {
+                link.rollback();
+                throw e;
+            }
+            link.commit();
+            return result;
+        }
+        finally {
+            link.close();
+        }
+    }
+
+    private void recordLatency(final long nanos) {
+        latencies.record(nanos);
+        final long samples = windowSamples.incrementAndGet();
+        if ((samples % 256L) == 0L) {
+            if (samples >= SAMPLE_WINDOW) {
+                synchronized (this) {
+                    if (windowSamples.get() >= SAMPLE_WINDOW) {
+                        previousLatencies = latencies;
+                        latencies = new LatencyHistogram();
+                        windowSamples.set(0L);
+                    }
+                }
+            }
+            updateHedgeDelay();
+        }
+    }
+
+    private void updateHedgeDelay() {
+        final LatencyHistogram previous = previousLatencies;
+        final LatencyHistogram source = (null != previous) && (windowSamples.get() < MIN_SAMPLES) ? previous : latencies;
+        if (source.getCount() < MIN_SAMPLES) return;
+        hedgeDelayNanos = Math.max(minDelayNanos, source.getPercentileNanos(percentile));
+    }
+
+    /**
+     * Returns the current hedge delay.
+     *
+     * @return the hedge delay in nanoseconds
+     */
+    public long getHedgeDelayNanos() {
+        return hedgeDelayNanos;
+    }
+
+    public long getExecutionCount() {
+        return executions.get();
+    }
+
+    /**
+     * Returns the number of second attempts started.
+     *
+     * @return the number of hedges
+     */
+    public long getHedgeCount() {
+        return hedges.get();
+    }
+
+    /**
+     * Returns the number of second attempts that finished before the first attempt.
+     *
+     * @return the number of won hedges
+     */
+    public long getHedgeWinCount() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * An attempt of the query; cancelling it cancels its statement only while it is executing,
+     * so a statement that was already given back to its pool is never cancelled from here.
+     * The database may still apply the cancel later, so {@link #end()} reports whether one was issued.
+     */
+    static final class Attempt {
+        volatile boolean started = false;
+        volatile boolean cancelled = false;
+        private Statement statement = null; // guarded by this
+        private boolean cancelIssued = false; // guarded by this
+
+        synchronized void begin(final Statement statement) {
+            if (cancelled) throw new DatabaseException("The hedged query attempt was cancelled");
+            this.statement = statement;
+        }
+
+        /**
+         * Ends the execution of the statement.
+         *
+         * @return whether the statement was cancelled while executing, so its connection must not be reused
+         */
+        synchronized boolean end() {
+            statement = null;
+            return cancelIssued;
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (null != statement) {
+                cancelIssued = true;
+                try {
+                    statement.cancel();
+                }
+                catch (SQLException e) {
+                    log.warn("Failed to cancel a hedged query attempt: " + e.toString(), e);
+                }
+            }
+        }
+    }
+}
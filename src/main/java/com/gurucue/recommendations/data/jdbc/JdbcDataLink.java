@@ -104,4 +104,17 @@ public interface JdbcDataLink extends DataLink {
      * @return the underlying Connection
      */
     Connection getConnection();
+
+    /**
+     * Returns the cache of prepared statements of this link, which the statement wrappers use
+     * instead of preparing and closing a statement on each execution.
+     * An implementation providing a cache must close it when the link is closed.
+     * The default implementation provides no cache, in which case the wrappers cache statements
+     * only within a {@link UnitOfWork}, see {@link PreparedStatementCache#forLink(JdbcDataLink)}.
+     *
+     * @return the prepared statement cache of this link, or null if the link does not provide its own cache
+     */
+    default PreparedStatementCache getPreparedStatementCache() {
+        return null;
+    }
 }
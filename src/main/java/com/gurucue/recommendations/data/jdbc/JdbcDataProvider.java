@@ -23,6 +23,7 @@ import com.gurucue.recommendations.data.DataProvider;
 /**
  * Adds methods specific for JDBC to the <code>DataProvider</code> interface.
  */
-public interface JdbcDataProvider extends DataProvider {
+public interface JdbcDataProvider extends DataProvider, JdbcLinkFactory {
+    @Override
     JdbcDataLink newJdbcDataLink();
 }
@@ -0,0 +1,54 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+/**
+ * Provides {@link StatementMetrics} for statements by their SQL or logical name.
+ * The pools and wrappers obtain their metrics from the {@link #getDefault() default instance}
+ * on their first use, so it must be set before any statements are executed.
+ * The default instance does not record anything.
+ */
+public abstract class JdbcMetrics {
+    /** Does not record anything. */
+    public static final JdbcMetrics NOOP = new JdbcMetrics() {
+        @Override
+        public StatementMetrics forStatement(final String name) {
+            return StatementMetrics.NOOP;
+        }
+    };
+
+    private static volatile JdbcMetrics defaultMetrics = NOOP;
+
+    public static JdbcMetrics getDefault() {
+        return defaultMetrics;
+    }
+
+    public static void setDefault(final JdbcMetrics metrics) {
+        defaultMetrics = null == metrics ? NOOP : metrics;
+    }
+
+    /**
+     * Returns the metrics of the given statement. Repeated calls with the same name
+     * should return the same instance.
+     *
+     * @param name the SQL or the logical name of the statement
+     * @return the metrics of the statement
+     */
+    public abstract StatementMetrics forStatement(String name);
+}
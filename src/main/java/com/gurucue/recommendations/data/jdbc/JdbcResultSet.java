@@ -23,16 +23,30 @@ import com.gurucue.recommendations.DatabaseException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.Arrays;
 
 public class JdbcResultSet implements AutoCloseable {
     final ResultSet resultSet;
+    private final StatementMetrics metrics;
+    // the pooled statement to log the execution of on close, if it was chosen for logging
+    private final JdbcStatement tracedStatement;
+    private long rowCount = 0L;
 
-    JdbcResultSet(final ResultSet resultSet) {
+    JdbcResultSet(final ResultSet resultSet, final StatementMetrics metrics, final JdbcStatement tracedStatement) {
         this.resultSet = resultSet;
+        this.metrics = metrics;
+        this.tracedStatement = tracedStatement;
+    }
+
+    JdbcResultSet(final ResultSet resultSet) {
+        this(resultSet, StatementMetrics.NOOP, null);
     }
 
     @Override
     public void close() {
+        metrics.rows(rowCount);
+        if (null != tracedStatement) tracedStatement.logExecution(rowCount);
+        rowCount = 0L;
         try {
             resultSet.close();
         } catch (SQLException e) {
@@ -42,7 +56,11 @@ public class JdbcResultSet implements AutoCloseable {
 
     public boolean next() {
         try {
-            return resultSet.next();
+            if (resultSet.next()) {
+                rowCount++;
+                return true;
+            }
+            return false;
         } catch (SQLException e) {
             throw new DatabaseException("Failed to step to the next row of the result set: " + e.toString(), e);
         }
@@ -103,4 +121,49 @@ public class JdbcResultSet implements AutoCloseable {
             throw new DatabaseException("Failed to get a timestamp value from the result set: " + e.toString(), e);
         }
     }
+
+    /**
+     * Reads up to the capacity of the given batch rows from the current position of the
+     * result set into the batch's column buffers, replacing their previous content.
+     *
+     * @param batch the column buffers to fill
+     * @return the number of rows read; less than the batch capacity only when the result set was exhausted
+     */
+    public int fetch(final ColumnBatch batch) {
+        final int capacity = batch.getCapacity();
+        final int columnCount = batch.getColumnCount();
+        final byte[] types = batch.types;
+        final int[] indexes = batch.resultSetIndexes;
+        final boolean[] nullable = batch.nullable;
+        final long[][] nullBitmaps = batch.nullBitmaps;
+        for (int c = 0; c < columnCount; c++) {
+            if (nullable[c]) Arrays.fill(nullBitmaps[c], 0L);
+        }
+        int row = 0;
+        try {
+            while ((row < capacity) && resultSet.next()) {
+                for (int c = 0; c < columnCount; c++) {
+                    switch (types[c]) {
+                        case ColumnBatch.TYPE_LONG:
+                            batch.longColumns[c][row] = resultSet.getLong(indexes[c]);
+                            break;
+                        case ColumnBatch.TYPE_INT:
+                            batch.intColumns[c][row] = resultSet.getInt(indexes[c]);
+                            break;
+                        default:
+                            batch.doubleColumns[c][row] = resultSet.getDouble(indexes[c]);
+                            break;
+                    }
+                    if (nullable[c] && resultSet.wasNull()) nullBitmaps[c][row >>> 6] |= 1L << row;
+                }
+                row++;
+            }
+        } catch (SQLException e) {
+            batch.size = 0;
+            throw new DatabaseException("Failed to fetch a batch of rows from the result set: " + e.toString(), e);
+        }
+        batch.size = row;
+        rowCount += row;
+        return row;
+    }
 }
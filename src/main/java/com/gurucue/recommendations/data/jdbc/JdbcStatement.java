@@ -21,15 +21,46 @@ package com.gurucue.recommendations.data.jdbc;
 import com.gurucue.recommendations.DatabaseException;
 
 import java.sql.*;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class JdbcStatement implements AutoCloseable {
+    static final int STATE_IDLE = 0;
+    static final int STATE_IN_USE = 1;
+    static final int STATE_REMOVED = 2;
+
     final PreparedStatementPool owner;
     final JdbcDataLink link;
+    // the shared connection the statement is prepared on, or null if the statement has its own connection
+    final SharedConnectionPool.SharedConnection shared;
     PreparedStatement preparedStatement;
+    // whoever moves the state from idle to in use owns the statement
+    final AtomicInteger state = new AtomicInteger(STATE_IN_USE);
+    // whether the statement is referenced from an idle queue of the pool
+    final AtomicBoolean queued = new AtomicBoolean(false);
+    // the idle queue of the pool the statement is returned to
+    int stripe = 0;
+    // System.nanoTime() of when the statement was last returned into the pool
+    long lastReturned = System.nanoTime();
+    // System.nanoTime() of when the connection was last found valid
+    long lastValidated = lastReturned;
+    // System.nanoTime() of when the prepared statement was last prepared
+    long preparedAt = lastReturned;
+    // the number of times the prepared statement was used since it was last prepared
+    int usesSincePrepare = 0;
+    // the number of times the statement was used since the last commit
+    int usesSinceCommit = 0;
+    // the time the current borrower waited for the statement, and the time of its last execution
+    long borrowWaitNanos = 0L;
+    long executeNanos = 0L;
+    // the parameters bound since the statement was borrowed, captured only while the slow query log is enabled
+    Object[] parameters = null;
 
     JdbcStatement(final PreparedStatementPool owner) {
         this.owner = owner;
-        link = owner.provider.newJdbcDataLink();
+        this.shared = null;
+        link = owner.linkFactory.newJdbcDataLink();
         try {
             link.setReadOnly(true);
         }
@@ -39,6 +70,7 @@ public class JdbcStatement implements AutoCloseable {
         }
         try {
             preparedStatement = link.prepareStatement(owner.sql);
+            owner.metrics().prepare();
         }
         catch (RuntimeException e) {
             link.close();
@@ -46,6 +78,27 @@ public class JdbcStatement implements AutoCloseable {
         }
     }
 
+    // a statement prepared on a connection of a shared pool
+    JdbcStatement(final PreparedStatementPool owner, final SharedConnectionPool.SharedConnection shared, final PreparedStatement preparedStatement) {
+        this.owner = owner;
+        this.shared = shared;
+        this.link = shared.link;
+        this.preparedStatement = preparedStatement;
+    }
+
+    // logs the last execution, when its result set is closed and the number of rows is known
+    void logExecution(final long rows) {
+        SlowQueryLog.log(owner.name, owner.sql, null == parameters ? null : Arrays.asList(parameters), rows, borrowWaitNanos, executeNanos);
+        borrowWaitNanos = 0L;
+    }
+
+    private void capture(final int parameterIndex, final Object x) {
+        Object[] p = parameters;
+        if (null == p) parameters = p = new Object[parameterIndex];
+        else if (parameterIndex > p.length) parameters = p = Arrays.copyOf(p, parameterIndex);
+        p[parameterIndex - 1] = x;
+    }
+
     protected void closeConnection() {
         try {
             preparedStatement.close();
@@ -60,16 +113,74 @@ public class JdbcStatement implements AutoCloseable {
     }
 
     public JdbcResultSet executeQuery() {
+        final StatementMetrics metrics = owner.metrics();
+        final long startTime = System.nanoTime();
         try {
-            return new JdbcResultSet(preparedStatement.executeQuery());
+            final ResultSet resultSet = preparedStatement.executeQuery();
+            executeNanos = System.nanoTime() - startTime;
+            metrics.execution(executeNanos);
+            final boolean traced = SlowQueryLog.isLogged(borrowWaitNanos + executeNanos);
+            if (!traced) borrowWaitNanos = 0L; // only the first execution after a borrow waited
+            return new JdbcResultSet(resultSet, metrics, traced ? this : null);
         } catch (SQLException e) {
+            metrics.execution(System.nanoTime() - startTime);
+            metrics.error();
             throw new DatabaseException("Failed to execute a query statement: " + e.toString(), e);
         }
     }
 
+    /**
+     * Binds a long as the first parameter and executes the query, without boxing the parameter.
+     *
+     * @param parameter the first query parameter
+     * @return the query result
+     */
+    public JdbcResultSet executeQuery(final long parameter) {
+        setLong(1, parameter);
+        return executeQuery();
+    }
+
+    /**
+     * Binds an int as the first parameter and executes the query, without boxing the parameter.
+     *
+     * @param parameter the first query parameter
+     * @return the query result
+     */
+    public JdbcResultSet executeQuery(final int parameter) {
+        setInt(1, parameter);
+        return executeQuery();
+    }
+
+    /**
+     * Binds a long and a string as the first two parameters and executes the query.
+     *
+     * @param longParameter the first query parameter
+     * @param stringParameter the second query parameter
+     * @return the query result
+     */
+    public JdbcResultSet executeQuery(final long longParameter, final String stringParameter) {
+        setLong(1, longParameter);
+        setString(2, stringParameter);
+        return executeQuery();
+    }
+
+    /**
+     * Binds two longs as the first two parameters and executes the query.
+     *
+     * @param firstParameter the first query parameter
+     * @param secondParameter the second query parameter
+     * @return the query result
+     */
+    public JdbcResultSet executeQuery(final long firstParameter, final long secondParameter) {
+        setLong(1, firstParameter);
+        setLong(2, secondParameter);
+        return executeQuery();
+    }
+
     public void setDate(int parameterIndex, Date x) {
         try {
             preparedStatement.setDate(parameterIndex, x);
+            if (SlowQueryLog.isEnabled()) capture(parameterIndex, x);
         } catch (SQLException e) {
             throw new DatabaseException("Failed to set date query parameter at position " + parameterIndex + ": " + e.toString(), e);
         }
@@ -78,6 +189,7 @@ public class JdbcStatement implements AutoCloseable {
     public void setDouble(int parameterIndex, double x) {
         try {
             preparedStatement.setDouble(parameterIndex, x);
+            if (SlowQueryLog.isEnabled()) capture(parameterIndex, x);
         } catch (SQLException e) {
             throw new DatabaseException("Failed to set double query parameter at position " + parameterIndex + ": " + e.toString(), e);
         }
@@ -86,6 +198,7 @@ public class JdbcStatement implements AutoCloseable {
     public void setFloat(int parameterIndex, float x) {
         try {
             preparedStatement.setFloat(parameterIndex, x);
+            if (SlowQueryLog.isEnabled()) capture(parameterIndex, x);
         } catch (SQLException e) {
             throw new DatabaseException("Failed to set float query parameter at position " + parameterIndex + ": " + e.toString(), e);
         }
@@ -94,6 +207,7 @@ public class JdbcStatement implements AutoCloseable {
     public void setInt(int parameterIndex, int x) {
         try {
             preparedStatement.setInt(parameterIndex, x);
+            if (SlowQueryLog.isEnabled()) capture(parameterIndex, x);
         } catch (SQLException e) {
             throw new DatabaseException("Failed to set int query parameter at position " + parameterIndex + ": " + e.toString(), e);
         }
@@ -102,6 +216,7 @@ public class JdbcStatement implements AutoCloseable {
     public void setLong(int parameterIndex, long x) {
         try {
             preparedStatement.setLong(parameterIndex, x);
+            if (SlowQueryLog.isEnabled()) capture(parameterIndex, x);
         } catch (SQLException e) {
             throw new DatabaseException("Failed to set long query parameter at position " + parameterIndex + ": " + e.toString(), e);
         }
@@ -110,6 +225,7 @@ public class JdbcStatement implements AutoCloseable {
     public void setNull(int parameterIndex, int sqlType) {
         try {
             preparedStatement.setNull(parameterIndex, sqlType);
+            if (SlowQueryLog.isEnabled()) capture(parameterIndex, null);
         } catch (SQLException e) {
             throw new DatabaseException("Failed to set null query parameter at position " + parameterIndex + ": " + e.toString(), e);
         }
@@ -118,6 +234,7 @@ public class JdbcStatement implements AutoCloseable {
     public void setShort(int parameterIndex, short x) {
         try {
             preparedStatement.setShort(parameterIndex, x);
+            if (SlowQueryLog.isEnabled()) capture(parameterIndex, x);
         } catch (SQLException e) {
             throw new DatabaseException("Failed to set short query parameter at position " + parameterIndex + ": " + e.toString(), e);
         }
@@ -126,6 +243,7 @@ public class JdbcStatement implements AutoCloseable {
     public void setString(int parameterIndex, String x) {
         try {
             preparedStatement.setString(parameterIndex, x);
+            if (SlowQueryLog.isEnabled()) capture(parameterIndex, x);
         } catch (SQLException e) {
             throw new DatabaseException("Failed to set string query parameter at position " + parameterIndex + ": " + e.toString(), e);
         }
@@ -134,6 +252,7 @@ public class JdbcStatement implements AutoCloseable {
     public void setTime(int parameterIndex, Time x) {
         try {
             preparedStatement.setTime(parameterIndex, x);
+            if (SlowQueryLog.isEnabled()) capture(parameterIndex, x);
         } catch (SQLException e) {
             throw new DatabaseException("Failed to set time query parameter at position " + parameterIndex + ": " + e.toString(), e);
         }
@@ -142,6 +261,7 @@ public class JdbcStatement implements AutoCloseable {
     public void setTimestamp(int parameterIndex, Timestamp x) {
         try {
             preparedStatement.setTimestamp(parameterIndex, x);
+            if (SlowQueryLog.isEnabled()) capture(parameterIndex, x);
         } catch (SQLException e) {
             throw new DatabaseException("Failed to set timestamp query parameter at position " + parameterIndex + ": " + e.toString(), e);
         }
@@ -0,0 +1,68 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of nanosecond durations with power-of-two buckets:
+ * bucket <code>i</code> counts durations in <code>[2^i, 2^(i+1))</code>, bucket 0 also counts zero.
+ * Recording a value costs a leading-zeros count and a {@link LongAdder} increment.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 64;
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) buckets[i] = new LongAdder();
+    }
+
+    public void record(final long nanos) {
+        buckets[nanos <= 1L ? 0 : 63 - Long.numberOfLeadingZeros(nanos)].increment();
+    }
+
+    public long getCount() {
+        long count = 0L;
+        for (final LongAdder bucket : buckets) count += bucket.sum();
+        return count;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile, accurate to a factor of two.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the upper bound of the bucket containing the percentile, in nanoseconds; 0 if nothing was recorded
+     */
+    public long getPercentileNanos(final double percentile) {
+        final long[] counts = new long[BUCKETS];
+        long total = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0L) return 0L;
+        final long rank = (long) Math.ceil(total * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if ((seen >= rank) && (counts[i] > 0L)) return i >= 62 ? Long.MAX_VALUE : (2L << i) - 1L;
+        }
+        return Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+public class ParameterLongLong {
+    public final long firstParameter;
+    public final long secondParameter;
+
+    public ParameterLongLong(final long firstParameter, final long secondParameter) {
+        this.firstParameter = firstParameter;
+        this.secondParameter = secondParameter;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof ParameterLongLong)) return false;
+        final ParameterLongLong other = (ParameterLongLong) obj;
+        return (firstParameter == other.firstParameter) && (secondParameter == other.secondParameter);
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(firstParameter) * 31 + Long.hashCode(secondParameter);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + firstParameter + ", " + secondParameter + "]";
+    }
+}
@@ -26,4 +26,23 @@ public class ParameterLongString {
         this.longParameter = longParameter;
         this.stringParameter = stringParameter;
     }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof ParameterLongString)) return false;
+        final ParameterLongString other = (ParameterLongString) obj;
+        return (null == longParameter ? null == other.longParameter : longParameter.equals(other.longParameter))
+                && (null == stringParameter ? null == other.stringParameter : stringParameter.equals(other.stringParameter));
+    }
+
+    @Override
+    public int hashCode() {
+        return (null == longParameter ? 0 : longParameter.hashCode()) * 31 + (null == stringParameter ? 0 : stringParameter.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return "[" + longParameter + ", " + stringParameter + "]";
+    }
 }
@@ -0,0 +1,292 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of prepared statements of a single {@link JdbcDataLink},
+ * keyed by the SQL text, result set type and result set concurrency.
+ * A statement stays in the cache while it is in use, marked as borrowed, so nested
+ * executions of the same SQL on the same link each get their own statement; a hit
+ * allocates nothing, as the lookups go through a single reusable key.
+ * Evicted statements are closed once they are not in use. As with the link itself,
+ * the cache must not be used by more than one thread at a time.
+ * <p>
+ * The statement wrappers use the cache {@link JdbcDataLink#getPreparedStatementCache() provided by a link}.
+ * For a link without its own cache they use a cache of the {@link #getDefaultMaxSize() default size}
+ * only while the link belongs to a {@link UnitOfWork}, which closes the cache before it closes the link,
+ * see {@link #forLink(JdbcDataLink)}.
+ */
+public class PreparedStatementCache implements AutoCloseable {
+    private static final Logger log = LogManager.getLogger(PreparedStatementCache.class);
+    public static final int DEFAULT_MAX_SIZE = 64;
+    private static volatile int defaultMaxSize = DEFAULT_MAX_SIZE;
+
+    private final int maxSize;
+    private final LinkedHashMap<Key, Slot> statements;
+    private final Key probe = new Key();
+    private long hits = 0L;
+    private long misses = 0L;
+    private long evictions = 0L;
+
+    public PreparedStatementCache(final int maxSize) {
+        if (maxSize < 1) throw new IllegalArgumentException("The maximum size of the prepared statement cache must be positive: " + maxSize);
+        this.maxSize = maxSize;
+        this.statements = new LinkedHashMap<Key, Slot>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, Slot> eldest) {
+                if (size() <= PreparedStatementCache.this.maxSize) return false;
+                evictions++;
+                final Slot slot = eldest.getValue();
+                if (!slot.borrowed) closeQuietly(slot.statement); // a borrowed one is closed on release
+                return true;
+            }
+        };
+    }
+
+    public PreparedStatementCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Borrows the cached statement for the given SQL, or prepares a new one using the given
+     * link if there is none or it is already borrowed. Give it back with {@link #release(String, int, int, PreparedStatement)}
+     * after use, or close it if it must not be reused.
+     *
+     * @param link the link owning this cache
+     * @param sql SQL statement to prepare
+     * @param resultSetType a result set type, as in {@link JdbcDataLink#prepareStatement(String, int, int)}
+     * @param resultSetConcurrency a concurrency type, as in {@link JdbcDataLink#prepareStatement(String, int, int)}
+     * @return the prepared statement
+     */
+    public PreparedStatement acquire(final JdbcDataLink link, final String sql, final int resultSetType, final int resultSetConcurrency) {
+        final Slot slot = statements.get(probe.set(sql, resultSetType, resultSetConcurrency));
+        if (null != slot) {
+            if (slot.borrowed) {
+                // a nested execution of the same SQL gets its own statement, closed on release
+                misses++;
+                return link.prepareStatement(sql, resultSetType, resultSetConcurrency);
+            }
+            if (!isClosed(slot.statement)) {
+                hits++;
+                slot.borrowed = true;
+                return slot.statement;
+            }
+            close(); // the connection was closed under the cache, so all its statements are gone
+        }
+        misses++;
+        final PreparedStatement statement = link.prepareStatement(sql, resultSetType, resultSetConcurrency);
+        statements.put(new Key().set(sql, resultSetType, resultSetConcurrency), new Slot(statement));
+        return statement;
+    }
+
+    /**
+     * Puts a statement obtained with {@link #acquire(JdbcDataLink, String, int, int)} back into the cache.
+     * Its open result set is closed, its parameters are cleared, and its fetch size, maximum number
+     * of rows and query timeout are reset to their defaults. If the statement cannot be reset, or it is not
+     * the statement cached for its key, because it was evicted or prepared for a nested execution, then it is closed.
+     *
+     * @param sql SQL statement the statement was prepared with
+     * @param resultSetType a result set type the statement was prepared with
+     * @param resultSetConcurrency a concurrency type the statement was prepared with
+     * @param statement the statement to put back
+     */
+    public void release(final String sql, final int resultSetType, final int resultSetConcurrency, final PreparedStatement statement) {
+        final Slot slot = statements.get(probe.set(sql, resultSetType, resultSetConcurrency));
+        if ((null == slot) || (slot.statement != statement)) {
+            closeQuietly(statement);
+            return;
+        }
+        try {
+            final ResultSet resultSet = statement.getResultSet();
+            if (null != resultSet) resultSet.close();
+            statement.clearParameters();
+            statement.setFetchSize(0);
+            statement.setMaxRows(0);
+            if (0 != statement.getQueryTimeout()) statement.setQueryTimeout(0); // some drivers do work even when it is unchanged
+        }
+        catch (SQLException e) {
+            log.warn("Failed to reset a cached prepared statement, closing it: " + e.toString(), e);
+            statements.remove(probe);
+            closeQuietly(statement);
+            return;
+        }
+        slot.borrowed = false;
+    }
+
+    /**
+     * Closes all cached statements and empties the cache; borrowed statements are closed when
+     * they are released. The cache remains usable.
+     */
+    @Override
+    public void close() {
+        final Iterator<Slot> it = statements.values().iterator();
+        while (it.hasNext()) {
+            final Slot slot = it.next();
+            if (!slot.borrowed) closeQuietly(slot.statement);
+            it.remove();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of cached statements, including the borrowed ones.
+     */
+    public int size() {
+        return statements.size();
+    }
+
+    public long getHitCount() {
+        return hits;
+    }
+
+    public long getMissCount() {
+        return misses;
+    }
+
+    public long getEvictionCount() {
+        return evictions;
+    }
+
+    public static int getDefaultMaxSize() {
+        return defaultMaxSize;
+    }
+
+    /**
+     * Sets the size of the caches units of work keep for links that do not provide their own cache.
+     * Zero disables these caches, so such links prepare and close a statement on each execution.
+     * Only caches created afterwards are affected.
+     *
+     * @param maxSize the maximum number of statements cached for each link, or zero
+     */
+    public static void setDefaultMaxSize(final int maxSize) {
+        if (maxSize < 0) throw new IllegalArgumentException("The default maximum size of the prepared statement cache must not be negative: " + maxSize);
+        defaultMaxSize = maxSize;
+    }
+
+    /**
+     * Returns the cache the statement wrappers use with the given link: the link's own cache if
+     * it provides one, otherwise the cache of the {@link UnitOfWork} bound to the current thread if the
+     * link is its link. Any other link gets no cache, as nothing would close the cached statements when
+     * the link is closed, and a connection pool keeps the statements of a closed link open.
+     * Statements of a closed connection are dropped on the next use of the cache.
+     *
+     * @param link the link to return the cache of
+     * @return the cache of the link, or null if there is none
+     */
+    public static PreparedStatementCache forLink(final JdbcDataLink link) {
+        final PreparedStatementCache own = link.getPreparedStatementCache();
+        if (null != own) return own;
+        final UnitOfWork unit = UnitOfWork.current();
+        return null == unit ? null : unit.statementCache(link);
+    }
+
+    /**
+     * Obtains a forward-only, read-only prepared statement from the given cache, or prepares it on
+     * the link if there is no cache, recording a prepare in the metrics when one is done.
+     */
+    static PreparedStatement prepareForwardOnly(final JdbcDataLink link, final PreparedStatementCache cache, final String sql, final StatementMetrics metrics) {
+        if (null == cache) {
+            metrics.prepare();
+            return link.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        }
+        final long previousMisses = cache.misses;
+        final PreparedStatement statement = cache.acquire(link, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        if (cache.misses != previousMisses) metrics.prepare();
+        return statement;
+    }
+
+    /**
+     * Puts a statement obtained with {@link #prepareForwardOnly(JdbcDataLink, PreparedStatementCache, String, StatementMetrics)}
+     * back into the cache if it is reusable, otherwise closes it.
+     */
+    static void releaseForwardOnly(final PreparedStatementCache cache, final String sql, final PreparedStatement statement, final boolean reusable) throws SQLException {
+        if (reusable && (null != cache)) cache.release(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, statement);
+        else statement.close();
+    }
+
+    private static boolean isClosed(final PreparedStatement statement) {
+        try {
+            // not all drivers mark the statements of a closed connection as closed
+            return statement.isClosed() || statement.getConnection().isClosed();
+        }
+        catch (SQLException e) {
+            return true;
+        }
+    }
+
+    private static void closeQuietly(final PreparedStatement statement) {
+        try {
+            statement.close();
+        }
+        catch (SQLException e) {
+            log.warn("Failed to close a cached prepared statement: " + e.toString(), e);
+        }
+    }
+
+    static final class Slot {
+        final PreparedStatement statement;
+        boolean borrowed = true;
+
+        Slot(final PreparedStatement statement) {
+            this.statement = statement;
+        }
+    }
+
+    // mutable only to serve as the cache's lookup probe; a key in the map is never modified
+    static final class Key {
+        String sql;
+        int resultSetType;
+        int resultSetConcurrency;
+        private int hash;
+
+        Key set(final String sql, final int resultSetType, final int resultSetConcurrency) {
+            this.sql = sql;
+            this.resultSetType = resultSetType;
+            this.resultSetConcurrency = resultSetConcurrency;
+            this.hash = (sql.hashCode() * 31 + resultSetType) * 31 + resultSetConcurrency;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof Key)) return false;
+            final Key other = (Key) obj;
+            return (resultSetType == other.resultSetType) && (resultSetConcurrency == other.resultSetConcurrency) && sql.equals(other.sql);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * A parameterizer binding its parameters after the given number of other parameters, from index
+ * <code>offset + 1</code> on, so one row of a multi-row statement is bound without shifting the indexes
+ * through a wrapper of the statement. Implemented next to {@link PreparedStatementParameterizer} for a
+ * {@link BulkInsertWriter}.
+ *
+ * @param <P> the parameter type
+ */
+public interface PreparedStatementParameterizerAtOffset<P> {
+    void execute(PreparedStatement statement, int offset, P parameter) throws SQLException;
+}
@@ -21,9 +21,14 @@ package com.gurucue.recommendations.data.jdbc;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 
-public class PreparedStatementParameterizerLong implements PreparedStatementParameterizer<Long> {
+public class PreparedStatementParameterizerLong implements PreparedStatementParameterizer<Long>, PreparedStatementParameterizerOfLong {
     @Override
     public void execute(final PreparedStatement statement, final Long parameter) throws SQLException {
         statement.setLong(1, parameter);
     }
+
+    @Override
+    public void execute(final PreparedStatement statement, final long parameter) throws SQLException {
+        statement.setLong(1, parameter);
+    }
 }
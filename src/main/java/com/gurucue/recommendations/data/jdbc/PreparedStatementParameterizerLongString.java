@@ -21,10 +21,16 @@ package com.gurucue.recommendations.data.jdbc;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 
-public class PreparedStatementParameterizerLongString implements PreparedStatementParameterizer<ParameterLongString> {
+public class PreparedStatementParameterizerLongString implements PreparedStatementParameterizer<ParameterLongString>, PreparedStatementParameterizerOfLongString {
     @Override
     public void execute(final PreparedStatement statement, final ParameterLongString parameter) throws SQLException {
         statement.setLong(1, parameter.longParameter);
         statement.setString(2, parameter.stringParameter);
     }
+
+    @Override
+    public void execute(final PreparedStatement statement, final long longParameter, final String stringParameter) throws SQLException {
+        statement.setLong(1, longParameter);
+        statement.setString(2, stringParameter);
+    }
 }
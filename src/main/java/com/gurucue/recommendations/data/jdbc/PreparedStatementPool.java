@@ -23,40 +23,676 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.sql.*;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * A pool of read-only prepared statements, each with its own database connection.
+ * <p>
+ * Idle statements are kept in several queues (stripes), and each thread first tries the statement
+ * it borrowed last and then the queue of its stripe, so concurrent borrowers mostly do not touch
+ * the same memory. Only when no idle statement is found does a borrower create a new statement,
+ * or wait for one to be returned if the pool is at its maximum size.
+ * <p>
+ * A pool created with a {@link SharedConnectionPool} holds no connections of its own: each borrow
+ * takes a connection of the shared pool and its statement of this pool's SQL.
+ */
 public class PreparedStatementPool implements AutoCloseable {
     private static final Logger log = LogManager.getLogger(PreparedStatementPool.class);
+    // runs the eviction of all the statement pools and shared connection pools
+    static final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "PreparedStatementPool maintenance");
+            t.setDaemon(true);
+            return t;
+        }
+    });
     protected final JdbcDataProvider provider;
+    protected final JdbcLinkFactory linkFactory;
     protected final String sql;
-    private final Queue<JdbcStatement> pool = new ConcurrentLinkedQueue<JdbcStatement>();
+    // the logical name of the statement in the slow query log
+    final String name;
+    protected final PreparedStatementPoolSettings settings;
+    // the shared connections to borrow statements from, or null if the pool has its own statements
+    final SharedConnectionPool shared;
+    // idle statements, the most recently returned first in each stripe; a statement may be referenced
+    // from a stripe while it is in use, so it must be taken by changing its state from idle to in use
+    private final Deque<JdbcStatement>[] stripes;
+    private final int stripeMask;
+    // the statement each thread borrowed last
+    private final ThreadLocal<JdbcStatement> affinity = new ThreadLocal<JdbcStatement>();
+    private final AtomicInteger size = new AtomicInteger(0);
+    private final LongAdder borrowed = new LongAdder();
+    // borrowers waiting for a statement to be returned, signalled only when there are any
+    private final AtomicInteger waiters = new AtomicInteger(0);
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition statementAvailable = waitLock.newCondition();
+    private volatile long availableSequence = 0L; // guarded by waitLock
+    private final LongAdder borrowCount = new LongAdder();
+    private final LongAdder borrowWaitNanos = new LongAdder();
+    private final AtomicLong maxBorrowWaitNanos = new AtomicLong(0L);
+    private final LongAdder borrowTimeouts = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final ScheduledFuture<?> evictor;
+    private volatile boolean closed = false;
+    private volatile CompletableFuture<Integer> readiness = CompletableFuture.completedFuture(0);
+    private StatementMetrics metrics = null; // resolved on first use
 
-    public PreparedStatementPool(final JdbcDataProvider provider, final String sql) {
+    /**
+     * Creates a pool opening the connections of its statements with the given link factory,
+     * such as a {@link ReplicaRouter}, while statement returns run asynchronously with the provider.
+     *
+     * @param provider the provider running the asynchronous statement returns
+     * @param linkFactory the factory opening the links of pooled statements
+     * @param sql the SQL of pooled statements
+     * @param settings the pool settings
+     */
+    public PreparedStatementPool(final JdbcDataProvider provider, final JdbcLinkFactory linkFactory, final String sql, final PreparedStatementPoolSettings settings) {
+        this(provider, linkFactory, sql, settings, null);
+    }
+
+    /**
+     * Creates a pool borrowing its statements from the connections of the given shared pool,
+     * which are shared with other pools. The shared pool's settings apply.
+     *
+     * @param shared the shared connection pool
+     * @param sql the SQL of pooled statements
+     */
+    public PreparedStatementPool(final SharedConnectionPool shared, final String sql) {
+        this(shared, sql, null);
+    }
+
+    /**
+     * Creates a pool borrowing its statements from the connections of the given shared pool,
+     * logging them with the given logical name in the {@link SlowQueryLog}.
+     *
+     * @param shared the shared connection pool
+     * @param sql the SQL of pooled statements
+     * @param name the logical name of the pooled statement, or null to log the SQL instead
+     */
+    public PreparedStatementPool(final SharedConnectionPool shared, final String sql, final String name) {
+        this(shared.provider, shared.linkFactory, sql, new PreparedStatementPoolSettings().setName(name), shared);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private PreparedStatementPool(final JdbcDataProvider provider, final JdbcLinkFactory linkFactory, final String sql, final PreparedStatementPoolSettings settings, final SharedConnectionPool shared) {
+        if (settings.getMinSize() > settings.getMaxSize()) throw new IllegalArgumentException("The minimum pool size " + settings.getMinSize() + " is larger than the maximum pool size " + settings.getMaxSize());
         this.provider = provider;
+        this.linkFactory = linkFactory;
         this.sql = sql;
+        this.name = null == settings.getName() ? sql : settings.getName();
+        this.settings = settings;
+        this.shared = shared;
+        final int requestedStripes = settings.getStripeCount() > 0 ? settings.getStripeCount() : Runtime.getRuntime().availableProcessors();
+        final int stripeCount = requestedStripes <= 1 ? 1 : Integer.highestOneBit(requestedStripes - 1) << 1;
+        this.stripes = new Deque[stripeCount];
+        for (int i = 0; i < stripeCount; i++) stripes[i] = new ConcurrentLinkedDeque<JdbcStatement>();
+        this.stripeMask = stripeCount - 1;
+        if ((settings.getIdleTimeoutMillis() > 0L) || (settings.getMinSize() > 0) || (settings.getCommitAfterUses() > 1) || (settings.getKeepaliveIntervalMillis() > 0L)) {
+            evictor = maintenance.scheduleWithFixedDelay(new Evictor(this), settings.getEvictionIntervalMillis(), settings.getEvictionIntervalMillis(), TimeUnit.MILLISECONDS);
+        }
+        else {
+            evictor = null;
+        }
+        if (settings.getWarmUpSize() > 0) warmUp(settings.getWarmUpSize(), settings.getWarmUpParallelism(), settings.getWarmUpQuery());
     }
 
+    public PreparedStatementPool(final JdbcDataProvider provider, final String sql, final PreparedStatementPoolSettings settings) {
+        this(provider, provider, sql, settings);
+    }
+
+    public PreparedStatementPool(final JdbcDataProvider provider, final String sql) {
+        this(provider, sql, new PreparedStatementPoolSettings());
+    }
+
+    /**
+     * Borrows a statement from the pool. If the pool is at its maximum size, then
+     * waits at most the configured borrow timeout for another statement to be returned.
+     *
+     * @return a statement ready for execution; close it to return it to the pool
+     * @throws DatabaseException if no statement became available before the timeout
+     */
     public JdbcStatement getStatement() {
-        final JdbcStatement s = pool.poll();
-        if ((null != s) && (s.link.isValid())) {
-            return s;
+        if (closed) throw new DatabaseException("Cannot borrow a statement: the pool is closed");
+        final long startTime = System.nanoTime();
+        JdbcStatement s;
+        if (null != shared) s = shared.borrow(this, startTime);
+        else {
+            s = takeIdle();
+            if (null == s) s = reserve() ? createStatement() : awaitStatement(startTime);
+            s.stripe = stripeIndex();
+            affinity.set(s);
+        }
+        final long waitTime = System.nanoTime() - startTime;
+        borrowed.increment();
+        borrowCount.increment();
+        borrowWaitNanos.add(waitTime);
+        long max;
+        while (((max = maxBorrowWaitNanos.get()) < waitTime) && !maxBorrowWaitNanos.compareAndSet(max, waitTime));
+        metrics().borrowWait(waitTime);
+        s.borrowWaitNanos = waitTime;
+        s.parameters = null;
+        return s;
+    }
+
+    private JdbcStatement awaitStatement(final long startTime) {
+        final long deadline = startTime + TimeUnit.MILLISECONDS.toNanos(settings.getBorrowTimeoutMillis());
+        waiters.incrementAndGet();
+        try {
+            for (;;) {
+                final long sequence = availableSequence;
+                final JdbcStatement s = takeIdle();
+                if (null != s) return s;
+                if (reserve()) return createStatement();
+                if (closed) throw new DatabaseException("Cannot borrow a statement: the pool is closed");
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0L) {
+                    borrowTimeouts.increment();
+                    throw new DatabaseException("Timed out after " + settings.getBorrowTimeoutMillis() + " ms waiting for a statement from the pool of size " + size.get() + "; SQL: " + sql);
+                }
+                waitLock.lock();
+                try {
+                    if (sequence == availableSequence) statementAvailable.awaitNanos(remaining);
+                }
+                finally {
+                    waitLock.unlock();
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted while waiting for a statement from the pool: " + e.toString(), e);
+        }
+        finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Opens statements in the background until the pool has the given number of statements,
+     * at most <code>parallelism</code> at a time on the {@link AsyncExecution#getDefaultExecutor() default executor},
+     * so the first borrowers do not pay for opening connections and preparing statements.
+     * Each opened statement is given to the warm-up processor, if there is one, and then committed
+     * and put into the pool. A statement whose warm-up fails is closed.
+     * The returned future also becomes the pool's {@link #getReadiness() readiness}.
+     *
+     * @param targetSize the number of statements the pool should have
+     * @param parallelism the maximum number of statements opened at the same time
+     * @param warmUpQuery the processor priming each statement, or null to only open the statements
+     * @return the future completing with the number of opened statements, or with the first failure
+     * @throws IllegalStateException if the pool uses a {@link SharedConnectionPool}, whose minimum size keeps its connections open instead
+     */
+    public CompletableFuture<Integer> warmUp(final int targetSize, final int parallelism, final PreparedStatementProcessor<?, Void> warmUpQuery) {
+        if (parallelism < 1) throw new IllegalArgumentException("The warm-up parallelism must be positive: " + parallelism);
+        if (null != shared) throw new IllegalStateException("A pool using shared connections cannot be warmed up on its own, set the minimum size of the shared connection pool instead");
+        final int missing = Math.min(targetSize, settings.getMaxSize()) - size.get();
+        if (missing <= 0) return readiness = CompletableFuture.completedFuture(0);
+        final WarmUp warmUp = new WarmUp(this, missing, Math.min(parallelism, missing), warmUpQuery);
+        readiness = warmUp.result;
+        for (int i = warmUp.workers.get(); i > 0; i--) {
+            try {
+                AsyncExecution.getDefaultExecutor().execute(warmUp);
+            }
+            catch (RuntimeException e) {
+                warmUp.failed(e);
+                warmUp.finished();
+            }
+        }
+        return warmUp.result;
+    }
+
+    /**
+     * Opens statements in the background until the pool has the given number of statements,
+     * with the warm-up parallelism and processor of the pool settings.
+     *
+     * @param targetSize the number of statements the pool should have
+     * @return the future completing with the number of opened statements, or with the first failure
+     */
+    public CompletableFuture<Integer> warmUp(final int targetSize) {
+        return warmUp(targetSize, settings.getWarmUpParallelism(), settings.getWarmUpQuery());
+    }
+
+    /**
+     * Returns the future of the last warm-up, already completed if there was none.
+     *
+     * @return the future completing when the last warm-up finished
+     */
+    public CompletableFuture<Integer> getReadiness() {
+        return readiness;
+    }
+
+    /**
+     * Returns whether the last warm-up, if any, finished successfully.
+     *
+     * @return whether the pool is warmed up
+     */
+    public boolean isReady() {
+        final CompletableFuture<Integer> r = readiness;
+        return r.isDone() && !r.isCompletedExceptionally();
+    }
+
+    /**
+     * Waits for the last warm-up to finish, for example in a health check.
+     *
+     * @param timeoutMillis the maximum time to wait in milliseconds
+     * @return whether the pool is warmed up
+     */
+    public boolean awaitReady(final long timeoutMillis) {
+        try {
+            readiness.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    // opens a statement in the room reserved with reserve() and primes it, for a warm-up
+    private void warmUpStatement(final PreparedStatementProcessor<?, Void> warmUpQuery, final int stripe) {
+        final JdbcStatement s = createStatement();
+        if (null != warmUpQuery) {
+            try {
+                warmUpQuery.process(s.preparedStatement, null);
+                s.preparedStatement.clearParameters();
+                s.link.commit();
+            }
+            catch (SQLException | RuntimeException e) {
+                discardStatement(s);
+                throw new DatabaseException("Failed to warm up a pooled statement: " + e.toString() + "; SQL: " + sql, e);
+            }
+        }
+        s.stripe = stripe;
+        offerIdle(s);
+    }
+
+    /**
+     * Takes a valid idle statement, trying first the statement the current thread borrowed last,
+     * then the stripe of the current thread, and then the other stripes.
+     */
+    private JdbcStatement takeIdle() {
+        JdbcStatement s = affinity.get();
+        if (null != s) {
+            if (s.state.compareAndSet(JdbcStatement.STATE_IDLE, JdbcStatement.STATE_IN_USE)) {
+                if (isUsable(s)) return s;
+                discardStatement(s);
+            }
+            else if (s.state.get() == JdbcStatement.STATE_REMOVED) {
+                affinity.remove();
+            }
+        }
+        final int home = stripeIndex();
+        for (int i = 0; i <= stripeMask; i++) {
+            final Deque<JdbcStatement> stripe = stripes[(home + i) & stripeMask];
+            while ((s = stripe.pollFirst()) != null) {
+                s.queued.set(false);
+                if (s.state.compareAndSet(JdbcStatement.STATE_IDLE, JdbcStatement.STATE_IN_USE)) {
+                    if (isUsable(s)) return s;
+                    discardStatement(s);
+                }
+            }
+        }
+        return null;
+    }
+
+    // validates the connection of a borrowed statement, unless it was used or validated recently enough
+    private boolean isUsable(final JdbcStatement s) {
+        final long now = System.nanoTime();
+        final long validateAfterIdleNanos = TimeUnit.MILLISECONDS.toNanos(settings.getValidateAfterIdleMillis());
+        if ((validateAfterIdleNanos > 0L) && ((now - Math.max(s.lastReturned, s.lastValidated)) < validateAfterIdleNanos)) return true;
+        if (!s.link.isValid()) return false;
+        s.lastValidated = now;
+        return true;
+    }
+
+    private int stripeIndex() {
+        return (int) Thread.currentThread().getId() & stripeMask;
+    }
+
+    // reserves room for a new statement, if the pool is not at its maximum size
+    private boolean reserve() {
+        final int max = settings.getMaxSize();
+        int n;
+        while ((n = size.get()) < max) {
+            if (size.compareAndSet(n, n + 1)) return true;
         }
-        return new JdbcStatement(this);
+        return false;
     }
 
     protected void returnStatement(final JdbcStatement jdbcStatement) {
-        pool.add(jdbcStatement);
+        borrowed.decrement();
+        offerIdle(jdbcStatement);
+    }
+
+    private void offerIdle(final JdbcStatement jdbcStatement) {
+        jdbcStatement.lastReturned = System.nanoTime();
+        requeue(jdbcStatement, true);
+    }
+
+    /**
+     * Makes an owned statement idle again, putting it into its stripe unless it is still referenced
+     * from there: a borrower that polled it from the stripe while it was owned by someone else has
+     * dropped it, so it must be queued again or it would be lost.
+     */
+    private void requeue(final JdbcStatement jdbcStatement, final boolean first) {
+        if (closed) {
+            discardStatement(jdbcStatement);
+            return;
+        }
+        jdbcStatement.state.set(JdbcStatement.STATE_IDLE);
+        if (jdbcStatement.queued.compareAndSet(false, true)) {
+            final Deque<JdbcStatement> stripe = stripes[jdbcStatement.stripe & stripeMask];
+            if (first) stripe.offerFirst(jdbcStatement);
+            else stripe.offerLast(jdbcStatement);
+        }
+        if (closed) drainIdle(); // lost the race with close()
+        else signalAvailable();
+    }
+
+    private void signalAvailable() {
+        if (waiters.get() > 0) {
+            waitLock.lock();
+            try {
+                availableSequence++;
+                statementAvailable.signalAll();
+            }
+            finally {
+                waitLock.unlock();
+            }
+        }
     }
 
     @Override
     public void close() {
-        JdbcStatement s;
-        while ((s = pool.poll()) != null) s.closeConnection();
+        closed = true;
+        if (evictor != null) evictor.cancel(false);
+        if (null != shared) shared.forget(this);
+        drainIdle();
+        signalAvailable();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    private void drainIdle() {
+        for (final Deque<JdbcStatement> stripe : stripes) {
+            JdbcStatement s;
+            while ((s = stripe.pollFirst()) != null) {
+                s.queued.set(false);
+                if (s.state.compareAndSet(JdbcStatement.STATE_IDLE, JdbcStatement.STATE_IN_USE)) discardStatement(s);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of open statements of the pool, whether idle or borrowed.
+     *
+     * @return the number of open statements
+     */
+    public int getSize() {
+        return size.get();
+    }
+
+    /**
+     * Returns the number of statements idling in the pool.
+     *
+     * @return the number of idle statements
+     */
+    public int getIdleCount() {
+        return Math.max(0, size.get() - getBorrowedCount());
+    }
+
+    /**
+     * Returns the number of statements currently borrowed, including those being returned.
+     *
+     * @return the number of borrowed statements
+     */
+    public int getBorrowedCount() {
+        return borrowed.intValue();
+    }
+
+    /**
+     * Returns the number of threads waiting to borrow a statement.
+     *
+     * @return the number of waiting threads
+     */
+    public int getWaitingCount() {
+        return waiters.get();
+    }
+
+    public long getBorrowCount() {
+        return borrowCount.sum();
+    }
+
+    /**
+     * Returns the total time spent by all borrowers waiting for a statement, in nanoseconds.
+     *
+     * @return the cumulative borrow wait time
+     */
+    public long getTotalBorrowWaitNanos() {
+        return borrowWaitNanos.sum();
+    }
+
+    public long getMaxBorrowWaitNanos() {
+        return maxBorrowWaitNanos.get();
+    }
+
+    public long getBorrowTimeoutCount() {
+        return borrowTimeouts.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
     }
 
     void statementClosed(final JdbcStatement statement) {
-        provider.runAsync(new ConnectionResubmitter(this, statement));
+        if (null != shared) {
+            borrowed.decrement();
+            shared.release(statement);
+            return;
+        }
+        final ConnectionResubmitter resubmitter = new ConnectionResubmitter(this, statement);
+        if (settings.isReturnInline()) resubmitter.run();
+        else provider.runAsync(resubmitter);
+    }
+
+    /**
+     * Closes the connection of a borrowed statement instead of returning it, when the connection
+     * must not be reused, such as after a {@link java.sql.Statement#cancel()} that the database
+     * may still apply to the next query on the connection.
+     */
+    void discardBorrowed(final JdbcStatement statement) {
+        borrowed.decrement();
+        metrics().connectionDiscarded();
+        if (null != shared) shared.discard(statement.shared);
+        else discardStatement(statement);
+    }
+
+    /**
+     * Closes the connection of a statement that will not be used anymore and removes it from the pool size.
+     * Does not change the number of borrowed statements.
+     */
+    void discardStatement(final JdbcStatement statement) {
+        statement.state.set(JdbcStatement.STATE_REMOVED);
+        size.decrementAndGet();
+        statement.closeConnection();
+        signalAvailable();
+    }
+
+    StatementMetrics metrics() {
+        StatementMetrics m = metrics;
+        if (null == m) metrics = m = JdbcMetrics.getDefault().forStatement(sql);
+        return m;
+    }
+
+    boolean mustReprepare(final JdbcStatement statement) {
+        final int uses = ++statement.usesSincePrepare;
+        final int maxUses = settings.getReprepareAfterUses();
+        if ((maxUses > 0) && (uses >= maxUses)) return true;
+        final long maxMillis = settings.getReprepareAfterMillis();
+        return (maxMillis > 0L) && ((System.nanoTime() - statement.preparedAt) >= TimeUnit.MILLISECONDS.toNanos(maxMillis));
+    }
+
+    boolean mustCommit(final JdbcStatement statement) {
+        return ++statement.usesSinceCommit >= settings.getCommitAfterUses();
+    }
+
+    // creates a statement in the room reserved with reserve()
+    private JdbcStatement createStatement() {
+        try {
+            return new JdbcStatement(this);
+        }
+        catch (RuntimeException e) {
+            size.decrementAndGet();
+            signalAvailable();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes idle statements that were not used for longer than the idle timeout, commits
+     * idle statements with uncommitted uses, validates statements idle for longer than the keepalive
+     * interval and closes the invalid ones, and opens new statements when the pool has
+     * less than the minimum number of statements.
+     */
+    void evict() {
+        final long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(settings.getIdleTimeoutMillis());
+        final long keepaliveNanos = TimeUnit.MILLISECONDS.toNanos(settings.getKeepaliveIntervalMillis());
+        final long now = System.nanoTime();
+        for (final Deque<JdbcStatement> stripe : stripes) {
+            // the oldest statements are at the tail
+            final Iterator<JdbcStatement> it = stripe.descendingIterator();
+            while (it.hasNext()) {
+                final JdbcStatement s = it.next();
+                if (!s.state.compareAndSet(JdbcStatement.STATE_IDLE, JdbcStatement.STATE_IN_USE)) continue;
+                if ((idleTimeoutNanos > 0L) && ((now - s.lastReturned) >= idleTimeoutNanos) && (size.get() > settings.getMinSize())) {
+                    it.remove();
+                    s.queued.set(false);
+                    discardStatement(s);
+                    evictionCount.increment();
+                    continue;
+                }
+                if ((keepaliveNanos > 0L) && ((now - Math.max(s.lastReturned, s.lastValidated)) >= keepaliveNanos)) {
+                    if (!s.link.isValid()) {
+                        log.warn("Closing an idle pooled statement with an invalid connection; SQL: " + sql);
+                        it.remove();
+                        s.queued.set(false);
+                        discardStatement(s);
+                        continue;
+                    }
+                    s.lastValidated = System.nanoTime();
+                }
+                if (s.usesSinceCommit > 0) {
+                    try {
+                        s.link.commit();
+                        s.usesSinceCommit = 0;
+                    }
+                    catch (DatabaseException e) {
+                        log.error("Failed to commit an idle database connection: " + e.toString(), e);
+                        it.remove();
+                        s.queued.set(false);
+                        discardStatement(s);
+                        continue;
+                    }
+                }
+                // keeps its idle time, and goes to the tail with the other old statements if it was polled meanwhile
+                requeue(s, false);
+            }
+        }
+        while (!closed && (size.get() < settings.getMinSize()) && reserve()) {
+            try {
+                offerIdle(createStatement());
+            }
+            catch (RuntimeException e) {
+                log.error("Failed to open a statement to fill the pool up to its minimum size: " + e.toString(), e);
+                break;
+            }
+        }
+    }
+
+    /**
+     * A warm-up shared by its workers, each of which opens statements until none are missing.
+     */
+    static class WarmUp implements Runnable {
+        final PreparedStatementPool owner;
+        final AtomicInteger remaining;
+        final AtomicInteger workers;
+        final AtomicInteger opened = new AtomicInteger(0);
+        final PreparedStatementProcessor<?, Void> warmUpQuery;
+        final CompletableFuture<Integer> result = new CompletableFuture<>();
+        volatile RuntimeException failure = null;
+
+        WarmUp(final PreparedStatementPool owner, final int count, final int workers, final PreparedStatementProcessor<?, Void> warmUpQuery) {
+            this.owner = owner;
+            this.remaining = new AtomicInteger(count);
+            this.workers = new AtomicInteger(workers);
+            this.warmUpQuery = warmUpQuery;
+        }
+
+        @Override
+        public void run() {
+            try {
+                int n;
+                while (!owner.closed && (null == failure) && ((n = remaining.getAndDecrement()) > 0) && owner.reserve()) {
+                    owner.warmUpStatement(warmUpQuery, n);
+                    opened.incrementAndGet();
+                }
+            }
+            catch (RuntimeException e) {
+                log.error("Failed to warm up the statement pool: " + e.toString(), e);
+                failed(e);
+            }
+            finally {
+                finished();
+            }
+        }
+
+        void failed(final RuntimeException e) {
+            if (null == failure) failure = e;
+        }
+
+        void finished() {
+            if (workers.decrementAndGet() > 0) return;
+            if (null == failure) result.complete(opened.get());
+            else result.completeExceptionally(failure);
+        }
+    }
+
+    static class Evictor implements Runnable {
+        final PreparedStatementPool owner;
+
+        Evictor(final PreparedStatementPool owner) {
+            this.owner = owner;
+        }
+
+        @Override
+        public void run() {
+            try {
+                owner.evict();
+            }
+            catch (RuntimeException e) {
+                log.error("Failed to evict idle statements: " + e.toString(), e);
+            }
+        }
     }
 
     static class ConnectionResubmitter implements Runnable {
@@ -70,21 +706,37 @@ public class PreparedStatementPool implements AutoCloseable {
 
         @Override
         public void run() {
-            // do a commit-prepare step before the statement is resubmitted, so the database can collect garbage
+            // do a commit before the statement is resubmitted, so the database can collect garbage;
+            // re-prepare the statement only as often as configured, to avoid a prepare round trip on each use
             try {
-                jdbcStatement.preparedStatement.close();
-                jdbcStatement.link.commit();
-                jdbcStatement.preparedStatement = jdbcStatement.link.prepareStatement(owner.sql);
+                if (owner.mustReprepare(jdbcStatement)) {
+                    jdbcStatement.preparedStatement.close();
+                    jdbcStatement.link.commit();
+                    jdbcStatement.usesSinceCommit = 0;
+                    jdbcStatement.preparedStatement = jdbcStatement.link.prepareStatement(owner.sql);
+                    owner.metrics().prepare();
+                    jdbcStatement.preparedAt = System.nanoTime();
+                    jdbcStatement.usesSincePrepare = 0;
+                }
+                else {
+                    jdbcStatement.preparedStatement.clearParameters();
+                    if (owner.mustCommit(jdbcStatement)) {
+                        jdbcStatement.link.commit();
+                        jdbcStatement.usesSinceCommit = 0;
+                    }
+                }
                 owner.returnStatement(jdbcStatement);
+                return;
             }
             catch (SQLException e) {
-                log.error("Failed to close a prepared statement: " + e.toString(), e);
-                jdbcStatement.link.close(); // never reuse the connection
+                log.error("Failed to close or reset a prepared statement: " + e.toString(), e);
             }
             catch (DatabaseException e) {
                 log.error("Failed to commit a database connection: " + e.toString(), e);
-                jdbcStatement.link.close(); // never reuse the connection
             }
+            owner.metrics().connectionDiscarded();
+            owner.borrowed.decrement();
+            owner.discardStatement(jdbcStatement); // never reuse the connection
         }
     }
 }
@@ -0,0 +1,308 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+/**
+ * Sizing, warm-up, eviction, validation and statement return settings of a {@link PreparedStatementPool}.
+ * The defaults correspond to the original unbounded pool without eviction.
+ */
+public class PreparedStatementPoolSettings {
+    private int minSize = 0;
+    private int maxSize = Integer.MAX_VALUE;
+    private long borrowTimeoutMillis = 30000L;
+    private long idleTimeoutMillis = 0L;
+    private long evictionIntervalMillis = 30000L;
+    private int reprepareAfterUses = 1;
+    private long reprepareAfterMillis = 0L;
+    private boolean returnInline = false;
+    private int commitAfterUses = 1;
+    private int stripeCount = 0;
+    private long validateAfterIdleMillis = 0L;
+    private long keepaliveIntervalMillis = 0L;
+    private int warmUpSize = 0;
+    private int warmUpParallelism = 4;
+    private PreparedStatementProcessor<?, Void> warmUpQuery = null;
+    private String name = null;
+
+    public PreparedStatementPoolSettings() {
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * Sets the number of statements the eviction keeps open in the pool, even when they are idle.
+     *
+     * @param minSize the minimum number of open statements
+     * @return this instance
+     */
+    public PreparedStatementPoolSettings setMinSize(final int minSize) {
+        if (minSize < 0) throw new IllegalArgumentException("The minimum pool size must not be negative: " + minSize);
+        this.minSize = minSize;
+        return this;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the maximum number of open statements, and thus of database connections, of the pool.
+     *
+     * @param maxSize the maximum number of open statements
+     * @return this instance
+     */
+    public PreparedStatementPoolSettings setMaxSize(final int maxSize) {
+        if (maxSize < 1) throw new IllegalArgumentException("The maximum pool size must be positive: " + maxSize);
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    public long getBorrowTimeoutMillis() {
+        return borrowTimeoutMillis;
+    }
+
+    /**
+     * Sets how long a borrower waits for a statement when the pool is at its maximum size.
+     *
+     * @param borrowTimeoutMillis the wait deadline in milliseconds
+     * @return this instance
+     */
+    public PreparedStatementPoolSettings setBorrowTimeoutMillis(final long borrowTimeoutMillis) {
+        if (borrowTimeoutMillis < 0L) throw new IllegalArgumentException("The borrow timeout must not be negative: " + borrowTimeoutMillis);
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        return this;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Sets after how long an idle statement gets closed by the eviction. Zero disables the eviction.
+     *
+     * @param idleTimeoutMillis the idle time in milliseconds after which a statement is evicted
+     * @return this instance
+     */
+    public PreparedStatementPoolSettings setIdleTimeoutMillis(final long idleTimeoutMillis) {
+        if (idleTimeoutMillis < 0L) throw new IllegalArgumentException("The idle timeout must not be negative: " + idleTimeoutMillis);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        return this;
+    }
+
+    public long getEvictionIntervalMillis() {
+        return evictionIntervalMillis;
+    }
+
+    /**
+     * Sets how often the eviction runs.
+     *
+     * @param evictionIntervalMillis the period of the eviction in milliseconds
+     * @return this instance
+     */
+    public PreparedStatementPoolSettings setEvictionIntervalMillis(final long evictionIntervalMillis) {
+        if (evictionIntervalMillis < 1L) throw new IllegalArgumentException("The eviction interval must be positive: " + evictionIntervalMillis);
+        this.evictionIntervalMillis = evictionIntervalMillis;
+        return this;
+    }
+
+    public int getReprepareAfterUses() {
+        return reprepareAfterUses;
+    }
+
+    /**
+     * Sets after how many uses a returned statement is closed and prepared anew, instead of
+     * only being committed and reused. The default of 1 re-prepares on every return; zero
+     * disables the use-count based re-prepare.
+     *
+     * @param reprepareAfterUses the number of uses between two prepares of a statement
+     * @return this instance
+     */
+    public PreparedStatementPoolSettings setReprepareAfterUses(final int reprepareAfterUses) {
+        if (reprepareAfterUses < 0) throw new IllegalArgumentException("The number of uses before a re-prepare must not be negative: " + reprepareAfterUses);
+        this.reprepareAfterUses = reprepareAfterUses;
+        return this;
+    }
+
+    public long getReprepareAfterMillis() {
+        return reprepareAfterMillis;
+    }
+
+    /**
+     * Sets after how long since its last prepare a returned statement is prepared anew.
+     * Zero disables the time based re-prepare.
+     *
+     * @param reprepareAfterMillis the time between two prepares of a statement in milliseconds
+     * @return this instance
+     */
+    public PreparedStatementPoolSettings setReprepareAfterMillis(final long reprepareAfterMillis) {
+        if (reprepareAfterMillis < 0L) throw new IllegalArgumentException("The time before a re-prepare must not be negative: " + reprepareAfterMillis);
+        this.reprepareAfterMillis = reprepareAfterMillis;
+        return this;
+    }
+
+    public boolean isReturnInline() {
+        return returnInline;
+    }
+
+    /**
+     * Sets whether a closed statement is committed and put back into the pool by the closing thread,
+     * instead of asynchronously by the data provider.
+     *
+     * @param returnInline whether to return statements synchronously
+     * @return this instance
+     */
+    public PreparedStatementPoolSettings setReturnInline(final boolean returnInline) {
+        this.returnInline = returnInline;
+        return this;
+    }
+
+    public int getCommitAfterUses() {
+        return commitAfterUses;
+    }
+
+    /**
+     * Sets after how many uses a returned statement is committed. The default of 1 commits on
+     * every return. Idle statements with uncommitted uses are committed by the pool maintenance.
+     *
+     * @param commitAfterUses the number of uses between two commits of a statement
+     * @return this instance
+     */
+    public PreparedStatementPoolSettings setCommitAfterUses(final int commitAfterUses) {
+        if (commitAfterUses < 1) throw new IllegalArgumentException("The number of uses before a commit must be positive: " + commitAfterUses);
+        this.commitAfterUses = commitAfterUses;
+        return this;
+    }
+
+    public int getStripeCount() {
+        return stripeCount;
+    }
+
+    /**
+     * Sets the number of idle statement queues the pool is split into to reduce contention.
+     * It is rounded up to a power of two. The default of zero uses the number of available processors.
+     *
+     * @param stripeCount the number of idle statement queues
+     * @return this instance
+     */
+    public PreparedStatementPoolSettings setStripeCount(final int stripeCount) {
+        if (stripeCount < 0) throw new IllegalArgumentException("The stripe count must not be negative: " + stripeCount);
+        this.stripeCount = stripeCount;
+        return this;
+    }
+
+    public long getValidateAfterIdleMillis() {
+        return validateAfterIdleMillis;
+    }
+
+    /**
+     * Sets how long a statement must have been idle, and not validated by the keepalive, for its
+     * connection to be validated when borrowed. The default of zero validates on every borrow.
+     *
+     * @param validateAfterIdleMillis the idle time in milliseconds after which a borrowed statement is validated
+     * @return this instance
+     */
+    public PreparedStatementPoolSettings setValidateAfterIdleMillis(final long validateAfterIdleMillis) {
+        if (validateAfterIdleMillis < 0L) throw new IllegalArgumentException("The validation idle time must not be negative: " + validateAfterIdleMillis);
+        this.validateAfterIdleMillis = validateAfterIdleMillis;
+        return this;
+    }
+
+    public long getKeepaliveIntervalMillis() {
+        return keepaliveIntervalMillis;
+    }
+
+    /**
+     * Sets how long a statement may be idle before the pool maintenance validates its connection,
+     * closing it if it is not valid anymore. Zero disables the keepalive.
+     *
+     * @param keepaliveIntervalMillis the idle time in milliseconds after which an idle statement is validated
+     * @return this instance
+     */
+    public PreparedStatementPoolSettings setKeepaliveIntervalMillis(final long keepaliveIntervalMillis) {
+        if (keepaliveIntervalMillis < 0L) throw new IllegalArgumentException("The keepalive interval must not be negative: " + keepaliveIntervalMillis);
+        this.keepaliveIntervalMillis = keepaliveIntervalMillis;
+        return this;
+    }
+
+    public int getWarmUpSize() {
+        return warmUpSize;
+    }
+
+    /**
+     * Sets the number of statements the pool opens in the background when it is created,
+     * see {@link PreparedStatementPool#warmUp(int, int, PreparedStatementProcessor)}. Zero disables the warm-up.
+     *
+     * @param warmUpSize the number of statements to open at creation
+     * @return this instance
+     */
+    public PreparedStatementPoolSettings setWarmUpSize(final int warmUpSize) {
+        if (warmUpSize < 0) throw new IllegalArgumentException("The warm-up size must not be negative: " + warmUpSize);
+        this.warmUpSize = warmUpSize;
+        return this;
+    }
+
+    public int getWarmUpParallelism() {
+        return warmUpParallelism;
+    }
+
+    /**
+     * Sets how many statements a warm-up opens concurrently.
+     *
+     * @param warmUpParallelism the maximum number of statements being opened at the same time
+     * @return this instance
+     */
+    public PreparedStatementPoolSettings setWarmUpParallelism(final int warmUpParallelism) {
+        if (warmUpParallelism < 1) throw new IllegalArgumentException("The warm-up parallelism must be positive: " + warmUpParallelism);
+        this.warmUpParallelism = warmUpParallelism;
+        return this;
+    }
+
+    public PreparedStatementProcessor<?, Void> getWarmUpQuery() {
+        return warmUpQuery;
+    }
+
+    /**
+     * Sets the processor executed with each statement opened by a warm-up, typically binding
+     * representative parameters and executing the statement, so the database caches its plan.
+     *
+     * @param warmUpQuery the warm-up processor, or null to only open the statements
+     * @return this instance
+     */
+    public PreparedStatementPoolSettings setWarmUpQuery(final PreparedStatementProcessor<?, Void> warmUpQuery) {
+        this.warmUpQuery = warmUpQuery;
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets the logical name the statements of the pool are logged with by the {@link SlowQueryLog}.
+     *
+     * @param name the logical name of the pooled statement, or null to log the SQL instead
+     * @return this instance
+     */
+    public PreparedStatementPoolSettings setName(final String name) {
+        this.name = name;
+        return this;
+    }
+}
@@ -25,13 +25,16 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
 public class PreparedStatementWrapper<R, P> {
     private static final Logger log = LogManager.getLogger(PreparedStatementWrapper.class);
     private final String logPrefix;
     private final PreparedStatementProcessor<R, P> statementProcessor;
+    private StatementMetrics metrics = null; // resolved on first use
 
     public PreparedStatementWrapper(final String logPrefix, final PreparedStatementProcessor<R, P> statementProcessor) {
         this.logPrefix = logPrefix;
@@ -39,13 +42,28 @@ public class PreparedStatementWrapper<R, P> {
     }
 
     public R execute(final JdbcDataLink link, final String sql, final P parameters) {
+        return execute(link, sql, parameters, 0L);
+    }
+
+    // waitNanos is the time waited for the link, reported by the slow query log
+    private R execute(final JdbcDataLink link, final String sql, final P parameters, final long waitNanos) {
+        final StatementMetrics metrics = metrics();
         try {
-            final PreparedStatement stmt = link.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            final PreparedStatementCache cache = PreparedStatementCache.forLink(link);
+            final PreparedStatement stmt = PreparedStatementCache.prepareForwardOnly(link, cache, sql, metrics);
+            boolean reusable = false;
+            final long startTime = System.nanoTime();
             try {
-                return statementProcessor.process(stmt, parameters);
+                final R result = statementProcessor.process(stmt, parameters);
+                reusable = true;
+                return result;
             }
             finally {
-                stmt.close();
+                final long elapsed = System.nanoTime() - startTime;
+                metrics.execution(elapsed);
+                if (!reusable) metrics.error();
+                if (SlowQueryLog.isLogged(waitNanos + elapsed)) SlowQueryLog.log(logPrefix, sql, parameters, -1L, waitNanos, elapsed);
+                PreparedStatementCache.releaseForwardOnly(cache, sql, stmt, reusable);
             }
         } catch (SQLException se) {
             final String reason = logPrefix + " Database operation error: " + se.toString() + "; SQL: " + sql;
@@ -54,13 +72,31 @@ public class PreparedStatementWrapper<R, P> {
         }
     }
 
+    private StatementMetrics metrics() {
+        StatementMetrics m = metrics;
+        if (null == m) metrics = m = JdbcMetrics.getDefault().forStatement(logPrefix);
+        return m;
+    }
+
     public R execute(final String sql, final P parameters) {
+        final UnitOfWork unit = UnitOfWork.current();
+        if (null != unit) {
+            try {
+                return execute(unit.getLink(), sql, parameters);
+            }
+            catch (RuntimeException e) {
+                unit.setRollbackOnly();
+                throw e;
+            }
+        }
+        final long waitStart = System.nanoTime();
         final DataLink link = DataManager.getNewLink();
+        final long waitNanos = System.nanoTime() - waitStart;
         if (!(link instanceof JdbcDataLink)) throw new DatabaseException("Cannot execute SQL statement: the data link does not implement JDBC interface");
         try {
             final R result;
             try {
-                result =  execute((JdbcDataLink)link, sql, parameters);
+                result = execute((JdbcDataLink)link, sql, parameters, waitNanos);
             }
             catch (RuntimeException e) {
                 link.rollback();
@@ -73,4 +109,32 @@ public class PreparedStatementWrapper<R, P> {
             link.close();
         }
     }
+
+    /**
+     * Executes the statement on a new link on the given executor.
+     *
+     * @param sql the SQL statement to execute
+     * @param parameters the parameters passed to the processor
+     * @param executor the executor to execute the statement on
+     * @return the future result
+     */
+    public CompletableFuture<R> executeAsync(final String sql, final P parameters, final Executor executor) {
+        return CompletableFuture.supplyAsync(new Supplier<R>() {
+            @Override
+            public R get() {
+                return execute(sql, parameters);
+            }
+        }, executor);
+    }
+
+    /**
+     * Executes the statement on a new link on the {@link AsyncExecution#getDefaultExecutor() default executor}.
+     *
+     * @param sql the SQL statement to execute
+     * @param parameters the parameters passed to the processor
+     * @return the future result
+     */
+    public CompletableFuture<R> executeAsync(final String sql, final P parameters) {
+        return executeAsync(sql, parameters, AsyncExecution.getDefaultExecutor());
+    }
 }
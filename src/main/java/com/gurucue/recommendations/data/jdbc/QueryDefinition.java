@@ -0,0 +1,111 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+/**
+ * A declarative definition of a query: its SQL, the type of its parameter and which properties
+ * of the parameter are bound to the placeholders, and the type of its rows and how the columns
+ * map onto it. {@link #compile()} turns the definition into a {@link CompiledQuery} with
+ * a specialized parameter binder and row mapper.
+ * <pre>
+ * final CompiledQuery&lt;Product, ParameterLongString&gt; query = new QueryDefinition&lt;&gt;(
+ *         "select id, title, score from product where partner_id = ? and language = ?",
+ *         ParameterLongString.class, Product.class)
+ *         .setParameters("longParameter", "stringParameter")
+ *         .setColumns("id", "title", "score")
+ *         .compile();
+ * </pre>
+ * The parameter is either a value bound as the only parameter, such as a <code>Long</code> or
+ * a <code>String</code>, or an object whose public getters (<code>getX()</code>, <code>isX()</code>
+ * or <code>x()</code>) or public fields are named by {@link #setParameters(String...)}, in placeholder order.
+ * <p>
+ * A row is either a single column value, such as a <code>Long</code>, or an object created with
+ * its public no-argument constructor and filled through the public setters or fields named by
+ * {@link #setColumns(String...)}, in column order. Without the column names, the row type must have
+ * exactly one public constructor with parameters, which is given the columns in order.
+ *
+ * @param <T> the row type
+ * @param <P> the parameter type
+ */
+public class QueryDefinition<T, P> {
+    private final String sql;
+    private final Class<P> parameterType;
+    private final Class<T> rowType;
+    private String[] parameters = new String[0];
+    private String[] columns = null;
+
+    public QueryDefinition(final String sql, final Class<P> parameterType, final Class<T> rowType) {
+        this.sql = sql;
+        this.parameterType = parameterType;
+        this.rowType = rowType;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public Class<P> getParameterType() {
+        return parameterType;
+    }
+
+    public Class<T> getRowType() {
+        return rowType;
+    }
+
+    public String[] getParameters() {
+        return parameters.clone();
+    }
+
+    /**
+     * Sets the properties of the parameter object bound to the placeholders, in placeholder order.
+     *
+     * @param parameters the property names
+     * @return this instance
+     */
+    public QueryDefinition<T, P> setParameters(final String... parameters) {
+        this.parameters = parameters.clone();
+        return this;
+    }
+
+    public String[] getColumns() {
+        return null == columns ? null : columns.clone();
+    }
+
+    /**
+     * Sets the properties of the row object the columns are stored into, in column order.
+     *
+     * @param columns the property names
+     * @return this instance
+     */
+    public QueryDefinition<T, P> setColumns(final String... columns) {
+        this.columns = columns.clone();
+        return this;
+    }
+
+    /**
+     * Compiles the definition. Compiling resolves all the getters, setters and constructors, so
+     * it fails on a definition not matching its types, and is meant to be done once.
+     *
+     * @return the compiled query
+     * @throws IllegalArgumentException if the definition does not match the parameter or the row type
+     */
+    public CompiledQuery<T, P> compile() {
+        return new CompiledQuery<>(this);
+    }
+}
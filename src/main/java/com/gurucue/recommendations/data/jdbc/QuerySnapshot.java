@@ -0,0 +1,999 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+import com.gurucue.recommendations.DatabaseException;
+import com.gurucue.recommendations.data.DataLink;
+import com.gurucue.recommendations.data.DataManager;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A snapshot of the rows of a query in a compact local binary file, memory-mapped when read,
+ * so a restarting service can load large reference data from disk instead of the database.
+ * <p>
+ * The file starts with a header holding the freshness watermark of the data, the row count and
+ * a CRC32 checksum, followed by the schema (column names and storage types) and the rows.
+ * A snapshot is written to a temporary file and moved into place, so readers never see a partial file.
+ * <p>
+ * {@link #load(JdbcDataLink, Path, String, String, Object, ResultProcessor)} queries the current
+ * watermark, such as the last modification time or a change counter of the table, and serves
+ * the rows from the snapshot if its watermark is the same; otherwise it reloads the rows from
+ * the database and writes a new snapshot. The rows are given to the result processor as a
+ * forward-only {@link ResultSet}, so existing result processors work with snapshots unchanged;
+ * the result set supports navigation with <code>next()</code> and the typed getters, but no metadata.
+ * Columns with a time zone are stored as their string values, so the time zone is preserved.
+ * <p>
+ * Closing a snapshot releases its memory mapping instead of waiting for the garbage collector,
+ * so the file can be replaced. The mapping is released when both the snapshot and all its result sets
+ * are closed, so a result set that is still open can be read safely, also by another thread.
+ * <p>
+ * A snapshot is limited to 2 GB, the size of a single memory mapping.
+ */
+public final class QuerySnapshot implements AutoCloseable {
+    private static final Logger log = LogManager.getLogger(QuerySnapshot.class);
+    static final int MAGIC = 0x47525353; // "GRSS"
+    static final int VERSION = 1;
+    // magic, version, watermark, row count, data length, checksum
+    static final int HEADER_LENGTH = 4 + 4 + 8 + 8 + 8 + 8;
+    static final byte TYPE_LONG = 1;
+    static final byte TYPE_DOUBLE = 2;
+    static final byte TYPE_BOOLEAN = 3;
+    static final byte TYPE_STRING = 4;
+    static final byte TYPE_DECIMAL = 5;
+    static final byte TYPE_TIMESTAMP = 6;
+    static final byte TYPE_BYTES = 7;
+    // releases a mapping without waiting for the garbage collector, or null if the JVM does not allow it
+    private static final Unmapper unmapper = findUnmapper();
+
+    private final Path file;
+    private final MappedByteBuffer buffer; // the read-only mapping, duplicated by each reader
+    private final long watermark;
+    private final long rowCount;
+    private final String[] columnNames;
+    private final byte[] columnTypes;
+    private final int dataStart;
+    private boolean closed = false; // guarded by this
+    private int openCursors = 0; // guarded by this, the mapping is released when it drops to 0 after closing
+
+    private QuerySnapshot(final Path file, final MappedByteBuffer buffer, final long watermark, final long rowCount, final String[] columnNames, final byte[] columnTypes, final int dataStart) {
+        this.file = file;
+        this.buffer = buffer;
+        this.watermark = watermark;
+        this.rowCount = rowCount;
+        this.columnNames = columnNames;
+        this.columnTypes = columnTypes;
+        this.dataStart = dataStart;
+    }
+
+    /**
+     * Memory-maps a snapshot file and validates its header and checksum.
+     *
+     * @param file the snapshot file
+     * @return the snapshot
+     * @throws IOException if the file cannot be read, or is not a valid snapshot
+     */
+    public static QuerySnapshot open(final Path file) throws IOException {
+        final MappedByteBuffer mapped;
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size < HEADER_LENGTH) throw new IOException("Not a query snapshot, the file is too short: " + file);
+            if (size > Integer.MAX_VALUE) throw new IOException("The query snapshot is larger than 2 GB: " + file);
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+        }
+        try {
+            return open(file, mapped);
+        }
+        catch (IOException | RuntimeException e) {
+            unmap(file, mapped);
+            throw e;
+        }
+    }
+
+    private static QuerySnapshot open(final Path file, final MappedByteBuffer mapped) throws IOException {
+        final ByteBuffer b = mapped.duplicate();
+        if (b.getInt() != MAGIC) throw new IOException("Not a query snapshot: " + file);
+        final int version = b.getInt();
+        if (version != VERSION) throw new IOException("Unsupported query snapshot version " + version + ": " + file);
+        final long watermark = b.getLong();
+        final long rowCount = b.getLong();
+        final long dataLength = b.getLong();
+        final long checksum = b.getLong();
+        if (dataLength != b.remaining()) throw new IOException("The query snapshot is truncated: " + file);
+        final CRC32 crc = new CRC32();
+        crc.update(b.duplicate());
+        if (crc.getValue() != checksum) throw new IOException("The query snapshot checksum does not match: " + file);
+        final int columnCount = b.getInt();
+        final String[] names = new String[columnCount];
+        final byte[] types = new byte[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            names[i] = readString(b);
+            types[i] = b.get();
+        }
+        return new QuerySnapshot(file, mapped, watermark, rowCount, names, types, b.position());
+    }
+
+    /**
+     * Writes all the remaining rows of the result set into a snapshot file, replacing any existing file.
+     *
+     * @param file the snapshot file
+     * @param resultSet the rows to write
+     * @param watermark the freshness watermark of the rows
+     * @return the number of rows written
+     * @throws IOException if writing the file fails
+     * @throws SQLException if reading the rows fails
+     */
+    public static long write(final Path file, final ResultSet resultSet, final long watermark) throws IOException, SQLException {
+        final ResultSetMetaData metaData = resultSet.getMetaData();
+        final int columnCount = metaData.getColumnCount();
+        final byte[] types = new byte[columnCount];
+        for (int i = 0; i < columnCount; i++) types[i] = storageType(metaData.getColumnType(i + 1));
+        final Path parent = file.toAbsolutePath().getParent();
+        final Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        boolean written = false;
+        try {
+            final CRC32 crc = new CRC32();
+            long rows = 0L;
+            final CountingOutputStream counter;
+            try (final OutputStream fileOut = Files.newOutputStream(temp)) {
+                fileOut.write(new byte[HEADER_LENGTH]); // patched below
+                counter = new CountingOutputStream(new CheckedOutputStream(new BufferedOutputStream(fileOut, 65536), crc));
+                final DataOutputStream out = new DataOutputStream(counter);
+                out.writeInt(columnCount);
+                for (int i = 0; i < columnCount; i++) {
+                    writeString(out, metaData.getColumnLabel(i + 1));
+                    out.writeByte(types[i]);
+                }
+                while (resultSet.next()) {
+                    for (int i = 0; i < columnCount; i++) writeValue(out, resultSet, i + 1, types[i]);
+                    rows++;
+                }
+                out.flush();
+            }
+            if (HEADER_LENGTH + counter.count > Integer.MAX_VALUE) throw new IOException("The query snapshot would be larger than 2 GB: " + file);
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC).putInt(VERSION).putLong(watermark).putLong(rows).putLong(counter.count).putLong(crc.getValue());
+            header.flip();
+            try (final FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (header.hasRemaining()) channel.write(header, header.position());
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            written = true;
+            return rows;
+        }
+        finally {
+            if (!written) Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Processes the rows of a query from its snapshot if the snapshot is as fresh as the database,
+     * otherwise from the database, writing a new snapshot on the way.
+     *
+     * @param link the link to query the watermark and reload the rows with
+     * @param file the snapshot file
+     * @param watermarkSql the query returning the current watermark as a single number, for example the last modification time in milliseconds
+     * @param sql the query of the rows
+     * @param parameters the parameters passed to the result processor
+     * @param resultProcessor processes the rows, from the snapshot or the database
+     * @param <R> the result type
+     * @param <P> the parameter type
+     * @return the result of the result processor
+     */
+    public static <R, P> R load(final JdbcDataLink link, final Path file, final String watermarkSql, final String sql, final P parameters, final ResultProcessor<R, P> resultProcessor) {
+        try {
+            final long current = queryWatermark(link, watermarkSql);
+            if (Files.exists(file)) {
+                try {
+                    final QuerySnapshot snapshot = open(file);
+                    if (snapshot.getWatermark() == current) return process(snapshot, parameters, resultProcessor);
+                    snapshot.close(); // so the stale file can be replaced
+                    log.info("The query snapshot " + file + " is stale at watermark " + snapshot.getWatermark() + ", the database is at " + current + ", reloading");
+                }
+                catch (IOException e) {
+                    log.warn("Cannot use the query snapshot, reloading from the database: " + e.toString(), e);
+                }
+            }
+            final Statement stmt = link.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            try {
+                final ResultSet rs = stmt.executeQuery(sql);
+                try {
+                    write(file, rs, current);
+                }
+                catch (IOException e) {
+                    log.error("Failed to write the query snapshot " + file + ", processing the rows from the database: " + e.toString(), e);
+                    rs.close();
+                    final ResultSet again = stmt.executeQuery(sql);
+                    try {
+                        return resultProcessor.process(again, parameters);
+                    }
+                    finally {
+                        again.close();
+                    }
+                }
+                finally {
+                    if (!rs.isClosed()) rs.close();
+                }
+            }
+            finally {
+                stmt.close();
+            }
+            try {
+                return process(open(file), parameters, resultProcessor);
+            }
+            catch (IOException e) {
+                throw new DatabaseException("Failed to read the query snapshot just written: " + e.toString(), e);
+            }
+        }
+        catch (SQLException se) {
+            final String reason = "Database operation error while loading a query snapshot: " + se.toString() + "; SQL: " + sql;
+            log.error(reason, se);
+            throw new DatabaseException(reason, se);
+        }
+    }
+
+    /**
+     * Processes the rows of a query from its snapshot or the database, on a new link, or on
+     * the link of the current {@link UnitOfWork}.
+     *
+     * @see #load(JdbcDataLink, Path, String, String, Object, ResultProcessor)
+     */
+    public static <R, P> R load(final Path file, final String watermarkSql, final String sql, final P parameters, final ResultProcessor<R, P> resultProcessor) {
+        final UnitOfWork unit = UnitOfWork.current();
+        if (null != unit) {
+            try {
+                return load(unit.getLink(), file, watermarkSql, sql, parameters, resultProcessor);
+            }
+            catch (RuntimeException e) {
+                unit.setRollbackOnly();
+                throw e;
+            }
+        }
+        final DataLink link = DataManager.getNewLink();
+        if (!(link instanceof JdbcDataLink)) throw new DatabaseException("Cannot execute SQL statement: the data link does not implement JDBC interface");
+        try {
+            final R result;
+            try {
+                result = load((JdbcDataLink)link, file, watermarkSql, sql, parameters, resultProcessor);
+            }
+            catch (RuntimeException e) {
+                link.rollback();
+                throw e;
+            }
+            link.commit();
+            return result;
+        }
+        finally {
+            link.close();
+        }
+    }
+
+    // processes the rows of the snapshot, then closes the result set and the snapshot
+    private static <R, P> R process(final QuerySnapshot snapshot, final P parameters, final ResultProcessor<R, P> resultProcessor) throws SQLException {
+        try {
+            final ResultSet rs = snapshot.asResultSet();
+            try {
+                return resultProcessor.process(rs, parameters);
+            }
+            finally {
+                rs.close();
+            }
+        }
+        finally {
+            snapshot.close();
+        }
+    }
+
+    private static long queryWatermark(final JdbcDataLink link, final String watermarkSql) throws SQLException {
+        final PreparedStatement stmt = link.prepareStatement(watermarkSql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        try {
+            final ResultSet rs = stmt.executeQuery();
+            try {
+                if (!rs.next()) throw new DatabaseException("The watermark query returned no rows: " + watermarkSql);
+                return rs.getLong(1);
+            }
+            finally {
+                rs.close();
+            }
+        }
+        finally {
+            stmt.close();
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getWatermark() {
+        return watermark;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public String[] getColumnNames() {
+        return columnNames.clone();
+    }
+
+    /**
+     * Returns a new forward-only result set over the rows of the snapshot, positioned before the first row.
+     *
+     * @return the result set of the snapshot rows
+     */
+    public ResultSet asResultSet() {
+        synchronized (this) {
+            if (closed) throw new IllegalStateException("The query snapshot is closed: " + file);
+            openCursors++;
+        }
+        return new Cursor(this);
+    }
+
+    /**
+     * Releases the memory mapping of the snapshot, or, if any of its result sets are still open,
+     * marks it to be released when the last of them is closed. No new result sets can be created.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            if (openCursors > 0) return;
+        }
+        unmap(file, buffer);
+    }
+
+    // invoked once by each closed cursor
+    private void cursorClosed() {
+        synchronized (this) {
+            if ((--openCursors > 0) || !closed) return;
+        }
+        unmap(file, buffer);
+    }
+
+    private static void unmap(final Path file, final MappedByteBuffer mapped) {
+        if (null == unmapper) return; // released when it is garbage collected
+        try {
+            unmapper.unmap(mapped);
+        }
+        catch (Exception e) {
+            log.warn("Failed to release the memory mapping of the query snapshot " + file + ": " + e.toString(), e);
+        }
+    }
+
+    private static Unmapper findUnmapper() {
+        try {
+            // Java 9 and later
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            final Object unsafe = theUnsafe.get(null);
+            return new Unmapper() {
+                @Override
+                public void unmap(final MappedByteBuffer buffer) throws Exception {
+                    invokeCleaner.invoke(unsafe, buffer);
+                }
+            };
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8, below
+        }
+        try {
+            final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return new Unmapper() {
+                @Override
+                public void unmap(final MappedByteBuffer buffer) throws Exception {
+                    final Object c = cleaner.invoke(buffer);
+                    if (null != c) clean.invoke(c);
+                }
+            };
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            log.info("Query snapshot mappings are released only when they are garbage collected: " + e.toString());
+            return null;
+        }
+    }
+
+    interface Unmapper {
+        void unmap(MappedByteBuffer buffer) throws Exception;
+    }
+
+    static byte storageType(final int sqlType) {
+        switch (sqlType) {
+            case Types.BIGINT:
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+                return TYPE_LONG;
+            case Types.DOUBLE:
+            case Types.FLOAT:
+            case Types.REAL:
+                return TYPE_DOUBLE;
+            case Types.BOOLEAN:
+            case Types.BIT:
+                return TYPE_BOOLEAN;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return TYPE_DECIMAL;
+            case Types.TIMESTAMP:
+            case Types.DATE:
+            case Types.TIME:
+                return TYPE_TIMESTAMP;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return TYPE_BYTES;
+            default:
+                // also TIMESTAMP_WITH_TIMEZONE and TIME_WITH_TIMEZONE, a Timestamp would lose the zone
+                return TYPE_STRING;
+        }
+    }
+
+    private static void writeValue(final DataOutputStream out, final ResultSet rs, final int column, final byte type) throws IOException, SQLException {
+        switch (type) {
+            case TYPE_LONG: {
+                final long v = rs.getLong(column);
+                if (rs.wasNull()) out.writeByte(0);
+                else {
+                    out.writeByte(1);
+                    out.writeLong(v);
+                }
+                break;
+            }
+            case TYPE_DOUBLE: {
+                final double v = rs.getDouble(column);
+                if (rs.wasNull()) out.writeByte(0);
+                else {
+                    out.writeByte(1);
+                    out.writeDouble(v);
+                }
+                break;
+            }
+            case TYPE_BOOLEAN: {
+                final boolean v = rs.getBoolean(column);
+                out.writeByte(rs.wasNull() ? 0 : v ? 2 : 1);
+                break;
+            }
+            case TYPE_TIMESTAMP: {
+                final Timestamp v = rs.getTimestamp(column);
+                if (null == v) out.writeByte(0);
+                else {
+                    out.writeByte(1);
+                    out.writeLong(v.getTime());
+                    out.writeInt(v.getNanos());
+                }
+                break;
+            }
+            case TYPE_BYTES: {
+                final byte[] v = rs.getBytes(column);
+                if (null == v) out.writeByte(0);
+                else {
+                    out.writeByte(1);
+                    out.writeInt(v.length);
+                    out.write(v);
+                }
+                break;
+            }
+            default: {
+                final String v = rs.getString(column); // strings and decimals
+                if (null == v) out.writeByte(0);
+                else {
+                    out.writeByte(1);
+                    writeString(out, v);
+                }
+                break;
+            }
+        }
+    }
+
+    private static void writeString(final DataOutputStream out, final String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final ByteBuffer b) {
+        final byte[] bytes = new byte[b.getInt()];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static final class CountingOutputStream extends FilterOutputStream {
+        long count = 0L;
+
+        CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * The forward-only result set over the rows of a snapshot. On each row it records the position
+     * of every column value, so the columns can be read in any order and more than once.
+     * The typed getters read the values straight from the mapping; the methods of a scrollable
+     * or updatable result set and the metadata are not supported.
+     */
+    static final class Cursor extends UnsupportedResultSet {
+        private final QuerySnapshot snapshot;
+        private final ByteBuffer b;
+        private final byte[] types;
+        private final int[] positions; // of the value of each column in the current row, -1 for null
+        private final Map<String, Integer> columnIndexes = new HashMap<>();
+        private long rowsLeft;
+        private boolean onRow = false;
+        private boolean wasNull = false;
+        private boolean closed = false;
+
+        Cursor(final QuerySnapshot snapshot) {
+            this.snapshot = snapshot;
+            this.b = snapshot.buffer.duplicate();
+            b.position(snapshot.dataStart);
+            this.types = snapshot.columnTypes;
+            this.positions = new int[types.length];
+            for (int i = snapshot.columnNames.length - 1; i >= 0; i--) columnIndexes.put(snapshot.columnNames[i].toLowerCase(), i + 1);
+            this.rowsLeft = snapshot.rowCount;
+        }
+
+        @Override
+        public boolean next() throws SQLException {
+            if (closed) throw new SQLException("The query snapshot result set is closed");
+            if (rowsLeft <= 0L) {
+                onRow = false;
+                return false;
+            }
+            rowsLeft--;
+            for (int i = 0; i < types.length; i++) {
+                final byte flag = b.get();
+                if (flag == 0) {
+                    positions[i] = -1;
+                    continue;
+                }
+                final int p = b.position();
+                positions[i] = p;
+                switch (types[i]) {
+                    case TYPE_LONG:
+                    case TYPE_DOUBLE:
+                        b.position(p + 8);
+                        break;
+                    case TYPE_BOOLEAN:
+                        positions[i] = p - 1; // the flag is the value
+                        break;
+                    case TYPE_TIMESTAMP:
+                        b.position(p + 12);
+                        break;
+                    default:
+                        b.position(p + 4 + b.getInt(p));
+                        break;
+                }
+            }
+            onRow = true;
+            return true;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            onRow = false;
+            snapshot.cursorClosed();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public boolean wasNull() {
+            return wasNull;
+        }
+
+        @Override
+        public int findColumn(final String label) throws SQLException {
+            final Integer index = columnIndexes.get(label.toLowerCase());
+            if (null == index) throw new SQLException("No column " + label + " in the query snapshot");
+            return index;
+        }
+
+        @Override
+        public int getType() {
+            return ResultSet.TYPE_FORWARD_ONLY;
+        }
+
+        @Override
+        public int getConcurrency() {
+            return ResultSet.CONCUR_READ_ONLY;
+        }
+
+        @Override
+        public int getFetchDirection() {
+            return ResultSet.FETCH_FORWARD;
+        }
+
+        @Override
+        public void setFetchSize(final int rows) {
+            // all the rows are mapped
+        }
+
+        @Override
+        public int getFetchSize() {
+            return 0;
+        }
+
+        @Override
+        public SQLWarning getWarnings() {
+            return null;
+        }
+
+        @Override
+        public void clearWarnings() {
+        }
+
+        @Override
+        public String toString() {
+            return "QuerySnapshot result set of " + snapshot.file;
+        }
+
+        // the position of the value of the column in the current row, -1 for null
+        private int position(final int column) throws SQLException {
+            if (!onRow) throw new SQLException("The query snapshot result set is not positioned on a row");
+            if ((column < 1) || (column > positions.length)) throw new SQLException("Invalid column index: " + column);
+            final int p = positions[column - 1];
+            wasNull = p < 0;
+            return p;
+        }
+
+        private Object value(final int column) throws SQLException {
+            final int p = position(column);
+            if (p < 0) return null;
+            switch (types[column - 1]) {
+                case TYPE_LONG:
+                    return b.getLong(p);
+                case TYPE_DOUBLE:
+                    return b.getDouble(p);
+                case TYPE_BOOLEAN:
+                    return b.get(p) == 2;
+                case TYPE_TIMESTAMP:
+                    return timestamp(p);
+                case TYPE_BYTES:
+                    return bytes(p);
+                case TYPE_DECIMAL:
+                    return new BigDecimal(string(p));
+                default:
+                    return string(p);
+            }
+        }
+
+        private Timestamp timestamp(final int p) {
+            final Timestamp t = new Timestamp(b.getLong(p));
+            t.setNanos(b.getInt(p + 8));
+            return t;
+        }
+
+        private byte[] bytes(final int p) {
+            final byte[] bytes = new byte[b.getInt(p)];
+            final ByteBuffer d = b.duplicate();
+            d.position(p + 4);
+            d.get(bytes);
+            return bytes;
+        }
+
+        private String string(final int p) {
+            final ByteBuffer d = b.duplicate();
+            d.position(p);
+            return readString(d);
+        }
+
+        @Override
+        public long getLong(final int column) throws SQLException {
+            final int p = position(column);
+            if (p < 0) return 0L;
+            switch (types[column - 1]) {
+                case TYPE_LONG:
+                    return b.getLong(p);
+                case TYPE_DOUBLE:
+                    return (long) b.getDouble(p);
+                case TYPE_BOOLEAN:
+                    return b.get(p) == 2 ? 1L : 0L;
+                default:
+                    return toNumber(value(column), column).longValue();
+            }
+        }
+
+        @Override
+        public int getInt(final int column) throws SQLException {
+            if (types[checkIndex(column) - 1] == TYPE_DOUBLE) return (int) getDouble(column);
+            return (int) getLong(column);
+        }
+
+        @Override
+        public short getShort(final int column) throws SQLException {
+            if (types[checkIndex(column) - 1] == TYPE_DOUBLE) return (short) getDouble(column);
+            return (short) getLong(column);
+        }
+
+        @Override
+        public byte getByte(final int column) throws SQLException {
+            if (types[checkIndex(column) - 1] == TYPE_DOUBLE) return (byte) getDouble(column);
+            return (byte) getLong(column);
+        }
+
+        @Override
+        public double getDouble(final int column) throws SQLException {
+            final int p = position(column);
+            if (p < 0) return 0.0;
+            switch (types[column - 1]) {
+                case TYPE_DOUBLE:
+                    return b.getDouble(p);
+                case TYPE_LONG:
+                    return b.getLong(p);
+                case TYPE_BOOLEAN:
+                    return b.get(p) == 2 ? 1.0 : 0.0;
+                default:
+                    return toNumber(value(column), column).doubleValue();
+            }
+        }
+
+        @Override
+        public float getFloat(final int column) throws SQLException {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public boolean getBoolean(final int column) throws SQLException {
+            final int p = position(column);
+            if (p < 0) return false;
+            switch (types[column - 1]) {
+                case TYPE_BOOLEAN:
+                    return b.get(p) == 2;
+                case TYPE_LONG:
+                    return b.getLong(p) != 0L;
+                default:
+                    return toNumber(value(column), column).longValue() != 0L;
+            }
+        }
+
+        @Override
+        public String getString(final int column) throws SQLException {
+            final int p = position(column);
+            if (p < 0) return null;
+            switch (types[column - 1]) {
+                case TYPE_STRING:
+                case TYPE_DECIMAL:
+                    return string(p);
+                default:
+                    return value(column).toString();
+            }
+        }
+
+        @Override
+        public String getNString(final int column) throws SQLException {
+            return getString(column);
+        }
+
+        @Override
+        public BigDecimal getBigDecimal(final int column) throws SQLException {
+            final Object v = value(column);
+            if (null == v) return null;
+            return v instanceof BigDecimal ? (BigDecimal) v : new BigDecimal(v.toString());
+        }
+
+        @Override
+        public Timestamp getTimestamp(final int column) throws SQLException {
+            final int p = position(column);
+            if (p < 0) return null;
+            if (types[column - 1] != TYPE_TIMESTAMP) throw cannotConvert(column, Timestamp.class);
+            return timestamp(p);
+        }
+
+        @Override
+        public java.sql.Date getDate(final int column) throws SQLException {
+            final Timestamp t = getTimestamp(column);
+            return null == t ? null : new java.sql.Date(t.getTime());
+        }
+
+        @Override
+        public java.sql.Time getTime(final int column) throws SQLException {
+            final Timestamp t = getTimestamp(column);
+            return null == t ? null : new java.sql.Time(t.getTime());
+        }
+
+        @Override
+        public byte[] getBytes(final int column) throws SQLException {
+            final int p = position(column);
+            if (p < 0) return null;
+            if (types[column - 1] != TYPE_BYTES) throw cannotConvert(column, byte[].class);
+            return bytes(p);
+        }
+
+        @Override
+        public Object getObject(final int column) throws SQLException {
+            return value(column);
+        }
+
+        @Override
+        public <T> T getObject(final int column, final Class<T> type) throws SQLException {
+            final Object v = value(column);
+            if (null == v) return null;
+            if (type.isInstance(v)) return type.cast(v);
+            final Object converted;
+            if (type == String.class) converted = getString(column);
+            else if (type == Long.class) converted = getLong(column);
+            else if (type == Integer.class) converted = getInt(column);
+            else if (type == Short.class) converted = getShort(column);
+            else if (type == Byte.class) converted = getByte(column);
+            else if (type == Double.class) converted = getDouble(column);
+            else if (type == Float.class) converted = getFloat(column);
+            else if (type == Boolean.class) converted = getBoolean(column);
+            else if (type == BigDecimal.class) converted = getBigDecimal(column);
+            else if (type == java.sql.Date.class) converted = getDate(column);
+            else if (type == java.sql.Time.class) converted = getTime(column);
+            else throw cannotConvert(column, type);
+            return type.cast(converted);
+        }
+
+        @Override
+        public long getLong(final String label) throws SQLException {
+            return getLong(findColumn(label));
+        }
+
+        @Override
+        public int getInt(final String label) throws SQLException {
+            return getInt(findColumn(label));
+        }
+
+        @Override
+        public short getShort(final String label) throws SQLException {
+            return getShort(findColumn(label));
+        }
+
+        @Override
+        public byte getByte(final String label) throws SQLException {
+            return getByte(findColumn(label));
+        }
+
+        @Override
+        public double getDouble(final String label) throws SQLException {
+            return getDouble(findColumn(label));
+        }
+
+        @Override
+        public float getFloat(final String label) throws SQLException {
+            return getFloat(findColumn(label));
+        }
+
+        @Override
+        public boolean getBoolean(final String label) throws SQLException {
+            return getBoolean(findColumn(label));
+        }
+
+        @Override
+        public String getString(final String label) throws SQLException {
+            return getString(findColumn(label));
+        }
+
+        @Override
+        public String getNString(final String label) throws SQLException {
+            return getString(findColumn(label));
+        }
+
+        @Override
+        public BigDecimal getBigDecimal(final String label) throws SQLException {
+            return getBigDecimal(findColumn(label));
+        }
+
+        @Override
+        public Timestamp getTimestamp(final String label) throws SQLException {
+            return getTimestamp(findColumn(label));
+        }
+
+        @Override
+        public java.sql.Date getDate(final String label) throws SQLException {
+            return getDate(findColumn(label));
+        }
+
+        @Override
+        public java.sql.Time getTime(final String label) throws SQLException {
+            return getTime(findColumn(label));
+        }
+
+        @Override
+        public byte[] getBytes(final String label) throws SQLException {
+            return getBytes(findColumn(label));
+        }
+
+        @Override
+        public Object getObject(final String label) throws SQLException {
+            return getObject(findColumn(label));
+        }
+
+        @Override
+        public <T> T getObject(final String label, final Class<T> type) throws SQLException {
+            return getObject(findColumn(label), type);
+        }
+
+        private int checkIndex(final int column) throws SQLException {
+            if ((column < 1) || (column > types.length)) throw new SQLException("Invalid column index: " + column);
+            return column;
+        }
+
+        private SQLException cannotConvert(final int column, final Class<?> type) {
+            return new SQLException("Cannot convert column " + column + " of the query snapshot to " + type.getName());
+        }
+
+        private static Number toNumber(final Object v, final int column) throws SQLException {
+            if (v instanceof Number) return (Number) v;
+            if (v instanceof Boolean) return (Boolean) v ? 1 : 0;
+            if (v instanceof String) {
+                try {
+                    return new BigDecimal((String) v);
+                }
+                catch (NumberFormatException e) {
+                    throw new SQLException("Column " + column + " of the query snapshot is not a number: " + v, e);
+                }
+            }
+            throw new SQLException("Column " + column + " of the query snapshot is not a number: " + v);
+        }
+    }
+}
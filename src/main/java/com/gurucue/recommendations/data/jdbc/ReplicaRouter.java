@@ -0,0 +1,393 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+import com.gurucue.recommendations.DatabaseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Spreads read-only links over several replica providers, keeping writes on the primary provider.
+ * <p>
+ * Each read link is opened on the healthy replica with the fewest outstanding links relative to its
+ * weight, or on a replica chosen randomly by weight. A replica that fails to open a link, or whose
+ * link turns out to be invalid, is taken out of rotation for the configured retry delay. When no
+ * replica is healthy, read links are opened on the primary.
+ * <p>
+ * Read links are put into read-only mode, and are wrappers that count as outstanding until closed.
+ * The router can be used as the link factory of a {@link PreparedStatementPool}.
+ */
+public class ReplicaRouter implements JdbcLinkFactory {
+    private static final Logger log = LogManager.getLogger(ReplicaRouter.class);
+
+    public enum Balancing {
+        /** The replica with the fewest outstanding links per unit of weight. */
+        LEAST_OUTSTANDING,
+        /** A random replica, with the probability proportional to its weight. */
+        WEIGHTED_RANDOM
+    }
+
+    private final JdbcDataProvider primary;
+    private final Replica[] replicas;
+    private final Balancing balancing;
+    private final long retryAfterNanos;
+
+    /**
+     * Creates a router.
+     *
+     * @param primary the provider for writes, and for reads when no replica is healthy
+     * @param replicas the replica providers
+     * @param weights the weights of replicas, in the same order, or null for equal weights
+     * @param balancing how to choose among healthy replicas
+     * @param retryAfterMillis how long an unhealthy replica stays out of rotation
+     */
+    public ReplicaRouter(final JdbcDataProvider primary, final JdbcDataProvider[] replicas, final int[] weights, final Balancing balancing, final long retryAfterMillis) {
+        if ((null != weights) && (weights.length != replicas.length)) throw new IllegalArgumentException("There are " + weights.length + " weights for " + replicas.length + " replicas");
+        this.primary = primary;
+        this.replicas = new Replica[replicas.length];
+        for (int i = 0; i < replicas.length; i++) {
+            final int weight = null == weights ? 1 : weights[i];
+            if (weight < 1) throw new IllegalArgumentException("Replica weights must be positive: " + weight);
+            this.replicas[i] = new Replica(replicas[i], weight, i);
+        }
+        this.balancing = balancing;
+        this.retryAfterNanos = TimeUnit.MILLISECONDS.toNanos(retryAfterMillis);
+    }
+
+    public ReplicaRouter(final JdbcDataProvider primary, final JdbcDataProvider[] replicas) {
+        this(primary, replicas, null, Balancing.LEAST_OUTSTANDING, 30000L);
+    }
+
+    /**
+     * Opens a read-only link on a replica.
+     *
+     * @return the read-only link
+     */
+    @Override
+    public JdbcDataLink newJdbcDataLink() {
+        final long now = System.nanoTime();
+        for (int attempt = 0; attempt < replicas.length; attempt++) {
+            final Replica replica = choose(now);
+            if (null == replica) break;
+            final JdbcDataLink link;
+            try {
+                link = replica.provider.newJdbcDataLink();
+            }
+            catch (RuntimeException e) {
+                markUnhealthy(replica, e);
+                continue;
+            }
+            try {
+                link.setReadOnly(true);
+            }
+            catch (RuntimeException e) {
+                link.close();
+                markUnhealthy(replica, e);
+                continue;
+            }
+            replica.outstanding.incrementAndGet();
+            return new ReplicaLink(this, replica, link);
+        }
+        final JdbcDataLink link = primary.newJdbcDataLink();
+        try {
+            link.setReadOnly(true);
+        }
+        catch (RuntimeException e) {
+            link.close();
+            throw e;
+        }
+        return link;
+    }
+
+    /**
+     * Opens a link on the primary, for writes.
+     *
+     * @return the link on the primary
+     */
+    public JdbcDataLink newWriteLink() {
+        return primary.newJdbcDataLink();
+    }
+
+    /**
+     * Runs a read on a new read-only replica link, committing and closing it afterwards,
+     * for example <code>router.read(link -&gt; wrapper.execute(link, id))</code>.
+     *
+     * @param reader the read to perform with the link
+     * @param <R> the result type
+     * @return the result of the read
+     */
+    public <R> R read(final Function<JdbcDataLink, R> reader) {
+        final JdbcDataLink link = newJdbcDataLink();
+        try {
+            final R result;
+            try {
+                result = reader.apply(link);
+            }
+            catch (RuntimeException e) {
+                link.rollback();
+                throw e;
+            }
+            link.commit();
+            return result;
+        }
+        finally {
+            link.close();
+        }
+    }
+
+    private Replica choose(final long now) {
+        if (balancing == Balancing.WEIGHTED_RANDOM) {
+            int totalWeight = 0;
+            for (final Replica r : replicas) {
+                if (r.isHealthy(now)) totalWeight += r.weight;
+            }
+            if (totalWeight == 0) return null;
+            int pick = ThreadLocalRandom.current().nextInt(totalWeight);
+            for (final Replica r : replicas) {
+                if (!r.isHealthy(now)) continue;
+                pick -= r.weight;
+                if (pick < 0) return r;
+            }
+            return null;
+        }
+        Replica best = null;
+        long bestLoad = 0L; // outstanding links scaled by the other replica's weight, to compare without division
+        final int start = ThreadLocalRandom.current().nextInt(replicas.length); // spread ties
+        for (int i = 0; i < replicas.length; i++) {
+            final Replica r = replicas[(start + i) % replicas.length];
+            if (!r.isHealthy(now)) continue;
+            if ((null == best) || ((long) r.outstanding.get() * best.weight < bestLoad * r.weight)) {
+                best = r;
+                bestLoad = r.outstanding.get();
+            }
+        }
+        return best;
+    }
+
+    private void markUnhealthy(final Replica replica, final Throwable cause) {
+        replica.unhealthyUntil = System.nanoTime() + retryAfterNanos;
+        if (replica.healthy.compareAndSet(true, false)) {
+            log.error("Replica " + replica.index + " taken out of rotation: " + cause.toString(), cause);
+        }
+    }
+
+    /**
+     * Returns the number of links currently open on the given replica.
+     *
+     * @param replicaIndex the index of the replica, in the constructor order
+     * @return the number of outstanding links
+     */
+    public int getOutstanding(final int replicaIndex) {
+        return replicas[replicaIndex].outstanding.get();
+    }
+
+    /**
+     * Returns whether the given replica is currently in rotation.
+     *
+     * @param replicaIndex the index of the replica, in the constructor order
+     * @return whether the replica is healthy
+     */
+    public boolean isHealthy(final int replicaIndex) {
+        return replicas[replicaIndex].isHealthy(System.nanoTime());
+    }
+
+    static final class Replica {
+        final JdbcDataProvider provider;
+        final int weight;
+        final int index;
+        final AtomicInteger outstanding = new AtomicInteger(0);
+        final AtomicBoolean healthy = new AtomicBoolean(true);
+        volatile long unhealthyUntil = 0L;
+
+        Replica(final JdbcDataProvider provider, final int weight, final int index) {
+            this.provider = provider;
+            this.weight = weight;
+            this.index = index;
+        }
+
+        boolean isHealthy(final long now) {
+            if (healthy.get()) return true;
+            if (now - unhealthyUntil < 0L) return false;
+            if (healthy.compareAndSet(false, true)) log.info("Replica " + index + " put back into rotation");
+            return true;
+        }
+    }
+
+    /**
+     * Delegates to the replica's link, counting it as outstanding until closed,
+     * and taking the replica out of rotation if the link turns out to be invalid.
+     */
+    static final class ReplicaLink implements JdbcDataLink {
+        final ReplicaRouter router;
+        final Replica replica;
+        final JdbcDataLink link;
+        final AtomicBoolean closed = new AtomicBoolean(false);
+
+        ReplicaLink(final ReplicaRouter router, final Replica replica, final JdbcDataLink link) {
+            this.router = router;
+            this.replica = replica;
+            this.link = link;
+        }
+
+        // takes the replica out of rotation if the failure left the link invalid, and returns the failure to rethrow
+        private DatabaseException failed(final DatabaseException e) {
+            try {
+                if (!link.isValid()) router.markUnhealthy(replica, e);
+            }
+            catch (RuntimeException ignored) {
+                router.markUnhealthy(replica, e);
+            }
+            return e;
+        }
+
+        @Override
+        public boolean isValid() {
+            final boolean valid;
+            try {
+                valid = link.isValid();
+            }
+            catch (DatabaseException e) {
+                throw failed(e);
+            }
+            if (!valid) router.markUnhealthy(replica, new DatabaseException("The replica link is not valid anymore"));
+            return valid;
+        }
+
+        @Override
+        public void setReadOnly(final boolean readOnly) {
+            try {
+                link.setReadOnly(readOnly);
+            }
+            catch (DatabaseException e) {
+                throw failed(e);
+            }
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(final String sql) {
+            try {
+                return link.prepareStatement(sql);
+            }
+            catch (DatabaseException e) {
+                throw failed(e);
+            }
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(final String sql, final int resultSetType, final int resultSetConcurrency) {
+            try {
+                return link.prepareStatement(sql, resultSetType, resultSetConcurrency);
+            }
+            catch (DatabaseException e) {
+                throw failed(e);
+            }
+        }
+
+        @Override
+        public Statement createStatement() {
+            try {
+                return link.createStatement();
+            }
+            catch (DatabaseException e) {
+                throw failed(e);
+            }
+        }
+
+        @Override
+        public Statement createStatement(final int resultSetType, final int resultSetConcurrency) {
+            try {
+                return link.createStatement(resultSetType, resultSetConcurrency);
+            }
+            catch (DatabaseException e) {
+                throw failed(e);
+            }
+        }
+
+        @Override
+        public void execute(final String sql) {
+            try {
+                link.execute(sql);
+            }
+            catch (DatabaseException e) {
+                throw failed(e);
+            }
+        }
+
+        @Override
+        public CallableStatement prepareCall(final String sql) {
+            try {
+                return link.prepareCall(sql);
+            }
+            catch (DatabaseException e) {
+                throw failed(e);
+            }
+        }
+
+        @Override
+        public Connection getConnection() {
+            return link.getConnection();
+        }
+
+        @Override
+        public PreparedStatementCache getPreparedStatementCache() {
+            return link.getPreparedStatementCache();
+        }
+
+        @Override
+        public void commit() {
+            try {
+                link.commit();
+            }
+            catch (DatabaseException e) {
+                throw failed(e);
+            }
+        }
+
+        @Override
+        public void rollback() {
+            try {
+                link.rollback();
+            }
+            catch (DatabaseException e) {
+                throw failed(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) replica.outstanding.decrementAndGet();
+            try {
+                link.close();
+            }
+            catch (DatabaseException e) {
+                throw failed(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+import com.gurucue.recommendations.DatabaseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of read-only connections shared by several {@link PreparedStatementPool}s, instead of
+ * each pooled statement holding its own connection. Each connection prepares the statement of a
+ * pool the first time it is borrowed for that pool and keeps it for later borrows, so with K pools
+ * and C concurrent borrowers about C connections are open instead of K&times;C.
+ * <pre>
+ * final SharedConnectionPool connections = new SharedConnectionPool(provider, new PreparedStatementPoolSettings().setMaxSize(32));
+ * final PreparedStatementPool products = new PreparedStatementPool(connections, PRODUCT_SQL);
+ * final PreparedStatementPool events = new PreparedStatementPool(connections, EVENT_SQL);
+ * </pre>
+ * Of the settings, the minimum and maximum size, the borrow timeout, the idle timeout, the eviction
+ * and keepalive intervals, the validation idle time, the number of uses between commits and the
+ * inline return apply to the shared connections; statements are never re-prepared, as keeping them
+ * prepared is the point, and the pool cannot be warmed up. The statements prepared for a pool are
+ * closed when the pool is closed, on idle connections right away and on borrowed connections when
+ * they are borrowed next.
+ */
+public class SharedConnectionPool implements AutoCloseable {
+    private static final Logger log = LogManager.getLogger(SharedConnectionPool.class);
+    final JdbcDataProvider provider;
+    final JdbcLinkFactory linkFactory;
+    final PreparedStatementPoolSettings settings;
+    // idle connections, the most recently returned first
+    private final Deque<SharedConnection> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger size = new AtomicInteger(0);
+    private final AtomicInteger waiters = new AtomicInteger(0);
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition connectionAvailable = waitLock.newCondition();
+    private volatile long availableSequence = 0L; // guarded by waitLock
+    private final LongAdder prepareCount = new LongAdder();
+    private final LongAdder borrowTimeouts = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    // incremented when a statement pool is closed, so its statements are removed from the connections
+    private final AtomicInteger closedPools = new AtomicInteger(0);
+    private final ScheduledFuture<?> evictor;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a shared pool opening its connections with the given link factory, such as a
+     * {@link ReplicaRouter}, while connection returns run asynchronously with the provider.
+     *
+     * @param provider the provider running the asynchronous connection returns
+     * @param linkFactory the factory opening the shared connections
+     * @param settings the pool settings
+     */
+    public SharedConnectionPool(final JdbcDataProvider provider, final JdbcLinkFactory linkFactory, final PreparedStatementPoolSettings settings) {
+        if (settings.getMinSize() > settings.getMaxSize()) throw new IllegalArgumentException("The minimum pool size " + settings.getMinSize() + " is larger than the maximum pool size " + settings.getMaxSize());
+        if (settings.getWarmUpSize() > 0) throw new IllegalArgumentException("A shared connection pool cannot be warmed up, use its minimum size instead");
+        this.provider = provider;
+        this.linkFactory = linkFactory;
+        this.settings = settings;
+        if ((settings.getIdleTimeoutMillis() > 0L) || (settings.getMinSize() > 0) || (settings.getCommitAfterUses() > 1) || (settings.getKeepaliveIntervalMillis() > 0L)) {
+            evictor = PreparedStatementPool.maintenance.scheduleWithFixedDelay(new Evictor(this), settings.getEvictionIntervalMillis(), settings.getEvictionIntervalMillis(), TimeUnit.MILLISECONDS);
+        }
+        else {
+            evictor = null;
+        }
+    }
+
+    public SharedConnectionPool(final JdbcDataProvider provider, final PreparedStatementPoolSettings settings) {
+        this(provider, provider, settings);
+    }
+
+    /**
+     * Borrows a connection for the given pool and returns its statement of the pool,
+     * preparing it if this connection was not borrowed for the pool before.
+     */
+    JdbcStatement borrow(final PreparedStatementPool pool, final long startTime) {
+        if (closed) throw new DatabaseException("Cannot borrow a connection: the shared pool is closed");
+        SharedConnection connection = takeIdle();
+        if (null == connection) connection = reserve() ? createConnection() : awaitConnection(startTime);
+        if (connection.closedPoolsSeen != closedPools.get()) removeClosedPools(connection);
+        JdbcStatement statement = connection.statements.get(pool);
+        if (null == statement) {
+            final PreparedStatement preparedStatement;
+            try {
+                preparedStatement = connection.link.prepareStatement(pool.sql);
+            }
+            catch (RuntimeException e) {
+                discard(connection);
+                throw e;
+            }
+            pool.metrics().prepare();
+            prepareCount.increment();
+            statement = new JdbcStatement(pool, connection, preparedStatement);
+            connection.statements.put(pool, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Resets the statement and returns its connection to the pool, inline or asynchronously as configured.
+     */
+    void release(final JdbcStatement statement) {
+        final Runnable returner = new ConnectionReturner(this, statement);
+        if (settings.isReturnInline()) returner.run();
+        else provider.runAsync(returner);
+    }
+
+    /**
+     * Closes the statements of the given closed pool on the idle connections; the borrowed connections
+     * close them the next time they are borrowed.
+     */
+    void forget(final PreparedStatementPool pool) {
+        closedPools.incrementAndGet();
+        for (final SharedConnection c : idle.toArray(new SharedConnection[0])) {
+            // whoever removes the connection from the idle queue owns it
+            if (!idle.removeFirstOccurrence(c)) continue;
+            removeClosedPools(c);
+            idle.offerLast(c);
+            if (closed) drainIdle();
+            else signalAvailable();
+        }
+    }
+
+    // closes the statements of closed pools on a connection owned by the caller
+    private void removeClosedPools(final SharedConnection connection) {
+        connection.closedPoolsSeen = closedPools.get();
+        final Iterator<Map.Entry<PreparedStatementPool, JdbcStatement>> it = connection.statements.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<PreparedStatementPool, JdbcStatement> entry = it.next();
+            if (!entry.getKey().isClosed()) continue;
+            final JdbcStatement statement = entry.getValue();
+            it.remove(); // the identity map's entry is not usable afterwards
+            try {
+                statement.preparedStatement.close();
+            }
+            catch (SQLException e) {
+                log.warn("Failed to close a shared prepared statement of a closed pool: " + e.toString(), e);
+            }
+        }
+    }
+
+    private SharedConnection takeIdle() {
+        SharedConnection c;
+        while ((c = idle.pollFirst()) != null) {
+            if (isUsable(c)) return c;
+            discard(c);
+        }
+        return null;
+    }
+
+    private boolean isUsable(final SharedConnection c) {
+        final long now = System.nanoTime();
+        final long validateAfterIdleNanos = TimeUnit.MILLISECONDS.toNanos(settings.getValidateAfterIdleMillis());
+        if ((validateAfterIdleNanos > 0L) && ((now - Math.max(c.lastReturned, c.lastValidated)) < validateAfterIdleNanos)) return true;
+        if (!c.link.isValid()) return false;
+        c.lastValidated = now;
+        return true;
+    }
+
+    private boolean reserve() {
+        final int max = settings.getMaxSize();
+        int n;
+        while ((n = size.get()) < max) {
+            if (size.compareAndSet(n, n + 1)) return true;
+        }
+        return false;
+    }
+
+    private SharedConnection createConnection() {
+        try {
+            final JdbcDataLink link = linkFactory.newJdbcDataLink();
+            try {
+                link.setReadOnly(true);
+            }
+            catch (RuntimeException e) {
+                link.close();
+                throw e;
+            }
+            return new SharedConnection(link, closedPools.get());
+        }
+        catch (RuntimeException e) {
+            size.decrementAndGet();
+            signalAvailable();
+            throw e;
+        }
+    }
+
+    private SharedConnection awaitConnection(final long startTime) {
+        final long deadline = startTime + TimeUnit.MILLISECONDS.toNanos(settings.getBorrowTimeoutMillis());
+        waiters.incrementAndGet();
+        try {
+            for (;;) {
+                final long sequence = availableSequence;
+                final SharedConnection c = takeIdle();
+                if (null != c) return c;
+                if (reserve()) return createConnection();
+                if (closed) throw new DatabaseException("Cannot borrow a connection: the shared pool is closed");
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0L) {
+                    borrowTimeouts.increment();
+                    throw new DatabaseException("Timed out after " + settings.getBorrowTimeoutMillis() + " ms waiting for a connection from the shared pool of size " + size.get());
+                }
+                waitLock.lock();
+                try {
+                    if (sequence == availableSequence) connectionAvailable.awaitNanos(remaining);
+                }
+                finally {
+                    waitLock.unlock();
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted while waiting for a connection from the shared pool: " + e.toString(), e);
+        }
+        finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    private void offerIdle(final SharedConnection connection) {
+        if (closed) {
+            discard(connection);
+            return;
+        }
+        connection.lastReturned = System.nanoTime();
+        idle.offerFirst(connection);
+        if (closed) drainIdle(); // lost the race with close()
+        else signalAvailable();
+    }
+
+    private void signalAvailable() {
+        if (waiters.get() > 0) {
+            waitLock.lock();
+            try {
+                availableSequence++;
+                connectionAvailable.signalAll();
+            }
+            finally {
+                waitLock.unlock();
+            }
+        }
+    }
+
+    // closes all the statements of a connection and the connection itself
+    void discard(final SharedConnection connection) {
+        size.decrementAndGet();
+        for (final JdbcStatement statement : connection.statements.values()) {
+            try {
+                statement.preparedStatement.close();
+            }
+            catch (SQLException e) {}
+        }
+        connection.statements.clear();
+        connection.link.close();
+        signalAvailable();
+    }
+
+    private void drainIdle() {
+        SharedConnection c;
+        while ((c = idle.pollFirst()) != null) discard(c);
+    }
+
+    /**
+     * Closes idle connections that were not used for longer than the idle timeout, commits
+     * idle connections with uncommitted uses, validates connections idle for longer than the keepalive
+     * interval and closes the invalid ones, and opens new connections when the pool has
+     * less than the minimum number of connections.
+     */
+    void evict() {
+        final long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(settings.getIdleTimeoutMillis());
+        final long keepaliveNanos = TimeUnit.MILLISECONDS.toNanos(settings.getKeepaliveIntervalMillis());
+        final long now = System.nanoTime();
+        // the oldest connections are at the tail
+        final Iterator<SharedConnection> it = idle.descendingIterator();
+        while (it.hasNext()) {
+            final SharedConnection c = it.next();
+            final boolean expired = (idleTimeoutNanos > 0L) && ((now - c.lastReturned) >= idleTimeoutNanos) && (size.get() > settings.getMinSize());
+            final boolean keepalive = (keepaliveNanos > 0L) && ((now - Math.max(c.lastReturned, c.lastValidated)) >= keepaliveNanos);
+            if (!expired && !keepalive && (c.usesSinceCommit == 0)) continue;
+            // whoever removes the connection from the idle queue owns it
+            if (!idle.removeLastOccurrence(c)) continue;
+            if (expired) {
+                discard(c);
+                evictionCount.increment();
+                continue;
+            }
+            if (keepalive) {
+                if (!c.link.isValid()) {
+                    log.warn("Closing an idle shared connection that is not valid anymore");
+                    discard(c);
+                    continue;
+                }
+                c.lastValidated = System.nanoTime();
+            }
+            if (c.usesSinceCommit > 0) {
+                try {
+                    c.link.commit();
+                    c.usesSinceCommit = 0;
+                }
+                catch (DatabaseException e) {
+                    log.error("Failed to commit an idle shared database connection: " + e.toString(), e);
+                    discard(c);
+                    continue;
+                }
+            }
+            // keeps its idle time, at the tail with the other old connections
+            idle.offerLast(c);
+            if (closed) drainIdle();
+            else signalAvailable();
+        }
+        while (!closed && (size.get() < settings.getMinSize()) && reserve()) {
+            try {
+                offerIdle(createConnection());
+            }
+            catch (RuntimeException e) {
+                log.error("Failed to open a connection to fill the shared pool up to its minimum size: " + e.toString(), e);
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (evictor != null) evictor.cancel(false);
+        drainIdle();
+        signalAvailable();
+    }
+
+    /**
+     * Returns the number of open shared connections, whether idle or borrowed.
+     *
+     * @return the number of open connections
+     */
+    public int getSize() {
+        return size.get();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getWaitingCount() {
+        return waiters.get();
+    }
+
+    /**
+     * Returns the number of statements prepared on the shared connections.
+     *
+     * @return the number of prepares
+     */
+    public long getPrepareCount() {
+        return prepareCount.sum();
+    }
+
+    public long getBorrowTimeoutCount() {
+        return borrowTimeouts.sum();
+    }
+
+    /**
+     * Returns the number of idle connections closed after the idle timeout.
+     *
+     * @return the number of evicted connections
+     */
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /**
+     * A shared connection with the statements prepared on it, by pool. Only the borrower of the
+     * connection accesses the statements.
+     */
+    static final class SharedConnection {
+        final JdbcDataLink link;
+        final Map<PreparedStatementPool, JdbcStatement> statements = new IdentityHashMap<>();
+        long lastReturned = System.nanoTime();
+        long lastValidated = lastReturned;
+        int usesSinceCommit = 0;
+        // the number of closed pools when the statements of closed pools were last removed
+        int closedPoolsSeen;
+
+        SharedConnection(final JdbcDataLink link, final int closedPoolsSeen) {
+            this.link = link;
+            this.closedPoolsSeen = closedPoolsSeen;
+        }
+    }
+
+    static class Evictor implements Runnable {
+        final SharedConnectionPool owner;
+
+        Evictor(final SharedConnectionPool owner) {
+            this.owner = owner;
+        }
+
+        @Override
+        public void run() {
+            try {
+                owner.evict();
+            }
+            catch (RuntimeException e) {
+                log.error("Failed to evict idle shared connections: " + e.toString(), e);
+            }
+        }
+    }
+
+    static class ConnectionReturner implements Runnable {
+        final SharedConnectionPool owner;
+        final JdbcStatement statement;
+
+        ConnectionReturner(final SharedConnectionPool owner, final JdbcStatement statement) {
+            this.owner = owner;
+            this.statement = statement;
+        }
+
+        @Override
+        public void run() {
+            final SharedConnection connection = statement.shared;
+            try {
+                statement.preparedStatement.clearParameters();
+                if (++connection.usesSinceCommit >= owner.settings.getCommitAfterUses()) {
+                    connection.link.commit();
+                    connection.usesSinceCommit = 0;
+                }
+                owner.offerIdle(connection);
+                return;
+            }
+            catch (SQLException e) {
+                log.error("Failed to reset a shared prepared statement: " + e.toString(), e);
+            }
+            catch (DatabaseException e) {
+                log.error("Failed to commit a shared database connection: " + e.toString(), e);
+            }
+            statement.owner.metrics().connectionDiscarded();
+            owner.discard(connection); // never reuse the connection
+        }
+    }
+}
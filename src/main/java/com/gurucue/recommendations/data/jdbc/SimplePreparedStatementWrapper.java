@@ -27,21 +27,49 @@ import org.apache.logging.log4j.Logger;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
 public class SimplePreparedStatementWrapper<R, P> {
     private static final Logger log = LogManager.getLogger(SimplePreparedStatementWrapper.class);
+    public static final int DEFAULT_BATCH_CHUNK_SIZE = 500;
+    // the kinds of parameters an execution is given
+    private static final int PARAMETER_OBJECT = 0;
+    private static final int PARAMETER_LONG = 1;
+    private static final int PARAMETER_INT = 2;
+    private static final int PARAMETER_LONG_STRING = 3;
+    private static final int PARAMETER_LONG_LONG = 4;
+    private final String name;
     private final String sql;
     private final ResultProcessor<R, P> resultProcessor;
     private final PreparedStatementParameterizer<P> parameterizer;
     private final boolean doCommit;
+    private StatementMetrics metrics = null; // resolved on first use
 
-    public SimplePreparedStatementWrapper(final String sql, final PreparedStatementParameterizer<P> parameterizer, final ResultProcessor<R, P> resultProcessor, boolean doCommit) {
+    /**
+     * Creates a wrapper whose executions are logged with the given logical name by the {@link SlowQueryLog}.
+     *
+     * @param name the logical name of the statement
+     * @param sql the SQL of the statement
+     * @param parameterizer binds the parameters of an execution
+     * @param resultProcessor processes the result set of an execution, or null if there is none
+     * @param doCommit whether the statement commits
+     */
+    public SimplePreparedStatementWrapper(final String name, final String sql, final PreparedStatementParameterizer<P> parameterizer, final ResultProcessor<R, P> resultProcessor, boolean doCommit) {
+        this.name = name;
         this.sql = sql;
         this.resultProcessor = resultProcessor;
         this.parameterizer = parameterizer;
         this.doCommit = doCommit;
     }
 
+    public SimplePreparedStatementWrapper(final String sql, final PreparedStatementParameterizer<P> parameterizer, final ResultProcessor<R, P> resultProcessor, boolean doCommit) {
+        this(sql, sql, parameterizer, resultProcessor, doCommit);
+    }
+
     public SimplePreparedStatementWrapper(final String sql, final PreparedStatementParameterizer<P> parameterizer, final ResultProcessor<R, P> resultProcessor) {
         this(sql, parameterizer, resultProcessor, false);
     }
@@ -50,39 +78,297 @@ public class SimplePreparedStatementWrapper<R, P> {
         this(sql, parameterizer, null, false);
     }
 
+    public String getName() {
+        return name;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    PreparedStatementParameterizer<P> getParameterizer() {
+        return parameterizer;
+    }
+
+    ResultProcessor<R, P> getResultProcessor() {
+        return resultProcessor;
+    }
+
     public R execute(final JdbcDataLink link, final P parameter) {
+        return execute(link, parameter, PARAMETER_OBJECT, 0L, 0L, null, 0L);
+    }
+
+    public R execute(final P parameter) {
+        return execute(parameter, PARAMETER_OBJECT, 0L, 0L, null);
+    }
+
+    /**
+     * Executes the statement with a primitive long parameter, for a wrapper whose parameter type is <code>Long</code>.
+     * The parameter is bound without boxing it if the parameterizer implements {@link PreparedStatementParameterizerOfLong},
+     * and given to the result processor without boxing it if the processor implements {@link ResultProcessorOfLong};
+     * otherwise they are given the boxed parameter, as by {@link #execute(JdbcDataLink, Object)}.
+     *
+     * @param link the link to execute the statement with
+     * @param parameter the statement parameter
+     * @return the result of the result processor, or null if there is none
+     */
+    public R executeLong(final JdbcDataLink link, final long parameter) {
+        return execute(link, null, PARAMETER_LONG, parameter, 0L, null, 0L);
+    }
+
+    public R executeLong(final long parameter) {
+        return execute(null, PARAMETER_LONG, parameter, 0L, null);
+    }
+
+    /**
+     * Executes the statement with a primitive int parameter, for a wrapper whose parameter type is <code>Integer</code>.
+     * The parameter is bound without boxing it if the parameterizer implements {@link PreparedStatementParameterizerOfInt},
+     * and given to the result processor without boxing it if the processor implements {@link ResultProcessorOfInt};
+     * otherwise they are given the boxed parameter, as by {@link #execute(JdbcDataLink, Object)}.
+     *
+     * @param link the link to execute the statement with
+     * @param parameter the statement parameter
+     * @return the result of the result processor, or null if there is none
+     */
+    public R executeInt(final JdbcDataLink link, final int parameter) {
+        return execute(link, null, PARAMETER_INT, parameter, 0L, null, 0L);
+    }
+
+    public R executeInt(final int parameter) {
+        return execute(null, PARAMETER_INT, parameter, 0L, null);
+    }
+
+    /**
+     * Executes the statement with a primitive long and a string parameter, for a wrapper whose parameter type
+     * is {@link ParameterLongString}. The parameters are bound without creating a parameter object if the
+     * parameterizer implements {@link PreparedStatementParameterizerOfLongString}, and given to the result
+     * processor without one if the processor implements {@link ResultProcessorOfLongString}; otherwise they
+     * are given a parameter object, as by {@link #execute(JdbcDataLink, Object)}.
+     *
+     * @param link the link to execute the statement with
+     * @param longParameter the first statement parameter
+     * @param stringParameter the second statement parameter
+     * @return the result of the result processor, or null if there is none
+     */
+    public R executeLongString(final JdbcDataLink link, final long longParameter, final String stringParameter) {
+        return execute(link, null, PARAMETER_LONG_STRING, longParameter, 0L, stringParameter, 0L);
+    }
+
+    public R executeLongString(final long longParameter, final String stringParameter) {
+        return execute(null, PARAMETER_LONG_STRING, longParameter, 0L, stringParameter);
+    }
+
+    /**
+     * Executes the statement with two primitive long parameters, for a wrapper whose parameter type
+     * is {@link ParameterLongLong}. The parameters are bound without creating a parameter object if the
+     * parameterizer implements {@link PreparedStatementParameterizerOfLongLong}, and given to the result
+     * processor without one if the processor implements {@link ResultProcessorOfLongLong}; otherwise they
+     * are given a parameter object, as by {@link #execute(JdbcDataLink, Object)}.
+     *
+     * @param link the link to execute the statement with
+     * @param firstParameter the first statement parameter
+     * @param secondParameter the second statement parameter
+     * @return the result of the result processor, or null if there is none
+     */
+    public R executeLongLong(final JdbcDataLink link, final long firstParameter, final long secondParameter) {
+        return execute(link, null, PARAMETER_LONG_LONG, firstParameter, secondParameter, null, 0L);
+    }
+
+    public R executeLongLong(final long firstParameter, final long secondParameter) {
+        return execute(null, PARAMETER_LONG_LONG, firstParameter, secondParameter, null);
+    }
+
+    // executes with the link of the current unit of work, or with a new link
+    private R execute(final P parameter, final int kind, final long first, final long second, final String string) {
+        final UnitOfWork unit = UnitOfWork.current();
+        if (null != unit) {
+            try {
+                return execute(unit.getLink(), parameter, kind, first, second, string, 0L);
+            }
+            catch (RuntimeException e) {
+                unit.setRollbackOnly();
+                throw e;
+            }
+        }
+        final long waitStart = System.nanoTime();
+        final JdbcDataLink link = newJdbcLink();
+        final long waitNanos = System.nanoTime() - waitStart;
+        try {
+            final R result;
+            try {
+                result = execute(link, parameter, kind, first, second, string, waitNanos);
+            }
+            catch (RuntimeException e) {
+                link.rollback();
+                throw e;
+            }
+            link.commit();
+            return result;
+        }
+        finally {
+            link.close();
+        }
+    }
+
+    // waitNanos is the time waited for the link, reported by the slow query log
+    private R execute(final JdbcDataLink link, final P parameter, final int kind, final long first, final long second, final String string, final long waitNanos) {
         try {
-            final PreparedStatement stmt = link.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            final PreparedStatementCache cache = PreparedStatementCache.forLink(link);
+            final PreparedStatement stmt = prepare(link, cache);
+            boolean reusable = false;
             try {
+                bind(stmt, parameter, kind, first, second, string);
+                final R result = executePrepared(stmt, parameter, kind, first, second, string, waitNanos);
+                reusable = true;
+                return result;
+            }
+            finally {
+                release(cache, stmt, reusable);
+            }
+        } catch (SQLException se) {
+            throw failure(se);
+        }
+    }
+
+    // binds the parameters, without boxing primitive parameters if the parameterizer takes primitives
+    private void bind(final PreparedStatement stmt, final P parameter, final int kind, final long first, final long second, final String string) throws SQLException {
+        switch (kind) {
+            case PARAMETER_OBJECT:
                 parameterizer.execute(stmt, parameter);
-                if (stmt.execute() && (null != resultProcessor)) {
-                    final ResultSet rs = stmt.getResultSet();
-                    try {
-                        return resultProcessor.process(rs, parameter);
-                    }
-                    finally {
-                        rs.close();
+                return;
+            case PARAMETER_LONG:
+                if (parameterizer instanceof PreparedStatementParameterizerOfLong) {
+                    ((PreparedStatementParameterizerOfLong) parameterizer).execute(stmt, first);
+                    return;
+                }
+                break;
+            case PARAMETER_INT:
+                if (parameterizer instanceof PreparedStatementParameterizerOfInt) {
+                    ((PreparedStatementParameterizerOfInt) parameterizer).execute(stmt, (int) first);
+                    return;
+                }
+                break;
+            case PARAMETER_LONG_STRING:
+                if (parameterizer instanceof PreparedStatementParameterizerOfLongString) {
+                    ((PreparedStatementParameterizerOfLongString) parameterizer).execute(stmt, first, string);
+                    return;
+                }
+                break;
+            default:
+                if (parameterizer instanceof PreparedStatementParameterizerOfLongLong) {
+                    ((PreparedStatementParameterizerOfLongLong) parameterizer).execute(stmt, first, second);
+                    return;
+                }
+                break;
+        }
+        parameterizer.execute(stmt, SimplePreparedStatementWrapper.<P>box(kind, first, second, string));
+    }
+
+    /**
+     * Executes the statement once for each of the given parameters, using JDBC batches of
+     * at most <code>chunkSize</code> parameter sets. Optionally commits the link after each chunk,
+     * otherwise committing is left to the caller. Result sets are not processed.
+     *
+     * @param link the link to execute the statement with
+     * @param parameters the parameter sets, one for each row
+     * @param chunkSize the maximum number of parameter sets in one JDBC batch
+     * @param commitEachChunk whether to commit the link after each executed chunk
+     * @return the update counts, one for each parameter set in the iteration order
+     */
+    public int[] executeBatch(final JdbcDataLink link, final Iterable<P> parameters, final int chunkSize, final boolean commitEachChunk) {
+        return executeBatch(link, parameters, chunkSize, commitEachChunk, 0L);
+    }
+
+    private int[] executeBatch(final JdbcDataLink link, final Iterable<P> parameters, final int chunkSize, final boolean commitEachChunk, final long waitNanos) {
+        if (chunkSize < 1) throw new IllegalArgumentException("The batch chunk size must be positive: " + chunkSize);
+        try {
+            final PreparedStatementCache cache = PreparedStatementCache.forLink(link);
+            final PreparedStatement stmt = prepare(link, cache);
+            boolean reusable = false;
+            final StatementMetrics metrics = metrics();
+            final long startTime = System.nanoTime();
+            long updated = 0L;
+            try {
+                int[] updateCounts = new int[parameters instanceof Collection ? ((Collection<P>) parameters).size() : chunkSize];
+                int rowCount = 0;
+                int chunkRows = 0;
+                for (final P parameter : parameters) {
+                    parameterizer.execute(stmt, parameter);
+                    stmt.addBatch();
+                    if (++chunkRows >= chunkSize) {
+                        updateCounts = appendChunk(updateCounts, rowCount, stmt.executeBatch());
+                        rowCount += chunkRows;
+                        chunkRows = 0;
+                        if (commitEachChunk) link.commit();
                     }
                 }
-                return null;
+                if (chunkRows > 0) {
+                    updateCounts = appendChunk(updateCounts, rowCount, stmt.executeBatch());
+                    rowCount += chunkRows;
+                    if (commitEachChunk) link.commit();
+                }
+                reusable = true;
+                for (int i = 0; i < rowCount; i++) {
+                    if (updateCounts[i] > 0) updated += updateCounts[i];
+                }
+                metrics.rows(updated);
+                return updateCounts.length == rowCount ? updateCounts : Arrays.copyOf(updateCounts, rowCount);
             }
             finally {
-                stmt.close();
+                final long elapsed = System.nanoTime() - startTime;
+                metrics.execution(elapsed);
+                if (!reusable) metrics.error();
+                if (SlowQueryLog.isLogged(waitNanos + elapsed)) SlowQueryLog.log(name, sql, "batch", reusable ? updated : -1L, waitNanos, elapsed);
+                release(cache, stmt, reusable);
             }
         } catch (SQLException se) {
-            final String reason = "Database operation error: " + se.toString();
+            final String reason = "Database batch operation error: " + se.toString();
             log.error(reason, se);
             throw new DatabaseException(reason, se);
         }
     }
 
-    public R execute(final P parameter) {
-        final DataLink link = DataManager.getNewLink();
-        if (!(link instanceof JdbcDataLink)) throw new DatabaseException("Cannot execute SQL statement: the data link does not implement JDBC interface");
+    /**
+     * Executes the statement once for each of the given parameters, in JDBC batches of
+     * {@link #DEFAULT_BATCH_CHUNK_SIZE} parameter sets. Committing is left to the caller.
+     *
+     * @param link the link to execute the statement with
+     * @param parameters the parameter sets, one for each row
+     * @return the update counts, one for each parameter set in the iteration order
+     */
+    public int[] executeBatch(final JdbcDataLink link, final Iterable<P> parameters) {
+        return executeBatch(link, parameters, DEFAULT_BATCH_CHUNK_SIZE, false);
+    }
+
+    /**
+     * Executes the statement once for each of the given parameters on a new link, in JDBC batches of
+     * at most <code>chunkSize</code> parameter sets. Commits after each chunk, or only once at the end.
+     * Within a {@link UnitOfWork} the link of the unit is used instead, and committing is left to the unit
+     * unless <code>commitEachChunk</code> is set.
+     *
+     * @param parameters the parameter sets, one for each row
+     * @param chunkSize the maximum number of parameter sets in one JDBC batch
+     * @param commitEachChunk whether to commit after each chunk instead of once after all the chunks
+     * @return the update counts, one for each parameter set in the iteration order
+     */
+    public int[] executeBatch(final Collection<P> parameters, final int chunkSize, final boolean commitEachChunk) {
+        final UnitOfWork unit = UnitOfWork.current();
+        if (null != unit) {
+            try {
+                return executeBatch(unit.getLink(), parameters, chunkSize, commitEachChunk);
+            }
+            catch (RuntimeException e) {
+                unit.setRollbackOnly();
+                throw e;
+            }
+        }
+        final long waitStart = System.nanoTime();
+        final JdbcDataLink link = newJdbcLink();
+        final long waitNanos = System.nanoTime() - waitStart;
         try {
-            final R result;
+            final int[] result;
             try {
-                result = execute((JdbcDataLink)link, parameter);
+                result = executeBatch(link, parameters, chunkSize, commitEachChunk, waitNanos);
             }
             catch (RuntimeException e) {
                 link.rollback();
@@ -95,4 +381,138 @@ public class SimplePreparedStatementWrapper<R, P> {
             link.close();
         }
     }
+
+    public int[] executeBatch(final Collection<P> parameters) {
+        return executeBatch(parameters, DEFAULT_BATCH_CHUNK_SIZE, false);
+    }
+
+    private PreparedStatement prepare(final JdbcDataLink link, final PreparedStatementCache cache) {
+        return PreparedStatementCache.prepareForwardOnly(link, cache, sql, metrics());
+    }
+
+    private void release(final PreparedStatementCache cache, final PreparedStatement stmt, final boolean reusable) throws SQLException {
+        PreparedStatementCache.releaseForwardOnly(cache, sql, stmt, reusable);
+    }
+
+    // executes a bound statement; a primitive execution passes its parameters in the primitive arguments
+    private R executePrepared(final PreparedStatement stmt, final P parameter, final int kind, final long first, final long second, final String string, final long waitNanos) throws SQLException {
+        final StatementMetrics metrics = metrics();
+        final long startTime = System.nanoTime();
+        boolean succeeded = false;
+        long rows = -1L;
+        try {
+            final R result;
+            if (stmt.execute()) {
+                if (null == resultProcessor) result = null;
+                else {
+                    final ResultSet rs = stmt.getResultSet();
+                    try {
+                        result = process(rs, parameter, kind, first, second, string);
+                    }
+                    finally {
+                        rs.close();
+                    }
+                }
+            }
+            else {
+                rows = stmt.getUpdateCount();
+                metrics.rows(rows);
+                result = null;
+            }
+            succeeded = true;
+            return result;
+        }
+        finally {
+            final long elapsed = System.nanoTime() - startTime;
+            metrics.execution(elapsed);
+            if (!succeeded) metrics.error();
+            if (SlowQueryLog.isLogged(waitNanos + elapsed)) SlowQueryLog.log(name, sql, PARAMETER_OBJECT == kind ? parameter : box(kind, first, second, string), rows, waitNanos, elapsed);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private R process(final ResultSet rs, final P parameter, final int kind, final long first, final long second, final String string) throws SQLException {
+        switch (kind) {
+            case PARAMETER_OBJECT:
+                return resultProcessor.process(rs, parameter);
+            case PARAMETER_LONG:
+                if (resultProcessor instanceof ResultProcessorOfLong) return ((ResultProcessorOfLong<R>) resultProcessor).process(rs, first);
+                break;
+            case PARAMETER_INT:
+                if (resultProcessor instanceof ResultProcessorOfInt) return ((ResultProcessorOfInt<R>) resultProcessor).process(rs, (int) first);
+                break;
+            case PARAMETER_LONG_STRING:
+                if (resultProcessor instanceof ResultProcessorOfLongString) return ((ResultProcessorOfLongString<R>) resultProcessor).process(rs, first, string);
+                break;
+            default:
+                if (resultProcessor instanceof ResultProcessorOfLongLong) return ((ResultProcessorOfLongLong<R>) resultProcessor).process(rs, first, second);
+                break;
+        }
+        return resultProcessor.process(rs, SimplePreparedStatementWrapper.<P>box(kind, first, second, string));
+    }
+
+    // the parameter object of a primitive execution, for a parameterizer or a result processor not taking primitives
+    @SuppressWarnings("unchecked")
+    private static <P> P box(final int kind, final long first, final long second, final String string) {
+        switch (kind) {
+            case PARAMETER_LONG:
+                return (P) Long.valueOf(first);
+            case PARAMETER_INT:
+                return (P) Integer.valueOf((int) first);
+            case PARAMETER_LONG_STRING:
+                return (P) new ParameterLongString(first, string);
+            default:
+                return (P) new ParameterLongLong(first, second);
+        }
+    }
+
+    private StatementMetrics metrics() {
+        StatementMetrics m = metrics;
+        if (null == m) metrics = m = JdbcMetrics.getDefault().forStatement(sql);
+        return m;
+    }
+
+    private static DatabaseException failure(final SQLException se) {
+        final String reason = "Database operation error: " + se.toString();
+        log.error(reason, se);
+        return new DatabaseException(reason, se);
+    }
+
+    private static JdbcDataLink newJdbcLink() {
+        final DataLink link = DataManager.getNewLink();
+        if (!(link instanceof JdbcDataLink)) throw new DatabaseException("Cannot execute SQL statement: the data link does not implement JDBC interface");
+        return (JdbcDataLink) link;
+    }
+
+    private static int[] appendChunk(final int[] updateCounts, final int offset, final int[] chunkCounts) {
+        final int[] target = offset + chunkCounts.length <= updateCounts.length ? updateCounts : Arrays.copyOf(updateCounts, Math.max(updateCounts.length * 2, offset + chunkCounts.length));
+        System.arraycopy(chunkCounts, 0, target, offset, chunkCounts.length);
+        return target;
+    }
+
+    /**
+     * Executes the statement on a new link on the given executor.
+     *
+     * @param parameter the statement parameter
+     * @param executor the executor to execute the statement on
+     * @return the future result
+     */
+    public CompletableFuture<R> executeAsync(final P parameter, final Executor executor) {
+        return CompletableFuture.supplyAsync(new Supplier<R>() {
+            @Override
+            public R get() {
+                return execute(parameter);
+            }
+        }, executor);
+    }
+
+    /**
+     * Executes the statement on a new link on the {@link AsyncExecution#getDefaultExecutor() default executor}.
+     *
+     * @param parameter the statement parameter
+     * @return the future result
+     */
+    public CompletableFuture<R> executeAsync(final P parameter) {
+        return executeAsync(parameter, AsyncExecution.getDefaultExecutor());
+    }
 }
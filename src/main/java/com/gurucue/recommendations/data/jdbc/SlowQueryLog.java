@@ -0,0 +1,116 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs statement executions that took longer than the configured threshold, and traces a random
+ * sample of 1 in N executions regardless of their duration. Both are disabled by default.
+ * Deciding whether to log an execution costs two volatile reads and, with sampling enabled,
+ * one random number, so it can be done on every execution.
+ * <p>
+ * Slow executions are logged at the warning level with a summary of their parameters,
+ * sampled executions at the info level with full parameters.
+ */
+public final class SlowQueryLog {
+    private static final Logger log = LogManager.getLogger(SlowQueryLog.class);
+    static final int PARAMETER_SUMMARY_LENGTH = 200;
+    private static volatile long thresholdNanos = Long.MAX_VALUE;
+    private static volatile int sampleRate = 0;
+
+    private SlowQueryLog() {}
+
+    /**
+     * Sets the duration above which an execution is logged, counting both the wait for a
+     * statement and the execution itself.
+     *
+     * @param thresholdMillis the threshold in milliseconds, or a negative number to disable logging of slow executions
+     */
+    public static void setThresholdMillis(final long thresholdMillis) {
+        thresholdNanos = thresholdMillis < 0L ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    }
+
+    /**
+     * Sets the sampling rate: on average 1 in <code>sampleRate</code> executions is traced.
+     *
+     * @param sampleRate the sampling rate, or 0 to disable sampling
+     */
+    public static void setSampleRate(final int sampleRate) {
+        if (sampleRate < 0) throw new IllegalArgumentException("The sample rate must not be negative: " + sampleRate);
+        SlowQueryLog.sampleRate = sampleRate;
+    }
+
+    /**
+     * Returns whether any execution may be logged, so statement parameters are worth capturing.
+     *
+     * @return whether slow executions are logged or executions are sampled
+     */
+    static boolean isEnabled() {
+        return (thresholdNanos != Long.MAX_VALUE) || (sampleRate > 0);
+    }
+
+    /**
+     * Decides whether an execution with the given duration is to be logged.
+     *
+     * @param elapsedNanos the wait and execution time of the statement in nanoseconds
+     * @return whether to call {@link #log(String, String, Object, long, long, long)}
+     */
+    static boolean isLogged(final long elapsedNanos) {
+        if (elapsedNanos >= thresholdNanos) return true;
+        final int rate = sampleRate;
+        return (rate > 0) && (ThreadLocalRandom.current().nextInt(rate) == 0);
+    }
+
+    /**
+     * Logs an execution for which {@link #isLogged(long)} returned true.
+     *
+     * @param name the logical name of the statement
+     * @param sql the SQL of the statement
+     * @param parameters the statement parameters, or null if they were not captured
+     * @param rows the number of rows returned or updated, or a negative number if unknown
+     * @param waitNanos the time waited for a statement or a link, in nanoseconds
+     * @param executeNanos the execution time, in nanoseconds
+     */
+    static void log(final String name, final String sql, final Object parameters, final long rows, final long waitNanos, final long executeNanos) {
+        final boolean slow = (waitNanos + executeNanos) >= thresholdNanos;
+        if (slow ? !log.isWarnEnabled() : !log.isInfoEnabled()) return;
+        final StringBuilder sb = new StringBuilder(256 + sql.length());
+        sb.append(slow ? "Slow statement " : "Sampled statement ").append(name)
+                .append(": wait ").append(TimeUnit.NANOSECONDS.toMicros(waitNanos))
+                .append(" us, execute ").append(TimeUnit.NANOSECONDS.toMicros(executeNanos))
+                .append(" us, rows ");
+        if (rows < 0L) sb.append("n/a");
+        else sb.append(rows);
+        sb.append(", parameters ");
+        if (null == parameters) sb.append("n/a");
+        else {
+            final String p = parameters.toString();
+            if (slow && (p.length() > PARAMETER_SUMMARY_LENGTH)) sb.append(p, 0, PARAMETER_SUMMARY_LENGTH).append("...");
+            else sb.append(p);
+        }
+        sb.append("; SQL: ").append(sql);
+        if (slow) log.warn(sb.toString());
+        else log.info(sb.toString());
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+/**
+ * Receives measurements of a single SQL statement, or of a logical group of statements.
+ * Implementations are called on the hot path of every execution, so they must be cheap
+ * and thread-safe.
+ */
+public interface StatementMetrics {
+    /** Ignores all measurements. */
+    StatementMetrics NOOP = new StatementMetrics() {
+        @Override
+        public void borrowWait(final long nanos) {}
+
+        @Override
+        public void execution(final long nanos) {}
+
+        @Override
+        public void rows(final long count) {}
+
+        @Override
+        public void prepare() {}
+
+        @Override
+        public void error() {}
+
+        @Override
+        public void connectionDiscarded() {}
+    };
+
+    /**
+     * Records the time spent waiting for a statement from a pool.
+     *
+     * @param nanos the wait time in nanoseconds
+     */
+    void borrowWait(long nanos);
+
+    /**
+     * Records the time spent executing the statement, including processing its results when
+     * the processing is done by a result processor.
+     *
+     * @param nanos the execution time in nanoseconds
+     */
+    void execution(long nanos);
+
+    /**
+     * Records the number of rows fetched or updated by an execution.
+     *
+     * @param count the number of rows
+     */
+    void rows(long count);
+
+    /**
+     * Records a prepare of the statement.
+     */
+    void prepare();
+
+    /**
+     * Records a failed execution.
+     */
+    void error();
+
+    /**
+     * Records that a pooled connection was closed because of an error.
+     */
+    void connectionDiscarded();
+}
@@ -0,0 +1,399 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+import com.gurucue.recommendations.DatabaseException;
+import com.gurucue.recommendations.data.DataLink;
+import com.gurucue.recommendations.data.DataManager;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Runs several small independent statements on the same link in one round trip. The statements
+ * are joined into a single multi-statement prepared statement, executed with
+ * {@link PreparedStatement#execute()}, and each of its results, obtained with
+ * {@link PreparedStatement#getMoreResults()}, is given to the result processor of its statement.
+ * <p>
+ * A pipeline is used once: add the statements, execute it, then read the results.
+ * <pre>
+ * final StatementPipeline pipeline = new StatementPipeline("recommendation", true);
+ * final StatementPipeline.Result&lt;List&lt;Long&gt;&gt; products = pipeline.add(PRODUCTS_SQL, longParameterizer, consumerId, productIdsProcessor);
+ * final StatementPipeline.Result&lt;Integer&gt; count = pipeline.add(COUNT_SQL, longParameterizer, consumerId, countProcessor);
+ * pipeline.execute(link);
+ * </pre>
+ * Each parameterizer binds its parameters starting at index 1 as usual; the indexes are shifted
+ * by the number of placeholders of the preceding statements.
+ * <p>
+ * Whether a driver accepts several statements in one prepared statement cannot be told from its
+ * metadata, MySQL for instance reports support for multiple result sets but requires the
+ * <code>allowMultiQueries</code> connection setting, so multi-statement execution must be declared
+ * when creating the pipeline. Statements are executed sequentially, still on the same link,
+ * when it is not declared, when the pipeline has only one statement, or when the JDBC driver
+ * does not report support for multiple result sets.
+ */
+public final class StatementPipeline {
+    private static final Logger log = LogManager.getLogger(StatementPipeline.class);
+    // multiple result set support by JDBC driver name, to query the metadata only once per driver
+    private static final ConcurrentMap<String, Boolean> driverSupport = new ConcurrentHashMap<>();
+
+    private final String logPrefix;
+    private final boolean multiStatement;
+    private final List<Step<?, ?>> steps = new ArrayList<>();
+    private boolean executed = false;
+
+    /**
+     * Creates a pipeline that executes its statements sequentially.
+     *
+     * @param logPrefix the logical name of the pipeline, used in logs and metrics
+     */
+    public StatementPipeline(final String logPrefix) {
+        this(logPrefix, false);
+    }
+
+    /**
+     * Creates a pipeline.
+     *
+     * @param logPrefix the logical name of the pipeline, used in logs and metrics
+     * @param multiStatement whether the links it is executed with accept several statements in one
+     *                       prepared statement, so they are executed in one round trip, otherwise sequentially
+     */
+    public StatementPipeline(final String logPrefix, final boolean multiStatement) {
+        this.logPrefix = logPrefix;
+        this.multiStatement = multiStatement;
+    }
+
+    /**
+     * Adds a statement to the pipeline.
+     *
+     * @param sql the SQL of the statement, without a terminating semicolon
+     * @param parameterizer binds the parameter to the statement, or null if the statement has no parameters
+     * @param parameter the statement parameter
+     * @param resultProcessor processes the result set of the statement, or null if the statement produces an update count
+     * @param <R> the result type
+     * @param <P> the parameter type
+     * @return the result of the statement, available after the pipeline is executed
+     */
+    public <R, P> Result<R> add(final String sql, final PreparedStatementParameterizer<P> parameterizer, final P parameter, final ResultProcessor<R, P> resultProcessor) {
+        if (executed) throw new IllegalStateException("The pipeline was already executed");
+        final Step<R, P> step = new Step<>(sql, parameterizer, parameter, resultProcessor);
+        steps.add(step);
+        return step.result;
+    }
+
+    /**
+     * Adds a statement wrapped with a {@link SimplePreparedStatementWrapper} to the pipeline.
+     *
+     * @param wrapper the wrapped statement
+     * @param parameter the statement parameter
+     * @param <R> the result type
+     * @param <P> the parameter type
+     * @return the result of the statement, available after the pipeline is executed
+     */
+    public <R, P> Result<R> add(final SimplePreparedStatementWrapper<R, P> wrapper, final P parameter) {
+        return add(wrapper.getSql(), wrapper.getParameterizer(), parameter, wrapper.getResultProcessor());
+    }
+
+    public int size() {
+        return steps.size();
+    }
+
+    /**
+     * Executes all the statements of the pipeline on the given link. Committing is left to the caller.
+     *
+     * @param link the link to execute the statements with
+     */
+    public void execute(final JdbcDataLink link) {
+        execute(link, 0L);
+    }
+
+    // waitNanos is the time waited for the link, reported by the slow query log
+    private void execute(final JdbcDataLink link, final long waitNanos) {
+        if (executed) throw new IllegalStateException("The pipeline was already executed");
+        executed = true;
+        if (steps.isEmpty()) return;
+        if ((steps.size() > 1) && multiStatement && supportsMultipleResults(link)) executeCombined(link, waitNanos);
+        else executeSequentially(link, waitNanos);
+    }
+
+    /**
+     * Executes all the statements of the pipeline on a new link, and commits, or on the link of the
+     * current {@link UnitOfWork}.
+     */
+    public void execute() {
+        final UnitOfWork unit = UnitOfWork.current();
+        if (null != unit) {
+            try {
+                execute(unit.getLink());
+                return;
+            }
+            catch (RuntimeException e) {
+                unit.setRollbackOnly();
+                throw e;
+            }
+        }
+        final long waitStart = System.nanoTime();
+        final DataLink link = DataManager.getNewLink();
+        final long waitNanos = System.nanoTime() - waitStart;
+        if (!(link instanceof JdbcDataLink)) throw new DatabaseException("Cannot execute SQL statement: the data link does not implement JDBC interface");
+        try {
+            try {
+                execute((JdbcDataLink)link, waitNanos);
+            }
+            catch (RuntimeException e) {
+                link.rollback();
+                throw e;
+            }
+            link.commit();
+        }
+        finally {
+            link.close();
+        }
+    }
+
+    private void executeCombined(final JdbcDataLink link, final long waitNanos) {
+        final StringBuilder sb = new StringBuilder(steps.size() * 128);
+        for (final Step<?, ?> step : steps) {
+            if (sb.length() > 0) sb.append(";\n");
+            sb.append(step.sql);
+        }
+        final String sql = sb.toString();
+        final StatementMetrics metrics = JdbcMetrics.getDefault().forStatement(logPrefix);
+        try {
+            final PreparedStatementCache cache = PreparedStatementCache.forLink(link);
+            final PreparedStatement stmt = PreparedStatementCache.prepareForwardOnly(link, cache, sql, metrics);
+            boolean reusable = false;
+            final long startTime = System.nanoTime();
+            try {
+                int offset = 0;
+                for (final Step<?, ?> step : steps) {
+                    step.bind(offset == 0 ? stmt : new ParameterOffset(stmt, offset));
+                    offset += step.parameterCount;
+                }
+                boolean isResultSet = stmt.execute();
+                final int n = steps.size();
+                for (int i = 0; i < n; i++) {
+                    if (i > 0) isResultSet = stmt.getMoreResults();
+                    final Step<?, ?> step = steps.get(i);
+                    if (isResultSet) {
+                        final ResultSet rs = stmt.getResultSet();
+                        try {
+                            step.process(rs);
+                        }
+                        finally {
+                            rs.close();
+                        }
+                    }
+                    else {
+                        final int updateCount = stmt.getUpdateCount();
+                        if (updateCount < 0) throw new DatabaseException(logPrefix + " The pipeline returned " + i + " results instead of " + n + "; SQL: " + sql);
+                        step.result.complete(null, updateCount);
+                    }
+                }
+                reusable = true;
+            }
+            finally {
+                final long elapsed = System.nanoTime() - startTime;
+                metrics.execution(elapsed);
+                if (!reusable) metrics.error();
+                if (SlowQueryLog.isLogged(waitNanos + elapsed)) SlowQueryLog.log(logPrefix, sql, parameters(), -1L, waitNanos, elapsed);
+                PreparedStatementCache.releaseForwardOnly(cache, sql, stmt, reusable);
+            }
+        } catch (SQLException se) {
+            final String reason = logPrefix + " Database operation error: " + se.toString() + "; SQL: " + sql;
+            log.error(reason, se);
+            throw new DatabaseException(reason, se);
+        }
+    }
+
+    private void executeSequentially(final JdbcDataLink link, final long waitNanos) {
+        final StatementMetrics metrics = JdbcMetrics.getDefault().forStatement(logPrefix);
+        final PreparedStatementCache cache = PreparedStatementCache.forLink(link);
+        long stepWaitNanos = waitNanos; // only the first statement waited for the link
+        for (final Step<?, ?> step : steps) {
+            try {
+                final PreparedStatement stmt = PreparedStatementCache.prepareForwardOnly(link, cache, step.sql, metrics);
+                boolean reusable = false;
+                final long startTime = System.nanoTime();
+                try {
+                    step.bind(stmt);
+                    if (stmt.execute()) {
+                        final ResultSet rs = stmt.getResultSet();
+                        try {
+                            step.process(rs);
+                        }
+                        finally {
+                            rs.close();
+                        }
+                    }
+                    else step.result.complete(null, stmt.getUpdateCount());
+                    reusable = true;
+                }
+                finally {
+                    final long elapsed = System.nanoTime() - startTime;
+                    metrics.execution(elapsed);
+                    if (!reusable) metrics.error();
+                    if (SlowQueryLog.isLogged(stepWaitNanos + elapsed)) SlowQueryLog.log(logPrefix, step.sql, step.parameter, -1L, stepWaitNanos, elapsed);
+                    stepWaitNanos = 0L;
+                    PreparedStatementCache.releaseForwardOnly(cache, step.sql, stmt, reusable);
+                }
+            } catch (SQLException se) {
+                final String reason = logPrefix + " Database operation error: " + se.toString() + "; SQL: " + step.sql;
+                log.error(reason, se);
+                throw new DatabaseException(reason, se);
+            }
+        }
+    }
+
+    private List<Object> parameters() {
+        final List<Object> parameters = new ArrayList<>(steps.size());
+        for (final Step<?, ?> step : steps) parameters.add(step.parameter);
+        return parameters;
+    }
+
+    private static boolean supportsMultipleResults(final JdbcDataLink link) {
+        try {
+            final DatabaseMetaData metaData = link.getConnection().getMetaData();
+            final String driverName = metaData.getDriverName();
+            Boolean supported = driverSupport.get(driverName);
+            if (null == supported) {
+                supported = metaData.supportsMultipleResultSets();
+                driverSupport.put(driverName, supported);
+                if (!supported) log.info("The JDBC driver " + driverName + " does not support multiple result sets, multi-statement pipelines will be executed sequentially");
+            }
+            return supported;
+        }
+        catch (SQLException e) {
+            log.warn("Failed to determine whether the JDBC driver supports multiple result sets, executing the pipeline sequentially: " + e.toString(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Counts the <code>?</code> placeholders in the given SQL, skipping string literals, quoted
+     * identifiers and comments.
+     */
+    static int countPlaceholders(final String sql) {
+        int count = 0;
+        final int n = sql.length();
+        int i = 0;
+        while (i < n) {
+            final char c = sql.charAt(i++);
+            switch (c) {
+                case '?':
+                    count++;
+                    break;
+                case '\'':
+                case '"':
+                    while ((i < n) && (sql.charAt(i++) != c)) ;
+                    break;
+                case '-':
+                    if ((i < n) && (sql.charAt(i) == '-')) {
+                        while ((i < n) && (sql.charAt(i) != '\n')) i++;
+                    }
+                    break;
+                case '/':
+                    if ((i < n) && (sql.charAt(i) == '*')) {
+                        final int end = sql.indexOf("*/", i + 1);
+                        i = end < 0 ? n : end + 2;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The result of a statement in a pipeline.
+     *
+     * @param <R> the result type
+     */
+    public static final class Result<R> {
+        private R value = null;
+        private int updateCount = -1;
+        private boolean done = false;
+
+        Result() {}
+
+        void complete(final R value, final int updateCount) {
+            this.value = value;
+            this.updateCount = updateCount;
+            this.done = true;
+        }
+
+        /**
+         * Returns the result of the result processor of the statement.
+         *
+         * @return the processed result, or null if the statement produced an update count
+         */
+        public R get() {
+            if (!done) throw new IllegalStateException("The pipeline was not executed yet");
+            return value;
+        }
+
+        /**
+         * Returns the update count of the statement.
+         *
+         * @return the update count, or -1 if the statement produced a result set
+         */
+        public int getUpdateCount() {
+            if (!done) throw new IllegalStateException("The pipeline was not executed yet");
+            return updateCount;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+    }
+
+    private static final class Step<R, P> {
+        final String sql;
+        final int parameterCount;
+        final PreparedStatementParameterizer<P> parameterizer;
+        final P parameter;
+        final ResultProcessor<R, P> resultProcessor;
+        final Result<R> result = new Result<>();
+
+        Step(final String sql, final PreparedStatementParameterizer<P> parameterizer, final P parameter, final ResultProcessor<R, P> resultProcessor) {
+            this.sql = sql;
+            this.parameterCount = countPlaceholders(sql);
+            this.parameterizer = parameterizer;
+            this.parameter = parameter;
+            this.resultProcessor = resultProcessor;
+        }
+
+        void bind(final PreparedStatement statement) throws SQLException {
+            if (null != parameterizer) parameterizer.execute(statement, parameter);
+        }
+
+        void process(final ResultSet resultSet) throws SQLException {
+            result.complete(null == resultProcessor ? null : resultProcessor.process(resultSet, parameter), -1);
+        }
+    }
+}
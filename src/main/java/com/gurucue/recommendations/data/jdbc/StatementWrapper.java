@@ -27,11 +27,15 @@ import org.apache.logging.log4j.Logger;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
 public class StatementWrapper<R, P> {
     private static final Logger log = LogManager.getLogger(StatementWrapper.class);
     private final String logPrefix;
     private final ResultProcessor<R, P> resultProcessor;
+    private StatementMetrics metrics = null; // resolved on first use
 
     public StatementWrapper(final String logPrefix, final ResultProcessor<R, P> resultProcessor) {
         this.logPrefix = logPrefix;
@@ -39,18 +43,32 @@ public class StatementWrapper<R, P> {
     }
 
     public R execute(final JdbcDataLink link, final String sql, final P parameters) {
+        return execute(link, sql, parameters, 0L);
+    }
+
+    // waitNanos is the time waited for the link, reported by the slow query log
+    private R execute(final JdbcDataLink link, final String sql, final P parameters, final long waitNanos) {
+        final StatementMetrics metrics = metrics();
         try {
             final Statement stmt = link.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            final long startTime = System.nanoTime();
+            boolean succeeded = false;
             try {
                 final ResultSet rs = stmt.executeQuery(sql);
                 try {
-                    return resultProcessor.process(rs, parameters);
+                    final R result = resultProcessor.process(rs, parameters);
+                    succeeded = true;
+                    return result;
                 }
                 finally {
                     rs.close();
                 }
             }
             finally {
+                final long elapsed = System.nanoTime() - startTime;
+                metrics.execution(elapsed);
+                if (!succeeded) metrics.error();
+                if (SlowQueryLog.isLogged(waitNanos + elapsed)) SlowQueryLog.log(logPrefix, sql, parameters, -1L, waitNanos, elapsed);
                 stmt.close();
             }
         } catch (SQLException se) {
@@ -60,13 +78,31 @@ public class StatementWrapper<R, P> {
         }
     }
 
+    private StatementMetrics metrics() {
+        StatementMetrics m = metrics;
+        if (null == m) metrics = m = JdbcMetrics.getDefault().forStatement(logPrefix);
+        return m;
+    }
+
     public R execute(final String sql, final P parameters) {
+        final UnitOfWork unit = UnitOfWork.current();
+        if (null != unit) {
+            try {
+                return execute(unit.getLink(), sql, parameters);
+            }
+            catch (RuntimeException e) {
+                unit.setRollbackOnly();
+                throw e;
+            }
+        }
+        final long waitStart = System.nanoTime();
         final DataLink link = DataManager.getNewLink();
+        final long waitNanos = System.nanoTime() - waitStart;
         if (!(link instanceof JdbcDataLink)) throw new DatabaseException("Cannot execute SQL statement: the data link does not implement JDBC interface");
         try {
             final R result;
             try {
-                result = execute((JdbcDataLink)link, sql, parameters);
+                result = execute((JdbcDataLink)link, sql, parameters, waitNanos);
             }
             catch (RuntimeException e) {
                 link.rollback();
@@ -76,12 +112,35 @@ public class StatementWrapper<R, P> {
             return result;
         }
         finally {
-            try {
-                link.commit();
-            }
-            finally {
-                link.close();
-            }
+            link.close();
         }
     }
+
+    /**
+     * Executes the statement on a new link on the given executor.
+     *
+     * @param sql the SQL statement to execute
+     * @param parameters the parameters passed to the processor
+     * @param executor the executor to execute the statement on
+     * @return the future result
+     */
+    public CompletableFuture<R> executeAsync(final String sql, final P parameters, final Executor executor) {
+        return CompletableFuture.supplyAsync(new Supplier<R>() {
+            @Override
+            public R get() {
+                return execute(sql, parameters);
+            }
+        }, executor);
+    }
+
+    /**
+     * Executes the statement on a new link on the {@link AsyncExecution#getDefaultExecutor() default executor}.
+     *
+     * @param sql the SQL statement to execute
+     * @param parameters the parameters passed to the processor
+     * @return the future result
+     */
+    public CompletableFuture<R> executeAsync(final String sql, final P parameters) {
+        return executeAsync(sql, parameters, AsyncExecution.getDefaultExecutor());
+    }
 }
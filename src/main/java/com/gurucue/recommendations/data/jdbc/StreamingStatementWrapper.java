@@ -0,0 +1,179 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+import com.gurucue.recommendations.DatabaseException;
+import com.gurucue.recommendations.data.DataLink;
+import com.gurucue.recommendations.data.DataManager;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Executes a query and returns its rows as a forward-only stream, fetching them
+ * from the database in chunks of the configured fetch size. Auto-commit is turned off
+ * for the duration of the stream, so drivers that only use server-side cursors inside
+ * a transaction do not buffer the whole result. The stream must be closed after use,
+ * which closes the result set and the statement.
+ */
+public class StreamingStatementWrapper<T, P> {
+    private static final Logger log = LogManager.getLogger(StreamingStatementWrapper.class);
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+    private final String sql;
+    private final PreparedStatementParameterizer<P> parameterizer;
+    private final RowMapper<T> rowMapper;
+    private final int fetchSize;
+
+    public StreamingStatementWrapper(final String sql, final PreparedStatementParameterizer<P> parameterizer, final RowMapper<T> rowMapper, final int fetchSize) {
+        if (fetchSize < 1) throw new IllegalArgumentException("The fetch size must be positive: " + fetchSize);
+        this.sql = sql;
+        this.parameterizer = parameterizer;
+        this.rowMapper = rowMapper;
+        this.fetchSize = fetchSize;
+    }
+
+    public StreamingStatementWrapper(final String sql, final PreparedStatementParameterizer<P> parameterizer, final RowMapper<T> rowMapper) {
+        this(sql, parameterizer, rowMapper, DEFAULT_FETCH_SIZE);
+    }
+
+    /**
+     * Executes the query on the given link and streams its rows. Closing the stream
+     * closes the statement, but not the link.
+     *
+     * @param link the link to execute the query with
+     * @param parameter the query parameters
+     * @return the stream of mapped rows
+     */
+    public Stream<T> stream(final JdbcDataLink link, final P parameter) {
+        return open(link, parameter, false);
+    }
+
+    /**
+     * Executes the query on a new link and streams its rows. Closing the stream
+     * closes the statement, commits and closes the link. Within a {@link UnitOfWork}
+     * the query is executed on the link of the unit, which is left open.
+     *
+     * @param parameter the query parameters
+     * @return the stream of mapped rows
+     */
+    public Stream<T> stream(final P parameter) {
+        final UnitOfWork unit = UnitOfWork.current();
+        if (null != unit) return open(unit.getLink(), parameter, false);
+        final DataLink link = DataManager.getNewLink();
+        if (!(link instanceof JdbcDataLink)) {
+            link.close();
+            throw new DatabaseException("Cannot execute SQL statement: the data link does not implement JDBC interface");
+        }
+        return open((JdbcDataLink) link, parameter, true);
+    }
+
+    private Stream<T> open(final JdbcDataLink link, final P parameter, final boolean ownsLink) {
+        final RowCursor<T> cursor = new RowCursor<T>(link, ownsLink, rowMapper);
+        try {
+            final Connection connection = link.getConnection();
+            cursor.restoreAutoCommit = connection.getAutoCommit();
+            if (cursor.restoreAutoCommit) connection.setAutoCommit(false);
+            cursor.statement = link.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            cursor.statement.setFetchSize(fetchSize);
+            parameterizer.execute(cursor.statement, parameter);
+            cursor.resultSet = new JdbcResultSet(cursor.statement.executeQuery());
+            cursor.resultSet.resultSet.setFetchSize(fetchSize);
+        }
+        catch (SQLException se) {
+            cursor.close();
+            final String reason = "Failed to open a streaming query: " + se.toString() + "; SQL: " + sql;
+            log.error(reason, se);
+            throw new DatabaseException(reason, se);
+        }
+        catch (RuntimeException e) {
+            cursor.close();
+            throw e;
+        }
+        return StreamSupport.stream(cursor, false).onClose(cursor);
+    }
+
+    static final class RowCursor<T> extends Spliterators.AbstractSpliterator<T> implements Runnable {
+        final JdbcDataLink link;
+        final boolean ownsLink;
+        final RowMapper<T> rowMapper;
+        PreparedStatement statement;
+        JdbcResultSet resultSet;
+        boolean restoreAutoCommit = false;
+        boolean closed = false;
+
+        RowCursor(final JdbcDataLink link, final boolean ownsLink, final RowMapper<T> rowMapper) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED);
+            this.link = link;
+            this.ownsLink = ownsLink;
+            this.rowMapper = rowMapper;
+        }
+
+        @Override
+        public boolean tryAdvance(final Consumer<? super T> action) {
+            if (closed) return false;
+            if (!resultSet.next()) return false;
+            action.accept(rowMapper.map(resultSet));
+            return true;
+        }
+
+        @Override
+        public void run() {
+            close();
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            try {
+                if (null != resultSet) resultSet.close();
+            }
+            catch (RuntimeException e) {
+                log.warn("Failed to close a streamed result set: " + e.toString(), e);
+            }
+            try {
+                if (null != statement) statement.close();
+            }
+            catch (SQLException e) {
+                log.warn("Failed to close a streaming statement: " + e.toString(), e);
+            }
+            try {
+                if (ownsLink || restoreAutoCommit) link.commit(); // ends the transaction and with it the cursor
+                if (restoreAutoCommit) link.getConnection().setAutoCommit(true);
+            }
+            catch (SQLException e) {
+                log.warn("Failed to restore auto-commit after streaming: " + e.toString(), e);
+            }
+            catch (RuntimeException e) {
+                log.warn("Failed to end the streaming transaction: " + e.toString(), e);
+            }
+            finally {
+                if (ownsLink) link.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.data.jdbc;
+
+import com.gurucue.recommendations.DatabaseException;
+import com.gurucue.recommendations.data.DataLink;
+import com.gurucue.recommendations.data.DataManager;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Binds one link to the current thread for the duration of a scope, so the statement wrapper
+ * methods that would otherwise get a new link, commit and close it for every execution, such as
+ * {@link SimplePreparedStatementWrapper#execute(Object)}, {@link PreparedStatementWrapper#execute(String, Object)}
+ * and {@link StatementWrapper#execute(String, Object)}, all execute on the bound link instead,
+ * with a single commit or rollback at the end.
+ * <pre>
+ * try (final UnitOfWork unit = UnitOfWork.begin()) {
+ *     final Product product = productQuery.execute(productId);
+ *     eventInsert.execute(new ParameterLongLong(consumerId, productId));
+ *     unit.commit();
+ * }
+ * </pre>
+ * Closing a unit of work that was not committed rolls it back. A statement failing inside the
+ * unit of work marks it for rollback, so it cannot be committed anymore. Beginning a unit of work
+ * while one is already bound to the thread joins it: the nested unit shares the link, its commit
+ * only marks it as completed, and closing it without committing marks the outer unit for rollback.
+ * <p>
+ * The link is bound to the thread, so statements executed asynchronously on other threads do not join it.
+ * If the link has no {@link JdbcDataLink#getPreparedStatementCache() cache of its own}, the unit of work
+ * caches the prepared statements of the wrappers, and closes them before it closes the link.
+ */
+public final class UnitOfWork implements AutoCloseable {
+    private static final Logger log = LogManager.getLogger(UnitOfWork.class);
+    private static final ThreadLocal<UnitOfWork> current = new ThreadLocal<>();
+
+    private final JdbcDataLink link;
+    private final UnitOfWork outer;
+    private boolean rollbackOnly = false;
+    private boolean completed = false;
+    private boolean closed = false;
+    private PreparedStatementCache statementCache = null; // of the outermost unit of work, created on first use
+
+    private UnitOfWork(final JdbcDataLink link, final UnitOfWork outer) {
+        this.link = link;
+        this.outer = outer;
+    }
+
+    /**
+     * Begins a unit of work on a new link, or joins the unit of work already bound to the current thread.
+     *
+     * @return the unit of work, to be closed at the end of the scope
+     */
+    public static UnitOfWork begin() {
+        final UnitOfWork active = current.get();
+        if (null != active) return new UnitOfWork(active.link, active.root());
+        final DataLink link = DataManager.getNewLink();
+        if (!(link instanceof JdbcDataLink)) {
+            link.close();
+            throw new DatabaseException("Cannot begin a unit of work: the data link does not implement JDBC interface");
+        }
+        return bind(new UnitOfWork((JdbcDataLink) link, null));
+    }
+
+    /**
+     * Begins a unit of work on a new link from the given factory, or joins the unit of work already
+     * bound to the current thread.
+     *
+     * @param linkFactory the factory of the link
+     * @return the unit of work, to be closed at the end of the scope
+     */
+    public static UnitOfWork begin(final JdbcLinkFactory linkFactory) {
+        final UnitOfWork active = current.get();
+        if (null != active) return new UnitOfWork(active.link, active.root());
+        return bind(new UnitOfWork(linkFactory.newJdbcDataLink(), null));
+    }
+
+    private static UnitOfWork bind(final UnitOfWork unit) {
+        current.set(unit);
+        return unit;
+    }
+
+    /**
+     * Returns the unit of work bound to the current thread.
+     *
+     * @return the current unit of work, or null if there is none
+     */
+    public static UnitOfWork current() {
+        return current.get();
+    }
+
+    private UnitOfWork root() {
+        return null == outer ? this : outer;
+    }
+
+    public JdbcDataLink getLink() {
+        if (closed) throw new IllegalStateException("The unit of work is closed");
+        return link;
+    }
+
+    /**
+     * Marks the unit of work so it can only be rolled back.
+     */
+    public void setRollbackOnly() {
+        root().rollbackOnly = true;
+    }
+
+    public boolean isRollbackOnly() {
+        return root().rollbackOnly;
+    }
+
+    // the statement cache of the unit's link, or null if it is another link or the default caches are disabled
+    PreparedStatementCache statementCache(final JdbcDataLink forLink) {
+        final UnitOfWork root = root();
+        if ((forLink != root.link) || root.closed) return null;
+        if (null == root.statementCache) {
+            final int maxSize = PreparedStatementCache.getDefaultMaxSize();
+            if (maxSize == 0) return null;
+            root.statementCache = new PreparedStatementCache(maxSize);
+        }
+        return root.statementCache;
+    }
+
+    /**
+     * Commits the unit of work. A nested unit of work is only marked as completed, the commit is
+     * done by the outermost unit of work.
+     *
+     * @throws DatabaseException if the unit of work was marked for rollback, or if the commit failed, in which case it is rolled back
+     */
+    public void commit() {
+        if (closed || completed) throw new IllegalStateException("The unit of work is already completed");
+        if (root().rollbackOnly) {
+            rollback();
+            throw new DatabaseException("The unit of work was marked for rollback after a failed statement");
+        }
+        if (null != outer) {
+            completed = true;
+            return;
+        }
+        try {
+            link.commit();
+        }
+        catch (RuntimeException e) {
+            try {
+                link.rollback();
+            }
+            catch (RuntimeException re) {
+                log.warn("Failed to roll back a unit of work after a failed commit: " + re.toString(), re);
+            }
+            completed = true; // the link is closed on close(), which discards the transaction if the rollback failed
+            throw e;
+        }
+        completed = true;
+    }
+
+    /**
+     * Rolls back the unit of work. Rolling back a nested unit of work marks the outer unit for rollback.
+     */
+    public void rollback() {
+        if (closed || completed) throw new IllegalStateException("The unit of work is already completed");
+        if (null == outer) link.rollback();
+        else outer.rollbackOnly = true;
+        completed = true;
+    }
+
+    /**
+     * Rolls back the unit of work if it was not completed, and unbinds and closes its link if it
+     * is the outermost unit of work.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        try {
+            if (!completed) {
+                completed = true;
+                if (null == outer) {
+                    try {
+                        link.rollback();
+                    }
+                    catch (RuntimeException e) {
+                        log.warn("Failed to roll back an uncompleted unit of work: " + e.toString(), e);
+                    }
+                }
+                else outer.rollbackOnly = true;
+            }
+        }
+        finally {
+            closed = true;
+            if (null == outer) {
+                current.remove();
+                try {
+                    if (null != statementCache) statementCache.close();
+                }
+                finally {
+                    link.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.DatabaseException;
+import com.gurucue.recommendations.data.jdbc.AsyncExecution;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizerLong;
+import com.gurucue.recommendations.data.jdbc.ResultProcessor;
+import com.gurucue.recommendations.data.jdbc.SimplePreparedStatementWrapper;
+import com.gurucue.recommendations.data.jdbc.UnitOfWork;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the asynchronous execution of the statement wrappers and {@link AsyncExecution}.
+ */
+public class AsyncExecutionTest {
+    private TestDatabase db;
+    private ExecutorService threads;
+    // runs each task in a unit of work of the test database, which the wrappers join
+    private Executor executor;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestDatabase();
+        threads = Executors.newFixedThreadPool(4);
+        executor = new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                threads.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try (final UnitOfWork unit = UnitOfWork.begin(db.provider)) {
+                            command.run();
+                            unit.commit();
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        threads.shutdown();
+        threads.awaitTermination(10L, TimeUnit.SECONDS);
+        AsyncExecution.setDefaultExecutor(null);
+        db.close();
+    }
+
+    @Test
+    public void testExecuteAsync() throws Exception {
+        final SimplePreparedStatementWrapper<String, Long> titleQuery = new SimplePreparedStatementWrapper<>("select title from product where id = ?", new PreparedStatementParameterizerLong(), new ResultProcessor<String, Long>() {
+            @Override
+            public String process(final ResultSet resultSet, final Long parameters) throws SQLException {
+                return resultSet.next() ? resultSet.getString(1) : null;
+            }
+        });
+        final CompletableFuture<String> first = titleQuery.executeAsync(1L, executor);
+        final CompletableFuture<String> second = titleQuery.executeAsync(2L, executor);
+        AsyncExecution.awaitAll(first, second);
+        assertEquals("Product 1", first.join());
+        assertEquals("Product 2", second.join());
+        threads.shutdown();
+        assertTrue(threads.awaitTermination(10L, TimeUnit.SECONDS));
+        assertEquals(0, db.openLinkCount());
+    }
+
+    @Test
+    public void testAwaitAllThrowsFirstFailure() {
+        final CompletableFuture<String> succeeded = CompletableFuture.completedFuture("ok");
+        final CompletableFuture<String> first = new CompletableFuture<>();
+        final CompletableFuture<String> second = new CompletableFuture<>();
+        first.completeExceptionally(new DatabaseException("first"));
+        second.completeExceptionally(new DatabaseException("second"));
+        try {
+            AsyncExecution.awaitAll(succeeded, first, second);
+            fail("Expected the failure of the first failed future");
+        }
+        catch (DatabaseException e) {
+            assertEquals("first", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testProviderExecutor() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        AsyncExecution.providerExecutor(db.provider).execute(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(10L, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDefaultExecutor() throws Exception {
+        assertNotNull(AsyncExecution.getDefaultExecutor());
+        AsyncExecution.setDefaultExecutor(executor);
+        assertSame(executor, AsyncExecution.getDefaultExecutor());
+        final CountDownLatch ran = new CountDownLatch(1);
+        AsyncExecution.getDefaultExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                assertNotNull(UnitOfWork.current());
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(10L, TimeUnit.SECONDS));
+    }
+}
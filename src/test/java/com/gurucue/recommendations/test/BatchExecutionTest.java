@@ -0,0 +1,130 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.DatabaseException;
+import com.gurucue.recommendations.data.jdbc.JdbcDataLink;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizer;
+import com.gurucue.recommendations.data.jdbc.SimplePreparedStatementWrapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the JDBC batch execution of {@link SimplePreparedStatementWrapper}.
+ */
+public class BatchExecutionTest {
+    private static final PreparedStatementParameterizer<long[]> EVENT = new PreparedStatementParameterizer<long[]>() {
+        @Override
+        public void execute(final PreparedStatement statement, final long[] parameter) throws SQLException {
+            statement.setLong(1, parameter[0]);
+            statement.setLong(2, parameter[1]);
+            statement.setDouble(3, 0.5);
+        }
+    };
+    private final SimplePreparedStatementWrapper<Void, long[]> insert = new SimplePreparedStatementWrapper<>("insert into event (user_id, item_id, score) values (?, ?, ?)", EVENT);
+    private TestDatabase db;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestDatabase();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.close();
+    }
+
+    private static List<long[]> events(final int count) {
+        final List<long[]> events = new ArrayList<>();
+        for (int i = 0; i < count; i++) events.add(new long[]{i % 3, i});
+        return events;
+    }
+
+    @Test
+    public void testChunkedBatchCommitsEachChunk() throws SQLException {
+        try (final JdbcDataLink link = db.newLink()) {
+            final int commitsBefore = db.commits.get();
+            final int[] counts = insert.executeBatch(link, events(7), 3, true);
+            assertEquals(7, counts.length);
+            for (final int count : counts) assertEquals(1, count);
+            assertEquals(3, db.commits.get() - commitsBefore);
+        }
+        assertEquals(7L, db.queryLong("select count(*) from event"));
+    }
+
+    @Test
+    public void testBatchLeavesCommitToCaller() throws SQLException {
+        try (final JdbcDataLink link = db.newLink()) {
+            final int[] counts = insert.executeBatch(link, events(1200));
+            assertEquals(1200, counts.length);
+            assertEquals(0L, db.queryLong("select count(*) from event"));
+            link.commit();
+        }
+        assertEquals(1200L, db.queryLong("select count(*) from event"));
+    }
+
+    @Test
+    public void testIterableWithoutSize() {
+        try (final JdbcDataLink link = db.newLink()) {
+            final List<long[]> events = events(5);
+            final int[] counts = insert.executeBatch(link, new Iterable<long[]>() {
+                @Override
+                public Iterator<long[]> iterator() {
+                    return events.iterator();
+                }
+            }, 2, false);
+            assertTrue(Arrays.equals(new int[]{1, 1, 1, 1, 1}, counts));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsEmptyChunks() {
+        try (final JdbcDataLink link = db.newLink()) {
+            insert.executeBatch(link, events(1), 0, false);
+        }
+    }
+
+    @Test
+    public void testFailedBatchThrows() throws SQLException {
+        final SimplePreparedStatementWrapper<Void, long[]> duplicate = new SimplePreparedStatementWrapper<>("insert into product (id, title) values (?, 'x')", new PreparedStatementParameterizer<long[]>() {
+            @Override
+            public void execute(final PreparedStatement statement, final long[] parameter) throws SQLException {
+                statement.setLong(1, parameter[0]);
+            }
+        });
+        try (final JdbcDataLink link = db.newLink()) {
+            duplicate.executeBatch(link, Arrays.asList(new long[]{1000L}, new long[]{1L}));
+            fail("Inserted a duplicate primary key");
+        }
+        catch (DatabaseException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+        assertEquals(TestDatabase.PRODUCT_COUNT, db.queryLong("select count(*) from product"));
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.data.jdbc.benchmark.BatchInsertBenchmark;
+import com.gurucue.recommendations.data.jdbc.benchmark.CompiledQueryBenchmark;
+import com.gurucue.recommendations.data.jdbc.benchmark.PoolBenchmark;
+import com.gurucue.recommendations.data.jdbc.benchmark.ResultIterationBenchmark;
+import com.gurucue.recommendations.data.jdbc.benchmark.WrapperBenchmark;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs every benchmark method a few times with every combination of its parameters, the way
+ * JMH sets up and tears down the benchmark states, so a broken benchmark fails the build
+ * instead of a benchmark run.
+ */
+public class BenchmarkSmokeTest {
+    private static final int INVOCATIONS = 3;
+
+    @Test
+    public void testPoolBenchmark() throws Exception {
+        assertEquals(3 * 8, run(PoolBenchmark.class));
+    }
+
+    @Test
+    public void testWrapperBenchmark() throws Exception {
+        assertEquals(5 * 2, run(WrapperBenchmark.class));
+    }
+
+    @Test
+    public void testResultIterationBenchmark() throws Exception {
+        assertEquals(2, run(ResultIterationBenchmark.class));
+    }
+
+    @Test
+    public void testBatchInsertBenchmark() throws Exception {
+        assertEquals(3, run(BatchInsertBenchmark.class));
+    }
+
+    @Test
+    public void testCompiledQueryBenchmark() throws Exception {
+        assertEquals(6 * 2, run(CompiledQueryBenchmark.class));
+    }
+
+    // returns the number of benchmark runs, a run being a benchmark method with a combination of parameters;
+    // the benchmark methods of a class share the states set up for each combination of parameters
+    private static int run(final Class<?> benchmarkClass) throws Exception {
+        final List<Method> methods = new ArrayList<>();
+        final Set<Class<?>> stateClasses = new LinkedHashSet<>();
+        if (benchmarkClass.isAnnotationPresent(State.class)) stateClasses.add(benchmarkClass);
+        for (final Method method : benchmarkClass.getMethods()) {
+            if (!method.isAnnotationPresent(Benchmark.class)) continue;
+            methods.add(method);
+            for (final Class<?> type : method.getParameterTypes()) {
+                assertTrue(method + " has a parameter that is not a state", type.isAnnotationPresent(State.class));
+                stateClasses.add(type);
+            }
+        }
+        assertFalse(benchmarkClass + " has no benchmarks", methods.isEmpty());
+        final Map<Field, String[]> params = new LinkedHashMap<>();
+        for (final Class<?> stateClass : stateClasses) {
+            for (final Field field : stateClass.getFields()) {
+                final Param param = field.getAnnotation(Param.class);
+                if (null != param) params.put(field, param.value());
+            }
+        }
+        final Field[] fields = params.keySet().toArray(new Field[params.size()]);
+        final int[] choice = new int[fields.length];
+        int runs = 0;
+        do {
+            runs += runCombination(benchmarkClass, methods, stateClasses, fields, choice, params);
+        } while (nextCombination(fields, choice, params));
+        return runs;
+    }
+
+    private static boolean nextCombination(final Field[] fields, final int[] choice, final Map<Field, String[]> params) {
+        for (int i = 0; i < fields.length; i++) {
+            if (++choice[i] < params.get(fields[i]).length) return true;
+            choice[i] = 0;
+        }
+        return false;
+    }
+
+    private static int runCombination(final Class<?> benchmarkClass, final List<Method> methods, final Set<Class<?>> stateClasses, final Field[] fields, final int[] choice, final Map<Field, String[]> params) throws Exception {
+        final Map<Class<?>, Object> states = new LinkedHashMap<>();
+        for (final Class<?> stateClass : stateClasses) states.put(stateClass, stateClass.newInstance());
+        final Object benchmark = states.containsKey(benchmarkClass) ? states.get(benchmarkClass) : benchmarkClass.newInstance();
+        for (int i = 0; i < fields.length; i++) {
+            final Field field = fields[i];
+            setParam(field, states.get(field.getDeclaringClass()), params.get(field)[choice[i]]);
+        }
+        final List<Object> setUp = new ArrayList<>();
+        try {
+            for (final Object state : states.values()) {
+                invoke(state, Setup.class, Level.Trial);
+                setUp.add(state);
+            }
+            for (final Method method : methods) {
+                final Class<?>[] types = method.getParameterTypes();
+                final Object[] arguments = new Object[types.length];
+                for (int i = 0; i < types.length; i++) arguments[i] = states.get(types[i]);
+                for (final Object state : setUp) invoke(state, Setup.class, Level.Iteration);
+                for (int i = 0; i < INVOCATIONS; i++) method.invoke(benchmark, arguments);
+                for (final Object state : setUp) invoke(state, TearDown.class, Level.Iteration);
+            }
+        }
+        finally {
+            for (final Object state : setUp) invoke(state, TearDown.class, Level.Trial);
+        }
+        return methods.size();
+    }
+
+    private static void invoke(final Object state, final Class<?> annotation, final Level level) throws Exception {
+        for (final Method method : state.getClass().getMethods()) {
+            final Level methodLevel;
+            if (annotation == Setup.class && method.isAnnotationPresent(Setup.class)) methodLevel = method.getAnnotation(Setup.class).value();
+            else if (annotation == TearDown.class && method.isAnnotationPresent(TearDown.class)) methodLevel = method.getAnnotation(TearDown.class).value();
+            else continue;
+            if (methodLevel == level) method.invoke(state);
+        }
+    }
+
+    private static void setParam(final Field field, final Object state, final String value) throws Exception {
+        assertFalse(field + " must not be static", Modifier.isStatic(field.getModifiers()));
+        final Class<?> type = field.getType();
+        if (type == int.class) field.setInt(state, Integer.parseInt(value));
+        else if (type == long.class) field.setLong(state, Long.parseLong(value));
+        else if (type == boolean.class) field.setBoolean(state, Boolean.parseBoolean(value));
+        else if (type == double.class) field.setDouble(state, Double.parseDouble(value));
+        else if (type == String.class) field.set(state, value);
+        else fail("Unsupported parameter type of " + field);
+    }
+}
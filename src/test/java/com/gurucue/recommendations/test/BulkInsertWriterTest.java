@@ -0,0 +1,250 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.DatabaseException;
+import com.gurucue.recommendations.data.jdbc.BulkInsertWriter;
+import com.gurucue.recommendations.data.jdbc.JdbcDataLink;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizer;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizerAtOffset;
+import com.gurucue.recommendations.data.jdbc.UnitOfWork;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests inserting rows with multi-row statements through {@link BulkInsertWriter}.
+ */
+public class BulkInsertWriterTest {
+    private static final String INSERT_SQL = "insert into event (user_id, item_id, score) values (?, ?, ?)";
+    private TestDatabase db;
+    private JdbcDataLink link;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestDatabase();
+        link = db.newLink();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        executor.awaitTermination(10L, TimeUnit.SECONDS);
+        link.close();
+        db.close();
+    }
+
+    static final class Event {
+        final long userId;
+        final long itemId;
+        final double score;
+
+        Event(final long userId, final long itemId, final double score) {
+            this.userId = userId;
+            this.itemId = itemId;
+            this.score = score;
+        }
+    }
+
+    /** Binds from index 1 on only, so the writer shifts the indexes with a wrapper of the statement. */
+    static final PreparedStatementParameterizer<Event> plainParameterizer = new PreparedStatementParameterizer<Event>() {
+        @Override
+        public void execute(final PreparedStatement statement, final Event parameter) throws SQLException {
+            statement.setLong(1, parameter.userId);
+            statement.setLong(2, parameter.itemId);
+            statement.setDouble(3, parameter.score);
+        }
+    };
+
+    /** Binds at an offset, so the writer binds each row directly. */
+    static final class OffsetParameterizer implements PreparedStatementParameterizer<Event>, PreparedStatementParameterizerAtOffset<Event> {
+        int offsetCalls = 0;
+
+        @Override
+        public void execute(final PreparedStatement statement, final Event parameter) throws SQLException {
+            execute(statement, 0, parameter);
+        }
+
+        @Override
+        public void execute(final PreparedStatement statement, final int offset, final Event parameter) throws SQLException {
+            offsetCalls++;
+            statement.setLong(offset + 1, parameter.userId);
+            statement.setLong(offset + 2, parameter.itemId);
+            statement.setDouble(offset + 3, parameter.score);
+        }
+    }
+
+    private static List<Event> events(final int count) {
+        final List<Event> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) events.add(new Event(i % 7, i, i / 2.0));
+        return events;
+    }
+
+    private void assertInserted(final int count) throws SQLException {
+        assertEquals(count, db.queryLong("select count(*) from event"));
+        assertEquals((long) count * (count - 1) / 2, db.queryLong("select coalesce(sum(item_id), 0) from event"));
+        assertEquals(0L, db.queryLong("select count(*) from event where score * 2 <> item_id or user_id <> mod(item_id, 7)"));
+    }
+
+    @Test
+    public void testRowsPerStatementWithinParameterLimit() {
+        assertEquals(3, new BulkInsertWriter<>(INSERT_SQL, plainParameterizer, 10, 1000, executor).getRowsPerStatement());
+        assertEquals(50, new BulkInsertWriter<>(INSERT_SQL, plainParameterizer, 32767, 50, executor).getRowsPerStatement());
+        assertEquals(BulkInsertWriter.DEFAULT_MAX_ROWS_PER_STATEMENT, new BulkInsertWriter<>(INSERT_SQL, plainParameterizer).getRowsPerStatement());
+    }
+
+    @Test
+    public void testRejectsStatementsItCannotRewrite() {
+        try {
+            new BulkInsertWriter<>("update event set score = ?", plainParameterizer);
+            fail("An update statement was accepted");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new BulkInsertWriter<>(INSERT_SQL, plainParameterizer, 2, 1000, executor);
+            fail("A row with more parameters than the limit was accepted");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testInsertsWithOffsetParameterizer() throws SQLException {
+        final OffsetParameterizer parameterizer = new OffsetParameterizer();
+        final BulkInsertWriter<Event> writer = new BulkInsertWriter<>(INSERT_SQL, parameterizer, 32767, 64, executor);
+        // 2 full statements of 64 rows, then 16 + 8 + 1 rows
+        assertEquals(153L, writer.insert(link, events(153)));
+        link.commit();
+        assertInserted(153);
+        assertEquals(153, parameterizer.offsetCalls);
+    }
+
+    @Test
+    public void testInsertsWithPlainParameterizer() throws SQLException {
+        final BulkInsertWriter<Event> writer = new BulkInsertWriter<>(INSERT_SQL, plainParameterizer, 32767, 64, executor);
+        assertEquals(1000L, writer.insert(link, events(1000)));
+        link.commit();
+        assertInserted(1000);
+    }
+
+    @Test
+    public void testInsertsNothing() throws SQLException {
+        final BulkInsertWriter<Event> writer = new BulkInsertWriter<>(INSERT_SQL, plainParameterizer, 32767, 64, executor);
+        assertEquals(0L, writer.insert(link, new ArrayList<Event>()));
+        assertInserted(0);
+    }
+
+    @Test
+    public void testProducerFailureIsThrown() throws SQLException {
+        final BulkInsertWriter<Event> writer = new BulkInsertWriter<>(INSERT_SQL, plainParameterizer, 32767, 4, executor);
+        final Iterable<Event> failing = new Iterable<Event>() {
+            @Override
+            public Iterator<Event> iterator() {
+                final Iterator<Event> events = events(10).iterator();
+                return new Iterator<Event>() {
+                    int produced = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return true;
+                    }
+
+                    @Override
+                    public Event next() {
+                        if (++produced > 6) throw new IllegalStateException("The export is truncated");
+                        return events.next();
+                    }
+                };
+            }
+        };
+        try {
+            writer.insert(link, failing);
+            fail("A failure of the rows was not thrown");
+        }
+        catch (IllegalStateException e) {
+            assertEquals("The export is truncated", e.getMessage());
+        }
+        link.rollback();
+        assertInserted(0);
+    }
+
+    @Test(timeout = 10000L)
+    public void testProducerErrorIsThrown() throws SQLException {
+        final BulkInsertWriter<Event> writer = new BulkInsertWriter<>(INSERT_SQL, plainParameterizer, 32767, 4, executor);
+        final Iterable<Event> failing = new Iterable<Event>() {
+            @Override
+            public Iterator<Event> iterator() {
+                return new Iterator<Event>() {
+                    @Override
+                    public boolean hasNext() {
+                        return true;
+                    }
+
+                    @Override
+                    public Event next() {
+                        throw new AssertionError("The export is corrupt");
+                    }
+                };
+            }
+        };
+        try {
+            writer.insert(link, failing);
+            fail("An error of the rows was not thrown");
+        }
+        catch (AssertionError e) {
+            assertEquals("The export is corrupt", e.getMessage());
+        }
+        link.rollback();
+        assertInserted(0);
+    }
+
+    @Test
+    public void testDatabaseFailureRollsBackUnitOfWork() throws SQLException {
+        db.update("alter table event add constraint positive_score check (score >= 0)");
+        final List<Event> events = events(20);
+        events.add(new Event(1L, 20L, -1.0));
+        final BulkInsertWriter<Event> writer = new BulkInsertWriter<>(INSERT_SQL, new OffsetParameterizer(), 32767, 8, executor);
+        try (final UnitOfWork unit = UnitOfWork.begin(db.provider)) {
+            writer.insert(events);
+            unit.commit();
+            fail("A row violating a constraint was inserted");
+        }
+        catch (DatabaseException e) {
+            // expected
+        }
+        assertInserted(0);
+        assertEquals(1, db.rollbacks.get());
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.data.jdbc.CachingStatementWrapper;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizerLong;
+import com.gurucue.recommendations.data.jdbc.ResultProcessor;
+import com.gurucue.recommendations.data.jdbc.SimplePreparedStatementWrapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the hits, expiration, eviction, invalidation and refresh of {@link CachingStatementWrapper}.
+ */
+public class CachingStatementWrapperTest {
+    private TestDatabase db;
+    // when set, the processor reading a title waits for it after the query executed
+    private volatile CountDownLatch blockAfterQuery = null;
+    private final CountDownLatch queried = new CountDownLatch(1);
+    private final AtomicInteger queries = new AtomicInteger(0);
+    private final SimplePreparedStatementWrapper<String, Long> titleQuery = new SimplePreparedStatementWrapper<>("select title from product where id = ?", new PreparedStatementParameterizerLong(), new ResultProcessor<String, Long>() {
+        @Override
+        public String process(final ResultSet resultSet, final Long parameters) throws SQLException {
+            queries.incrementAndGet();
+            final String title = resultSet.next() ? resultSet.getString(1) : null;
+            final CountDownLatch block = blockAfterQuery;
+            if (null != block) {
+                queried.countDown();
+                try {
+                    block.await(10L, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return title;
+        }
+    });
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestDatabase();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void testHitsMissesAndEviction() {
+        final CachingStatementWrapper<String, Long> cache = new CachingStatementWrapper<>(db.provider, titleQuery, 3L, null, 0L, 0L, null);
+        assertEquals("Product 1", cache.execute(1L));
+        assertEquals("Product 1", cache.execute(1L));
+        assertEquals(1, queries.get());
+        assertEquals(1L, cache.getHitCount());
+        assertEquals(1L, cache.getMissCount());
+        for (long id = 2L; id <= 5L; id++) cache.execute(id);
+        assertEquals(3, cache.size());
+        assertEquals(2L, cache.getEvictionCount());
+        assertEquals(0, db.openLinkCount());
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        final CachingStatementWrapper<String, Long> cache = new CachingStatementWrapper<>(db.provider, titleQuery, 10L, null, 30L, 0L, null);
+        cache.execute(1L);
+        Thread.sleep(50L);
+        cache.execute(1L);
+        assertEquals(2, queries.get());
+        assertEquals(1L, cache.getExpirationCount());
+    }
+
+    @Test
+    public void testInvalidationDuringLoadDiscardsStaleResult() throws Exception {
+        final CachingStatementWrapper<String, Long> cache = new CachingStatementWrapper<>(db.provider, titleQuery, 10L, null, 0L, 0L, null);
+        final CountDownLatch release = new CountDownLatch(1);
+        blockAfterQuery = release;
+        final AtomicReference<String> loaded = new AtomicReference<>();
+        final Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loaded.set(cache.execute(1L));
+            }
+        });
+        loader.start();
+        assertTrue(queried.await(10L, TimeUnit.SECONDS));
+        blockAfterQuery = null;
+        db.update("update product set title = 'Renamed' where id = 1");
+        cache.invalidate(2L); // another key does not affect the running load
+        cache.invalidate(1L);
+        release.countDown();
+        loader.join();
+        assertEquals("Product 1", loaded.get());
+        assertEquals(0, cache.size());
+        assertEquals("Renamed", cache.execute(1L));
+    }
+
+    @Test
+    public void testInvalidationOfOtherKeyKeepsResult() throws Exception {
+        final CachingStatementWrapper<String, Long> cache = new CachingStatementWrapper<>(db.provider, titleQuery, 10L, null, 0L, 0L, null);
+        final CountDownLatch release = new CountDownLatch(1);
+        blockAfterQuery = release;
+        final Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                cache.execute(1L);
+            }
+        });
+        loader.start();
+        assertTrue(queried.await(10L, TimeUnit.SECONDS));
+        blockAfterQuery = null;
+        cache.invalidate(2L);
+        release.countDown();
+        loader.join();
+        assertEquals(1, cache.size());
+        assertEquals("Product 1", cache.execute(1L));
+        assertEquals(1, queries.get());
+    }
+
+    @Test
+    public void testConcurrentRefreshesAreSingleFlight() throws Exception {
+        final ExecutorService refresher = Executors.newFixedThreadPool(8);
+        try {
+            final CachingStatementWrapper<String, Long> cache = new CachingStatementWrapper<>(db.provider, titleQuery, 10L, null, 0L, 1L, refresher);
+            cache.execute(1L);
+            Thread.sleep(5L);
+            final CountDownLatch release = new CountDownLatch(1);
+            blockAfterQuery = release;
+            // the first stale access starts a refresh, which blocks; the later ones must not start another
+            final Thread[] readers = new Thread[16];
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < 50; j++) assertEquals("Product 1", cache.execute(1L));
+                    }
+                });
+                readers[i].start();
+            }
+            for (final Thread reader : readers) reader.join();
+            assertTrue(queried.await(10L, TimeUnit.SECONDS));
+            blockAfterQuery = null;
+            release.countDown();
+            refresher.shutdown();
+            assertTrue(refresher.awaitTermination(10L, TimeUnit.SECONDS));
+            assertEquals(2, queries.get());
+            assertEquals(1L, cache.getRefreshCount());
+        }
+        finally {
+            refresher.shutdownNow();
+        }
+    }
+}
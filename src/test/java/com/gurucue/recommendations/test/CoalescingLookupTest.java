@@ -0,0 +1,156 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.data.jdbc.CoalescingLookup;
+import com.gurucue.recommendations.data.jdbc.ResultProcessor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that {@link CoalescingLookup} batches concurrent lookups and hands each caller its value.
+ */
+public class CoalescingLookupTest {
+    private static final ResultProcessor<Map<Long, String>, List<Long>> TITLES = new ResultProcessor<Map<Long, String>, List<Long>>() {
+        @Override
+        public Map<Long, String> process(final ResultSet resultSet, final List<Long> parameters) throws SQLException {
+            final Map<Long, String> titles = new HashMap<>();
+            while (resultSet.next()) titles.put(resultSet.getLong(1), resultSet.getString(2));
+            return titles;
+        }
+    };
+    private TestDatabase db;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestDatabase();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.close();
+    }
+
+    private CoalescingLookup<Long, String> newLookup(final long windowMicros, final int maxBatchSize) {
+        return new CoalescingLookup<>(db.provider, CoalescingLookup.<Long>inList("select id, title from product where id in (" + CoalescingLookup.KEYS_PLACEHOLDER + ")"), TITLES, windowMicros, maxBatchSize);
+    }
+
+    @Test
+    public void testSingleLookup() {
+        final CoalescingLookup<Long, String> lookup = newLookup(0L, 10);
+        assertEquals("Product 5", lookup.get(5L));
+        assertNull(lookup.get(100000L));
+        assertEquals(2L, lookup.getBatchCount());
+        assertEquals(0, db.openLinkCount());
+    }
+
+    @Test
+    public void testConcurrentLookupsAreBatched() throws Exception {
+        final CoalescingLookup<Long, String> lookup = newLookup(100000L, 64);
+        final int threadCount = 24;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger wrong = new AtomicInteger(0);
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final long id = (i % 12) + 1; // half of the keys are requested twice
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        if (!("Product " + id).equals(lookup.get(id))) wrong.incrementAndGet();
+                    }
+                    catch (InterruptedException e) {
+                        wrong.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (final Thread thread : threads) thread.join();
+        assertEquals(0, wrong.get());
+        assertEquals((long) threadCount, lookup.getRequestCount());
+        assertTrue("Expected fewer batches than requests: " + lookup.getBatchCount(), lookup.getBatchCount() < threadCount);
+        assertEquals(0, db.openLinkCount());
+    }
+
+    @Test
+    public void testFullBatchExecutesBeforeWindow() throws Exception {
+        final CoalescingLookup<Long, String> lookup = newLookup(10000000L, 1);
+        final long start = System.nanoTime();
+        assertEquals("Product 7", lookup.get(7L));
+        assertTrue((System.nanoTime() - start) < 5000000000L);
+    }
+
+    @Test
+    public void testErrorInQueryFailsEveryWaiter() throws Exception {
+        final CoalescingLookup<Long, String> lookup = new CoalescingLookup<>(db.provider, CoalescingLookup.<Long>inList("select id, title from product where id in (" + CoalescingLookup.KEYS_PLACEHOLDER + ")"),
+                new ResultProcessor<Map<Long, String>, List<Long>>() {
+                    @Override
+                    public Map<Long, String> process(final ResultSet resultSet, final List<Long> parameters) throws SQLException {
+                        throw new AssertionError("The processor failed on purpose");
+                    }
+                }, 5000000L, 2);
+        final Throwable[] failures = new Throwable[2];
+        final Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        lookup.get(index + 1L);
+                    }
+                    catch (Throwable e) {
+                        failures[index] = e;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join(10000L);
+            assertFalse("A lookup is still waiting for a failed batch", thread.isAlive());
+        }
+        for (final Throwable failure : failures) {
+            assertNotNull(failure);
+            final Throwable error = failure instanceof AssertionError ? failure : failure.getCause();
+            assertEquals("The processor failed on purpose", error.getMessage());
+        }
+        assertEquals(1L, lookup.getBatchCount());
+        assertEquals(0, db.openLinkCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInListRequiresPlaceholder() {
+        CoalescingLookup.inList("select id, title from product where id = ?");
+    }
+}
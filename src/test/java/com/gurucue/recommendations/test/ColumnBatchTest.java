@@ -0,0 +1,85 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.data.jdbc.ColumnBatch;
+import com.gurucue.recommendations.data.jdbc.JdbcResultSet;
+import com.gurucue.recommendations.data.jdbc.JdbcStatement;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPool;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPoolSettings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests reading result set columns into primitive arrays with {@link ColumnBatch}.
+ */
+public class ColumnBatchTest {
+    private TestDatabase db;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestDatabase();
+        db.update("update product set score = null where mod(id, 10) = 0");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void testFetchesColumnsInBatches() {
+        final ColumnBatch batch = new ColumnBatch(32).addLongColumn(1, false).addIntColumn(1, false).addDoubleColumn(2, true);
+        assertEquals(3, batch.getColumnCount());
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, "select id, score from product order by id", new PreparedStatementPoolSettings().setReturnInline(true));
+             final JdbcStatement statement = pool.getStatement();
+             final JdbcResultSet rs = statement.executeQuery()) {
+            long expectedId = 1L;
+            int total = 0;
+            int n;
+            while ((n = rs.fetch(batch)) > 0) {
+                assertEquals(n, batch.size());
+                final long[] ids = batch.getLongs(0);
+                final int[] intIds = batch.getInts(1);
+                final double[] scores = batch.getDoubles(2);
+                for (int row = 0; row < n; row++, expectedId++) {
+                    assertEquals(expectedId, ids[row]);
+                    assertEquals((int) expectedId, intIds[row]);
+                    if ((expectedId % 10L) == 0L) assertTrue(batch.isNull(2, row));
+                    else {
+                        assertFalse(batch.isNull(2, row));
+                        assertEquals(expectedId / 10.0, scores[row], 0.0);
+                    }
+                }
+                total += n;
+                if (n < batch.getCapacity()) break;
+            }
+            assertEquals(TestDatabase.PRODUCT_COUNT, total);
+            assertEquals(0, rs.fetch(batch));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsZeroColumnIndex() {
+        new ColumnBatch(4).addLongColumn(0, false);
+    }
+}
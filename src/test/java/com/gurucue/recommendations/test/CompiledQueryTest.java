@@ -0,0 +1,203 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.data.jdbc.CompiledQuery;
+import com.gurucue.recommendations.data.jdbc.JdbcDataLink;
+import com.gurucue.recommendations.data.jdbc.ParameterLongString;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPool;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPoolSettings;
+import com.gurucue.recommendations.data.jdbc.QueryDefinition;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests binding parameters and mapping rows with queries compiled from a {@link QueryDefinition}.
+ */
+public class CompiledQueryTest {
+    private TestDatabase db;
+    private JdbcDataLink link;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestDatabase();
+        link = db.newLink();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        link.close();
+        db.close();
+    }
+
+    /** A row filled through its setters. */
+    public static class Product {
+        private long id;
+        private String title;
+        private Double score;
+
+        public Product() {
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public void setId(final long id) {
+            this.id = id;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public void setTitle(final String title) {
+            this.title = title;
+        }
+
+        public Double getScore() {
+            return score;
+        }
+
+        public void setScore(final Double score) {
+            this.score = score;
+        }
+    }
+
+    /** A row created through its only constructor with parameters. */
+    public static class ProductTitle {
+        public final long id;
+        public final String title;
+
+        public ProductTitle(final long id, final String title) {
+            this.id = id;
+            this.title = title;
+        }
+    }
+
+    /** A row whose setter is overloaded, so the column type does not tell which setter to use. */
+    public static class OverloadedRow {
+        private String title;
+
+        public OverloadedRow() {
+        }
+
+        public void setTitle(final String title) {
+            this.title = title;
+        }
+
+        public void setTitle(final char[] title) {
+            this.title = new String(title);
+        }
+    }
+
+    @Test
+    public void testDocumentedExample() {
+        final CompiledQuery<Product, ParameterLongString> query = new QueryDefinition<>(
+                "select id, title, score from product where id <= ? and title like ? order by id",
+                ParameterLongString.class, Product.class)
+                .setParameters("longParameter", "stringParameter")
+                .setColumns("id", "title", "score")
+                .compile();
+        final List<Product> products = query.newWrapper().execute(link, new ParameterLongString(20L, "Product 1%"));
+        // Product 1 and Product 10 to Product 19
+        assertEquals(11, products.size());
+        assertEquals(1L, products.get(0).getId());
+        assertEquals("Product 1", products.get(0).getTitle());
+        assertEquals(0.1, products.get(0).getScore(), 1e-9);
+        assertEquals(19L, products.get(10).getId());
+    }
+
+    @Test
+    public void testNullParameterIsBoundAsNull() {
+        final CompiledQuery<Long, ParameterLongString> query = new QueryDefinition<>(
+                "select count(*) from product where coalesce(?, id) = id and title like ?",
+                ParameterLongString.class, Long.class)
+                .setParameters("longParameter", "stringParameter")
+                .compile();
+        assertEquals(Long.valueOf(TestDatabase.PRODUCT_COUNT), query.newSingleRowWrapper().execute(link, new ParameterLongString(null, "Product %")));
+        assertEquals(Long.valueOf(1L), query.newSingleRowWrapper().execute(link, new ParameterLongString(5L, "Product %")));
+    }
+
+    @Test
+    public void testNullColumnIsMappedAsNull() throws Exception {
+        db.update("update product set score = null where id = 3");
+        final CompiledQuery<Product, Long> query = new QueryDefinition<>("select id, title, score from product where id = ?", Long.class, Product.class)
+                .setColumns("id", "title", "score")
+                .compile();
+        final Product product = query.newSingleRowWrapper().execute(link, 3L);
+        assertEquals("Product 3", product.getTitle());
+        assertNull(product.getScore());
+        assertNull(query.newSingleRowWrapper().execute(link, 1000L));
+    }
+
+    @Test
+    public void testConstructorMapping() {
+        final CompiledQuery<ProductTitle, Long> query = new QueryDefinition<>("select id, title from product where id = ?", Long.class, ProductTitle.class).compile();
+        final ProductTitle product = query.newSingleRowWrapper().execute(link, 42L);
+        assertEquals(42L, product.id);
+        assertEquals("Product 42", product.title);
+    }
+
+    @Test
+    public void testQueryWithPool() {
+        final CompiledQuery<String, Long> query = new QueryDefinition<>("select title from product where id > ? order by id", Long.class, String.class).compile();
+        try (final PreparedStatementPool pool = query.newPool(db.provider, new PreparedStatementPoolSettings().setReturnInline(true))) {
+            final List<String> titles = query.query(pool, 97L);
+            assertEquals(3, titles.size());
+            assertEquals("Product 98", titles.get(0));
+            assertEquals("Product 100", titles.get(2));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnknownProperty() {
+        new QueryDefinition<>("select id from product where id = ?", ParameterLongString.class, Long.class)
+                .setParameters("longValue")
+                .compile();
+    }
+
+    @Test
+    public void testRejectsOverloadedSetter() {
+        try {
+            new QueryDefinition<>("select title from product where id = ?", Long.class, OverloadedRow.class)
+                    .setColumns("title")
+                    .compile();
+            fail("Compiled a query with an overloaded setter");
+        }
+        catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Ambiguous"));
+        }
+    }
+
+    @Test
+    public void testCompiledQueriesKeepTheirOwnHandles() {
+        final CompiledQuery<String, Long> titles = new QueryDefinition<>("select title from product where id = ?", Long.class, String.class).compile();
+        final CompiledQuery<ProductTitle, Long> products = new QueryDefinition<>("select id, title from product where id = ?", Long.class, ProductTitle.class).compile();
+        for (long id = 1L; id <= 5L; id++) {
+            assertEquals("Product " + id, titles.newSingleRowWrapper().execute(link, id));
+            assertEquals(id, products.newSingleRowWrapper().execute(link, id).id);
+        }
+    }
+}
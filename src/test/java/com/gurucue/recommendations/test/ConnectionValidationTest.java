@@ -0,0 +1,110 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.data.jdbc.JdbcStatement;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPool;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPoolSettings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the interval-based connection validation and the keepalive of {@link PreparedStatementPool}.
+ */
+public class ConnectionValidationTest {
+    private static final String SQL = "select title from product where id = ?";
+    private TestDatabase db;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestDatabase();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.close();
+    }
+
+    private void borrowAndReturn(final PreparedStatementPool pool, final int times) {
+        for (int i = 0; i < times; i++) pool.getStatement().close();
+    }
+
+    @Test
+    public void testValidatesOnEveryBorrowByDefault() {
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, SQL, new PreparedStatementPoolSettings().setReturnInline(true))) {
+            borrowAndReturn(pool, 5);
+            // the first borrow opens a new statement, which is not validated
+            assertEquals(4, db.validations.get());
+        }
+    }
+
+    @Test
+    public void testSkipsValidationOfRecentlyUsedStatements() {
+        final PreparedStatementPoolSettings settings = new PreparedStatementPoolSettings().setReturnInline(true).setValidateAfterIdleMillis(60000L);
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, SQL, settings)) {
+            borrowAndReturn(pool, 5);
+            assertEquals(0, db.validations.get());
+        }
+    }
+
+    @Test
+    public void testValidatesAfterIdleTime() throws Exception {
+        final PreparedStatementPoolSettings settings = new PreparedStatementPoolSettings().setReturnInline(true).setValidateAfterIdleMillis(20L);
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, SQL, settings)) {
+            borrowAndReturn(pool, 1);
+            Thread.sleep(40L);
+            borrowAndReturn(pool, 1);
+            assertEquals(1, db.validations.get());
+        }
+    }
+
+    @Test
+    public void testInvalidStatementIsReplacedOnBorrow() {
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, SQL, new PreparedStatementPoolSettings().setReturnInline(true))) {
+            final JdbcStatement first = pool.getStatement();
+            first.close();
+            db.invalidLinks = true;
+            final JdbcStatement second = pool.getStatement();
+            assertNotSame(first, second);
+            second.close();
+            assertEquals(1, pool.getSize());
+            assertEquals(1, db.openLinkCount());
+        }
+    }
+
+    @Test
+    public void testKeepaliveClosesInvalidIdleStatements() throws Exception {
+        final PreparedStatementPoolSettings settings = new PreparedStatementPoolSettings().setReturnInline(true)
+                .setKeepaliveIntervalMillis(20L).setEvictionIntervalMillis(10L);
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, SQL, settings)) {
+            borrowAndReturn(pool, 1);
+            final long deadline = System.currentTimeMillis() + 5000L;
+            while ((db.validations.get() == 0) && (System.currentTimeMillis() < deadline)) Thread.sleep(5L);
+            assertTrue(db.validations.get() > 0);
+            assertEquals(1, pool.getSize());
+            db.invalidLinks = true;
+            while ((pool.getSize() > 0) && (System.currentTimeMillis() < deadline)) Thread.sleep(5L);
+            assertEquals(0, pool.getSize());
+            assertEquals(0, db.openLinkCount());
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.DatabaseException;
+import com.gurucue.recommendations.data.jdbc.GroupCommitExecutor;
+import com.gurucue.recommendations.data.jdbc.JdbcDataLink;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests grouping concurrent writes into single transactions with a {@link GroupCommitExecutor}.
+ */
+public class GroupCommitExecutorTest {
+    private static final int THREADS = 8;
+    private TestDatabase db;
+    private ExecutorService threads;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestDatabase();
+        threads = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        threads.shutdownNow();
+        threads.awaitTermination(10L, TimeUnit.SECONDS);
+        db.close();
+    }
+
+    /** Inserts an event with the given item and returns the item, failing for negative items. */
+    private static GroupCommitExecutor.Write<Long> insert(final long itemId) {
+        return new GroupCommitExecutor.Write<Long>() {
+            @Override
+            public Long execute(final JdbcDataLink link) {
+                if (itemId < 0L) throw new IllegalStateException("Failed write " + itemId);
+                link.execute("insert into event (user_id, item_id, score) values (1, " + itemId + ", 1.0)");
+                return itemId;
+            }
+        };
+    }
+
+    /** Submits a write of each item from its own thread, all at the same time. */
+    private List<Future<Long>> submitConcurrently(final GroupCommitExecutor executor, final long... itemIds) {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<Long>> futures = new ArrayList<>(itemIds.length);
+        for (final long itemId : itemIds) {
+            futures.add(threads.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    start.await();
+                    return executor.execute(insert(itemId));
+                }
+            }));
+        }
+        start.countDown();
+        return futures;
+    }
+
+    private static Throwable failure(final Future<Long> future) throws InterruptedException {
+        try {
+            future.get();
+            return null;
+        }
+        catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
+    @Test
+    public void testRejectsInvalidSettings() {
+        try {
+            new GroupCommitExecutor(db.provider, -1L, 10);
+            fail("A negative window was accepted");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new GroupCommitExecutor(db.provider, 1000L, 0);
+            fail("An empty group was accepted");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testConcurrentWritesShareCommits() throws Exception {
+        // the window is long enough for all the threads to join, a full group executes at once
+        final GroupCommitExecutor executor = new GroupCommitExecutor(db.provider, 5000000L, THREADS);
+        final List<Future<Long>> futures = submitConcurrently(executor, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L);
+        for (int i = 0; i < THREADS; i++) assertEquals(Long.valueOf(i + 1), futures.get(i).get(10L, TimeUnit.SECONDS));
+        assertEquals(THREADS, db.queryLong("select count(*) from event"));
+        assertEquals(THREADS, executor.getWriteCount());
+        assertEquals(executor.getGroupCount(), db.commits.get());
+        assertTrue("Writes were not grouped: " + executor.getGroupCount() + " groups", executor.getGroupCount() < THREADS);
+        assertEquals(0L, executor.getRetriedGroupCount());
+        assertEquals(0, db.openLinkCount());
+    }
+
+    @Test
+    public void testSingleWriteWaitsOnlyForTheWindow() throws Exception {
+        final GroupCommitExecutor executor = new GroupCommitExecutor(db.provider, 1000L, 100);
+        assertEquals(Long.valueOf(42L), executor.execute(insert(42L)));
+        assertEquals(1L, executor.getGroupCount());
+        assertEquals(1, db.commits.get());
+        assertEquals(1L, db.queryLong("select count(*) from event where item_id = 42"));
+    }
+
+    @Test
+    public void testFailedWriteRetriesTheOthersAlone() throws Exception {
+        final GroupCommitExecutor executor = new GroupCommitExecutor(db.provider, 5000000L, 4);
+        final List<Future<Long>> futures = submitConcurrently(executor, 1L, -2L, 3L, 4L);
+        assertEquals(Long.valueOf(1L), futures.get(0).get(10L, TimeUnit.SECONDS));
+        final Throwable failure = failure(futures.get(1));
+        assertTrue(String.valueOf(failure), failure instanceof IllegalStateException);
+        assertEquals("Failed write -2", failure.getMessage());
+        assertEquals(Long.valueOf(3L), futures.get(2).get(10L, TimeUnit.SECONDS));
+        assertEquals(Long.valueOf(4L), futures.get(3).get(10L, TimeUnit.SECONDS));
+        // each successful write is committed exactly once
+        assertEquals(3L, db.queryLong("select count(*) from event"));
+        assertEquals(8L, db.queryLong("select sum(item_id) from event"));
+        assertTrue(executor.getRetriedGroupCount() >= 1L);
+        assertEquals(0, db.openLinkCount());
+    }
+
+    @Test
+    public void testFailedCommitFailsTheWholeGroup() throws Exception {
+        final GroupCommitExecutor executor = new GroupCommitExecutor(db.provider, 5000000L, 4);
+        db.failCommits = true;
+        final List<Future<Long>> futures = submitConcurrently(executor, 1L, 2L, 3L, 4L);
+        for (final Future<Long> future : futures) {
+            final Throwable failure = failure(future);
+            assertTrue(String.valueOf(failure), failure instanceof DatabaseException);
+        }
+        assertEquals(0L, db.queryLong("select count(*) from event"));
+        assertEquals(0, db.openLinkCount());
+    }
+
+    @Test
+    public void testFailedLinkFailsTheGroup() {
+        final GroupCommitExecutor executor = new GroupCommitExecutor(db.provider, 0L, 10);
+        db.failLinks = true;
+        try {
+            executor.execute(insert(1L));
+            fail("A write without a link succeeded");
+        }
+        catch (DatabaseException e) {
+            // expected
+        }
+        db.failLinks = false;
+        assertEquals(Long.valueOf(2L), executor.execute(insert(2L)));
+        assertEquals(2L, executor.getGroupCount());
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.data.jdbc.HedgedReader;
+import com.gurucue.recommendations.data.jdbc.JdbcDataLink;
+import com.gurucue.recommendations.data.jdbc.JdbcLinkFactory;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizerLong;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPool;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPoolSettings;
+import com.gurucue.recommendations.data.jdbc.ResultProcessor;
+import com.gurucue.recommendations.data.jdbc.SimplePreparedStatementWrapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests hedged reads with {@link HedgedReader}, the first attempt going to a slow database and the
+ * second attempt to a fast one.
+ */
+public class HedgedReaderTest {
+    // the query waits for the delay configured in the database it runs on
+    private static final String SQL = "select p.title from product p, delay d where p.id = ? and pause(d.millis) = 0";
+    private TestDatabase slow;
+    private TestDatabase fast;
+    private ExecutorService executor;
+
+    /**
+     * Sleeps in a query, called by the database.
+     *
+     * @param millis how long to sleep
+     * @return zero
+     */
+    public static int pause(final int millis) throws InterruptedException {
+        if (millis > 0) Thread.sleep(millis);
+        return 0;
+    }
+
+    private static TestDatabase database(final int delayMillis, final String titlePrefix) throws SQLException {
+        final TestDatabase db = new TestDatabase();
+        db.update("create alias pause for \"" + HedgedReaderTest.class.getName() + ".pause\"");
+        db.update("create table delay (millis int not null)");
+        db.update("insert into delay (millis) values (" + delayMillis + ")");
+        db.update("update product set title = '" + titlePrefix + "' || id");
+        return db;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        slow = database(0, "slow ");
+        fast = database(0, "fast ");
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        executor.awaitTermination(10L, TimeUnit.SECONDS);
+        slow.close();
+        fast.close();
+    }
+
+    private static final ResultProcessor<String, Long> titleProcessor = new ResultProcessor<String, Long>() {
+        @Override
+        public String process(final ResultSet resultSet, final Long parameters) throws SQLException {
+            return resultSet.next() ? resultSet.getString(1) : null;
+        }
+    };
+
+    private static PreparedStatementPool pool(final TestDatabase db) {
+        return new PreparedStatementPool(db.provider, SQL, new PreparedStatementPoolSettings().setReturnInline(true).setReprepareAfterUses(0));
+    }
+
+    private HedgedReader<String, Long> reader(final PreparedStatementPool[] pools, final double budgetPercent, final long initialDelayMillis) {
+        return new HedgedReader<>(pools, new PreparedStatementParameterizerLong(), titleProcessor, 95.0, 1L, initialDelayMillis, budgetPercent, executor);
+    }
+
+    @Test
+    public void testFastPrimaryIsNotHedged() {
+        try (final PreparedStatementPool slowPool = pool(slow); final PreparedStatementPool fastPool = pool(fast)) {
+            final HedgedReader<String, Long> reader = reader(new PreparedStatementPool[]{slowPool, fastPool}, 100.0, 1000L);
+            for (long id = 1L; id <= 10L; id++) assertEquals("slow " + id, reader.execute(id));
+            assertEquals(10L, reader.getExecutionCount());
+            assertEquals(0L, reader.getHedgeCount());
+            assertEquals(1, slowPool.getSize());
+            assertEquals(0, fastPool.getSize());
+        }
+    }
+
+    @Test
+    public void testHedgeWinsAndCancelledConnectionIsDiscarded() throws SQLException {
+        slow.update("update delay set millis = 500");
+        try (final PreparedStatementPool slowPool = pool(slow); final PreparedStatementPool fastPool = pool(fast)) {
+            final HedgedReader<String, Long> reader = reader(new PreparedStatementPool[]{slowPool, fastPool}, 100.0, 20L);
+            assertEquals("fast 3", reader.execute(3L));
+            assertEquals(1L, reader.getHedgeCount());
+            assertEquals(1L, reader.getHedgeWinCount());
+            // the statement of the cancelled attempt is closed with its connection, not returned to the pool
+            assertEquals(0, slowPool.getSize());
+            assertEquals(0, slowPool.getBorrowedCount());
+            assertEquals(0, slow.openLinkCount());
+            assertEquals(1, fastPool.getSize());
+        }
+    }
+
+    @Test
+    public void testNoHedgesWithoutBudget() throws SQLException {
+        slow.update("update delay set millis = 50");
+        try (final PreparedStatementPool slowPool = pool(slow); final PreparedStatementPool fastPool = pool(fast)) {
+            final HedgedReader<String, Long> reader = reader(new PreparedStatementPool[]{slowPool, fastPool}, 0.0, 1L);
+            assertEquals("slow 4", reader.execute(4L));
+            assertEquals(0L, reader.getHedgeCount());
+            assertEquals(0, fastPool.getSize());
+        }
+    }
+
+    @Test
+    public void testCancelledAttemptsRaiseHedgeDelay() throws SQLException {
+        slow.update("update delay set millis = 20");
+        try (final PreparedStatementPool slowPool = pool(slow); final PreparedStatementPool fastPool = pool(fast)) {
+            final HedgedReader<String, Long> reader = reader(new PreparedStatementPool[]{slowPool, fastPool}, 100.0, 2L);
+            for (int i = 0; i < 256; i++) reader.execute(1L + (i % TestDatabase.PRODUCT_COUNT));
+            assertTrue(reader.getHedgeWinCount() > 0L);
+            // each first attempt ran for at least 20 ms before it finished or was cancelled
+            assertTrue("hedge delay " + reader.getHedgeDelayNanos(), reader.getHedgeDelayNanos() >= TimeUnit.MILLISECONDS.toNanos(10L));
+        }
+    }
+
+    @Test
+    public void testHedgesOnNewLinks() throws SQLException {
+        slow.update("update delay set millis = 500");
+        final AtomicInteger opened = new AtomicInteger(0);
+        final JdbcLinkFactory alternating = new JdbcLinkFactory() {
+            @Override
+            public JdbcDataLink newJdbcDataLink() {
+                return (opened.getAndIncrement() % 2 == 0 ? slow : fast).newLink();
+            }
+        };
+        final SimplePreparedStatementWrapper<String, Long> wrapper = new SimplePreparedStatementWrapper<>(SQL, new PreparedStatementParameterizerLong(), titleProcessor);
+        final HedgedReader<String, Long> reader = new HedgedReader<>(wrapper, alternating, 95.0, 1L, 20L, 100.0, executor);
+        assertEquals("fast 5", reader.execute(5L));
+        assertEquals(1L, reader.getHedgeWinCount());
+        assertEquals(2, opened.get());
+        assertEquals(0, slow.openLinkCount());
+        assertEquals(0, fast.openLinkCount());
+        assertEquals(1, fast.commits.get());
+    }
+}
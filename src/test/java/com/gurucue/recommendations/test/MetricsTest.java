@@ -0,0 +1,111 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.DatabaseException;
+import com.gurucue.recommendations.data.jdbc.CountingJdbcMetrics;
+import com.gurucue.recommendations.data.jdbc.JdbcDataLink;
+import com.gurucue.recommendations.data.jdbc.JdbcMetrics;
+import com.gurucue.recommendations.data.jdbc.JdbcResultSet;
+import com.gurucue.recommendations.data.jdbc.JdbcStatement;
+import com.gurucue.recommendations.data.jdbc.LatencyHistogram;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizerLong;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPool;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPoolSettings;
+import com.gurucue.recommendations.data.jdbc.SimplePreparedStatementWrapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the metrics recorded by the pools and wrappers into {@link CountingJdbcMetrics}.
+ */
+public class MetricsTest {
+    private TestDatabase db;
+    private CountingJdbcMetrics metrics;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestDatabase();
+        metrics = new CountingJdbcMetrics();
+        JdbcMetrics.setDefault(metrics);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        JdbcMetrics.setDefault(null);
+        db.close();
+    }
+
+    @Test
+    public void testPoolMetrics() {
+        final String sql = "select id from product where id <= ?";
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, sql, new PreparedStatementPoolSettings().setReturnInline(true))) {
+            for (int i = 0; i < 3; i++) {
+                try (final JdbcStatement statement = pool.getStatement(); final JdbcResultSet rs = statement.executeQuery(10L)) {
+                    while (rs.next()) ;
+                }
+            }
+        }
+        final CountingJdbcMetrics.Statistics statistics = metrics.getStatistics().get(sql);
+        assertNotNull(statistics);
+        assertEquals(3L, statistics.getExecutionCount());
+        assertEquals(30L, statistics.getRowCount());
+        assertEquals(3L, statistics.getBorrowWaitHistogram().getCount());
+        assertTrue(statistics.getTotalExecutionNanos() > 0L);
+        assertEquals(0L, statistics.getErrorCount());
+    }
+
+    @Test
+    public void testWrapperErrors() {
+        final String sql = "update product set title = null where id = ?";
+        final SimplePreparedStatementWrapper<Void, Long> update = new SimplePreparedStatementWrapper<>(sql, new PreparedStatementParameterizerLong());
+        try (final JdbcDataLink link = db.newLink()) {
+            update.execute(link, 1L);
+            fail("Set a non-null column to null");
+        }
+        catch (DatabaseException e) {
+            // expected
+        }
+        final CountingJdbcMetrics.Statistics statistics = metrics.forStatement(sql);
+        assertEquals(1L, statistics.getExecutionCount());
+        assertEquals(1L, statistics.getErrorCount());
+        assertEquals(1L, statistics.getPrepareCount());
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0L, histogram.getPercentileNanos(99.0));
+        for (int i = 0; i < 99; i++) histogram.record(1000L);
+        histogram.record(1000000L);
+        assertEquals(100L, histogram.getCount());
+        assertEquals(1023L, histogram.getPercentileNanos(50.0));
+        assertEquals(1023L, histogram.getPercentileNanos(99.0));
+        assertEquals((1L << 20) - 1L, histogram.getPercentileNanos(100.0));
+    }
+
+    @Test
+    public void testSameStatisticsForSameName() {
+        assertSame(metrics.forStatement("a"), metrics.forStatement("a"));
+        assertNotSame(metrics.forStatement("a"), metrics.forStatement("b"));
+    }
+}
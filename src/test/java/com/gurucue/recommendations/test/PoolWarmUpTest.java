@@ -0,0 +1,169 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.data.jdbc.JdbcResultSet;
+import com.gurucue.recommendations.data.jdbc.JdbcStatement;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPool;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPoolSettings;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementProcessor;
+import com.gurucue.recommendations.data.jdbc.SharedConnectionPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests opening the statements of a {@link PreparedStatementPool} in the background before they are borrowed.
+ */
+public class PoolWarmUpTest {
+    private static final String SQL = "select title from product where id = ?";
+    private TestDatabase db;
+    private final AtomicInteger primed = new AtomicInteger(0);
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestDatabase();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.close();
+    }
+
+    private final PreparedStatementProcessor<Void, Void> primingQuery = new PreparedStatementProcessor<Void, Void>() {
+        @Override
+        public Void process(final PreparedStatement statement, final Void parameters) throws SQLException {
+            statement.setLong(1, 1L);
+            try (final ResultSet rs = statement.executeQuery()) {
+                assertTrue(rs.next());
+            }
+            primed.incrementAndGet();
+            return null;
+        }
+    };
+
+    private static final PreparedStatementProcessor<Void, Void> failingQuery = new PreparedStatementProcessor<Void, Void>() {
+        @Override
+        public Void process(final PreparedStatement statement, final Void parameters) throws SQLException {
+            throw new SQLException("Priming failed on purpose");
+        }
+    };
+
+    @Test
+    public void testWarmUpFromSettings() throws Exception {
+        final PreparedStatementPoolSettings settings = new PreparedStatementPoolSettings().setMaxSize(8).setReturnInline(true)
+                .setWarmUpSize(5).setWarmUpParallelism(2).setWarmUpQuery(primingQuery);
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, SQL, settings)) {
+            assertTrue(pool.awaitReady(10000L));
+            assertTrue(pool.isReady());
+            assertEquals(Integer.valueOf(5), pool.getReadiness().get());
+            assertEquals(5, pool.getSize());
+            assertEquals(5, pool.getIdleCount());
+            assertEquals(5, primed.get());
+            assertEquals(5, db.openedLinks.get());
+            // the first borrowers get the warmed up statements, without opening links
+            final JdbcStatement[] statements = new JdbcStatement[5];
+            for (int i = 0; i < statements.length; i++) {
+                statements[i] = pool.getStatement();
+                try (final JdbcResultSet rs = statements[i].executeQuery((long) i + 1L)) {
+                    assertTrue(rs.next());
+                    assertEquals("Product " + (i + 1), rs.getString(1));
+                }
+            }
+            for (final JdbcStatement statement : statements) statement.close();
+            assertEquals(5, db.openedLinks.get());
+        }
+        assertEquals(0, db.openLinkCount());
+    }
+
+    @Test
+    public void testWarmUpIsLimitedByTheMaximumSize() throws Exception {
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, SQL, new PreparedStatementPoolSettings().setMaxSize(3))) {
+            assertEquals(Integer.valueOf(3), pool.warmUp(10, 4, null).get(10L, TimeUnit.SECONDS));
+            assertEquals(3, pool.getSize());
+            // nothing is missing anymore
+            assertEquals(Integer.valueOf(0), pool.warmUp(3).get(10L, TimeUnit.SECONDS));
+            assertEquals(3, db.openedLinks.get());
+        }
+        assertEquals(0, db.openLinkCount());
+    }
+
+    @Test
+    public void testFailedWarmUpIsNotReady() throws Exception {
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, SQL)) {
+            assertTrue(pool.isReady());
+            db.failLinks = true;
+            pool.warmUp(4, 2, null);
+            assertFalse(pool.awaitReady(10000L));
+            assertTrue(pool.getReadiness().isCompletedExceptionally());
+            // the room reserved for the failed statements is released
+            assertEquals(0, pool.getSize());
+            db.failLinks = false;
+            assertEquals(Integer.valueOf(4), pool.warmUp(4).get(10L, TimeUnit.SECONDS));
+            assertTrue(pool.isReady());
+        }
+        assertEquals(0, db.openLinkCount());
+    }
+
+    @Test
+    public void testFailedWarmUpQueryClosesTheStatement() throws Exception {
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, SQL)) {
+            try {
+                pool.warmUp(2, 1, failingQuery).get(10L, TimeUnit.SECONDS);
+                fail("A failed warm-up completed");
+            }
+            catch (ExecutionException e) {
+                assertTrue(e.getCause().getMessage().contains("Priming failed on purpose"));
+            }
+            assertFalse(pool.isReady());
+            assertEquals(0, pool.getSize());
+            assertEquals(0, db.openLinkCount());
+        }
+    }
+
+    @Test
+    public void testRejectsInvalidWarmUps() {
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, SQL)) {
+            try {
+                pool.warmUp(2, 0, null);
+                fail("A warm-up without parallelism was accepted");
+            }
+            catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        try (final SharedConnectionPool shared = new SharedConnectionPool(db.provider, new PreparedStatementPoolSettings());
+             final PreparedStatementPool pool = new PreparedStatementPool(shared, SQL)) {
+            pool.warmUp(2);
+            fail("A pool of shared connections was warmed up on its own");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.data.jdbc.CountingJdbcMetrics;
+import com.gurucue.recommendations.data.jdbc.JdbcDataLink;
+import com.gurucue.recommendations.data.jdbc.JdbcMetrics;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementCache;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizerLong;
+import com.gurucue.recommendations.data.jdbc.ResultProcessor;
+import com.gurucue.recommendations.data.jdbc.SimplePreparedStatementWrapper;
+import com.gurucue.recommendations.data.jdbc.UnitOfWork;
+import com.sun.management.ThreadMXBean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests {@link PreparedStatementCache} and its use by the statement wrappers.
+ */
+public class PreparedStatementCacheTest {
+    private static final String SQL = "select title from product where id = ?";
+    private static final ResultProcessor<String, Long> TITLE = new ResultProcessor<String, Long>() {
+        @Override
+        public String process(final ResultSet resultSet, final Long parameters) throws SQLException {
+            return resultSet.next() ? resultSet.getString(1) : null;
+        }
+    };
+    private TestDatabase db;
+    private CountingJdbcMetrics metrics;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestDatabase();
+        metrics = new CountingJdbcMetrics();
+        JdbcMetrics.setDefault(metrics);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        JdbcMetrics.setDefault(null);
+        PreparedStatementCache.setDefaultMaxSize(PreparedStatementCache.DEFAULT_MAX_SIZE);
+        db.close();
+    }
+
+    @Test
+    public void testUnitOfWorkCachesStatementsOfLinkWithoutOwnCache() throws SQLException {
+        db.pooledConnections = true;
+        final SimplePreparedStatementWrapper<String, Long> wrapper = new SimplePreparedStatementWrapper<>(SQL, new PreparedStatementParameterizerLong(), TITLE);
+        try (final UnitOfWork unit = UnitOfWork.begin(db.provider)) {
+            assertNull(unit.getLink().getPreparedStatementCache());
+            for (long id = 1L; id <= 3L; id++) assertEquals("Product " + id, wrapper.execute(id));
+            final PreparedStatementCache cache = PreparedStatementCache.forLink(unit.getLink());
+            assertSame(cache, PreparedStatementCache.forLink(unit.getLink()));
+            assertEquals(1, cache.size());
+            assertEquals(2L, cache.getHitCount());
+            assertEquals(1L, metrics.forStatement(SQL).getPrepareCount());
+            assertEquals(1, db.openStatementCount());
+            unit.commit();
+        }
+        // the unit of work closes its cache, although the connection stays open
+        assertEquals(0, db.openStatementCount());
+    }
+
+    @Test
+    public void testNoStatementsStayOpenOnPooledConnections() throws SQLException {
+        db.pooledConnections = true;
+        final SimplePreparedStatementWrapper<String, Long> wrapper = new SimplePreparedStatementWrapper<>(SQL, new PreparedStatementParameterizerLong(), TITLE);
+        for (long id = 1L; id <= 5L; id++) {
+            try (final JdbcDataLink link = db.newLink()) {
+                assertNull(PreparedStatementCache.forLink(link));
+                assertEquals("Product " + id, wrapper.execute(link, id));
+                assertEquals("Product " + id, wrapper.executeLong(link, id));
+            }
+        }
+        assertEquals(0, db.openLinkCount());
+        assertEquals(0, db.openStatementCount());
+        assertEquals(10L, metrics.forStatement(SQL).getPrepareCount());
+    }
+
+    @Test
+    public void testDisabledDefaultCache() throws SQLException {
+        PreparedStatementCache.setDefaultMaxSize(0);
+        final SimplePreparedStatementWrapper<String, Long> wrapper = new SimplePreparedStatementWrapper<>(SQL, new PreparedStatementParameterizerLong(), TITLE);
+        try (final UnitOfWork unit = UnitOfWork.begin(db.provider)) {
+            assertNull(PreparedStatementCache.forLink(unit.getLink()));
+            assertEquals("Product 1", wrapper.execute(1L));
+            assertEquals("Product 2", wrapper.execute(2L));
+            assertEquals(2L, metrics.forStatement(SQL).getPrepareCount());
+            assertEquals(0, db.openStatementCount());
+        }
+    }
+
+    @Test
+    public void testReleaseResetsStatement() throws SQLException {
+        final PreparedStatementCache cache = new PreparedStatementCache(4);
+        try (final JdbcDataLink link = db.newLink()) {
+            final PreparedStatement first = cache.acquire(link, "select id from product", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            final int defaultFetchSize = first.getFetchSize();
+            first.setFetchSize(defaultFetchSize + 7);
+            first.setMaxRows(5);
+            first.setQueryTimeout(3);
+            assertTrue(first.execute());
+            final ResultSet open = first.getResultSet();
+            assertTrue(open.next());
+            cache.release("select id from product", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, first);
+            assertTrue(open.isClosed());
+
+            final PreparedStatement second = cache.acquire(link, "select id from product", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            assertSame(first, second);
+            assertEquals(0, second.getMaxRows());
+            assertEquals(0, second.getQueryTimeout());
+            assertEquals(defaultFetchSize, second.getFetchSize());
+            try (final ResultSet rs = second.executeQuery()) {
+                int rows = 0;
+                while (rs.next()) rows++;
+                assertEquals(TestDatabase.PRODUCT_COUNT, rows);
+            }
+            cache.release("select id from product", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, second);
+            assertEquals(1, cache.size());
+        }
+        cache.close();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testNestedAcquireGetsOwnStatement() throws SQLException {
+        final PreparedStatementCache cache = new PreparedStatementCache(4);
+        try (final JdbcDataLink link = db.newLink()) {
+            final PreparedStatement outer = cache.acquire(link, SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            final PreparedStatement nested = cache.acquire(link, SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            assertNotSame(outer, nested);
+            cache.release(SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, nested);
+            assertTrue(nested.isClosed());
+            cache.release(SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, outer);
+            assertFalse(outer.isClosed());
+            assertSame(outer, cache.acquire(link, SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY));
+            assertEquals(1, cache.size());
+            cache.close(); // a borrowed statement stays open until it is released
+            assertFalse(outer.isClosed());
+            cache.release(SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, outer);
+            assertTrue(outer.isClosed());
+        }
+    }
+
+    @Test
+    public void testEvictedBorrowedStatementIsClosedOnRelease() throws SQLException {
+        final PreparedStatementCache cache = new PreparedStatementCache(1);
+        try (final JdbcDataLink link = db.newLink()) {
+            final PreparedStatement first = cache.acquire(link, SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            final PreparedStatement second = cache.acquire(link, "select id from product", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            assertEquals(1L, cache.getEvictionCount());
+            assertFalse(first.isClosed());
+            cache.release(SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, first);
+            assertTrue(first.isClosed());
+            cache.release("select id from product", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, second);
+            assertFalse(second.isClosed());
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testCacheHitAllocatesNothing() throws SQLException {
+        final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof ThreadMXBean);
+        final ThreadMXBean allocations = (ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+        final PreparedStatementCache cache = new PreparedStatementCache(4);
+        final String sql = "select id from product";
+        try (final JdbcDataLink link = db.newLink()) {
+            for (int i = 0; i < 200000; i++) acquireAndRelease(cache, link, sql); // warm up the JIT
+            final long threadId = Thread.currentThread().getId();
+            final long before = allocations.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < 100000; i++) acquireAndRelease(cache, link, sql);
+            final long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+            // a lookup key per call would be several megabytes, allow for the driver and the measurement itself
+            assertTrue("Cache hits allocated " + allocated + " bytes", allocated < 100000L);
+            assertEquals(1L, cache.getMissCount());
+            cache.close();
+        }
+    }
+
+    private static void acquireAndRelease(final PreparedStatementCache cache, final JdbcDataLink link, final String sql) {
+        final PreparedStatement statement = cache.acquire(link, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        cache.release(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, statement);
+    }
+
+    @Test
+    public void testStatementsOfClosedConnectionAreDropped() throws SQLException {
+        final PreparedStatementCache cache = new PreparedStatementCache(4);
+        final JdbcDataLink first = db.newLink();
+        final PreparedStatement stale = cache.acquire(first, SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        cache.release(SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, stale);
+        first.getConnection().close();
+        try (final JdbcDataLink second = db.newLink()) {
+            final PreparedStatement fresh = cache.acquire(second, SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            assertNotSame(stale, fresh);
+            assertFalse(fresh.isClosed());
+            assertEquals(2L, cache.getMissCount());
+            fresh.close();
+        }
+        first.close();
+    }
+}
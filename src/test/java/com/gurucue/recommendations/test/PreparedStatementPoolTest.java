@@ -0,0 +1,183 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.DatabaseException;
+import com.gurucue.recommendations.data.jdbc.JdbcResultSet;
+import com.gurucue.recommendations.data.jdbc.JdbcStatement;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPool;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPoolSettings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the sizing, blocking borrow and idle eviction of {@link PreparedStatementPool}.
+ */
+public class PreparedStatementPoolTest {
+    private static final String SQL = "select title from product where id = ?";
+    private TestDatabase db;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestDatabase();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void testBorrowAndReuse() {
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, SQL, new PreparedStatementPoolSettings().setReturnInline(true))) {
+            for (int i = 1; i <= 5; i++) {
+                try (final JdbcStatement statement = pool.getStatement()) {
+                    statement.setLong(1, i);
+                    try (final JdbcResultSet rs = statement.executeQuery()) {
+                        assertTrue(rs.next());
+                        assertEquals("Product " + i, rs.getString(1));
+                    }
+                }
+            }
+            assertEquals(1, pool.getSize());
+            assertEquals(0, pool.getBorrowedCount());
+            assertEquals(5L, pool.getBorrowCount());
+            assertEquals(1, db.openedLinks.get());
+        }
+    }
+
+    @Test
+    public void testBorrowTimesOutAtMaxSize() {
+        final PreparedStatementPoolSettings settings = new PreparedStatementPoolSettings().setMaxSize(2).setBorrowTimeoutMillis(100L).setReturnInline(true);
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, SQL, settings)) {
+            final JdbcStatement first = pool.getStatement();
+            final JdbcStatement second = pool.getStatement();
+            final long start = System.nanoTime();
+            try {
+                pool.getStatement().close();
+                fail("Borrowed more statements than the maximum pool size");
+            }
+            catch (DatabaseException e) {
+                assertTrue((System.nanoTime() - start) >= 90000000L);
+            }
+            assertEquals(1L, pool.getBorrowTimeoutCount());
+            assertEquals(2, pool.getSize());
+            first.close();
+            second.close();
+            assertEquals(2, pool.getIdleCount());
+        }
+    }
+
+    @Test
+    public void testBlockedBorrowGetsReturnedStatement() throws Exception {
+        final PreparedStatementPoolSettings settings = new PreparedStatementPoolSettings().setMaxSize(1).setBorrowTimeoutMillis(5000L).setReturnInline(true);
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, SQL, settings)) {
+            final JdbcStatement held = pool.getStatement();
+            final Thread returner = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(100L);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    held.close();
+                }
+            });
+            returner.start();
+            try (final JdbcStatement statement = pool.getStatement()) {
+                assertSame(held, statement);
+            }
+            returner.join();
+            assertEquals(1, pool.getSize());
+            assertTrue(pool.getMaxBorrowWaitNanos() > 0L);
+        }
+    }
+
+    @Test
+    public void testIdleEvictionKeepsMinimumSize() throws Exception {
+        final PreparedStatementPoolSettings settings = new PreparedStatementPoolSettings().setMinSize(1).setMaxSize(4)
+                .setIdleTimeoutMillis(50L).setEvictionIntervalMillis(20L).setReturnInline(true);
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, SQL, settings)) {
+            final JdbcStatement[] statements = new JdbcStatement[4];
+            for (int i = 0; i < statements.length; i++) statements[i] = pool.getStatement();
+            for (final JdbcStatement statement : statements) statement.close();
+            assertEquals(4, pool.getSize());
+            final long deadline = System.currentTimeMillis() + 5000L;
+            while ((pool.getSize() > 1) && (System.currentTimeMillis() < deadline)) Thread.sleep(10L);
+            assertEquals(1, pool.getSize());
+            assertEquals(3L, pool.getEvictionCount());
+            assertEquals(1, db.openLinkCount());
+        }
+        assertEquals(0, db.openLinkCount());
+    }
+
+    @Test
+    public void testConcurrentBorrowAndEvictionLoseNoStatements() throws Exception {
+        // the maintenance commits and validates idle statements all the time, racing with the borrowers
+        final PreparedStatementPoolSettings settings = new PreparedStatementPoolSettings().setMaxSize(4).setStripeCount(1)
+                .setBorrowTimeoutMillis(5000L).setReturnInline(true).setReprepareAfterUses(0).setCommitAfterUses(1000)
+                .setKeepaliveIntervalMillis(1L).setEvictionIntervalMillis(1L);
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, SQL, settings)) {
+            final AtomicInteger failures = new AtomicInteger(0);
+            final long deadline = System.currentTimeMillis() + 1500L;
+            final Thread[] borrowers = new Thread[8];
+            for (int i = 0; i < borrowers.length; i++) {
+                borrowers[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        long id = 1L;
+                        while (System.currentTimeMillis() < deadline) {
+                            try (final JdbcStatement statement = pool.getStatement()) {
+                                try (final JdbcResultSet rs = statement.executeQuery(id)) {
+                                    if (!rs.next()) failures.incrementAndGet();
+                                }
+                            }
+                            catch (RuntimeException e) {
+                                failures.incrementAndGet();
+                            }
+                            id = (id % TestDatabase.PRODUCT_COUNT) + 1L;
+                        }
+                    }
+                });
+                borrowers[i].start();
+            }
+            for (final Thread borrower : borrowers) borrower.join();
+            assertEquals(0, failures.get());
+            assertEquals(0L, pool.getBorrowTimeoutCount());
+            // every statement of the pool can still be borrowed at the same time
+            final JdbcStatement[] statements = new JdbcStatement[pool.getSize()];
+            for (int i = 0; i < statements.length; i++) statements[i] = pool.getStatement();
+            for (final JdbcStatement statement : statements) statement.close();
+            assertTrue(pool.getSize() <= 4);
+        }
+        assertEquals(0, db.openLinkCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsMinSizeAboveMaxSize() {
+        new PreparedStatementPool(db.provider, SQL, new PreparedStatementPoolSettings().setMinSize(3).setMaxSize(2));
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.data.jdbc.JdbcDataLink;
+import com.gurucue.recommendations.data.jdbc.ParameterLongLong;
+import com.gurucue.recommendations.data.jdbc.ParameterLongString;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizer;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizerInt;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizerLong;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizerLongLong;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizerLongString;
+import com.gurucue.recommendations.data.jdbc.ResultProcessor;
+import com.gurucue.recommendations.data.jdbc.ResultProcessorOfLong;
+import com.gurucue.recommendations.data.jdbc.SimplePreparedStatementWrapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the primitive entry points of {@link SimplePreparedStatementWrapper}.
+ */
+public class PrimitiveParameterTest {
+    private static final String TITLE_SQL = "select title from product where id = ?";
+    private TestDatabase db;
+    private JdbcDataLink link;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestDatabase();
+        link = db.newLink();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        link.close();
+        db.close();
+    }
+
+    /** Returns the title together with the parameter it was given. */
+    static final class TitleProcessor implements ResultProcessor<String, Long> {
+        @Override
+        public String process(final ResultSet resultSet, final Long parameters) throws SQLException {
+            return (resultSet.next() ? resultSet.getString(1) : null) + " for boxed " + parameters;
+        }
+    }
+
+    static final class PrimitiveTitleProcessor implements ResultProcessor<String, Long>, ResultProcessorOfLong<String> {
+        @Override
+        public String process(final ResultSet resultSet, final Long parameters) throws SQLException {
+            return (resultSet.next() ? resultSet.getString(1) : null) + " for boxed " + parameters;
+        }
+
+        @Override
+        public String process(final ResultSet resultSet, final long parameter) throws SQLException {
+            return (resultSet.next() ? resultSet.getString(1) : null) + " for primitive " + parameter;
+        }
+    }
+
+    @Test
+    public void testBoxedCallStillUsesObjectParameter() {
+        final SimplePreparedStatementWrapper<String, Long> wrapper = new SimplePreparedStatementWrapper<>(TITLE_SQL, new PreparedStatementParameterizerLong(), new TitleProcessor());
+        // a long literal must resolve to execute(link, P), giving the processor its parameter
+        assertEquals("Product 5 for boxed 5", wrapper.execute(link, 5L));
+    }
+
+    @Test
+    public void testExecuteLongPassesPrimitiveToPrimitiveProcessor() {
+        final SimplePreparedStatementWrapper<String, Long> wrapper = new SimplePreparedStatementWrapper<>(TITLE_SQL, new PreparedStatementParameterizerLong(), new PrimitiveTitleProcessor());
+        assertEquals("Product 6 for primitive 6", wrapper.executeLong(link, 6L));
+    }
+
+    @Test
+    public void testExecuteLongBoxesForPlainProcessor() {
+        final SimplePreparedStatementWrapper<String, Long> wrapper = new SimplePreparedStatementWrapper<>(TITLE_SQL, new PreparedStatementParameterizerLong(), new TitleProcessor());
+        assertEquals("Product 7 for boxed 7", wrapper.executeLong(link, 7L));
+    }
+
+    @Test
+    public void testExecuteLongWithPlainParameterizer() {
+        final SimplePreparedStatementWrapper<String, Long> wrapper = new SimplePreparedStatementWrapper<>(TITLE_SQL, new PreparedStatementParameterizer<Long>() {
+            @Override
+            public void execute(final PreparedStatement statement, final Long parameter) throws SQLException {
+                statement.setLong(1, parameter);
+            }
+        }, new TitleProcessor());
+        assertEquals("Product 8 for boxed 8", wrapper.executeLong(link, 8L));
+    }
+
+    @Test
+    public void testExecuteInt() {
+        final SimplePreparedStatementWrapper<String, Integer> wrapper = new SimplePreparedStatementWrapper<>(TITLE_SQL, new PreparedStatementParameterizerInt(), new ResultProcessor<String, Integer>() {
+            @Override
+            public String process(final ResultSet resultSet, final Integer parameters) throws SQLException {
+                assertEquals(Integer.valueOf(9), parameters);
+                return resultSet.next() ? resultSet.getString(1) : null;
+            }
+        });
+        assertEquals("Product 9", wrapper.executeInt(link, 9));
+    }
+
+    @Test
+    public void testExecuteLongString() {
+        final SimplePreparedStatementWrapper<Boolean, ParameterLongString> wrapper = new SimplePreparedStatementWrapper<>("select id from product where id = ? and title = ?", new PreparedStatementParameterizerLongString(), new ResultProcessor<Boolean, ParameterLongString>() {
+            @Override
+            public Boolean process(final ResultSet resultSet, final ParameterLongString parameters) throws SQLException {
+                assertEquals(new ParameterLongString(10L, "Product 10"), parameters);
+                return resultSet.next();
+            }
+        });
+        assertTrue(wrapper.executeLongString(link, 10L, "Product 10"));
+    }
+
+    @Test
+    public void testExecuteLongLong() {
+        final SimplePreparedStatementWrapper<Long, ParameterLongLong> wrapper = new SimplePreparedStatementWrapper<>("select count(*) from product where id between ? and ?", new PreparedStatementParameterizerLongLong(), new ResultProcessor<Long, ParameterLongLong>() {
+            @Override
+            public Long process(final ResultSet resultSet, final ParameterLongLong parameters) throws SQLException {
+                assertEquals(new ParameterLongLong(11L, 20L), parameters);
+                return resultSet.next() ? resultSet.getLong(1) : null;
+            }
+        });
+        assertEquals(Long.valueOf(10L), wrapper.executeLongLong(link, 11L, 20L));
+        assertEquals(Long.valueOf(10L), wrapper.execute(link, new ParameterLongLong(11L, 20L)));
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.data.jdbc.JdbcDataLink;
+import com.gurucue.recommendations.data.jdbc.QuerySnapshot;
+import com.gurucue.recommendations.data.jdbc.ResultProcessor;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests writing query snapshots and loading the rows from them instead of the database.
+ */
+public class QuerySnapshotTest {
+    private static final String WATERMARK_SQL = "select version from product_version";
+    private static final String PRODUCT_SQL = "select id, title, score, created from product order by id";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+    private TestDatabase db;
+    private JdbcDataLink link;
+    private Path file;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestDatabase();
+        db.update("create table product_version (version bigint not null)");
+        db.update("insert into product_version (version) values (1)");
+        link = db.newLink();
+        file = folder.getRoot().toPath().resolve("products.snapshot");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        link.close();
+        db.close();
+    }
+
+    /** Collects the titles, remembering the result set it was given. */
+    static final class TitleProcessor implements ResultProcessor<List<String>, Void> {
+        ResultSet resultSet;
+
+        @Override
+        public List<String> process(final ResultSet resultSet, final Void parameters) throws SQLException {
+            this.resultSet = resultSet;
+            final List<String> titles = new ArrayList<>();
+            while (resultSet.next()) titles.add(resultSet.getString("title"));
+            return titles;
+        }
+    }
+
+    private List<String> loadTitles() {
+        return QuerySnapshot.load(link, file, WATERMARK_SQL, PRODUCT_SQL, null, new TitleProcessor());
+    }
+
+    @Test
+    public void testServesRowsFromSnapshotUntilWatermarkChanges() throws Exception {
+        assertFalse(Files.exists(file));
+        assertEquals(TestDatabase.PRODUCT_COUNT, loadTitles().size());
+        assertTrue(Files.exists(file));
+        // the snapshot is as fresh as the watermark says, so the change is not seen
+        db.update("update product set title = 'Changed' where id = 1");
+        assertEquals("Product 1", loadTitles().get(0));
+        db.update("update product_version set version = 2");
+        assertEquals("Changed", loadTitles().get(0));
+        try (final QuerySnapshot snapshot = QuerySnapshot.open(file)) {
+            assertEquals(2L, snapshot.getWatermark());
+            assertEquals(TestDatabase.PRODUCT_COUNT, snapshot.getRowCount());
+        }
+    }
+
+    @Test
+    public void testLoadClosesResultSetAndMapping() throws Exception {
+        final TitleProcessor processor = new TitleProcessor();
+        QuerySnapshot.load(link, file, WATERMARK_SQL, PRODUCT_SQL, null, processor);
+        assertTrue(processor.resultSet.isClosed());
+        QuerySnapshot.load(link, file, WATERMARK_SQL, PRODUCT_SQL, null, processor);
+        assertTrue(processor.resultSet.isClosed());
+        assertFalse("The snapshot is still mapped after it was loaded", isMapped(file));
+        // the stale snapshot is released before it is replaced
+        db.update("update product_version set version = 2");
+        QuerySnapshot.load(link, file, WATERMARK_SQL, PRODUCT_SQL, null, processor);
+        assertFalse("The snapshot is still mapped after it was replaced", isMapped(file));
+    }
+
+    @Test
+    public void testMappingIsReleasedWhenLastResultSetCloses() throws Exception {
+        loadTitles();
+        final QuerySnapshot snapshot = QuerySnapshot.open(file);
+        final ResultSet first = snapshot.asResultSet();
+        final ResultSet second = snapshot.asResultSet();
+        assertTrue(first.next());
+        snapshot.close();
+        try {
+            snapshot.asResultSet();
+            fail("A closed snapshot created a result set");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        // the open result sets can still be read
+        assertTrue(isMapped(file));
+        assertEquals(1L, first.getLong(1));
+        assertTrue(first.next());
+        assertEquals("Product 2", first.getString("title"));
+        first.close();
+        assertTrue(isMapped(file));
+        assertTrue(second.next());
+        assertEquals(1L, second.getLong(1));
+        second.close();
+        assertFalse(isMapped(file));
+        try {
+            second.next();
+            fail("A closed result set was read");
+        }
+        catch (SQLException e) {
+            // expected
+        }
+        second.close();
+        snapshot.close();
+    }
+
+    @Test
+    public void testTypedGettersAndUnsupportedMethods() throws Exception {
+        loadTitles();
+        try (final QuerySnapshot snapshot = QuerySnapshot.open(file)) {
+            final ResultSet rs = snapshot.asResultSet();
+            assertFalse(Proxy.isProxyClass(rs.getClass()));
+            assertTrue(rs.next());
+            assertEquals(1, rs.getInt("id"));
+            assertEquals("1", rs.getString(1));
+            assertEquals(Long.valueOf(1L), rs.getObject(1, Long.class));
+            assertEquals(new BigDecimal("1"), rs.getBigDecimal(1));
+            assertEquals(0.1, rs.getDouble(3), 1e-9);
+            assertEquals(0, rs.getInt(3));
+            assertEquals(new Timestamp(1500000001000L), rs.getObject("created", Timestamp.class));
+            try {
+                rs.getTimestamp(2);
+                fail("A string was read as a timestamp");
+            }
+            catch (SQLException e) {
+                // expected
+            }
+            try {
+                rs.previous();
+                fail("A forward-only snapshot result set moved backwards");
+            }
+            catch (SQLFeatureNotSupportedException e) {
+                // expected
+            }
+            try {
+                rs.getMetaData();
+                fail("A snapshot result set has metadata");
+            }
+            catch (SQLFeatureNotSupportedException e) {
+                // expected
+            }
+            rs.close();
+        }
+    }
+
+    @Test
+    public void testColumnTypesRoundTrip() throws Exception {
+        db.update("update product set score = null where id = 2");
+        final List<Object[]> rows = QuerySnapshot.load(link, file, WATERMARK_SQL, PRODUCT_SQL, null, new ResultProcessor<List<Object[]>, Void>() {
+            @Override
+            public List<Object[]> process(final ResultSet resultSet, final Void parameters) throws SQLException {
+                final List<Object[]> rows = new ArrayList<>();
+                while (resultSet.next()) {
+                    final double score = resultSet.getDouble(3);
+                    final Double nullableScore = resultSet.wasNull() ? null : score;
+                    rows.add(new Object[]{resultSet.getLong(1), resultSet.getString(2), nullableScore, resultSet.getTimestamp(4)});
+                }
+                return rows;
+            }
+        });
+        assertEquals(TestDatabase.PRODUCT_COUNT, rows.size());
+        assertEquals(1L, rows.get(0)[0]);
+        assertEquals("Product 1", rows.get(0)[1]);
+        assertEquals(0.1, (Double) rows.get(0)[2], 1e-9);
+        assertEquals(new Timestamp(1500000001000L), rows.get(0)[3]);
+        assertNull(rows.get(1)[2]);
+    }
+
+    @Test
+    public void testTimeZoneIsPreserved() throws Exception {
+        db.update("create table schedule (id bigint primary key, starts timestamp with time zone)");
+        db.update("insert into schedule (id, starts) values (1, '2017-07-14 10:00:00+02:00')");
+        final String sql = "select id, starts from schedule";
+        final ResultProcessor<String, Void> processor = new ResultProcessor<String, Void>() {
+            @Override
+            public String process(final ResultSet resultSet, final Void parameters) throws SQLException {
+                assertTrue(resultSet.next());
+                return resultSet.getString("starts");
+            }
+        };
+        final String fromDatabase = QuerySnapshot.load(link, file, WATERMARK_SQL, sql, null, processor);
+        final String fromSnapshot = QuerySnapshot.load(link, file, WATERMARK_SQL, sql, null, processor);
+        assertTrue(fromDatabase, fromDatabase.contains("+02"));
+        assertEquals(fromDatabase, fromSnapshot);
+    }
+
+    // whether the file is memory-mapped by this process, on Linux
+    private static boolean isMapped(final Path file) throws Exception {
+        final Path maps = Paths.get("/proc/self/maps");
+        Assume.assumeTrue(Files.isReadable(maps));
+        final String name = file.toAbsolutePath().toString();
+        for (final String line : Files.readAllLines(maps, StandardCharsets.UTF_8)) {
+            if (line.contains(name)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.DatabaseException;
+import com.gurucue.recommendations.data.jdbc.JdbcDataLink;
+import com.gurucue.recommendations.data.jdbc.JdbcDataProvider;
+import com.gurucue.recommendations.data.jdbc.JdbcResultSet;
+import com.gurucue.recommendations.data.jdbc.JdbcStatement;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPool;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPoolSettings;
+import com.gurucue.recommendations.data.jdbc.ReplicaRouter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests spreading read links over replicas with {@link ReplicaRouter}.
+ */
+public class ReplicaRouterTest {
+    private TestDatabase primary;
+    private TestDatabase first;
+    private TestDatabase second;
+
+    @Before
+    public void setUp() throws Exception {
+        primary = new TestDatabase();
+        first = new TestDatabase();
+        second = new TestDatabase();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        primary.close();
+        first.close();
+        second.close();
+    }
+
+    private ReplicaRouter router(final int[] weights, final ReplicaRouter.Balancing balancing, final long retryAfterMillis) {
+        return new ReplicaRouter(primary.provider, new JdbcDataProvider[]{first.provider, second.provider}, weights, balancing, retryAfterMillis);
+    }
+
+    @Test
+    public void testLeastOutstandingSpreadsLinks() {
+        final ReplicaRouter router = router(null, ReplicaRouter.Balancing.LEAST_OUTSTANDING, 30000L);
+        final List<JdbcDataLink> links = new ArrayList<>();
+        for (int i = 0; i < 6; i++) links.add(router.newJdbcDataLink());
+        assertFalse(Proxy.isProxyClass(links.get(0).getClass()));
+        assertEquals(3, router.getOutstanding(0));
+        assertEquals(3, router.getOutstanding(1));
+        assertEquals(3, first.openLinkCount());
+        assertEquals(3, second.openLinkCount());
+        assertEquals(0, primary.openedLinks.get());
+        for (final JdbcDataLink link : links) {
+            link.close();
+            link.close(); // a second close does not count twice
+        }
+        assertEquals(0, router.getOutstanding(0));
+        assertEquals(0, router.getOutstanding(1));
+        assertEquals(0, first.openLinkCount());
+        assertEquals(0, second.openLinkCount());
+    }
+
+    @Test
+    public void testLeastOutstandingHonoursWeights() {
+        final ReplicaRouter router = router(new int[]{3, 1}, ReplicaRouter.Balancing.LEAST_OUTSTANDING, 30000L);
+        final List<JdbcDataLink> links = new ArrayList<>();
+        for (int i = 0; i < 8; i++) links.add(router.newJdbcDataLink());
+        assertEquals(6, router.getOutstanding(0));
+        assertEquals(2, router.getOutstanding(1));
+        for (final JdbcDataLink link : links) link.close();
+    }
+
+    @Test
+    public void testWeightedRandomPrefersHeavierReplica() {
+        final ReplicaRouter router = router(new int[]{9, 1}, ReplicaRouter.Balancing.WEIGHTED_RANDOM, 30000L);
+        for (int i = 0; i < 200; i++) router.newJdbcDataLink().close();
+        assertEquals(200, first.openedLinks.get() + second.openedLinks.get());
+        assertTrue(first.openedLinks.get() + " vs " + second.openedLinks.get(), first.openedLinks.get() > 3 * second.openedLinks.get());
+        assertEquals(0, primary.openedLinks.get());
+    }
+
+    @Test
+    public void testFailingReplicaIsTakenOutOfRotation() throws Exception {
+        final ReplicaRouter router = router(null, ReplicaRouter.Balancing.LEAST_OUTSTANDING, 1000L);
+        second.failLinks = true;
+        // the links are kept open, so the failing replica has the fewest outstanding links and is tried
+        final List<JdbcDataLink> links = new ArrayList<>();
+        for (int i = 0; i < 4; i++) links.add(router.newJdbcDataLink());
+        for (final JdbcDataLink link : links) link.close();
+        assertEquals(4, first.openedLinks.get());
+        assertEquals(0, second.openedLinks.get());
+        assertFalse(router.isHealthy(1));
+        assertTrue(router.isHealthy(0));
+
+        second.failLinks = false;
+        Thread.sleep(1100L);
+        assertTrue(router.isHealthy(1));
+        final JdbcDataLink a = router.newJdbcDataLink();
+        final JdbcDataLink b = router.newJdbcDataLink();
+        assertEquals(1, router.getOutstanding(0));
+        assertEquals(1, router.getOutstanding(1));
+        a.close();
+        b.close();
+    }
+
+    @Test
+    public void testInvalidReplicaLinkTakesReplicaOutOfRotation() {
+        final ReplicaRouter router = router(null, ReplicaRouter.Balancing.LEAST_OUTSTANDING, 30000L);
+        first.invalidLinks = true;
+        final JdbcDataLink a = router.newJdbcDataLink();
+        final JdbcDataLink b = router.newJdbcDataLink();
+        assertFalse(a.isValid() && b.isValid());
+        assertFalse(router.isHealthy(0));
+        a.close();
+        b.close();
+        for (int i = 0; i < 3; i++) router.newJdbcDataLink().close();
+        assertEquals(1, first.openedLinks.get());
+        assertEquals(4, second.openedLinks.get());
+    }
+
+    @Test
+    public void testReadsFallBackToPrimary() {
+        final ReplicaRouter router = router(null, ReplicaRouter.Balancing.LEAST_OUTSTANDING, 30000L);
+        first.failLinks = true;
+        second.failLinks = true;
+        router.newJdbcDataLink().close();
+        assertEquals(1, primary.openedLinks.get());
+        assertEquals(0, primary.openLinkCount());
+        primary.failLinks = true;
+        try {
+            router.newJdbcDataLink();
+            fail("Opening a link succeeded with no database available");
+        }
+        catch (DatabaseException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testWritesStayOnPrimary() throws SQLException {
+        final ReplicaRouter router = router(null, ReplicaRouter.Balancing.LEAST_OUTSTANDING, 30000L);
+        final JdbcDataLink link = router.newWriteLink();
+        try {
+            link.execute("insert into event (user_id, item_id, score) values (1, 2, 3.0)");
+            link.commit();
+        }
+        finally {
+            link.close();
+        }
+        assertEquals(1L, primary.queryLong("select count(*) from event"));
+        assertEquals(0, first.openedLinks.get() + second.openedLinks.get());
+    }
+
+    @Test
+    public void testReadCommitsAndCloses() {
+        final ReplicaRouter router = router(null, ReplicaRouter.Balancing.LEAST_OUTSTANDING, 30000L);
+        final String title = router.read(new Function<JdbcDataLink, String>() {
+            @Override
+            public String apply(final JdbcDataLink link) {
+                link.execute("select 1");
+                return "read";
+            }
+        });
+        assertEquals("read", title);
+        assertEquals(1, first.commits.get() + second.commits.get());
+        assertEquals(0, first.openLinkCount() + second.openLinkCount());
+        assertEquals(0, router.getOutstanding(0) + router.getOutstanding(1));
+    }
+
+    @Test
+    public void testPoolOpensStatementsOnReplicas() throws SQLException {
+        final ReplicaRouter router = router(null, ReplicaRouter.Balancing.LEAST_OUTSTANDING, 30000L);
+        second.update("update product set title = 'Replica 2' where id = 1");
+        try (final PreparedStatementPool pool = new PreparedStatementPool(primary.provider, router, "select title from product where id = ?", new PreparedStatementPoolSettings().setReturnInline(true))) {
+            final List<JdbcStatement> statements = new ArrayList<>();
+            final List<String> titles = new ArrayList<>();
+            for (int i = 0; i < 2; i++) statements.add(pool.getStatement());
+            for (final JdbcStatement statement : statements) {
+                try (final JdbcResultSet rs = statement.executeQuery(1L)) {
+                    assertTrue(rs.next());
+                    titles.add(rs.getString(1));
+                }
+                statement.close();
+            }
+            assertTrue(titles.toString(), titles.contains("Product 1"));
+            assertTrue(titles.toString(), titles.contains("Replica 2"));
+        }
+        assertEquals(0, primary.openedLinks.get());
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.data.jdbc.JdbcResultSet;
+import com.gurucue.recommendations.data.jdbc.JdbcStatement;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPool;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPoolSettings;
+import com.gurucue.recommendations.data.jdbc.SharedConnectionPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests sharing connections between statement pools with a {@link SharedConnectionPool}, and its maintenance.
+ */
+public class SharedConnectionPoolTest {
+    private static final String TITLE_SQL = "select title from product where id = ?";
+    private static final String SCORE_SQL = "select score from product where id = ?";
+    private TestDatabase db;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestDatabase();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.close();
+    }
+
+    private static String title(final PreparedStatementPool pool, final long id) {
+        try (final JdbcStatement statement = pool.getStatement()) {
+            try (final JdbcResultSet rs = statement.executeQuery(id)) {
+                assertTrue(rs.next());
+                return rs.getString(1);
+            }
+        }
+    }
+
+    private static void awaitCondition(final String message, final Condition condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) fail(message);
+            Thread.sleep(10L);
+        }
+    }
+
+    interface Condition {
+        boolean holds();
+    }
+
+    @Test
+    public void testPoolsShareConnections() {
+        try (final SharedConnectionPool connections = new SharedConnectionPool(db.provider, new PreparedStatementPoolSettings().setReturnInline(true));
+             final PreparedStatementPool titles = new PreparedStatementPool(connections, TITLE_SQL);
+             final PreparedStatementPool scores = new PreparedStatementPool(connections, SCORE_SQL)) {
+            for (int i = 1; i <= 3; i++) {
+                assertEquals("Product " + i, title(titles, i));
+                try (final JdbcStatement statement = scores.getStatement()) {
+                    try (final JdbcResultSet rs = statement.executeQuery((long) i)) {
+                        assertTrue(rs.next());
+                        assertEquals(i / 10.0, rs.getDouble(1), 1e-9);
+                    }
+                }
+            }
+            assertEquals(1, connections.getSize());
+            assertEquals(2L, connections.getPrepareCount());
+            assertEquals(1, db.openedLinks.get());
+        }
+        assertEquals(0, db.openLinkCount());
+    }
+
+    @Test
+    public void testClosedPoolStatementsAreClosed() throws Exception {
+        try (final SharedConnectionPool connections = new SharedConnectionPool(db.provider, new PreparedStatementPoolSettings().setReturnInline(true));
+             final PreparedStatementPool scores = new PreparedStatementPool(connections, SCORE_SQL)) {
+            final PreparedStatementPool titles = new PreparedStatementPool(connections, TITLE_SQL);
+            final JdbcStatement first = titles.getStatement();
+            final JdbcStatement second = titles.getStatement();
+            first.close();
+            second.close();
+            assertEquals(2, connections.getSize());
+            final JdbcStatement borrowed = scores.getStatement();
+            assertEquals(3, db.openStatementCount());
+            titles.close(); // closes the statement on the idle connection at once
+            assertEquals(2, db.openStatementCount());
+            borrowed.close();
+            assertEquals(2, db.openStatementCount());
+            assertEquals(Double.valueOf(0.4), score(scores, 4L)); // the connection closes the statement when borrowed again
+            assertEquals(1, db.openStatementCount());
+            assertEquals(2, connections.getSize());
+        }
+        assertEquals(0, db.openStatementCount());
+        assertEquals(0, db.openLinkCount());
+    }
+
+    private static Double score(final PreparedStatementPool pool, final long id) {
+        try (final JdbcStatement statement = pool.getStatement()) {
+            try (final JdbcResultSet rs = statement.executeQuery(id)) {
+                assertTrue(rs.next());
+                return rs.getDouble(1);
+            }
+        }
+    }
+
+    @Test
+    public void testIdleEvictionKeepsMinimumSize() throws Exception {
+        final PreparedStatementPoolSettings settings = new PreparedStatementPoolSettings().setMinSize(1).setMaxSize(4)
+                .setIdleTimeoutMillis(50L).setEvictionIntervalMillis(20L).setReturnInline(true);
+        try (final SharedConnectionPool connections = new SharedConnectionPool(db.provider, settings);
+             final PreparedStatementPool titles = new PreparedStatementPool(connections, TITLE_SQL)) {
+            final JdbcStatement[] statements = new JdbcStatement[4];
+            for (int i = 0; i < statements.length; i++) statements[i] = titles.getStatement();
+            for (final JdbcStatement statement : statements) statement.close();
+            assertEquals(4, connections.getSize());
+            awaitCondition("Idle connections were not evicted", new Condition() {
+                @Override
+                public boolean holds() {
+                    return connections.getSize() == 1;
+                }
+            });
+            assertEquals(3L, connections.getEvictionCount());
+            assertEquals(1, db.openLinkCount());
+            assertEquals("Product 7", title(titles, 7L));
+        }
+        assertEquals(0, db.openLinkCount());
+    }
+
+    @Test
+    public void testMaintenanceFillsMinimumSize() throws Exception {
+        final PreparedStatementPoolSettings settings = new PreparedStatementPoolSettings().setMinSize(2).setMaxSize(4).setEvictionIntervalMillis(20L);
+        try (final SharedConnectionPool connections = new SharedConnectionPool(db.provider, settings)) {
+            awaitCondition("The pool was not filled up to its minimum size", new Condition() {
+                @Override
+                public boolean holds() {
+                    return connections.getIdleCount() == 2;
+                }
+            });
+            assertEquals(2, connections.getSize());
+        }
+        assertEquals(0, db.openLinkCount());
+    }
+
+    @Test
+    public void testMaintenanceCommitsIdleConnections() throws Exception {
+        final PreparedStatementPoolSettings settings = new PreparedStatementPoolSettings().setCommitAfterUses(100)
+                .setEvictionIntervalMillis(20L).setReturnInline(true);
+        try (final SharedConnectionPool connections = new SharedConnectionPool(db.provider, settings);
+             final PreparedStatementPool titles = new PreparedStatementPool(connections, TITLE_SQL)) {
+            assertEquals("Product 1", title(titles, 1L));
+            awaitCondition("The idle connection was not committed", new Condition() {
+                @Override
+                public boolean holds() {
+                    return db.commits.get() == 1;
+                }
+            });
+            // committed once, not again while it stays unused
+            Thread.sleep(100L);
+            assertEquals(1, db.commits.get());
+            assertEquals(1, connections.getIdleCount());
+            assertEquals("Product 2", title(titles, 2L));
+        }
+        assertEquals(0, db.openLinkCount());
+    }
+
+    @Test
+    public void testKeepaliveClosesInvalidConnections() throws Exception {
+        final PreparedStatementPoolSettings settings = new PreparedStatementPoolSettings().setKeepaliveIntervalMillis(20L)
+                .setEvictionIntervalMillis(20L).setReturnInline(true);
+        try (final SharedConnectionPool connections = new SharedConnectionPool(db.provider, settings);
+             final PreparedStatementPool titles = new PreparedStatementPool(connections, TITLE_SQL)) {
+            assertEquals("Product 1", title(titles, 1L));
+            awaitCondition("The idle connection was not validated", new Condition() {
+                @Override
+                public boolean holds() {
+                    return db.validations.get() > 1;
+                }
+            });
+            assertEquals(1, connections.getSize());
+            db.invalidLinks = true;
+            awaitCondition("The invalid connection was not closed", new Condition() {
+                @Override
+                public boolean holds() {
+                    return connections.getSize() == 0;
+                }
+            });
+            assertEquals(0, db.openLinkCount());
+            db.invalidLinks = false;
+            assertEquals("Product 3", title(titles, 3L));
+        }
+        assertEquals(0, db.openLinkCount());
+    }
+
+    @Test
+    public void testRejectsSettingsItCannotHonour() {
+        try {
+            new SharedConnectionPool(db.provider, new PreparedStatementPoolSettings().setMinSize(3).setMaxSize(2));
+            fail("A minimum size above the maximum size was accepted");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new SharedConnectionPool(db.provider, new PreparedStatementPoolSettings().setWarmUpSize(2));
+            fail("A warm-up was accepted");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.data.jdbc.JdbcDataLink;
+import com.gurucue.recommendations.data.jdbc.JdbcResultSet;
+import com.gurucue.recommendations.data.jdbc.JdbcStatement;
+import com.gurucue.recommendations.data.jdbc.ParameterLongLong;
+import com.gurucue.recommendations.data.jdbc.ParameterLongString;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizerLong;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizerLongLong;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizerLongString;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPool;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPoolSettings;
+import com.gurucue.recommendations.data.jdbc.ResultProcessor;
+import com.gurucue.recommendations.data.jdbc.SimplePreparedStatementWrapper;
+import com.gurucue.recommendations.data.jdbc.SlowQueryLog;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.LoggerConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that {@link SlowQueryLog} reports the logical name, the bound parameters and the wait time of executions.
+ */
+public class SlowQueryLogTest {
+    private static final String TITLE_SQL = "select title from product where id = ?";
+    private static final Pattern WAIT = Pattern.compile("wait (\\d+) us");
+    private TestDatabase db;
+    private final List<String> messages = new CopyOnWriteArrayList<>();
+    private AbstractAppender appender;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestDatabase();
+        appender = new AbstractAppender("slow-query-test", null, null) {
+            @Override
+            public void append(final LogEvent event) {
+                messages.add(event.getMessage().getFormattedMessage());
+            }
+        };
+        appender.start();
+        final LoggerContext context = (LoggerContext) LogManager.getContext(false);
+        final Configuration configuration = context.getConfiguration();
+        final LoggerConfig loggerConfig = new LoggerConfig(SlowQueryLog.class.getName(), Level.INFO, false);
+        loggerConfig.addAppender(appender, Level.INFO, null);
+        configuration.addLogger(SlowQueryLog.class.getName(), loggerConfig);
+        context.updateLoggers();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        SlowQueryLog.setThresholdMillis(-1L);
+        SlowQueryLog.setSampleRate(0);
+        final LoggerContext context = (LoggerContext) LogManager.getContext(false);
+        context.getConfiguration().removeLogger(SlowQueryLog.class.getName());
+        context.updateLoggers();
+        appender.stop();
+        db.close();
+    }
+
+    private static final ResultProcessor<String, Long> titleProcessor = new ResultProcessor<String, Long>() {
+        @Override
+        public String process(final ResultSet resultSet, final Long parameters) throws SQLException {
+            return resultSet.next() ? resultSet.getString(1) : null;
+        }
+    };
+
+    private static String lookup(final PreparedStatementPool pool, final long id) {
+        try (final JdbcStatement statement = pool.getStatement();
+             final JdbcResultSet rs = statement.executeQuery(id)) {
+            return rs.next() ? rs.getString(1) : null;
+        }
+    }
+
+    @Test
+    public void testPoolLogsNameAndParameters() {
+        SlowQueryLog.setThresholdMillis(0L);
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, TITLE_SQL, new PreparedStatementPoolSettings().setReturnInline(true).setName("title by id"))) {
+            assertEquals("Product 5", lookup(pool, 5L));
+        }
+        assertEquals(1, messages.size());
+        final String message = messages.get(0);
+        assertTrue(message, message.startsWith("Slow statement title by id: wait "));
+        assertTrue(message, message.contains("rows 1, parameters [5]; SQL: " + TITLE_SQL));
+    }
+
+    @Test
+    public void testPoolLogsSqlWithoutName() {
+        SlowQueryLog.setSampleRate(1);
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, TITLE_SQL, new PreparedStatementPoolSettings().setReturnInline(true))) {
+            assertEquals("Product 7", lookup(pool, 7L));
+            assertEquals("Product 8", lookup(pool, 8L));
+        }
+        assertEquals(2, messages.size());
+        assertTrue(messages.get(0), messages.get(0).startsWith("Sampled statement " + TITLE_SQL + ": "));
+        assertTrue(messages.get(0), messages.get(0).contains("parameters [7]"));
+        assertTrue(messages.get(1), messages.get(1).contains("parameters [8]"));
+    }
+
+    @Test
+    public void testNothingLoggedWhenDisabled() {
+        SlowQueryLog.setThresholdMillis(-1L);
+        SlowQueryLog.setSampleRate(0);
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, TITLE_SQL, new PreparedStatementPoolSettings().setReturnInline(true))) {
+            assertEquals("Product 3", lookup(pool, 3L));
+        }
+        final JdbcDataLink link = db.newLink();
+        try {
+            assertEquals("Product 3", new SimplePreparedStatementWrapper<>(TITLE_SQL, new PreparedStatementParameterizerLong(), titleProcessor).executeLong(link, 3L));
+        }
+        finally {
+            link.close();
+        }
+        assertTrue(messages.toString(), messages.isEmpty());
+    }
+
+    @Test
+    public void testPoolReportsBorrowWait() throws Exception {
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, TITLE_SQL, new PreparedStatementPoolSettings().setReturnInline(true).setMaxSize(1))) {
+            final CountDownLatch borrowed = new CountDownLatch(1);
+            final Thread holder = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final JdbcStatement statement = pool.getStatement();
+                    try {
+                        borrowed.countDown();
+                        Thread.sleep(100L);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally {
+                        statement.close();
+                    }
+                }
+            });
+            holder.start();
+            assertTrue(borrowed.await(10L, TimeUnit.SECONDS));
+            SlowQueryLog.setThresholdMillis(50L);
+            assertEquals("Product 9", lookup(pool, 9L));
+            holder.join();
+        }
+        assertEquals(1, messages.size());
+        final Matcher matcher = WAIT.matcher(messages.get(0));
+        assertTrue(messages.get(0), matcher.find());
+        assertTrue(messages.get(0), Long.parseLong(matcher.group(1)) >= 50000L);
+    }
+
+    @Test
+    public void testWrapperLogsName() {
+        SlowQueryLog.setThresholdMillis(0L);
+        final SimplePreparedStatementWrapper<String, Long> wrapper = new SimplePreparedStatementWrapper<>("product title", TITLE_SQL, new PreparedStatementParameterizerLong(), titleProcessor, false);
+        final JdbcDataLink link = db.newLink();
+        try {
+            assertEquals("Product 11", wrapper.execute(link, 11L));
+            assertEquals("Product 12", wrapper.executeLong(link, 12L));
+        }
+        finally {
+            link.close();
+        }
+        assertEquals(2, messages.size());
+        assertTrue(messages.get(0), messages.get(0).startsWith("Slow statement product title: wait 0 us"));
+        assertTrue(messages.get(0), messages.get(0).contains("parameters 11; SQL: " + TITLE_SQL));
+        assertTrue(messages.get(1), messages.get(1).contains("parameters 12; SQL: " + TITLE_SQL));
+    }
+
+    @Test
+    public void testWrapperLogsPrimitiveParameterPairs() {
+        SlowQueryLog.setThresholdMillis(0L);
+        final String byTitleSql = "select title from product where id = ? and title = ?";
+        final String byRangeSql = "select title from product where id between ? and ?";
+        final JdbcDataLink link = db.newLink();
+        try {
+            assertEquals("Product 5", new SimplePreparedStatementWrapper<>(byTitleSql, new PreparedStatementParameterizerLongString(), new ResultProcessor<String, ParameterLongString>() {
+                @Override
+                public String process(final ResultSet resultSet, final ParameterLongString parameters) throws SQLException {
+                    return resultSet.next() ? resultSet.getString(1) : null;
+                }
+            }).executeLongString(link, 5L, "Product 5"));
+            assertEquals("Product 6", new SimplePreparedStatementWrapper<>(byRangeSql, new PreparedStatementParameterizerLongLong(), new ResultProcessor<String, ParameterLongLong>() {
+                @Override
+                public String process(final ResultSet resultSet, final ParameterLongLong parameters) throws SQLException {
+                    return resultSet.next() ? resultSet.getString(1) : null;
+                }
+            }).executeLongLong(link, 6L, 6L));
+        }
+        finally {
+            link.close();
+        }
+        assertEquals(2, messages.size());
+        assertTrue(messages.get(0), messages.get(0).contains("parameters [5, Product 5]; SQL: " + byTitleSql));
+        assertTrue(messages.get(1), messages.get(1).contains("parameters [6, 6]; SQL: " + byRangeSql));
+    }
+}
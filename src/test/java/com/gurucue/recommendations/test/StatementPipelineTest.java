@@ -0,0 +1,217 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.DatabaseException;
+import com.gurucue.recommendations.data.jdbc.JdbcDataLink;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizer;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizerLong;
+import com.gurucue.recommendations.data.jdbc.ResultProcessor;
+import com.gurucue.recommendations.data.jdbc.SimplePreparedStatementWrapper;
+import com.gurucue.recommendations.data.jdbc.StatementPipeline;
+import com.gurucue.recommendations.data.jdbc.UnitOfWork;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests executing several statements with a {@link StatementPipeline}. H2 does not report support for
+ * multiple result sets, so the pipeline falls back to executing the statements sequentially, unless
+ * the driver metadata is faked.
+ */
+public class StatementPipelineTest {
+    private TestDatabase db;
+    private JdbcDataLink link;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestDatabase();
+        link = db.newLink();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        link.close();
+        db.close();
+    }
+
+    private static final ResultProcessor<String, Long> titleProcessor = new ResultProcessor<String, Long>() {
+        @Override
+        public String process(final ResultSet resultSet, final Long parameters) throws SQLException {
+            return resultSet.next() ? resultSet.getString(1) : null;
+        }
+    };
+
+    private static final ResultProcessor<List<Long>, long[]> idsProcessor = new ResultProcessor<List<Long>, long[]>() {
+        @Override
+        public List<Long> process(final ResultSet resultSet, final long[] parameters) throws SQLException {
+            final List<Long> ids = new ArrayList<>();
+            while (resultSet.next()) ids.add(resultSet.getLong(1));
+            return ids;
+        }
+    };
+
+    private static final PreparedStatementParameterizer<long[]> rangeParameterizer = new PreparedStatementParameterizer<long[]>() {
+        @Override
+        public void execute(final PreparedStatement statement, final long[] parameters) throws SQLException {
+            statement.setLong(1, parameters[0]);
+            statement.setLong(2, parameters[1]);
+        }
+    };
+
+    @Test
+    public void testEachResultGoesToItsProcessor() {
+        final StatementPipeline pipeline = new StatementPipeline("products");
+        final StatementPipeline.Result<String> title = pipeline.add("select title from product where id = ?", new PreparedStatementParameterizerLong(), 7L, titleProcessor);
+        final StatementPipeline.Result<List<Long>> ids = pipeline.add("select id from product where id between ? and ? order by id", rangeParameterizer, new long[]{3L, 5L}, idsProcessor);
+        final StatementPipeline.Result<Integer> updated = pipeline.add("update product set score = 0 where id > 95", null, null, (ResultProcessor<Integer, Object>) null);
+        assertEquals(3, pipeline.size());
+        assertFalse(title.isDone());
+        pipeline.execute(link);
+        link.commit();
+        assertEquals("Product 7", title.get());
+        assertEquals(-1, title.getUpdateCount());
+        assertEquals(3, ids.get().size());
+        assertEquals(Long.valueOf(3L), ids.get().get(0));
+        assertEquals(Long.valueOf(5L), ids.get().get(2));
+        assertTrue(updated.isDone());
+        assertNull(updated.get());
+        assertEquals(5, updated.getUpdateCount());
+    }
+
+    @Test
+    public void testDriverMetadataDoesNotEnableMultiStatements() {
+        // like MySQL without allowMultiQueries: multiple result sets are reported, but H2 does not execute a multi-statement as a pipeline
+        final JdbcDataLink multiResultLink = withMultipleResultSets(link);
+        final StatementPipeline sequential = new StatementPipeline("sequential");
+        final StatementPipeline.Result<String> first = sequential.add("select title from product where id = ?", new PreparedStatementParameterizerLong(), 1L, titleProcessor);
+        final StatementPipeline.Result<String> second = sequential.add("select title from product where id = ?", new PreparedStatementParameterizerLong(), 2L, titleProcessor);
+        sequential.execute(multiResultLink);
+        assertEquals("Product 1", first.get());
+        assertEquals("Product 2", second.get());
+
+        final StatementPipeline combined = new StatementPipeline("combined", true);
+        combined.add("select title from product where id = ?", new PreparedStatementParameterizerLong(), 1L, titleProcessor);
+        combined.add("select title from product where id = ?", new PreparedStatementParameterizerLong(), 2L, titleProcessor);
+        try {
+            combined.execute(multiResultLink);
+            fail("A declared multi-statement pipeline was not executed in one statement");
+        }
+        catch (DatabaseException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("SQL: select title from product where id = ?;\nselect title from product where id = ?"));
+        }
+    }
+
+    // a link whose driver metadata reports support for multiple result sets
+    private static JdbcDataLink withMultipleResultSets(final JdbcDataLink link) {
+        final Connection connection = link.getConnection();
+        final DatabaseMetaData metaData = (DatabaseMetaData) Proxy.newProxyInstance(StatementPipelineTest.class.getClassLoader(), new Class<?>[]{DatabaseMetaData.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                if ("supportsMultipleResultSets".equals(method.getName())) return Boolean.TRUE;
+                if ("getDriverName".equals(method.getName())) return "multiple result sets test driver";
+                return method.invoke(connection.getMetaData(), args);
+            }
+        });
+        final Connection multiResultConnection = (Connection) Proxy.newProxyInstance(StatementPipelineTest.class.getClassLoader(), new Class<?>[]{Connection.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                if ("getMetaData".equals(method.getName())) return metaData;
+                return method.invoke(connection, args);
+            }
+        });
+        return (JdbcDataLink) Proxy.newProxyInstance(StatementPipelineTest.class.getClassLoader(), new Class<?>[]{JdbcDataLink.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                if ("getConnection".equals(method.getName())) return multiResultConnection;
+                return method.invoke(link, args);
+            }
+        });
+    }
+
+    @Test
+    public void testWrappedStatement() {
+        final SimplePreparedStatementWrapper<String, Long> wrapper = new SimplePreparedStatementWrapper<>("select title from product where id = ?", new PreparedStatementParameterizerLong(), titleProcessor);
+        final StatementPipeline pipeline = new StatementPipeline("wrapped", false);
+        final StatementPipeline.Result<String> first = pipeline.add(wrapper, 1L);
+        final StatementPipeline.Result<String> second = pipeline.add(wrapper, 2L);
+        pipeline.execute(link);
+        assertEquals("Product 1", first.get());
+        assertEquals("Product 2", second.get());
+    }
+
+    @Test
+    public void testPipelineRunsOnce() {
+        final StatementPipeline pipeline = new StatementPipeline("once");
+        final StatementPipeline.Result<String> title = pipeline.add("select title from product where id = ?", new PreparedStatementParameterizerLong(), 1L, titleProcessor);
+        try {
+            title.get();
+            fail("A result was available before the pipeline was executed");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        pipeline.execute(link);
+        try {
+            pipeline.execute(link);
+            fail("A pipeline was executed twice");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            pipeline.add("select 1", null, null, (ResultProcessor<Object, Object>) null);
+            fail("A statement was added to an executed pipeline");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testEmptyPipeline() {
+        new StatementPipeline("empty").execute(link);
+    }
+
+    @Test
+    public void testUnitOfWorkLinkIsUsed() throws SQLException {
+        final StatementPipeline pipeline = new StatementPipeline("unit");
+        final StatementPipeline.Result<Integer> inserted = pipeline.add("insert into event (user_id, item_id, score) values (?, 1, 1.0)", new PreparedStatementParameterizerLong(), 42L, (ResultProcessor<Integer, Long>) null);
+        try (final UnitOfWork unit = UnitOfWork.begin(db.provider)) {
+            pipeline.execute();
+            unit.commit();
+        }
+        assertEquals(1, inserted.getUpdateCount());
+        assertEquals(1L, db.queryLong("select count(*) from event where user_id = 42"));
+        assertEquals(1, db.commits.get());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.data.jdbc.CountingJdbcMetrics;
+import com.gurucue.recommendations.data.jdbc.JdbcMetrics;
+import com.gurucue.recommendations.data.jdbc.JdbcResultSet;
+import com.gurucue.recommendations.data.jdbc.JdbcStatement;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPool;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementPoolSettings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests how often {@link PreparedStatementPool} re-prepares and commits returned statements.
+ */
+public class StatementReturnTest {
+    private static final String SQL = "select score from product where id = ?";
+    private TestDatabase db;
+    private CountingJdbcMetrics metrics;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestDatabase();
+        metrics = new CountingJdbcMetrics();
+        JdbcMetrics.setDefault(metrics);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        JdbcMetrics.setDefault(null);
+        db.close();
+    }
+
+    private long prepareCountAfterUses(final PreparedStatementPoolSettings settings, final int uses) {
+        try (final PreparedStatementPool pool = new PreparedStatementPool(db.provider, SQL, settings.setReturnInline(true))) {
+            for (int i = 1; i <= uses; i++) {
+                try (final JdbcStatement statement = pool.getStatement()) {
+                    try (final JdbcResultSet rs = statement.executeQuery(i)) {
+                        assertTrue(rs.next());
+                        assertEquals(i / 10.0, rs.getDouble(1), 0.0);
+                    }
+                }
+            }
+            assertEquals(1, pool.getSize());
+        }
+        return metrics.forStatement(SQL).getPrepareCount();
+    }
+
+    @Test
+    public void testDefaultReprepareOnEveryReturn() {
+        assertEquals(7L, prepareCountAfterUses(new PreparedStatementPoolSettings(), 6));
+    }
+
+    @Test
+    public void testReprepareAfterUses() {
+        assertEquals(3L, prepareCountAfterUses(new PreparedStatementPoolSettings().setReprepareAfterUses(3), 6));
+    }
+
+    @Test
+    public void testNoReprepare() {
+        final int commitsBefore = db.commits.get();
+        assertEquals(1L, prepareCountAfterUses(new PreparedStatementPoolSettings().setReprepareAfterUses(0), 6));
+        assertEquals(6, db.commits.get() - commitsBefore);
+    }
+}
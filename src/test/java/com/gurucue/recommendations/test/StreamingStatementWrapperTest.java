@@ -0,0 +1,107 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.data.jdbc.JdbcDataLink;
+import com.gurucue.recommendations.data.jdbc.JdbcResultSet;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizerLong;
+import com.gurucue.recommendations.data.jdbc.RowMapper;
+import com.gurucue.recommendations.data.jdbc.StreamingStatementWrapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests streaming query results with {@link StreamingStatementWrapper}.
+ */
+public class StreamingStatementWrapperTest {
+    private static final RowMapper<Long> ID = new RowMapper<Long>() {
+        @Override
+        public Long map(final JdbcResultSet row) {
+            return row.getLong(1);
+        }
+    };
+    private final StreamingStatementWrapper<Long, Long> wrapper = new StreamingStatementWrapper<>("select id from product where id > ? order by id", new PreparedStatementParameterizerLong(), ID, 7);
+    private TestDatabase db;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestDatabase();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void testStreamsAllRows() {
+        try (final JdbcDataLink link = db.newLink()) {
+            final List<Long> ids;
+            try (final Stream<Long> stream = wrapper.stream(link, 10L)) {
+                ids = stream.collect(Collectors.<Long>toList());
+            }
+            assertEquals(TestDatabase.PRODUCT_COUNT - 10, ids.size());
+            for (int i = 0; i < ids.size(); i++) assertEquals(Long.valueOf(i + 11), ids.get(i));
+        }
+    }
+
+    @Test
+    public void testClosingEarlyRestoresAutoCommit() throws SQLException {
+        try (final JdbcDataLink link = db.newLink()) {
+            link.getConnection().setAutoCommit(true);
+            try (final Stream<Long> stream = wrapper.stream(link, 0L)) {
+                assertFalse(link.getConnection().getAutoCommit());
+                assertEquals(3L, stream.limit(3L).count());
+            }
+            assertTrue(link.getConnection().getAutoCommit());
+            assertTrue(link.isValid());
+        }
+    }
+
+    @Test
+    public void testStreamsNullRows() {
+        final StreamingStatementWrapper<String, Long> titles = new StreamingStatementWrapper<>("select id from product where id > ? order by id", new PreparedStatementParameterizerLong(), new RowMapper<String>() {
+            @Override
+            public String map(final JdbcResultSet row) {
+                return 0L == row.getLong(1) % 2L ? null : "odd";
+            }
+        }, 7);
+        try (final JdbcDataLink link = db.newLink()) {
+            final long nulls;
+            try (final Stream<String> stream = titles.stream(link, 0L)) {
+                nulls = stream.filter(Objects::isNull).count();
+            }
+            assertEquals(TestDatabase.PRODUCT_COUNT / 2, nulls);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNonPositiveFetchSize() {
+        new StreamingStatementWrapper<>("select id from product", new PreparedStatementParameterizerLong(), ID, 0);
+    }
+}
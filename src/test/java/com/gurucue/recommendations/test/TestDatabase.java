@@ -0,0 +1,262 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.DatabaseException;
+import com.gurucue.recommendations.data.jdbc.JdbcDataLink;
+import com.gurucue.recommendations.data.jdbc.JdbcDataProvider;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementCache;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory H2 database for the tests, with a <code>product</code> table of
+ * {@link #PRODUCT_COUNT} rows and an empty <code>event</code> table, and a minimal
+ * {@link JdbcDataProvider} over it. The provider and its links are dynamic proxies
+ * implementing only the methods the library uses, and count the links they open and close.
+ */
+public final class TestDatabase implements AutoCloseable {
+    public static final int PRODUCT_COUNT = 100;
+    private static final AtomicInteger databaseCounter = new AtomicInteger(0);
+
+    private final String url;
+    private final Connection keepAlive;
+    private final ExecutorService asyncExecutor = Executors.newFixedThreadPool(4);
+    public final JdbcDataProvider provider;
+    public final AtomicInteger openedLinks = new AtomicInteger(0);
+    public final AtomicInteger closedLinks = new AtomicInteger(0);
+    public final AtomicInteger commits = new AtomicInteger(0);
+    public final AtomicInteger rollbacks = new AtomicInteger(0);
+    public final AtomicInteger validations = new AtomicInteger(0);
+    // set to make the next commits fail
+    public volatile boolean failCommits = false;
+    // set to make the links report they are not valid
+    public volatile boolean invalidLinks = false;
+    // set to make opening new links fail
+    public volatile boolean failLinks = false;
+    // set to keep the connections open when their links are closed, as a connection pool does
+    public volatile boolean pooledConnections = false;
+    // every statement prepared through a link
+    private final List<Statement> preparedStatements = Collections.synchronizedList(new ArrayList<Statement>());
+
+    public TestDatabase() throws SQLException {
+        this(false);
+    }
+
+    /**
+     * Creates and fills a new in-memory database.
+     *
+     * @param cacheStatements whether the links of the provider have their own prepared statement cache
+     */
+    public TestDatabase(final boolean cacheStatements) throws SQLException {
+        url = "jdbc:h2:mem:test" + databaseCounter.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+        keepAlive = DriverManager.getConnection(url);
+        try (final Statement stmt = keepAlive.createStatement()) {
+            stmt.execute("create table product (id bigint primary key, title varchar(200) not null, score double, created timestamp)");
+            stmt.execute("create table event (user_id bigint not null, item_id bigint not null, score double not null)");
+        }
+        try (final PreparedStatement insert = keepAlive.prepareStatement("insert into product (id, title, score, created) values (?, ?, ?, ?)")) {
+            for (int i = 1; i <= PRODUCT_COUNT; i++) {
+                insert.setLong(1, i);
+                insert.setString(2, "Product " + i);
+                insert.setDouble(3, i / 10.0);
+                insert.setTimestamp(4, new Timestamp(1500000000000L + i * 1000L));
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+        provider = (JdbcDataProvider) Proxy.newProxyInstance(TestDatabase.class.getClassLoader(), new Class<?>[]{JdbcDataProvider.class}, new ProviderHandler(cacheStatements));
+    }
+
+    public JdbcDataLink newLink() {
+        return provider.newJdbcDataLink();
+    }
+
+    /**
+     * Runs an update outside of the provider's links, on an auto-committing connection.
+     */
+    public int update(final String sql) throws SQLException {
+        try (final Statement stmt = keepAlive.createStatement()) {
+            return stmt.executeUpdate(sql);
+        }
+    }
+
+    /**
+     * Runs a query returning a single number, outside of the provider's links.
+     */
+    public long queryLong(final String sql) throws SQLException {
+        try (final Statement stmt = keepAlive.createStatement(); final ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.next() ? rs.getLong(1) : -1L;
+        }
+    }
+
+    public int openLinkCount() {
+        return openedLinks.get() - closedLinks.get();
+    }
+
+    /**
+     * Returns the number of statements prepared through the links that are still open.
+     */
+    public int openStatementCount() throws SQLException {
+        int open = 0;
+        synchronized (preparedStatements) {
+            for (final Statement statement : preparedStatements) {
+                if (!statement.isClosed()) open++;
+            }
+        }
+        return open;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        asyncExecutor.shutdown();
+        try {
+            asyncExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try (final Statement stmt = keepAlive.createStatement()) {
+            stmt.execute("shutdown");
+        }
+        keepAlive.close();
+    }
+
+    final class ProviderHandler implements InvocationHandler {
+        final boolean cacheStatements;
+
+        ProviderHandler(final boolean cacheStatements) {
+            this.cacheStatements = cacheStatements;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "newJdbcDataLink":
+                    if (failLinks) throw new DatabaseException("Opening a link failed on purpose");
+                    final Connection connection = DriverManager.getConnection(url);
+                    connection.setAutoCommit(false);
+                    openedLinks.incrementAndGet();
+                    return Proxy.newProxyInstance(TestDatabase.class.getClassLoader(), new Class<?>[]{JdbcDataLink.class}, new LinkHandler(connection, cacheStatements ? new PreparedStatementCache() : null));
+                case "runAsync":
+                    asyncExecutor.execute((Runnable) args[0]);
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "TestDatabase provider " + url;
+                default:
+                    throw new UnsupportedOperationException("Not supported by the test provider: " + method);
+            }
+        }
+    }
+
+    final class LinkHandler implements InvocationHandler {
+        final Connection connection;
+        final PreparedStatementCache cache;
+        boolean closed = false;
+
+        LinkHandler(final Connection connection, final PreparedStatementCache cache) {
+            this.connection = connection;
+            this.cache = cache;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            try {
+                switch (method.getName()) {
+                    case "isValid":
+                        validations.incrementAndGet();
+                        return !invalidLinks && connection.isValid(1);
+                    case "setReadOnly":
+                        connection.setReadOnly((Boolean) args[0]);
+                        return null;
+                    case "prepareStatement":
+                        final Object statement = Connection.class.getMethod(method.getName(), method.getParameterTypes()).invoke(connection, args);
+                        preparedStatements.add((Statement) statement);
+                        return statement;
+                    case "createStatement":
+                    case "prepareCall":
+                        return Connection.class.getMethod(method.getName(), method.getParameterTypes()).invoke(connection, args);
+                    case "execute":
+                        try (final Statement stmt = connection.createStatement()) {
+                            stmt.execute((String) args[0]);
+                        }
+                        return null;
+                    case "getConnection":
+                        return connection;
+                    case "getPreparedStatementCache":
+                        return cache;
+                    case "commit":
+                        if (failCommits) throw new DatabaseException("Commit failed on purpose");
+                        connection.commit();
+                        commits.incrementAndGet();
+                        return null;
+                    case "rollback":
+                        connection.rollback();
+                        rollbacks.incrementAndGet();
+                        return null;
+                    case "close":
+                        if (closed) return null;
+                        closed = true;
+                        if (null != cache) cache.close();
+                        if (pooledConnections) connection.rollback(); // the statements of the connection stay open
+                        else connection.close();
+                        closedLinks.incrementAndGet();
+                        return null;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return "TestDatabase link " + connection;
+                    default:
+                        throw new UnsupportedOperationException("Not supported by the test link: " + method);
+                }
+            }
+            catch (InvocationTargetException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof SQLException) throw new DatabaseException(cause.toString(), cause);
+                throw cause;
+            }
+            catch (SQLException e) {
+                throw new DatabaseException(e.toString(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test;
+
+import com.gurucue.recommendations.DatabaseException;
+import com.gurucue.recommendations.data.jdbc.PreparedStatementParameterizer;
+import com.gurucue.recommendations.data.jdbc.SimplePreparedStatementWrapper;
+import com.gurucue.recommendations.data.jdbc.UnitOfWork;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests executing statements on the single link of a {@link UnitOfWork}.
+ */
+public class UnitOfWorkTest {
+    private TestDatabase db;
+    private SimplePreparedStatementWrapper<Void, Long> insert;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestDatabase();
+        db.update("alter table event add constraint positive_item check (item_id >= 0)");
+        insert = new SimplePreparedStatementWrapper<>("insert into event (user_id, item_id, score) values (1, ?, 1.0)", new PreparedStatementParameterizer<Long>() {
+            @Override
+            public void execute(final PreparedStatement statement, final Long parameter) throws SQLException {
+                statement.setLong(1, parameter);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        assertNull("A unit of work was left bound to the thread", UnitOfWork.current());
+        db.close();
+    }
+
+    private long eventCount() throws SQLException {
+        return db.queryLong("select count(*) from event");
+    }
+
+    @Test
+    public void testStatementsShareOneLinkAndCommit() throws SQLException {
+        try (final UnitOfWork unit = UnitOfWork.begin(db.provider)) {
+            assertSame(unit, UnitOfWork.current());
+            insert.execute(1L);
+            insert.execute(2L);
+            insert.execute(3L);
+            assertEquals(0L, eventCount());
+            unit.commit();
+        }
+        assertEquals(3L, eventCount());
+        assertEquals(1, db.openedLinks.get());
+        assertEquals(1, db.commits.get());
+        assertEquals(0, db.openLinkCount());
+    }
+
+    @Test
+    public void testCloseWithoutCommitRollsBack() throws SQLException {
+        try (final UnitOfWork unit = UnitOfWork.begin(db.provider)) {
+            assertSame(unit, UnitOfWork.current());
+            insert.execute(1L);
+        }
+        assertEquals(0L, eventCount());
+        assertEquals(1, db.rollbacks.get());
+        assertEquals(0, db.openLinkCount());
+    }
+
+    @Test
+    public void testFailedStatementMarksForRollback() throws SQLException {
+        try (final UnitOfWork unit = UnitOfWork.begin(db.provider)) {
+            insert.execute(1L);
+            try {
+                insert.execute(-1L);
+                fail("A row violating a constraint was inserted");
+            }
+            catch (DatabaseException e) {
+                // expected
+            }
+            assertTrue(unit.isRollbackOnly());
+            try {
+                unit.commit();
+                fail("A unit of work marked for rollback was committed");
+            }
+            catch (DatabaseException e) {
+                // expected
+            }
+        }
+        assertEquals(0L, eventCount());
+        assertEquals(0, db.commits.get());
+        assertEquals(1, db.rollbacks.get());
+    }
+
+    @Test
+    public void testNestedUnitJoinsTheOuter() throws SQLException {
+        try (final UnitOfWork outer = UnitOfWork.begin(db.provider)) {
+            insert.execute(1L);
+            try (final UnitOfWork inner = UnitOfWork.begin(db.provider)) {
+                assertSame(outer.getLink(), inner.getLink());
+                insert.execute(2L);
+                inner.commit();
+            }
+            assertEquals(0, db.commits.get());
+            assertSame(outer, UnitOfWork.current());
+            outer.commit();
+        }
+        assertEquals(2L, eventCount());
+        assertEquals(1, db.openedLinks.get());
+        assertEquals(1, db.commits.get());
+    }
+
+    @Test
+    public void testUncommittedNestedUnitRollsBackTheOuter() throws SQLException {
+        try (final UnitOfWork outer = UnitOfWork.begin(db.provider)) {
+            insert.execute(1L);
+            try (final UnitOfWork inner = UnitOfWork.begin(db.provider)) {
+                assertSame(outer.getLink(), inner.getLink());
+                insert.execute(2L);
+            }
+            assertTrue(outer.isRollbackOnly());
+            try {
+                outer.commit();
+                fail("A unit of work marked for rollback was committed");
+            }
+            catch (DatabaseException e) {
+                // expected
+            }
+        }
+        assertEquals(0L, eventCount());
+    }
+
+    @Test
+    public void testFailedCommitRollsBack() throws SQLException {
+        try (final UnitOfWork unit = UnitOfWork.begin(db.provider)) {
+            insert.execute(1L);
+            db.failCommits = true;
+            try {
+                unit.commit();
+                fail("A failed commit was not thrown");
+            }
+            catch (DatabaseException e) {
+                // expected
+            }
+            // the failed unit of work is completed by the rollback, it cannot be committed again
+            assertEquals(1, db.rollbacks.get());
+            try {
+                unit.commit();
+                fail("A rolled back unit of work was committed");
+            }
+            catch (IllegalStateException e) {
+                // expected
+            }
+        }
+        db.failCommits = false;
+        assertEquals(0L, eventCount());
+        assertEquals(1, db.rollbacks.get());
+        assertEquals(0, db.openLinkCount());
+    }
+
+    @Test
+    public void testCompletedUnitCannotBeCompletedAgain() {
+        try (final UnitOfWork unit = UnitOfWork.begin(db.provider)) {
+            unit.rollback();
+            try {
+                unit.commit();
+                fail("A rolled back unit of work was committed");
+            }
+            catch (IllegalStateException e) {
+                // expected
+            }
+        }
+        assertEquals(1, db.rollbacks.get());
+    }
+}